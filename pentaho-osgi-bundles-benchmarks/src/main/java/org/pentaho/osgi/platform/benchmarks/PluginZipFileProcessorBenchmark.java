@@ -0,0 +1,115 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.osgi.platform.plugin.deployer.api.PluginFileHandler;
+import org.pentaho.osgi.platform.plugin.deployer.impl.JSONUtil;
+import org.pentaho.osgi.platform.plugin.deployer.impl.PluginZipFileProcessor;
+import org.pentaho.osgi.platform.plugin.deployer.impl.handlers.pluginxml.PluginXmlExternalResourcesHandler;
+import org.pentaho.osgi.platform.plugin.deployer.impl.handlers.pluginxml.PluginXmlStaticPathsHandler;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Turns a synthetic platform plugin zip into a bundle with the handlers the deployer registers.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 2 )
+@Measurement( iterations = 10, time = 2 )
+@Fork( 1 )
+public class PluginZipFileProcessorBenchmark {
+  @Param( { "50", "500" } )
+  public int entries;
+
+  /**
+   * Bytes of plugin files held in memory; 0 spills every file to disk.
+   */
+  @Param( { "33554432", "0" } )
+  public long memoryThreshold;
+
+  private File dir;
+  private File pluginZip;
+  private PluginZipFileProcessor processor;
+
+  @Setup
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory( "plugin-benchmark" ).toFile();
+    pluginZip = new SyntheticArchives( 42L, 16 * 1024 ).pluginZip( dir, "synthetic-plugin", entries );
+    JSONUtil jsonUtil = new JSONUtil();
+    PluginXmlStaticPathsHandler staticPathsHandler = new PluginXmlStaticPathsHandler();
+    staticPathsHandler.setJsonUtil( jsonUtil );
+    PluginXmlExternalResourcesHandler externalResourcesHandler = new PluginXmlExternalResourcesHandler();
+    externalResourcesHandler.setJsonUtil( jsonUtil );
+    List<PluginFileHandler> handlers = new ArrayList<PluginFileHandler>();
+    handlers.add( staticPathsHandler );
+    handlers.add( externalResourcesHandler );
+    processor =
+      new PluginZipFileProcessor( handlers, "synthetic-plugin", "synthetic-plugin", "1.0.0", memoryThreshold );
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileUtils.deleteQuietly( dir );
+  }
+
+  @Benchmark
+  public long process() throws IOException {
+    CountingOutputStream countingOutputStream = new CountingOutputStream( new NullOutputStream() );
+    processor.process( new ZipInputStream( new BufferedInputStream( new FileInputStream( pluginZip ) ) ),
+      new ZipOutputStream( countingOutputStream ) );
+    return countingOutputStream.getByteCount();
+  }
+
+  @Benchmark
+  public long processRaw() throws IOException {
+    CountingOutputStream countingOutputStream = new CountingOutputStream( new NullOutputStream() );
+    processor.processRaw( new FileInputStream( pluginZip ), countingOutputStream );
+    return countingOutputStream.getByteCount();
+  }
+}
@@ -0,0 +1,109 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.benchmarks;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.osgi.platform.webjars.RequireJsConfigConverter;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts a webjars-requirejs.js script, shaped like the one of the angularjs webjar, with a new engine per webjar
+ * as deployments used to do and with a shared {@link RequireJsConfigConverter}, from as many threads as it has
+ * engines.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 2 )
+@Measurement( iterations = 10, time = 2 )
+@Threads( 4 )
+@Fork( 1 )
+public class RequireJsConfigConverterBenchmark {
+  @Param( { "10", "150" } )
+  public int modules;
+
+  private String aggregatorScript;
+  private String config;
+  private RequireJsConfigConverter converter;
+
+  @Setup
+  public void setup() throws IOException {
+    InputStream inputStream =
+      RequireJsConfigConverter.class.getResourceAsStream( RequireJsConfigConverter.AGGREGATOR_SCRIPT );
+    try {
+      aggregatorScript = IOUtils.toString( inputStream, "UTF-8" );
+    } finally {
+      inputStream.close();
+    }
+    StringBuilder sb = new StringBuilder( "var children = [" );
+    for ( int i = 0; i < modules; i++ ) {
+      sb.append( i == 0 ? "\n" : ",\n" ).append( "    'module-" ).append( i ).append( "'" );
+    }
+    sb.append( " ];\n\n" );
+    sb.append( "var paths = { \"main\": \"synthetic/1.0.0/main\" };\n" );
+    sb.append( "var shim = { \"main\": { \"exports\": \"main\" } };\n\n" );
+    sb.append( "children.forEach(function(child) {\n" );
+    sb.append( "    paths[child] = \"synthetic/1.0.0/\" + child;\n" );
+    sb.append( "    shim[child] = [\"main\"];\n" );
+    sb.append( "});\n\n" );
+    sb.append( "requirejs.config({\n    paths: paths,\n    shim: shim\n});\n" );
+    config = sb.toString();
+    converter = new RequireJsConfigConverter( 4 );
+  }
+
+  @TearDown
+  public void tearDown() {
+    converter.destroy();
+  }
+
+  @Benchmark
+  public Object newEnginePerWebjar() throws Exception {
+    ScriptEngine engine = new ScriptEngineManager().getEngineByName( "JavaScript" );
+    engine.eval( aggregatorScript.replace( "{{EXTERNAL_CONFIG}}", config ) );
+    return ( (Invocable) engine ).invokeFunction( "processConfig", "" );
+  }
+
+  @Benchmark
+  public String sharedConverter() throws Exception {
+    return converter.convert( config );
+  }
+}
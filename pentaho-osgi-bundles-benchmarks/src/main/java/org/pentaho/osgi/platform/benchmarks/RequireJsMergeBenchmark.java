@@ -0,0 +1,163 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.benchmarks;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.js.require.RebuildCacheCallable;
+import org.pentaho.js.require.RequireJsConfiguration;
+import org.pentaho.js.require.RequireJsMergeTree;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilds the merged RequireJS configuration served to browsers, down to its UTF-8 bytes: from scratch with the
+ * json-simple merge the manager used before {@link RequireJsMergeTree}, from scratch with the merge tree, and with
+ * the merge tree updated for the one bundle that changed, which is what the manager does on a bundle event.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class RequireJsMergeBenchmark {
+  @Param( { "50", "200" } )
+  public int bundles;
+
+  @Param( { "20" } )
+  public int pathsPerBundle;
+
+  private final List<RequireJsConfiguration> requireJsConfigurations = Collections.emptyList();
+  private Map<Long, JSONObject> configMap;
+  private RequireJsMergeTree mergeTree;
+  private long changedBundle;
+
+  @Setup
+  public void setup() {
+    configMap = new LinkedHashMap<Long, JSONObject>();
+    mergeTree = new RequireJsMergeTree();
+    for ( long bundleId = 0; bundleId < bundles; bundleId++ ) {
+      JSONObject config = createConfig( bundleId, pathsPerBundle );
+      configMap.put( bundleId, config );
+      mergeTree.apply( bundleId, config );
+    }
+  }
+
+  @Benchmark
+  public byte[] jsonSimpleFullRebuild() throws Exception {
+    JSONObject result = new JSONObject();
+    for ( JSONObject config : configMap.values() ) {
+      result = merge( result, config );
+    }
+    return ( result.toJSONString() + ";" ).getBytes( "UTF-8" );
+  }
+
+  @Benchmark
+  public byte[] mergeTreeFullRebuild() throws Exception {
+    return new RebuildCacheCallable( configMap, requireJsConfigurations ).call().toByteArray();
+  }
+
+  @Benchmark
+  public byte[] mergeTreeOneBundleChanged() throws Exception {
+    long bundleId = changedBundle++ % bundles;
+    JSONObject config = configMap.get( bundleId );
+    mergeTree.retract( bundleId, config );
+    mergeTree.apply( bundleId, config );
+    return new RebuildCacheCallable( mergeTree, requireJsConfigurations ).call().toByteArray();
+  }
+
+  private static JSONObject createConfig( long bundleId, int pathsPerBundle ) {
+    JSONObject paths = new JSONObject();
+    JSONObject shim = new JSONObject();
+    for ( int i = 0; i < pathsPerBundle; i++ ) {
+      String module = "module-" + bundleId + "-" + i;
+      paths.put( module, "bundle-" + bundleId + "/" + module );
+      JSONArray deps = new JSONArray();
+      deps.add( "module-" + bundleId + "-0" );
+      JSONObject shimEntry = new JSONObject();
+      shimEntry.put( "deps", deps );
+      shim.put( module, shimEntry );
+    }
+    JSONArray packages = new JSONArray();
+    packages.add( "package-" + bundleId );
+    JSONObject config = new JSONObject();
+    config.put( "paths", paths );
+    config.put( "shim", shim );
+    config.put( "packages", packages );
+    return config;
+  }
+
+  // The merge RebuildCacheCallable performed before the merge tree
+
+  private static Object merge( String key, Object value1, Object value2 ) throws Exception {
+    if ( value1 == null ) {
+      return value2;
+    } else if ( value2 == null ) {
+      return value1;
+    } else if ( value1 instanceof JSONObject && value2 instanceof JSONObject ) {
+      return merge( (JSONObject) value1, (JSONObject) value2 );
+    } else if ( value1 instanceof JSONArray && value2 instanceof JSONArray ) {
+      JSONArray result = new JSONArray();
+      result.addAll( (JSONArray) value1 );
+      result.addAll( (JSONArray) value2 );
+      return result;
+    } else if ( value1 instanceof JSONObject || value2 instanceof JSONObject || value1 instanceof JSONArray
+      || value2 instanceof JSONArray ) {
+      throw new Exception( "Cannot merge key " + key + " due to different types." );
+    }
+    return value2;
+  }
+
+  private static JSONObject merge( JSONObject object1, JSONObject object2 ) throws Exception {
+    Set<String> keys = new HashSet<String>( object1.keySet().size() );
+    for ( Object key : object1.keySet() ) {
+      keys.add( (String) key );
+    }
+    for ( Object key : object2.keySet() ) {
+      keys.add( (String) key );
+    }
+    JSONObject result = new JSONObject();
+    for ( String key : keys ) {
+      result.put( key, merge( key, object1.get( key ), object2.get( key ) ) );
+    }
+    return result;
+  }
+}
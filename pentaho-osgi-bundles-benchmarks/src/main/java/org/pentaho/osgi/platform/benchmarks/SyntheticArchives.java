@@ -0,0 +1,183 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates webjars and platform plugin zips shaped like the real ones: mostly scripts and stylesheets with some
+ * source maps and binary files, a few folders deep, with sizes spread around a mean.
+ * <p/>
+ * The same seed always gives the same archive, so runs are comparable.
+ */
+public class SyntheticArchives {
+  public static final String WEBJAR_NAME = "synthetic";
+  public static final String WEBJAR_VERSION = "1.0.0";
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+  private static final String[] WORDS = { "function", "return", "var", "this", "prototype", "if", "else", "for",
+    "null", "undefined", "define", "require", "module", "exports", "length", "value", "options", "element", "event",
+    "callback", "config", "deferred", "promise", "resolve", "$scope", "angular", "jQuery", "_", "0", "1", "true" };
+  private static final String[] FOLDERS = { "", "src/", "i18n/", "css/", "lib/plugins/", "images/" };
+
+  private final Random random;
+  private final int meanSize;
+
+  /**
+   * @param meanSize the mean uncompressed size of the generated files, in bytes
+   */
+  public SyntheticArchives( long seed, int meanSize ) {
+    this.random = new Random( seed );
+    this.meanSize = meanSize;
+  }
+
+  /**
+   * Writes a webjar with a webjars-requirejs.js and the given number of other files.
+   */
+  public File webjar( File dir, int entries ) throws IOException {
+    File file = new File( dir, WEBJAR_NAME + "-" + WEBJAR_VERSION + "-" + entries + ".jar" );
+    String folder = "META-INF/resources/webjars/" + WEBJAR_NAME + "/" + WEBJAR_VERSION + "/";
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+    JarOutputStream jarOutputStream = new JarOutputStream( new FileOutputStream( file ), manifest );
+    try {
+      putFolders( jarOutputStream, folder );
+      put( jarOutputStream, folder + "webjars-requirejs.js", ( "/*global requirejs */\n"
+        + "// Ensure any request for this webjar brings in dependencies.\n"
+        + "requirejs.config({\n"
+        + "    paths: { \"" + WEBJAR_NAME + "\": webjars.path(\"" + WEBJAR_NAME + "\", \"" + WEBJAR_NAME + "\") },\n"
+        + "    shim: { \"" + WEBJAR_NAME + "\": { \"exports\": \"" + WEBJAR_NAME + "\" } }\n"
+        + "});\n" ).getBytes( UTF_8 ) );
+      putFiles( jarOutputStream, folder, entries );
+    } finally {
+      jarOutputStream.close();
+    }
+    return file;
+  }
+
+  /**
+   * Writes a jar of the same shape as {@link #webjar(File, int)} that isn't a webjar.
+   */
+  public File library( File dir, int entries ) throws IOException {
+    File file = new File( dir, "library-" + entries + ".jar" );
+    ZipOutputStream zipOutputStream = new ZipOutputStream( new FileOutputStream( file ) );
+    try {
+      putFolders( zipOutputStream, "org/example/" );
+      putFiles( zipOutputStream, "org/example/", entries );
+    } finally {
+      zipOutputStream.close();
+    }
+    return file;
+  }
+
+  /**
+   * Writes a platform plugin zip with a plugin.xml declaring a static path and an external resource.
+   */
+  public File pluginZip( File dir, String pluginName, int entries ) throws IOException {
+    File file = new File( dir, pluginName + "-" + entries + ".zip" );
+    String folder = pluginName + "/";
+    ZipOutputStream zipOutputStream = new ZipOutputStream( new FileOutputStream( file ) );
+    try {
+      putFolders( zipOutputStream, folder + "resources/" );
+      put( zipOutputStream, folder + "plugin.xml", ( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<plugin title=\"" + pluginName + "\">\n"
+        + "  <static-paths>\n"
+        + "    <static-path url=\"/" + pluginName + "/resources\" localFolder=\"resources\"/>\n"
+        + "  </static-paths>\n"
+        + "  <external-resources>\n"
+        + "    <file context=\"requirejs\">content/" + pluginName + "/resources/main.js</file>\n"
+        + "  </external-resources>\n"
+        + "</plugin>\n" ).getBytes( UTF_8 ) );
+      putFiles( zipOutputStream, folder + "resources/", entries );
+    } finally {
+      zipOutputStream.close();
+    }
+    return file;
+  }
+
+  private void putFolders( ZipOutputStream zipOutputStream, String root ) throws IOException {
+    Set<String> folders = new HashSet<String>();
+    for ( String folder : FOLDERS ) {
+      String path = root + folder;
+      // Every parent first, once
+      for ( int slash = path.indexOf( '/' ); slash >= 0; slash = path.indexOf( '/', slash + 1 ) ) {
+        String parent = path.substring( 0, slash + 1 );
+        if ( folders.add( parent ) ) {
+          zipOutputStream.putNextEntry( new ZipEntry( parent ) );
+          zipOutputStream.closeEntry();
+        }
+      }
+    }
+  }
+
+  private void putFiles( ZipOutputStream zipOutputStream, String root, int entries ) throws IOException {
+    for ( int i = 0; i < entries; i++ ) {
+      String folder = root + FOLDERS[ random.nextInt( FOLDERS.length ) ];
+      int size = nextSize();
+      int kind = random.nextInt( 100 );
+      if ( kind < 60 ) {
+        put( zipOutputStream, folder + "module" + i + ( random.nextBoolean() ? ".min.js" : ".js" ), text( size ) );
+      } else if ( kind < 75 ) {
+        put( zipOutputStream, folder + "style" + i + ".css", text( size ) );
+      } else if ( kind < 90 ) {
+        put( zipOutputStream, folder + "module" + i + ".min.js.map", text( size ) );
+      } else {
+        byte[] binary = new byte[ size ];
+        random.nextBytes( binary );
+        put( zipOutputStream, folder + "image" + i + ".png", binary );
+      }
+    }
+  }
+
+  private int nextSize() {
+    // Exponentially distributed: many small files, a few large ones
+    return 64 + (int) Math.min( meanSize * 20L, (long) ( -meanSize * Math.log( 1 - random.nextDouble() ) ) );
+  }
+
+  private byte[] text( int size ) {
+    StringBuilder text = new StringBuilder( size + 16 );
+    while ( text.length() < size ) {
+      text.append( WORDS[ random.nextInt( WORDS.length ) ] );
+      int separator = random.nextInt( 10 );
+      text.append( separator < 6 ? " " : separator < 8 ? "(" : separator < 9 ? ";\n" : "." );
+    }
+    text.setLength( size );
+    return text.toString().getBytes( UTF_8 );
+  }
+
+  private static void put( ZipOutputStream zipOutputStream, String name, byte[] content ) throws IOException {
+    zipOutputStream.putNextEntry( new ZipEntry( name ) );
+    zipOutputStream.write( content );
+    zipOutputStream.closeEntry();
+  }
+}
@@ -0,0 +1,88 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.osgi.platform.webjars.PentahoWebjarsTransformer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asks whether a jar of the deploy folder is a webjar, the first time and, as the folder is scanned again, once the
+ * verdict is known.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class WebjarsCanHandleBenchmark {
+  @Param( { "40", "400" } )
+  public int entries;
+
+  @Param( { "webjar", "library" } )
+  public String kind;
+
+  private File dir;
+  private File jar;
+  private PentahoWebjarsTransformer rescanTransformer;
+
+  @Setup
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory( "webjars-benchmark" ).toFile();
+    SyntheticArchives archives = new SyntheticArchives( 42L, 16 * 1024 );
+    jar = "webjar".equals( kind ) ? archives.webjar( dir, entries ) : archives.library( dir, entries );
+    rescanTransformer = new PentahoWebjarsTransformer();
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileUtils.deleteQuietly( dir );
+  }
+
+  @Benchmark
+  public boolean firstScan() {
+    return new PentahoWebjarsTransformer().canHandle( jar );
+  }
+
+  @Benchmark
+  public boolean rescan() {
+    return rescanTransformer.canHandle( jar );
+  }
+}
@@ -0,0 +1,124 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.osgi.platform.webjars.RequireJsConfigConverter;
+import org.pentaho.osgi.platform.webjars.WebjarsTransformPipeline;
+import org.pentaho.osgi.platform.webjars.WebjarsURLConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transforms a synthetic webjar into a bundle, uncached, both from a file, where the unchanged entries are copied as
+ * they are, and from a stream.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 2 )
+@Measurement( iterations = 10, time = 2 )
+@Fork( 1 )
+public class WebjarsTransformBenchmark {
+  @Param( { "40", "400" } )
+  public int entries;
+
+  @Param( { "false", "true" } )
+  public boolean precompress;
+
+  private File dir;
+  private URL fileUrl;
+  private URL streamUrl;
+  private WebjarsTransformPipeline pipeline;
+  private RequireJsConfigConverter configConverter;
+  private final byte[] buffer = new byte[ 64 * 1024 ];
+
+  @Setup
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory( "webjars-benchmark" ).toFile();
+    final File webjar = new SyntheticArchives( 42L, 16 * 1024 ).webjar( dir, entries );
+    fileUrl = webjar.toURI().toURL();
+    // Not a file url, so the transformation can't read the central directory
+    streamUrl = new URL( null, "benchmark:" + webjar.getName(), new URLStreamHandler() {
+      @Override protected URLConnection openConnection( URL u ) throws IOException {
+        return fileUrl.openConnection();
+      }
+    } );
+    pipeline = new WebjarsTransformPipeline();
+    pipeline.init();
+    configConverter = new RequireJsConfigConverter();
+  }
+
+  @TearDown
+  public void tearDown() {
+    pipeline.destroy();
+    configConverter.destroy();
+    FileUtils.deleteQuietly( dir );
+  }
+
+  @Benchmark
+  public long transformFromFile() throws IOException {
+    return transform( fileUrl );
+  }
+
+  @Benchmark
+  public long transformFromStream() throws IOException {
+    return transform( streamUrl );
+  }
+
+  private long transform( URL url ) throws IOException {
+    WebjarsURLConnection connection =
+      new WebjarsURLConnection( url, configConverter, null, pipeline );
+    connection.setPrecompress( precompress );
+    InputStream inputStream = connection.getInputStream();
+    long length = 0;
+    try {
+      int read;
+      while ( ( read = inputStream.read( buffer ) ) >= 0 ) {
+        length += read;
+      }
+    } finally {
+      inputStream.close();
+    }
+    return length;
+  }
+}
@@ -31,7 +31,7 @@ import java.io.PipedInputStream;
  * Created by bryan on 8/26/14.
  */
 public class ExceptionPipedInputStream extends PipedInputStream implements ExceptionSettable<IOException> {
-  private IOException ioException = null;
+  private volatile IOException ioException = null;
 
   public ExceptionPipedInputStream( int pipeSize ) {
     super( pipeSize );
@@ -42,34 +42,51 @@ public class ExceptionPipedInputStream extends PipedInputStream implements Excep
   }
 
   @Override public synchronized int read() throws IOException {
-    if ( ioException != null ) {
-      throw new IOException( "Got exception in producer thread.", ioException );
+    checkException();
+    int result = super.read();
+    if ( result < 0 ) {
+      // The producer may have failed while this was waiting for data
+      checkException();
     }
-    return super.read();
+    return result;
   }
 
   @Override public synchronized int read( byte[] b, int off, int len ) throws IOException {
-    if ( ioException != null ) {
-      throw new IOException( "Got exception in producer thread.", ioException );
+    checkException();
+    int result = super.read( b, off, len );
+    if ( result < 0 ) {
+      // The producer may have failed while this was waiting for data
+      checkException();
     }
-    return super.read( b, off, len );
+    return result;
   }
 
   @Override public synchronized void close() throws IOException {
-    if ( ioException != null ) {
-      throw new IOException( "Got exception in producer thread.", ioException );
-    }
+    checkException();
     super.close();
   }
 
   @Override public synchronized int read( byte[] b ) throws IOException {
-    if ( ioException != null ) {
-      throw new IOException( "Got exception in producer thread.", ioException );
+    checkException();
+    int result = super.read( b );
+    if ( result < 0 ) {
+      // The producer may have failed while this was waiting for data
+      checkException();
     }
-    return super.read( b );
+    return result;
   }
 
+  /**
+   * Set before the producer closes its end, so that readers get the exception instead of the end of the stream.
+   */
   @Override public void setException( IOException exception ) {
     this.ioException = exception;
   }
+
+  private void checkException() throws IOException {
+    IOException ioException = this.ioException;
+    if ( ioException != null ) {
+      throw new IOException( "Got exception in producer thread.", ioException );
+    }
+  }
 }
@@ -29,15 +29,12 @@ import org.pentaho.osgi.platform.plugin.deployer.impl.PluginZipFileProcessor;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedOutputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.List;
-import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 
 /**
@@ -47,20 +44,59 @@ public class PlatformPluginBundlingURLConnection extends URLConnection {
   public static final int TEN_MEGABYTES = 10 * 1024 * 1024;
   private static final Pattern maxSizePattern = Pattern.compile( "maxSize=([0-9]+)" );
   private final List<PluginFileHandler> pluginFileHandlers;
+  private final PluginDeploymentExecutor deploymentExecutor;
+  private final PlatformPluginDeploymentPlanner deploymentPlanner;
 
   public PlatformPluginBundlingURLConnection( URL u, List<PluginFileHandler> pluginFileHandlers ) {
+    this( u, pluginFileHandlers, null );
+  }
+
+  /**
+   * @param deploymentExecutor runs the deployment, a single use one if null
+   */
+  public PlatformPluginBundlingURLConnection( URL u, List<PluginFileHandler> pluginFileHandlers,
+                                              PluginDeploymentExecutor deploymentExecutor ) {
+    this( u, pluginFileHandlers, deploymentExecutor, null );
+  }
+
+  /**
+   * @param deploymentExecutor runs the deployment, a single use one if null
+   * @param deploymentPlanner  serves the bundle if it staged it, may be null
+   */
+  public PlatformPluginBundlingURLConnection( URL u, List<PluginFileHandler> pluginFileHandlers,
+                                              PluginDeploymentExecutor deploymentExecutor,
+                                              PlatformPluginDeploymentPlanner deploymentPlanner ) {
     super( u );
     this.pluginFileHandlers = pluginFileHandlers;
+    this.deploymentExecutor = deploymentExecutor;
+    this.deploymentPlanner = deploymentPlanner;
+  }
+
+  /**
+   * @return the bundle name and version of a plugin zip
+   */
+  public static String[] getNameVersion( URL url ) throws MalformedURLException {
+    Parser parser = new Parser( url.toString() );
+    String mvnPath = parser.getArtifactPath();
+    int lastSlash = mvnPath.lastIndexOf( '/' );
+    if ( lastSlash >= 0 ) {
+      mvnPath = mvnPath.substring( lastSlash + 1 );
+    }
+    return DeployerUtils.extractNameVersionType( mvnPath );
   }
 
   public static int getMaxSize( String query ) {
+    return getMaxSize( query, TEN_MEGABYTES );
+  }
+
+  public static int getMaxSize( String query, int defaultSize ) {
     if ( query != null ) {
       Matcher matcher = maxSizePattern.matcher( query );
       if ( matcher.matches() ) {
         return Integer.parseInt( matcher.group( 1 ) );
       }
     }
-    return TEN_MEGABYTES;
+    return defaultSize;
   }
 
   @Override public void connect() throws IOException {
@@ -68,24 +104,32 @@ public class PlatformPluginBundlingURLConnection extends URLConnection {
   }
 
   @Override public InputStream getInputStream() throws IOException {
-    final ExceptionPipedInputStream pipedInputStream =
-      new ExceptionPipedInputStream( getMaxSize( getURL().getQuery() ) );
-    Parser parser = new Parser(getURL().toString());
-    String mvnPath = parser.getArtifactPath();
-    int lastSlash = mvnPath.lastIndexOf( '/' );
-    if ( lastSlash >= 0 ) {
-      mvnPath = mvnPath.substring( lastSlash + 1 );
+    final String[] nameVersion = getNameVersion( getURL() );
+    if ( deploymentPlanner != null ) {
+      InputStream staged =
+        deploymentPlanner.openStaged( getURL(), nameVersion[ 0 ], nameVersion[ 1 ], pluginFileHandlers );
+      if ( staged != null ) {
+        return staged;
+      }
+    }
+    PluginDeploymentExecutor deploymentExecutor = this.deploymentExecutor;
+    if ( deploymentExecutor == null ) {
+      // Its thread ends once the deployment is done
+      deploymentExecutor = new PluginDeploymentExecutor();
+      deploymentExecutor.setConcurrency( 1 );
+      deploymentExecutor.setQueueCapacity( 0 );
+      deploymentExecutor.init();
+    }
+    try {
+      final PluginZipFileProcessor pluginZipFileProcessor =
+        new PluginZipFileProcessor( pluginFileHandlers, nameVersion[ 0 ], nameVersion[ 0 ], nameVersion[ 1 ],
+          deploymentExecutor.getMemoryThreshold() );
+      return deploymentExecutor.deploy( getURL(), pluginZipFileProcessor,
+        getMaxSize( getURL().getQuery(), deploymentExecutor.getPipeBufferSize() ) );
+    } finally {
+      if ( deploymentExecutor != this.deploymentExecutor ) {
+        deploymentExecutor.shutdown();
+      }
     }
-    final String[] nameVersion = DeployerUtils.extractNameVersionType( mvnPath );
-    final PipedOutputStream pipedOutputStream = new PipedOutputStream( pipedInputStream );
-    final ZipOutputStream zipOutputStream = new ZipOutputStream( pipedOutputStream );
-    URLConnection connection = getURL().openConnection();
-    InputStream connectionInputStream = connection.getInputStream();
-    ZipInputStream zipInputStream = new ZipInputStream( connectionInputStream );
-    final PluginZipFileProcessor pluginZipFileProcessor =
-      new PluginZipFileProcessor( pluginFileHandlers, nameVersion[ 0 ], nameVersion[ 0 ], nameVersion[ 1 ] );
-    pluginZipFileProcessor.processBackground( Executors.newSingleThreadExecutor(), zipInputStream, zipOutputStream,
-      pipedInputStream );
-    return pipedInputStream;
   }
 }
@@ -0,0 +1,501 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.osgi.platform.plugin.deployer;
+
+import org.pentaho.osgi.platform.plugin.deployer.api.PluginFileHandler;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+import org.pentaho.osgi.platform.plugin.deployer.impl.PluginZipFileProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plans the deployment of all the platform plugins found in the deploy directories when the bundle starts, so they
+ * aren't transformed one at a time as the file installer gets to them.
+ * <p/>
+ * Every plugin zip the {@link PlatformPluginDeploymentListener} can handle is transformed into its bundle up front, in
+ * parallel on a work-stealing pool of {@link #getParallelism()} threads, and the bundle is staged in
+ * {@value #DATA_DIR_NAME} in the Karaf data directory. Bundling URL connections are then served the staged bundle,
+ * waiting for it if it's still being staged. A staged bundle is keyed by the plugin zip location, size and
+ * modification time, the bundle name and version, the plugin file handlers and the bundles this class and the handlers
+ * come from, so any change falls back to a regular deployment. Only the latest staged bundle of each plugin zip still
+ * in the deploy directories is kept.
+ */
+public class PlatformPluginDeploymentPlanner {
+  public static final String DATA_DIR_NAME = "pentaho-platform-plugin-staging";
+  /**
+   * Changes whenever the bundles produced for the same plugin zip change
+   */
+  public static final String FORMAT_VERSION = "1";
+  private static final String JAR_SUFFIX = ".jar";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Logger logger = LoggerFactory.getLogger( getClass() );
+  private PlatformPluginDeploymentListener deploymentListener = new PlatformPluginDeploymentListener();
+  private List<PluginFileHandler> pluginFileHandlers = Collections.emptyList();
+  private List<File> deployDirs = new ArrayList<File>();
+  private File stagingDir;
+  private int parallelism;
+  private long memoryThreshold = PluginDeploymentExecutor.DEFAULT_MEMORY_THRESHOLD;
+  private ForkJoinPool pool;
+
+  private final Map<String, StageTask> stageTasks = new ConcurrentHashMap<String, StageTask>();
+  private final AtomicLong staged = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private volatile long planMillis = -1;
+
+  /**
+   * Uses the deploy directory of Karaf and {@value #DATA_DIR_NAME} in its data directory, if running in Karaf.
+   */
+  public PlatformPluginDeploymentPlanner() {
+    String karafBase = System.getProperty( "karaf.base" );
+    if ( karafBase != null ) {
+      deployDirs.add( new File( karafBase, "deploy" ) );
+    }
+    String karafData = System.getProperty( "karaf.data" );
+    if ( karafData != null ) {
+      stagingDir = new File( karafData, DATA_DIR_NAME );
+    }
+  }
+
+  public void setDeploymentListener( PlatformPluginDeploymentListener deploymentListener ) {
+    this.deploymentListener = deploymentListener;
+  }
+
+  public void setPluginFileHandlers( List<PluginFileHandler> pluginFileHandlers ) {
+    this.pluginFileHandlers = pluginFileHandlers;
+  }
+
+  public List<File> getDeployDirs() {
+    return deployDirs;
+  }
+
+  public void setDeployDirs( List<File> deployDirs ) {
+    this.deployDirs = deployDirs;
+  }
+
+  /**
+   * @param deployDirs comma separated deploy directories, Karaf's one if blank
+   */
+  public void setDeployDirNames( String deployDirs ) {
+    if ( deployDirs != null && deployDirs.trim().length() > 0 ) {
+      List<File> dirs = new ArrayList<File>();
+      for ( String deployDir : deployDirs.split( "," ) ) {
+        if ( deployDir.trim().length() > 0 ) {
+          dirs.add( new File( deployDir.trim() ) );
+        }
+      }
+      this.deployDirs = dirs;
+    }
+  }
+
+  public File getStagingDir() {
+    return stagingDir;
+  }
+
+  /**
+   * @param stagingDir where to stage the bundles or null to disable planning
+   */
+  public void setStagingDir( File stagingDir ) {
+    this.stagingDir = stagingDir;
+  }
+
+  /**
+   * @return threads staging bundles, by default twice the available processors so reading and writing the plugin
+   * files overlaps with compressing them
+   */
+  public int getParallelism() {
+    return parallelism > 0 ? parallelism : 2 * Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * @param parallelism threads staging bundles, the default if not positive
+   */
+  public void setParallelism( int parallelism ) {
+    this.parallelism = parallelism;
+  }
+
+  public long getMemoryThreshold() {
+    return memoryThreshold;
+  }
+
+  /**
+   * @param memoryThreshold bytes of plugin files each staging holds in memory before spilling them to disk
+   */
+  public void setMemoryThreshold( long memoryThreshold ) {
+    this.memoryThreshold = memoryThreshold;
+  }
+
+  public boolean isEnabled() {
+    return stagingDir != null;
+  }
+
+  /**
+   * Finds the plugin zips and starts staging their bundles, without waiting for them.
+   */
+  public synchronized void init() {
+    if ( !isEnabled() || pool != null ) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    final List<StageTask> tasks = new ArrayList<StageTask>();
+    Set<String> pathKeys = new HashSet<String>();
+    for ( File pluginZip : findPluginZips() ) {
+      try {
+        StageTask task = new StageTask( pluginZip.getCanonicalFile() );
+        pathKeys.add( getPathKey( task.pluginZip ) );
+        tasks.add( task );
+      } catch ( IOException e ) {
+        logger.error( "Unable to stage platform plugin " + pluginZip, e );
+      }
+    }
+    removeUnplannedEntries( pathKeys );
+    if ( tasks.isEmpty() ) {
+      planMillis = 0;
+      return;
+    }
+    if ( !stagingDir.isDirectory() && !stagingDir.mkdirs() && !stagingDir.isDirectory() ) {
+      logger.error( "Unable to create " + stagingDir + ", platform plugins won't be staged" );
+      return;
+    }
+    for ( StageTask task : tasks ) {
+      stageTasks.put( task.pluginZip.getPath(), task );
+    }
+    // Idle workers steal the remaining plugins, so a few large plugins don't hold back the others
+    ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+      @Override public ForkJoinWorkerThread newThread( ForkJoinPool pool ) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+        thread.setName( "pentaho-platform-plugin-planner-" + thread.getPoolIndex() );
+        return thread;
+      }
+    };
+    pool = new ForkJoinPool( Math.min( getParallelism(), tasks.size() ), threadFactory, null, false );
+    final long planStart = start;
+    pool.execute( new RecursiveAction() {
+      @Override protected void compute() {
+        invokeAll( tasks );
+        planMillis = System.currentTimeMillis() - planStart;
+        logger.info( "Staged " + staged.get() + " of " + tasks.size() + " platform plugins in " + planMillis + " ms" );
+      }
+    } );
+  }
+
+  public synchronized void destroy() {
+    if ( pool != null ) {
+      pool.shutdownNow();
+      pool = null;
+    }
+    stageTasks.clear();
+  }
+
+  /**
+   * Waits for all the planned bundles to be staged.
+   *
+   * @return false if they're still being staged when the timeout elapses
+   */
+  public boolean awaitStaged( long timeout, TimeUnit unit ) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos( timeout );
+    for ( StageTask task : stageTasks.values() ) {
+      try {
+        task.get( Math.max( 0, deadline - System.nanoTime() ), TimeUnit.NANOSECONDS );
+      } catch ( TimeoutException e ) {
+        return false;
+      } catch ( ExecutionException e ) {
+        // Nothing staged
+      } catch ( CancellationException e ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Opens the staged bundle of a plugin zip, waiting for it if it's being staged.
+   *
+   * @return the staged bundle or null if the plugin zip wasn't planned or its bundle doesn't match the current
+   * plugin zip, name, version and handlers
+   */
+  public InputStream openStaged( URL url, String name, String version, List<PluginFileHandler> pluginFileHandlers )
+    throws IOException {
+    StageTask task = isEnabled() ? stageTasks.get( toFile( url ).getCanonicalPath() ) : null;
+    if ( task == null ) {
+      return null;
+    }
+    try {
+      task.get();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while waiting for " + url + " to be staged" );
+    } catch ( ExecutionException e ) {
+      misses.incrementAndGet();
+      return null;
+    } catch ( CancellationException e ) {
+      misses.incrementAndGet();
+      return null;
+    }
+    File entry = getStagedFile( task.pluginZip, name, version, pluginFileHandlers );
+    if ( !entry.isFile() ) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return new BufferedInputStream( new FileInputStream( entry ) );
+  }
+
+  /**
+   * @return number of plugin zips found in the deploy directories
+   */
+  public int getPlanned() {
+    return stageTasks.size();
+  }
+
+  /**
+   * @return number of bundles staged, including those staged by a previous run
+   */
+  public long getStaged() {
+    return staged.get();
+  }
+
+  /**
+   * @return number of plugin zips that couldn't be staged
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * @return number of connections served a staged bundle
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of connections to planned plugin zips that had to be deployed as usual
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return milliseconds from finding the plugin zips to staging the last bundle, -1 while staging
+   */
+  public long getPlanMillis() {
+    return planMillis;
+  }
+
+  private List<File> findPluginZips() {
+    List<File> pluginZips = new ArrayList<File>();
+    for ( File deployDir : deployDirs ) {
+      File[] files = deployDir.listFiles();
+      if ( files == null ) {
+        continue;
+      }
+      for ( File file : files ) {
+        if ( file.isFile() && deploymentListener.canHandle( file ) ) {
+          pluginZips.add( file );
+        }
+      }
+    }
+    return pluginZips;
+  }
+
+  private void stage( File pluginZip ) throws IOException {
+    List<PluginFileHandler> pluginFileHandlers = new ArrayList<PluginFileHandler>( this.pluginFileHandlers );
+    String[] nameVersion = PlatformPluginBundlingURLConnection.getNameVersion( pluginZip.toURI().toURL() );
+    File entry = getStagedFile( pluginZip, nameVersion[ 0 ], nameVersion[ 1 ], pluginFileHandlers );
+    if ( !entry.isFile() ) {
+      File temp = File.createTempFile( entry.getName(), TEMP_SUFFIX, stagingDir );
+      PluginZipFileProcessor processor =
+        new PluginZipFileProcessor( pluginFileHandlers, nameVersion[ 0 ], nameVersion[ 0 ], nameVersion[ 1 ],
+          memoryThreshold );
+      try {
+        processor.processRaw( pluginZip.toURI().toURL(), new BufferedOutputStream( new FileOutputStream( temp ) ) );
+        if ( !temp.renameTo( entry ) && !entry.isFile() ) {
+          throw new IOException( "Unable to rename " + temp + " to " + entry );
+        }
+      } finally {
+        if ( temp.exists() && !temp.delete() ) {
+          temp.deleteOnExit();
+        }
+      }
+    }
+    removeOtherEntries( entry );
+  }
+
+  private File getStagedFile( File pluginZip, String name, String version,
+                              List<PluginFileHandler> pluginFileHandlers ) throws IOException {
+    MessageDigest digest = newDigest();
+    for ( String part : new String[] { FORMAT_VERSION, String.valueOf( pluginZip.length() ),
+      String.valueOf( pluginZip.lastModified() ), name, version } ) {
+      digest.update( String.valueOf( part ).getBytes( "UTF-8" ) );
+      digest.update( (byte) 0 );
+    }
+    digest.update( getOrigin( getClass() ).getBytes( "UTF-8" ) );
+    digest.update( (byte) 0 );
+    for ( PluginFileHandler pluginFileHandler : pluginFileHandlers ) {
+      digest.update( pluginFileHandler.getClass().getName().getBytes( "UTF-8" ) );
+      digest.update( (byte) 0 );
+      digest.update( getOrigin( pluginFileHandler.getClass() ).getBytes( "UTF-8" ) );
+      digest.update( (byte) 0 );
+    }
+    return new File( stagingDir, getPathKey( pluginZip ) + "-" + toHex( digest.digest() ) + JAR_SUFFIX );
+  }
+
+  private void removeOtherEntries( File entry ) {
+    String prefix = entry.getName().substring( 0, entry.getName().indexOf( '-' ) + 1 );
+    File[] files = stagingDir.listFiles();
+    if ( files == null ) {
+      return;
+    }
+    for ( File file : files ) {
+      String fileName = file.getName();
+      if ( fileName.startsWith( prefix ) && fileName.endsWith( JAR_SUFFIX ) && !file.equals( entry )
+        && !file.delete() ) {
+        logger.warn( "Unable to remove stale staged bundle " + file );
+      }
+    }
+  }
+
+  /**
+   * Removes the staged bundles of the plugin zips no longer in the deploy directories and the leftovers of interrupted
+   * stagings.
+   */
+  private void removeUnplannedEntries( Set<String> pathKeys ) {
+    File[] files = stagingDir.listFiles();
+    if ( files == null ) {
+      return;
+    }
+    for ( File file : files ) {
+      String fileName = file.getName();
+      int dash = fileName.indexOf( '-' );
+      boolean unplanned = fileName.endsWith( JAR_SUFFIX ) && ( dash < 0
+        || !pathKeys.contains( fileName.substring( 0, dash ) ) );
+      if ( ( unplanned || fileName.endsWith( TEMP_SUFFIX ) ) && !file.delete() ) {
+        logger.warn( "Unable to remove stale staged bundle " + file );
+      }
+    }
+  }
+
+  /**
+   * @return the bundle a class comes from, with its version and modification time, or its code source outside OSGi
+   */
+  private static String getOrigin( Class<?> clazz ) {
+    Bundle bundle = FrameworkUtil.getBundle( clazz );
+    if ( bundle != null ) {
+      return bundle.getSymbolicName() + "/" + bundle.getVersion() + "/" + bundle.getLastModified();
+    }
+    CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+    if ( codeSource == null || codeSource.getLocation() == null ) {
+      return "";
+    }
+    URL location = codeSource.getLocation();
+    try {
+      long lastModified = "file".equals( location.getProtocol() ) ? toFile( location ).lastModified() : 0;
+      return location + "/" + lastModified;
+    } catch ( IOException e ) {
+      return location.toString();
+    }
+  }
+
+  private static String getPathKey( File pluginZip ) throws IOException {
+    return toHex( newDigest().digest( pluginZip.getPath().getBytes( "UTF-8" ) ) ).substring( 0, 16 );
+  }
+
+  private static File toFile( URL url ) throws IOException {
+    String path = url.getPath();
+    while ( path.startsWith( "file:" ) ) {
+      path = path.substring( "file:".length() );
+    }
+    return new File( URLDecoder.decode( path.replace( "+", "%2B" ), "UTF-8" ) );
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance( "SHA-256" );
+    } catch ( NoSuchAlgorithmException e ) {
+      throw new IllegalStateException( e );
+    }
+  }
+
+  private static String toHex( byte[] bytes ) {
+    char[] chars = new char[ bytes.length * 2 ];
+    for ( int i = 0; i < bytes.length; i++ ) {
+      chars[ 2 * i ] = HEX[ ( bytes[ i ] >> 4 ) & 0xf ];
+      chars[ 2 * i + 1 ] = HEX[ bytes[ i ] & 0xf ];
+    }
+    return new String( chars );
+  }
+
+  private class StageTask extends RecursiveAction {
+    private final File pluginZip;
+
+    private StageTask( File pluginZip ) {
+      this.pluginZip = pluginZip;
+    }
+
+    @Override protected void compute() {
+      try {
+        stage( pluginZip );
+        staged.incrementAndGet();
+      } catch ( Exception e ) {
+        // Nothing staged, the plugin is deployed as usual
+        failures.incrementAndGet();
+        logger.error( "Unable to stage platform plugin " + pluginZip, e );
+      }
+    }
+  }
+}
@@ -13,13 +13,18 @@ import java.util.List;
  */
 public class PlatformPluginMavenURLHandler extends AbstractURLStreamHandlerService {
   private List<PluginFileHandler> pluginFileHandlers;
+  private PluginDeploymentExecutor deploymentExecutor;
 
   public void setPluginFileHandlers( List<PluginFileHandler> pluginFileHandlers ) {
     this.pluginFileHandlers = pluginFileHandlers;
   }
 
+  public void setDeploymentExecutor( PluginDeploymentExecutor deploymentExecutor ) {
+    this.deploymentExecutor = deploymentExecutor;
+  }
+
   @Override public URLConnection openConnection( URL u ) throws IOException {
     URL mvnUrl = new URL( "mvn", null, u.getPath() );
-    return new PlatformPluginBundlingURLConnection( mvnUrl, pluginFileHandlers );
+    return new PlatformPluginBundlingURLConnection( mvnUrl, pluginFileHandlers, deploymentExecutor );
   }
 }
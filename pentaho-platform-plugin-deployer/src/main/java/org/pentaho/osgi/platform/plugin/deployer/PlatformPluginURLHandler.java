@@ -35,14 +35,25 @@ import java.util.List;
  */
 public class PlatformPluginURLHandler extends AbstractURLStreamHandlerService {
   private List<PluginFileHandler> pluginFileHandlers;
+  private PluginDeploymentExecutor deploymentExecutor;
+  private PlatformPluginDeploymentPlanner deploymentPlanner;
 
   public void setPluginFileHandlers( List<PluginFileHandler> pluginFileHandlers ) {
     this.pluginFileHandlers = pluginFileHandlers;
   }
 
+  public void setDeploymentExecutor( PluginDeploymentExecutor deploymentExecutor ) {
+    this.deploymentExecutor = deploymentExecutor;
+  }
+
+  public void setDeploymentPlanner( PlatformPluginDeploymentPlanner deploymentPlanner ) {
+    this.deploymentPlanner = deploymentPlanner;
+  }
+
   @Override public URLConnection openConnection( URL u ) throws IOException {
     URL fileUrl = new URL( "file", null, u.getPath() );
-    return new PlatformPluginBundlingURLConnection( fileUrl, pluginFileHandlers );
+    return new PlatformPluginBundlingURLConnection( fileUrl, pluginFileHandlers, deploymentExecutor,
+      deploymentPlanner );
   }
 }
 
@@ -0,0 +1,308 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.plugin.deployer;
+
+import org.pentaho.osgi.platform.plugin.deployer.impl.PluginZipFileProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedOutputStream;
+import java.net.URL;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs platform plugin deployments in the background, shared by all the bundling URL connections. Each deployment
+ * writes the bundle into a pipe read by the caller.
+ * <p/>
+ * At most {@link #getConcurrency()} deployments run at a time and at most {@link #getQueueCapacity()} more wait for a
+ * thread, further callers block until there is room. Each deployment holds at most {@link #getMemoryThreshold()}
+ * bytes of plugin files in memory, spilling the rest to disk, plus its pipe buffer.
+ */
+public class PluginDeploymentExecutor {
+  public static final int DEFAULT_CONCURRENCY = 4;
+  public static final int DEFAULT_QUEUE_CAPACITY = 64;
+  public static final int DEFAULT_PIPE_BUFFER_SIZE = 64 * 1024;
+  public static final long DEFAULT_MEMORY_THRESHOLD = 16 * 1024 * 1024;
+
+  private final Logger logger = LoggerFactory.getLogger( getClass() );
+  private int concurrency = DEFAULT_CONCURRENCY;
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private int pipeBufferSize = DEFAULT_PIPE_BUFFER_SIZE;
+  private long memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+  private volatile ThreadPoolExecutor executorService;
+  private Semaphore permits;
+
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicLong inFlightBytes = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  public void setConcurrency( int concurrency ) {
+    this.concurrency = concurrency;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public void setQueueCapacity( int queueCapacity ) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  public int getPipeBufferSize() {
+    return pipeBufferSize;
+  }
+
+  /**
+   * @param pipeBufferSize size of the pipe between a deployment and its reader, unless the plugin URL asks for
+   *                       another one with a maxSize query parameter
+   */
+  public void setPipeBufferSize( int pipeBufferSize ) {
+    this.pipeBufferSize = pipeBufferSize;
+  }
+
+  public long getMemoryThreshold() {
+    return memoryThreshold;
+  }
+
+  /**
+   * @param memoryThreshold bytes of plugin files a deployment holds in memory before spilling them to disk
+   */
+  public void setMemoryThreshold( long memoryThreshold ) {
+    this.memoryThreshold = memoryThreshold;
+  }
+
+  public synchronized void init() {
+    if ( concurrency < 1 || queueCapacity < 0 || pipeBufferSize < 1 || memoryThreshold < 0 ) {
+      throw new IllegalArgumentException( "concurrency and pipeBufferSize must be positive, queueCapacity and "
+        + "memoryThreshold must not be negative" );
+    }
+    final AtomicInteger threadCount = new AtomicInteger();
+    executorService = new ThreadPoolExecutor( concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread thread = new Thread( r, "pentaho-platform-plugin-deployment-" + threadCount.incrementAndGet() );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    permits = new Semaphore( concurrency + queueCapacity, true );
+  }
+
+  /**
+   * Stops taking deployments, the queued ones still run.
+   */
+  public synchronized void shutdown() {
+    if ( executorService != null ) {
+      executorService.shutdown();
+      executorService = null;
+    }
+  }
+
+  /**
+   * Stops taking deployments, interrupts the running ones and fails the queued ones so their readers don't wait for
+   * them.
+   */
+  public synchronized void destroy() {
+    if ( executorService != null ) {
+      for ( Runnable runnable : executorService.shutdownNow() ) {
+        ( (DeploymentTask) runnable ).cancel();
+      }
+      executorService = null;
+    }
+  }
+
+  /**
+   * Starts deploying a plugin, waiting for room in the queue if it's full.
+   *
+   * @param pipeSize size of the pipe the bundle is written to
+   * @return the bundle, as it's being written
+   */
+  public InputStream deploy( URL url, PluginZipFileProcessor processor, int pipeSize )
+    throws IOException {
+    ThreadPoolExecutor executorService;
+    Semaphore permits;
+    synchronized ( this ) {
+      executorService = this.executorService;
+      permits = this.permits;
+    }
+    if ( executorService == null ) {
+      throw new IOException( "The platform plugin deployment executor isn't running" );
+    }
+    try {
+      permits.acquire();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while waiting to deploy " + url );
+    }
+    ExceptionPipedInputStream pipedInputStream = new ExceptionPipedInputStream( pipeSize );
+    DeploymentTask task = new DeploymentTask( url, processor, pipedInputStream,
+      new PipedOutputStream( pipedInputStream ), pipeSize, permits );
+    inFlightBytes.addAndGet( pipeSize );
+    processor.setMemoryCounter( inFlightBytes );
+    try {
+      executorService.execute( task );
+    } catch ( RejectedExecutionException e ) {
+      inFlightBytes.addAndGet( -pipeSize );
+      permits.release();
+      throw new IOException( "Unable to deploy " + url, e );
+    }
+    return pipedInputStream;
+  }
+
+  private class DeploymentTask implements Runnable {
+    private final URL url;
+    private final PluginZipFileProcessor processor;
+    private final ExceptionPipedInputStream pipedInputStream;
+    private final PipedOutputStream pipedOutputStream;
+    private final long pipeBytes;
+    private final Semaphore permits;
+
+    private DeploymentTask( URL url, PluginZipFileProcessor processor, ExceptionPipedInputStream pipedInputStream,
+                            PipedOutputStream pipedOutputStream, long pipeBytes, Semaphore permits ) {
+      this.url = url;
+      this.processor = processor;
+      this.pipedInputStream = pipedInputStream;
+      this.pipedOutputStream = pipedOutputStream;
+      this.pipeBytes = pipeBytes;
+      this.permits = permits;
+    }
+
+    @Override public void run() {
+      try {
+        runDeployment( url, processor, pipedInputStream, pipedOutputStream );
+      } finally {
+        release();
+      }
+    }
+
+    /**
+     * Fails a deployment that never ran
+     */
+    private void cancel() {
+      pipedInputStream.setException( new IOException( "The platform plugin deployment executor stopped before "
+        + "deploying " + url ) );
+      try {
+        pipedOutputStream.close();
+      } catch ( IOException e ) {
+        // Ignore
+      }
+      failures.incrementAndGet();
+      release();
+    }
+
+    private void release() {
+      inFlightBytes.addAndGet( -pipeBytes );
+      permits.release();
+    }
+  }
+
+  private void runDeployment( URL url, PluginZipFileProcessor processor, ExceptionPipedInputStream pipedInputStream,
+                              PipedOutputStream pipedOutputStream ) {
+    active.incrementAndGet();
+    // The processor closes its output when done, the pipe is closed here once a failure is reported
+    OutputStream outputStream = new FilterOutputStream( new BufferedOutputStream( pipedOutputStream ) ) {
+      @Override public void write( byte[] b, int off, int len ) throws IOException {
+        out.write( b, off, len );
+      }
+
+      @Override public void close() throws IOException {
+        flush();
+      }
+    };
+    boolean succeeded = false;
+    try {
+      processor.processRaw( url, outputStream );
+      succeeded = true;
+    } catch ( Throwable e ) {
+      logger.error( "Error deploying platform plugin " + url, e );
+      pipedInputStream.setException( e instanceof IOException ? (IOException) e : new IOException( e ) );
+    } finally {
+      try {
+        pipedOutputStream.close();
+      } catch ( IOException e ) {
+        // Ignore
+      }
+      active.decrementAndGet();
+      ( succeeded ? completed : failures ).incrementAndGet();
+      if ( logger.isDebugEnabled() ) {
+        logger.debug( "Deployed " + url + ", queue depth " + getQueueDepth() + ", in flight bytes "
+          + getInFlightBytes() );
+      }
+    }
+  }
+
+  /**
+   * @return number of deployments waiting for a thread
+   */
+  public int getQueueDepth() {
+    ThreadPoolExecutor executorService = this.executorService;
+    return executorService == null ? 0 : executorService.getQueue().size();
+  }
+
+  /**
+   * @return number of deployments running
+   */
+  public int getActive() {
+    return active.get();
+  }
+
+  /**
+   * @return bytes held by the deployments started and not finished: their pipe buffers and the plugin files they
+   * keep in memory
+   */
+  public long getInFlightBytes() {
+    return inFlightBytes.get();
+  }
+
+  /**
+   * @return number of deployments that finished successfully
+   */
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  /**
+   * @return number of deployments that failed
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+}
@@ -0,0 +1,34 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.plugin.deployer.api;
+
+import java.io.InputStream;
+
+/**
+ * A {@link PluginFileHandler} that can read a file straight from the plugin archive. The deployer prefers this
+ * method, so the file never has to be materialized on disk.
+ */
+public interface StreamingPluginFileHandler extends PluginFileHandler {
+  public void handle( String relativePath, InputStream inputStream, PluginMetadata pluginMetadata )
+    throws PluginHandlingException;
+}
@@ -29,12 +29,14 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 
-import javax.xml.xpath.XPath;
+import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -43,27 +45,35 @@ import java.util.Map;
 /**
  * Created by bryan on 8/26/14.
  */
-public abstract class XmlPluginFileHandler implements PluginFileHandler {
+public abstract class XmlPluginFileHandler implements StreamingPluginFileHandler {
   private final String xpath;
+  // XPath objects are not thread safe, compile once per deploying thread instead of once per file
+  private final ThreadLocal<XPathExpression> compiledXpath = new ThreadLocal<XPathExpression>();
 
   protected XmlPluginFileHandler( String xpath ) {
     this.xpath = xpath;
   }
 
+  /**
+   * Parses a document the way the handlers expect it, so that one parse can be shared by all of them.
+   */
+  public static Document parse( InputStream inputStream ) throws PluginHandlingException {
+    try {
+      DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+      documentBuilderFactory.setNamespaceAware( true );
+      return documentBuilderFactory.newDocumentBuilder().parse( new InputSource( inputStream ) );
+    } catch ( Exception e ) {
+      throw new PluginHandlingException( e );
+    }
+  }
+
   @Override public void handle( String relativePath, File file, PluginMetadata pluginMetadata )
     throws PluginHandlingException {
     FileInputStream fileInputStream = null;
     try {
-      XPath xPath = XPathFactory.newInstance().newXPath();
       fileInputStream = new FileInputStream( file );
-      InputSource inputSource = new InputSource( fileInputStream );
-      NodeList nodeList = (NodeList) xPath.evaluate( xpath, inputSource, XPathConstants.NODESET );
-      List<Node> nodes = new ArrayList<Node>( nodeList.getLength() );
-      for ( int i = 0; i < nodeList.getLength(); i++ ) {
-        nodes.add( nodeList.item( i ) );
-      }
-      handle( relativePath, nodes, pluginMetadata );
-    } catch ( Exception e ) {
+      handle( relativePath, fileInputStream, pluginMetadata );
+    } catch ( IOException e ) {
       throw new PluginHandlingException( e );
     } finally {
       if ( fileInputStream != null ) {
@@ -76,6 +86,31 @@ public abstract class XmlPluginFileHandler implements PluginFileHandler {
     }
   }
 
+  @Override public void handle( String relativePath, InputStream inputStream, PluginMetadata pluginMetadata )
+    throws PluginHandlingException {
+    handle( relativePath, parse( inputStream ), pluginMetadata );
+  }
+
+  public void handle( String relativePath, Document document, PluginMetadata pluginMetadata )
+    throws PluginHandlingException {
+    List<Node> nodes;
+    try {
+      XPathExpression expression = compiledXpath.get();
+      if ( expression == null ) {
+        expression = XPathFactory.newInstance().newXPath().compile( xpath );
+        compiledXpath.set( expression );
+      }
+      NodeList nodeList = (NodeList) expression.evaluate( document, XPathConstants.NODESET );
+      nodes = new ArrayList<Node>( nodeList.getLength() );
+      for ( int i = 0; i < nodeList.getLength(); i++ ) {
+        nodes.add( nodeList.item( i ) );
+      }
+    } catch ( Exception e ) {
+      throw new PluginHandlingException( e );
+    }
+    handle( relativePath, nodes, pluginMetadata );
+  }
+
   protected abstract void handle( String relativePath, List<Node> nodes, PluginMetadata pluginMetadata )
     throws PluginHandlingException;
 
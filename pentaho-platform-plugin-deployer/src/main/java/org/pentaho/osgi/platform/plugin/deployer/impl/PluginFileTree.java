@@ -0,0 +1,469 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.plugin.deployer.impl;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The files of a plugin being deployed, kept in memory until their total size reaches the memory threshold. Past it,
+ * further content spills into numbered files of a temporary directory, which is only created if needed.
+ * <p/>
+ * Paths are relative and use '/'; directories are stored without the trailing slash and are registered implicitly
+ * for every file added. Entries keep the order in which they were first added.
+ * <p/>
+ * Files taken from a zip with {@link #putRaw(String, RawZipReader.Entry, InputStream)} are kept as stored in the zip,
+ * usually deflated, so that {@link #writeTo(RawZipWriter, Set)} can copy them without compressing them again.
+ * <p/>
+ * Handlers that need a {@link File} get one from {@link Entry#toFile()}, under a directory of the spill directory
+ * that mirrors the plugin's layout.
+ */
+public class PluginFileTree {
+  private static final int BUFFER_SIZE = 8192;
+  private static final String MATERIALIZED_DIRECTORY_NAME = "plugin";
+  private final long memoryThreshold;
+  private final AtomicLong memoryCounter;
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+  private final Entry root = new Entry( "", true );
+  private long memoryUsed = 0;
+  private File spillDirectory;
+  private int spillCount = 0;
+
+  public PluginFileTree( long memoryThreshold ) {
+    this( memoryThreshold, null );
+  }
+
+  /**
+   * @param memoryCounter also keeps track of the bytes held in memory, typically shared by many trees
+   */
+  public PluginFileTree( long memoryThreshold, AtomicLong memoryCounter ) {
+    this.memoryThreshold = memoryThreshold;
+    this.memoryCounter = memoryCounter;
+  }
+
+  public long getMemoryUsed() {
+    return memoryUsed;
+  }
+
+  public File getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  public Entry get( String path ) {
+    return entries.get( path );
+  }
+
+  /**
+   * @return the directory holding every entry, with the empty path; not part of {@link #getEntries()}
+   */
+  public Entry getRoot() {
+    return root;
+  }
+
+  public List<Entry> getEntries() {
+    return new ArrayList<Entry>( entries.values() );
+  }
+
+  public Entry putDirectory( String path ) {
+    path = normalize( path );
+    Entry entry = entries.get( path );
+    if ( entry == null ) {
+      putParents( path );
+      entry = new Entry( path, true );
+      entries.put( path, entry );
+    }
+    return entry;
+  }
+
+  public Entry put( String path, byte[] content ) throws IOException {
+    return put( path, new ByteArrayInputStream( content ), content.length );
+  }
+
+  /**
+   * Reads a file's content until the end of the given stream, which is left open.
+   *
+   * @param sizeHint the expected size, or -1 when unknown
+   */
+  public Entry put( String path, InputStream inputStream, long sizeHint ) throws IOException {
+    Entry entry = prepareFile( path );
+    load( entry, inputStream, sizeHint );
+    return entry;
+  }
+
+  /**
+   * Reads a file's data as stored in a zip, until the end of the given stream.
+   *
+   * @param zipEntry the entry being read, its CRC and sizes must be known once stored is read
+   * @param stored   the entry's data, usually deflated
+   */
+  public Entry putRaw( String path, RawZipReader.Entry zipEntry, InputStream stored ) throws IOException {
+    Entry entry = prepareFile( path );
+    load( entry, stored, zipEntry.getCompressedSize() );
+    entry.raw = zipEntry;
+    return entry;
+  }
+
+  private void load( Entry entry, InputStream inputStream, long sizeHint ) throws IOException {
+    byte[] buffer = new byte[ BUFFER_SIZE ];
+    if ( sizeHint >= 0 && memoryUsed + sizeHint > memoryThreshold ) {
+      spill( entry, inputStream, null, buffer );
+      return;
+    }
+    ByteArrayOutputStream content =
+      new ByteArrayOutputStream( sizeHint >= 0 ? (int) Math.min( sizeHint, Integer.MAX_VALUE - 8 ) : BUFFER_SIZE );
+    int read;
+    while ( ( read = inputStream.read( buffer ) ) != -1 ) {
+      content.write( buffer, 0, read );
+      if ( memoryUsed + content.size() > memoryThreshold ) {
+        spill( entry, inputStream, content, buffer );
+        return;
+      }
+    }
+    entry.content = content.toByteArray();
+    addMemoryUsed( entry.content.length );
+  }
+
+  /**
+   * Creates (or truncates) a disk backed file, for content written through the returned file.
+   */
+  public File newFile( String path ) throws IOException {
+    Entry entry = prepareFile( path );
+    entry.file = nextSpillFile();
+    if ( !entry.file.createNewFile() ) {
+      throw new IOException( "Unable to create " + entry.file );
+    }
+    return entry.file;
+  }
+
+  /**
+   * Writes every entry not already in createdEntries, in order. Directory entries get their trailing slash back.
+   */
+  public void writeTo( ZipOutputStream zipOutputStream, Set<String> createdEntries ) throws IOException {
+    byte[] buffer = new byte[ BUFFER_SIZE ];
+    for ( Entry entry : entries.values() ) {
+      String name = entry.directory ? entry.path + "/" : entry.path;
+      if ( !createdEntries.add( name ) ) {
+        continue;
+      }
+      zipOutputStream.putNextEntry( new ZipEntry( name ) );
+      if ( !entry.directory ) {
+        InputStream inputStream = entry.openStream();
+        try {
+          copy( inputStream, zipOutputStream, buffer );
+        } finally {
+          inputStream.close();
+        }
+      }
+      zipOutputStream.closeEntry();
+    }
+  }
+
+  /**
+   * Writes every entry not already in createdEntries, in order. Files put raw are copied as they are stored, the
+   * others are deflated.
+   */
+  public void writeTo( RawZipWriter rawZipWriter, Set<String> createdEntries ) throws IOException {
+    for ( Entry entry : entries.values() ) {
+      String name = entry.directory ? entry.path + "/" : entry.path;
+      if ( !createdEntries.add( name ) ) {
+        continue;
+      }
+      if ( entry.directory ) {
+        rawZipWriter.write( name, new byte[ 0 ] );
+        continue;
+      }
+      InputStream inputStream = entry.raw != null ? entry.openStoredStream() : entry.openStream();
+      try {
+        if ( entry.raw != null ) {
+          rawZipWriter.copy( entry.raw, inputStream );
+        } else {
+          rawZipWriter.write( name, ByteStreams.toByteArray( inputStream ) );
+        }
+      } finally {
+        inputStream.close();
+      }
+    }
+  }
+
+  /**
+   * Deletes the spilled files, if any. Further use of the tree is not supported.
+   */
+  public void dispose() {
+    entries.clear();
+    addMemoryUsed( -memoryUsed );
+    if ( spillDirectory != null ) {
+      recursiveDelete( spillDirectory );
+      spillDirectory = null;
+    }
+  }
+
+  private Entry prepareFile( String path ) throws IOException {
+    path = normalize( path );
+    Entry entry = entries.get( path );
+    if ( entry == null ) {
+      putParents( path );
+      entry = new Entry( path, false );
+      entries.put( path, entry );
+    } else if ( entry.directory ) {
+      throw new IOException( path + " is a directory" );
+    } else {
+      release( entry );
+    }
+    return entry;
+  }
+
+  private void addMemoryUsed( long delta ) {
+    memoryUsed += delta;
+    if ( memoryCounter != null ) {
+      memoryCounter.addAndGet( delta );
+    }
+  }
+
+  private void putParents( String path ) {
+    int slash = path.lastIndexOf( '/' );
+    if ( slash > 0 ) {
+      putDirectory( path.substring( 0, slash ) );
+    }
+  }
+
+  private void release( Entry entry ) {
+    if ( entry.content != null ) {
+      addMemoryUsed( -entry.content.length );
+      entry.content = null;
+    }
+    if ( entry.file != null ) {
+      if ( !entry.file.delete() ) {
+        entry.file.deleteOnExit();
+      }
+      entry.file = null;
+    }
+    entry.raw = null;
+    entry.materialized = null;
+  }
+
+  private void spill( Entry entry, InputStream inputStream, ByteArrayOutputStream head, byte[] buffer )
+    throws IOException {
+    entry.file = nextSpillFile();
+    OutputStream outputStream = new FileOutputStream( entry.file );
+    try {
+      if ( head != null ) {
+        head.writeTo( outputStream );
+      }
+      copy( inputStream, outputStream, buffer );
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private File nextSpillFile() {
+    if ( spillDirectory == null ) {
+      spillDirectory = Files.createTempDir();
+    }
+    return new File( spillDirectory, String.valueOf( spillCount++ ) );
+  }
+
+  /**
+   * @return where the entry is materialized, spilled files are numbered so they never clash with it
+   */
+  private File materializedFile( String path ) throws IOException {
+    if ( spillDirectory == null ) {
+      spillDirectory = Files.createTempDir();
+    }
+    File directory = new File( spillDirectory, MATERIALIZED_DIRECTORY_NAME );
+    if ( path.length() == 0 ) {
+      return directory;
+    }
+    File file = new File( directory, path );
+    if ( !file.getCanonicalPath().startsWith( directory.getCanonicalPath() + File.separator ) ) {
+      throw new IOException( path + " is outside of the plugin" );
+    }
+    return file;
+  }
+
+  private static String normalize( String path ) {
+    path = path.replace( '\\', '/' );
+    while ( path.startsWith( "/" ) ) {
+      path = path.substring( 1 );
+    }
+    while ( path.endsWith( "/" ) ) {
+      path = path.substring( 0, path.length() - 1 );
+    }
+    return path;
+  }
+
+  private static void mkdirs( File directory ) throws IOException {
+    if ( !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory() ) {
+      throw new IOException( "Unable to create " + directory );
+    }
+  }
+
+  private static void copy( InputStream inputStream, OutputStream outputStream, byte[] buffer ) throws IOException {
+    int read;
+    while ( ( read = inputStream.read( buffer ) ) != -1 ) {
+      outputStream.write( buffer, 0, read );
+    }
+  }
+
+  private static void recursiveDelete( File file ) {
+    File[] children = file.listFiles();
+    if ( children != null ) {
+      for ( File child : children ) {
+        recursiveDelete( child );
+      }
+    }
+    if ( !file.delete() ) {
+      file.deleteOnExit();
+    }
+  }
+
+  public class Entry {
+    private final String path;
+    private final boolean directory;
+    private byte[] content;
+    private File file;
+    private RawZipReader.Entry raw;
+    private File materialized;
+
+    private Entry( String path, boolean directory ) {
+      this.path = path;
+      this.directory = directory;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public boolean isDirectory() {
+      return directory;
+    }
+
+    public boolean isInMemory() {
+      return content != null;
+    }
+
+    /**
+     * @return whether this file is kept as stored in the zip it came from
+     */
+    public boolean isRaw() {
+      return raw != null;
+    }
+
+    public long getLength() {
+      if ( raw != null ) {
+        return raw.getSize();
+      }
+      if ( content != null ) {
+        return content.length;
+      }
+      return file != null ? file.length() : 0;
+    }
+
+    public InputStream openStream() throws IOException {
+      if ( raw != null ) {
+        return RawZipReader.inflate( raw, openStoredStream() );
+      }
+      return openStoredStream();
+    }
+
+    private InputStream openStoredStream() throws IOException {
+      if ( content != null ) {
+        return new ByteArrayInputStream( content );
+      }
+      if ( file != null ) {
+        return new FileInputStream( file );
+      }
+      return new ByteArrayInputStream( new byte[ 0 ] );
+    }
+
+    /**
+     * Returns this entry as a file on disk, for handlers that can only read files. The file is written once, at this
+     * entry's path under a directory mirroring the plugin; in memory content is released once written. A directory
+     * gets the files under it written too.
+     */
+    public File toFile() throws IOException {
+      if ( directory ) {
+        File target = materializedFile( path );
+        String prefix = path.length() == 0 ? "" : path + "/";
+        mkdirs( target );
+        for ( Entry child : entries.values() ) {
+          if ( child.path.startsWith( prefix ) ) {
+            if ( child.directory ) {
+              mkdirs( materializedFile( child.path ) );
+            } else {
+              child.toFile();
+            }
+          }
+        }
+        return target;
+      }
+      if ( materialized == null ) {
+        File target = materializedFile( path );
+        mkdirs( target.getParentFile() );
+        if ( raw == null && content != null ) {
+          byte[] bytes = content;
+          release( this );
+          Files.write( bytes, target );
+          file = target;
+        } else if ( raw == null && file != null && file.renameTo( target ) ) {
+          file = target;
+        } else {
+          // Raw data is usually deflated, an inflated copy is handed over instead
+          copyTo( target );
+        }
+        materialized = target;
+      }
+      return materialized;
+    }
+
+    private void copyTo( File target ) throws IOException {
+      InputStream inputStream = openStream();
+      try {
+        OutputStream outputStream = new FileOutputStream( target );
+        try {
+          copy( inputStream, outputStream, new byte[ BUFFER_SIZE ] );
+        } finally {
+          outputStream.close();
+        }
+      } finally {
+        inputStream.close();
+      }
+    }
+  }
+}
@@ -49,11 +49,25 @@ public class PluginMetadataImpl implements PluginMetadata {
   private final ManifestUpdater manifestUpdater = new ManifestUpdaterImpl();
   private final Document blueprint;
   private final File rootDirectory;
+  private final PluginFileTree pluginFileTree;
 
   public PluginMetadataImpl( File rootDirectory ) throws ParserConfigurationException {
+    this( rootDirectory, null );
+  }
+
+  /**
+   * Files written through {@link #getFileWriter(String)} are added to the given tree.
+   */
+  public PluginMetadataImpl( PluginFileTree pluginFileTree ) throws ParserConfigurationException {
+    this( null, pluginFileTree );
+  }
+
+  private PluginMetadataImpl( File rootDirectory, PluginFileTree pluginFileTree )
+    throws ParserConfigurationException {
     blueprint = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
     blueprint.appendChild( blueprint.createElementNS( PluginXmlStaticPathsHandler.BLUEPRINT_BEAN_NS, "blueprint" ) );
     this.rootDirectory = rootDirectory;
+    this.pluginFileTree = pluginFileTree;
   }
 
   @Override public ManifestUpdater getManifestUpdater() {
@@ -78,6 +92,9 @@ public class PluginMetadataImpl implements PluginMetadata {
   }
 
   @Override public FileWriter getFileWriter( String path ) throws IOException {
+    if ( pluginFileTree != null ) {
+      return new FileWriter( pluginFileTree.newFile( path ) );
+    }
     File resultFile = new File( rootDirectory.getAbsolutePath() + "/" + path );
     File parentDir = resultFile.getParentFile();
     int tries = 100;
@@ -22,31 +22,36 @@
 
 package org.pentaho.osgi.platform.plugin.deployer.impl;
 
-import com.google.common.io.Files;
+import com.google.common.io.ByteStreams;
 import org.pentaho.osgi.platform.plugin.deployer.api.PluginFileHandler;
 import org.pentaho.osgi.platform.plugin.deployer.api.PluginHandlingException;
 import org.pentaho.osgi.platform.plugin.deployer.api.PluginMetadata;
+import org.pentaho.osgi.platform.plugin.deployer.api.StreamingPluginFileHandler;
+import org.pentaho.osgi.platform.plugin.deployer.api.XmlPluginFileHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.Stack;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
-import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -55,17 +60,38 @@ import java.util.zip.ZipOutputStream;
  */
 public class PluginZipFileProcessor {
   public static final String BLUEPRINT = "OSGI-INF/blueprint/blueprint.xml";
+  public static final long DEFAULT_MEMORY_THRESHOLD = 32 * 1024 * 1024;
+  private final Logger logger = LoggerFactory.getLogger( getClass() );
   private final List<PluginFileHandler> pluginFileHandlers;
   private final String name;
   private final String symbolicName;
   private final String version;
+  private final long memoryThreshold;
+  private AtomicLong memoryCounter;
 
   public PluginZipFileProcessor( List<PluginFileHandler> pluginFileHandlers, String name, String symbolicName,
                                  String version ) {
+    this( pluginFileHandlers, name, symbolicName, version, DEFAULT_MEMORY_THRESHOLD );
+  }
+
+  /**
+   * @param memoryThreshold how many bytes of plugin files to hold in memory before spilling the rest to a temporary
+   *                        directory; 0 keeps everything on disk
+   */
+  public PluginZipFileProcessor( List<PluginFileHandler> pluginFileHandlers, String name, String symbolicName,
+                                 String version, long memoryThreshold ) {
     this.pluginFileHandlers = pluginFileHandlers;
     this.name = name;
     this.symbolicName = symbolicName;
     this.version = version;
+    this.memoryThreshold = memoryThreshold;
+  }
+
+  /**
+   * @param memoryCounter kept up to date with the bytes of plugin files held in memory while processing
+   */
+  public void setMemoryCounter( AtomicLong memoryCounter ) {
+    this.memoryCounter = memoryCounter;
   }
 
   public Future<Void> processBackground( ExecutorService executorService, final ZipInputStream zipInputStream,
@@ -83,204 +109,288 @@ public class PluginZipFileProcessor {
     } );
   }
 
+  /**
+   * Like {@link #processBackground(ExecutorService, ZipInputStream, ZipOutputStream, ExceptionSettable)}, with
+   * {@link #processRaw(InputStream, OutputStream)}.
+   */
+  public Future<Void> processRawBackground( ExecutorService executorService, final InputStream inputStream,
+                                            final OutputStream outputStream,
+                                            final ExceptionSettable<IOException> exceptionSettable ) {
+    return executorService.submit( new Callable<Void>() {
+      @Override public Void call() throws Exception {
+        try {
+          processRaw( inputStream, outputStream );
+        } catch ( IOException e ) {
+          exceptionSettable.setException( e );
+        }
+        return null;
+      }
+    } );
+  }
+
   public void process( ZipInputStream zipInputStream, ZipOutputStream zipOutputStream ) throws IOException {
-    File dir = Files.createTempDir();
-    PluginMetadata pluginMetadata = null;
+    PluginFileTree pluginFileTree = new PluginFileTree( memoryThreshold, memoryCounter );
     try {
-      pluginMetadata = new PluginMetadataImpl( dir );
-    } catch ( ParserConfigurationException e ) {
-      throw new IOException( e );
+      process( zipInputStream, zipOutputStream, pluginFileTree );
+    } finally {
+      pluginFileTree.dispose();
+    }
+  }
+
+  /**
+   * Processes a plugin zip read from a plain stream, writing the bundle to outputStream. The files handlers leave
+   * untouched are copied as they are stored in the plugin zip, keeping their compressed data, CRC and sizes; only
+   * the manifest, blueprint and files added by handlers are deflated.
+   * <p/>
+   * Zip64 entries without a data descriptor, encrypted entries and stored entries with a data descriptor are not
+   * supported, see {@link #processRaw(URL, OutputStream)} to read those anyway.
+   */
+  public void processRaw( InputStream inputStream, OutputStream outputStream ) throws IOException {
+    PluginFileTree pluginFileTree = new PluginFileTree( memoryThreshold, memoryCounter );
+    try {
+      Manifest manifest = readRaw( inputStream, pluginFileTree );
+      writeRaw( manifest, pluginFileTree, outputStream );
+    } finally {
+      pluginFileTree.dispose();
+    }
+  }
+
+  /**
+   * Like {@link #processRaw(InputStream, OutputStream)}, reading the plugin zip from a URL. A zip the raw reader
+   * rejects is read again through a {@link ZipInputStream}, its files are then deflated again in the bundle.
+   */
+  public void processRaw( URL url, OutputStream outputStream ) throws IOException {
+    PluginFileTree pluginFileTree = new PluginFileTree( memoryThreshold, memoryCounter );
+    try {
+      Manifest manifest;
+      try {
+        manifest = readRaw( new BufferedInputStream( url.openStream() ), pluginFileTree );
+      } catch ( ZipException e ) {
+        logger.info( "Unable to copy the entries of " + url + " as they are, reading it again: " + e.getMessage() );
+        pluginFileTree.dispose();
+        pluginFileTree = new PluginFileTree( memoryThreshold, memoryCounter );
+        manifest = read( new ZipInputStream( new BufferedInputStream( url.openStream() ) ), pluginFileTree );
+      }
+      writeRaw( manifest, pluginFileTree, outputStream );
+    } finally {
+      pluginFileTree.dispose();
     }
+  }
+
+  private void process( ZipInputStream zipInputStream, ZipOutputStream zipOutputStream,
+                        PluginFileTree pluginFileTree ) throws IOException {
+    Manifest manifest = read( zipInputStream, pluginFileTree );
+    PluginMetadata pluginMetadata = createPluginMetadata( pluginFileTree );
+    handle( pluginFileTree, pluginMetadata );
+    Set<String> createdEntries = new HashSet<String>();
+
+    try {
+      String manifestFolder = JarFile.MANIFEST_NAME.split( "/" )[ 0 ] + "/";
+      ZipEntry manifestFolderEntry = new ZipEntry( manifestFolder );
+      zipOutputStream.putNextEntry( manifestFolderEntry );
+      zipOutputStream.closeEntry();
+      createdEntries.add( manifestFolder );
+
+      ZipEntry manifestEntry = new ZipEntry( JarFile.MANIFEST_NAME );
+      zipOutputStream.putNextEntry( manifestEntry );
+      pluginMetadata.getManifestUpdater()
+        .write( manifest, zipOutputStream, name, symbolicName, version );
+      zipOutputStream.closeEntry();
+      createdEntries.add( JarFile.MANIFEST_NAME );
+
+      pluginFileTree.writeTo( zipOutputStream, createdEntries );
+    } finally {
+      try {
+        zipOutputStream.close();
+      } catch ( IOException e ) {
+        // Noop
+      }
+    }
+  }
+
+  /**
+   * Loads the plugin's files into the tree and closes the stream.
+   *
+   * @return the plugin's manifest, or null if it has none
+   */
+  private Manifest read( ZipInputStream zipInputStream, PluginFileTree pluginFileTree ) throws IOException {
     Manifest manifest = null;
     try {
       ZipEntry zipEntry = null;
-      Document blueprint = null;
       while ( ( zipEntry = zipInputStream.getNextEntry() ) != null ) {
-        ByteArrayOutputStream byteArrayOutputStream =
-          new ByteArrayOutputStream( (int) Math.min( Integer.MAX_VALUE, zipEntry.getSize() ) );
-        byte[] buffer = new byte[ 1024 ];
-        int read;
-        while ( ( read = zipInputStream.read( buffer ) ) > 0 ) {
-          byteArrayOutputStream.write( buffer, 0, read );
-        }
-        byte[] zipBytes = byteArrayOutputStream.toByteArray();
         String name = zipEntry.getName();
-        boolean shouldOutput = true;
         if ( JarFile.MANIFEST_NAME.equals( name ) ) {
-          shouldOutput = false;
-          manifest = new Manifest( new ByteArrayInputStream( zipBytes ) );
+          manifest = readManifest( zipInputStream );
         } else if ( BLUEPRINT.equals( name ) ) {
-          shouldOutput = false;
-          try {
-            blueprint =
-              DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( new ByteArrayInputStream( zipBytes ) );
-          } catch ( Exception e ) {
-            throw new IOException( e );
-          }
-        }
-        if ( shouldOutput ) {
-          File outFile = new File( dir.getAbsolutePath() + "/" + zipEntry.getName() );
-          int tries = 100;
-          File outParent = outFile.getParentFile();
-          while ( !outParent.exists() && tries-- > 0 ) {
-            outParent.mkdirs();
-          }
-          if ( zipEntry.isDirectory() ) {
-            tries = 100;
-            while ( !outFile.exists() && tries-- > 0 ) {
-              outFile.mkdir();
-            }
-          } else {
-            FileOutputStream fileOutputStream = null;
-            try {
-              fileOutputStream = new FileOutputStream( outFile );
-              int len = 0;
-              fileOutputStream.write( zipBytes );
-            } finally {
-              if ( fileOutputStream != null ) {
-                fileOutputStream.close();
-              }
-            }
-          }
+          checkBlueprint( zipInputStream );
+        } else if ( zipEntry.isDirectory() ) {
+          pluginFileTree.putDirectory( name );
+        } else {
+          pluginFileTree.put( name, zipInputStream, zipEntry.getSize() );
         }
       }
-
-      if ( pluginFileHandlers != null ) {
-        Stack<File> fileStack = new Stack<File>();
-        fileStack.push( dir );
-        while ( fileStack.size() > 0 ) {
-          File currentFile = fileStack.pop();
-          File searchFile = currentFile;
-          Stack<String> dirStack = new Stack<String>();
-          while ( !searchFile.equals( dir ) ) {
-            dirStack.push( searchFile.getName() );
-            searchFile = searchFile.getParentFile();
-          }
-          String currentFileName = null;
-          StringBuilder sb = new StringBuilder();
-          while ( dirStack.size() > 0 ) {
-            sb.append( dirStack.pop() );
-            sb.append( "/" );
-          }
-          if ( sb.length() > 0 ) {
-            sb.setLength( sb.length() - 1 );
-          }
-          String currentPath = sb.toString();
-          for ( PluginFileHandler pluginFileHandler : pluginFileHandlers ) {
-            if ( pluginFileHandler.handles( currentPath ) ) {
-              try {
-                pluginFileHandler.handle( currentPath, currentFile, pluginMetadata );
-              } catch ( PluginHandlingException e ) {
-                throw new IOException( e );
-              }
-            }
-          }
-
-          if ( currentFile.isDirectory() ) {
-            File[] dirFiles = currentFile.listFiles();
-            for ( File file : dirFiles ) {
-              fileStack.push( file );
-            }
-          }
-        }
+    } finally {
+      try {
+        zipInputStream.close();
+      } catch ( IOException e ) {
+        //Noop
       }
+    }
+    return manifest;
+  }
 
-      int tries = 100;
-      File blueprintDir =
-        new File( dir.getAbsolutePath() + "/" + BLUEPRINT.substring( 0, BLUEPRINT.lastIndexOf( '/' ) ) );
-      while ( !blueprintDir.exists() && tries-- > 0 ) {
-        blueprintDir.mkdirs();
-      }
-      FileOutputStream blueprintOutputStream = null;
-      try {
-        blueprintOutputStream = new FileOutputStream( dir.getAbsolutePath() + "/" + BLUEPRINT );
-        pluginMetadata.writeBlueprint( blueprintOutputStream );
-      } finally {
-        if ( blueprintOutputStream != null ) {
-          blueprintOutputStream.close();
+  /**
+   * Like {@link #read(ZipInputStream, PluginFileTree)}, keeping the files as stored in the zip.
+   */
+  private Manifest readRaw( InputStream inputStream, PluginFileTree pluginFileTree ) throws IOException {
+    Manifest manifest = null;
+    try {
+      RawZipReader rawZipReader = new RawZipReader( inputStream );
+      RawZipReader.Entry zipEntry = null;
+      while ( ( zipEntry = rawZipReader.nextEntry() ) != null ) {
+        String name = zipEntry.getName();
+        if ( JarFile.MANIFEST_NAME.equals( name ) ) {
+          manifest = readManifest( rawZipReader.getInflatedStream() );
+        } else if ( BLUEPRINT.equals( name ) ) {
+          checkBlueprint( rawZipReader.getInflatedStream() );
+        } else if ( zipEntry.isDirectory() ) {
+          pluginFileTree.putDirectory( name );
+        } else {
+          pluginFileTree.putRaw( name, zipEntry, rawZipReader.getRawStream() );
+          if ( !RawZipWriter.canCopy( zipEntry ) ) {
+            // Rejected before anything is written, so that the zip can still be read again
+            throw new ZipException( "Entry " + name + " is too large to be copied without zip64" );
+          }
         }
       }
     } finally {
       try {
-        zipInputStream.close();
+        inputStream.close();
       } catch ( IOException e ) {
         //Noop
       }
     }
+    return manifest;
+  }
+
+  private void writeRaw( Manifest manifest, PluginFileTree pluginFileTree, OutputStream outputStream )
+    throws IOException {
+    PluginMetadata pluginMetadata = createPluginMetadata( pluginFileTree );
+    handle( pluginFileTree, pluginMetadata );
     Set<String> createdEntries = new HashSet<String>();
 
-    String manifestFolder = JarFile.MANIFEST_NAME.split( "/" )[ 0 ] + "/";
-    ZipEntry manifestFolderEntry = new ZipEntry( manifestFolder );
-    zipOutputStream.putNextEntry( manifestFolderEntry );
-    zipOutputStream.closeEntry();
-    createdEntries.add( manifestFolder );
+    try {
+      RawZipWriter rawZipWriter = new RawZipWriter( outputStream );
+      String manifestFolder = JarFile.MANIFEST_NAME.split( "/" )[ 0 ] + "/";
+      rawZipWriter.write( manifestFolder, new byte[ 0 ] );
+      createdEntries.add( manifestFolder );
+
+      ByteArrayOutputStream manifestOutputStream = new ByteArrayOutputStream();
+      pluginMetadata.getManifestUpdater()
+        .write( manifest, manifestOutputStream, name, symbolicName, version );
+      rawZipWriter.write( JarFile.MANIFEST_NAME, manifestOutputStream.toByteArray() );
+      createdEntries.add( JarFile.MANIFEST_NAME );
 
-    ZipEntry manifestEntry = new ZipEntry( JarFile.MANIFEST_NAME );
-    zipOutputStream.putNextEntry( manifestEntry );
-    pluginMetadata.getManifestUpdater()
-      .write( manifest, zipOutputStream, name, symbolicName, version );
-    zipOutputStream.closeEntry();
-    createdEntries.add( JarFile.MANIFEST_NAME );
+      pluginFileTree.writeTo( rawZipWriter, createdEntries );
+      rawZipWriter.finish();
+    } finally {
+      try {
+        outputStream.close();
+      } catch ( IOException e ) {
+        // Noop
+      }
+    }
+  }
 
-    Stack<File> dirStack = new Stack<File>();
-    dirStack.push( dir );
-    int len = 0;
-    byte[] buffer = new byte[ 1024 ];
+  private PluginMetadata createPluginMetadata( PluginFileTree pluginFileTree ) throws IOException {
     try {
-      while ( dirStack.size() > 0 ) {
-        File currentDir = dirStack.pop();
-        String dirName = currentDir.getAbsolutePath().substring( dir.getAbsolutePath().length() ) + "/";
-        if ( dirName.startsWith( "/" ) || dirName.startsWith( "\\" ) ) {
-          dirName = dirName.substring( 1 );
-        }
-        if ( dirName.length() > 0 && !createdEntries.contains( dirName ) ) {
-          ZipEntry zipEntry = new ZipEntry( dirName.replaceAll( Pattern.quote("\\"), "/" ) );
-          zipOutputStream.putNextEntry( zipEntry );
-          zipOutputStream.closeEntry();
-        }
-        File[] dirFiles = currentDir.listFiles();
-        if ( dirFiles != null ) {
-          for ( File childFile : dirFiles ) {
-            if ( childFile.isDirectory() ) {
-              dirStack.push( childFile );
-            } else {
-              String fileName = childFile.getAbsolutePath().substring( dir.getAbsolutePath().length() + 1 );
-              FileInputStream fileInputStream = null;
-              try {
-                fileInputStream = new FileInputStream( childFile );
-                ZipEntry childZipEntry = new ZipEntry( fileName.replaceAll( Pattern.quote("\\"), "/" ) );
-                zipOutputStream.putNextEntry( childZipEntry );
-                while ( ( len = fileInputStream.read( buffer ) ) != -1 ) {
-                  zipOutputStream.write( buffer, 0, len );
-                }
-                zipOutputStream.closeEntry();
-              } finally {
-                if ( fileInputStream != null ) {
-                  fileInputStream.close();
-                }
+      return new PluginMetadataImpl( pluginFileTree );
+    } catch ( ParserConfigurationException e ) {
+      throw new IOException( e );
+    }
+  }
+
+  private Manifest readManifest( InputStream inputStream ) throws IOException {
+    return new Manifest( new ByteArrayInputStream( ByteStreams.toByteArray( inputStream ) ) );
+  }
+
+  private void checkBlueprint( InputStream inputStream ) throws IOException {
+    // Only parsed to fail early on a broken blueprint, the generated one replaces it
+    try {
+      DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse( new ByteArrayInputStream( ByteStreams.toByteArray( inputStream ) ) );
+    } catch ( Exception e ) {
+      throw new IOException( e );
+    }
+  }
+
+  /**
+   * Runs the handlers over every entry, then adds the blueprint they built up.
+   */
+  private void handle( PluginFileTree pluginFileTree, PluginMetadata pluginMetadata ) throws IOException {
+    if ( pluginFileHandlers != null ) {
+      // The plugin's root directory comes first, with the empty path
+      List<PluginFileTree.Entry> entries = pluginFileTree.getEntries();
+      entries.add( 0, pluginFileTree.getRoot() );
+      for ( PluginFileTree.Entry entry : entries ) {
+        String currentPath = entry.getPath();
+        // Parsed on first use and shared by every xml handler of the entry
+        Document document = null;
+        for ( PluginFileHandler pluginFileHandler : pluginFileHandlers ) {
+          if ( pluginFileHandler.handles( currentPath ) ) {
+            if ( pluginFileHandler instanceof XmlPluginFileHandler && !entry.isDirectory() ) {
+              if ( document == null ) {
+                document = parse( entry );
               }
+              handle( (XmlPluginFileHandler) pluginFileHandler, entry, document, pluginMetadata );
+            } else {
+              handle( pluginFileHandler, entry, pluginMetadata );
             }
           }
         }
       }
+    }
+
+    ByteArrayOutputStream blueprintOutputStream = new ByteArrayOutputStream();
+    pluginMetadata.writeBlueprint( blueprintOutputStream );
+    pluginFileTree.put( BLUEPRINT, blueprintOutputStream.toByteArray() );
+  }
+
+  private Document parse( PluginFileTree.Entry entry ) throws IOException {
+    InputStream inputStream = entry.openStream();
+    try {
+      return XmlPluginFileHandler.parse( inputStream );
+    } catch ( PluginHandlingException e ) {
+      throw new IOException( e );
     } finally {
-      try {
-        zipOutputStream.close();
-      } catch ( IOException e ) {
-        // Noop
-      }
-      recursiveDelete( dir );
+      inputStream.close();
     }
   }
 
-  private void recursiveDelete( File file ) {
-    if ( file.isDirectory() ) {
-      for ( File child : file.listFiles() ) {
-        recursiveDelete( child );
-      }
+  private void handle( XmlPluginFileHandler xmlPluginFileHandler, PluginFileTree.Entry entry, Document document,
+                       PluginMetadata pluginMetadata ) throws IOException {
+    try {
+      xmlPluginFileHandler.handle( entry.getPath(), document, pluginMetadata );
+    } catch ( PluginHandlingException e ) {
+      throw new IOException( e );
     }
-    if ( !file.delete() ) {
-      file.deleteOnExit();
+  }
+
+  private void handle( PluginFileHandler pluginFileHandler, PluginFileTree.Entry entry,
+                       PluginMetadata pluginMetadata ) throws IOException {
+    try {
+      if ( pluginFileHandler instanceof StreamingPluginFileHandler && !entry.isDirectory() ) {
+        InputStream inputStream = entry.openStream();
+        try {
+          ( (StreamingPluginFileHandler) pluginFileHandler ).handle( entry.getPath(), inputStream, pluginMetadata );
+        } finally {
+          inputStream.close();
+        }
+      } else {
+        pluginFileHandler.handle( entry.getPath(), entry.toFile(), pluginMetadata );
+      }
+    } catch ( PluginHandlingException e ) {
+      throw new IOException( e );
     }
   }
 }
@@ -0,0 +1,402 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.plugin.deployer.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip file from a stream, one entry at a time, giving each entry's data as it is stored in the archive,
+ * usually still deflated, along with its CRC and sizes.
+ * <p/>
+ * Entries followed by a data descriptor are inflated on the fly to find where their data ends; the data returned is
+ * still the compressed one. Like {@link java.util.zip.ZipInputStream}, stored entries with a data descriptor are not
+ * supported, nor are encrypted entries. Zip64 entries are only supported with a data descriptor.
+ */
+public class RawZipReader {
+  static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  static final int END_SIGNATURE = 0x06054b50;
+  static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  static final int ZIP64_EXTRA_ID = 0x0001;
+  static final int LOCAL_HEADER_SIZE = 30;
+  static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+  private final InputStream inputStream;
+  private final byte[] buffer = new byte[ 64 * 1024 ];
+  private int position = 0;
+  private int limit = 0;
+  private Entry entry;
+  private InputStream rawStream;
+
+  public RawZipReader( InputStream inputStream ) {
+    this.inputStream = inputStream;
+  }
+
+  /**
+   * Skips what is left of the current entry and reads the next local header.
+   *
+   * @return the next entry or null once the central directory is reached
+   * @throws ZipException if something else than a local header or the central directory comes next
+   */
+  public Entry nextEntry() throws IOException {
+    if ( rawStream != null ) {
+      byte[] skipBuffer = new byte[ 8192 ];
+      while ( rawStream.read( skipBuffer ) != -1 ) {
+        // Skip
+      }
+      rawStream = null;
+    }
+    Entry previous = entry;
+    entry = null;
+    if ( !fill( 4 ) ) {
+      return null;
+    }
+    int signature = getInt( position );
+    if ( signature == CENTRAL_HEADER_SIGNATURE || signature == END_SIGNATURE || signature == ZIP64_END_SIGNATURE ) {
+      return null;
+    }
+    if ( signature != LOCAL_HEADER_SIGNATURE ) {
+      throw new ZipException( "Unexpected signature 0x" + Integer.toHexString( signature ) + " after "
+        + ( previous == null ? "the start of the archive" : previous.name ) );
+    }
+    if ( !fill( LOCAL_HEADER_SIZE ) ) {
+      throw new EOFException( "Truncated local header" );
+    }
+    Entry next = new Entry();
+    next.flags = getShort( position + 6 );
+    next.method = getShort( position + 8 );
+    next.dosTime = getInt( position + 10 );
+    next.crc = getInt( position + 14 ) & 0xFFFFFFFFL;
+    next.compressedSize = getInt( position + 18 ) & 0xFFFFFFFFL;
+    next.size = getInt( position + 22 ) & 0xFFFFFFFFL;
+    int nameLength = getShort( position + 26 );
+    int extraLength = getShort( position + 28 );
+    position += LOCAL_HEADER_SIZE;
+    next.rawName = readFully( nameLength );
+    next.name = new String( next.rawName, UTF_8 );
+    byte[] extra = readFully( extraLength );
+    next.zip64 = next.compressedSize == 0xFFFFFFFFL || next.size == 0xFFFFFFFFL
+      || hasExtraField( extra, ZIP64_EXTRA_ID );
+    if ( ( next.flags & 1 ) != 0 ) {
+      throw new ZipException( "Encrypted entries are not supported: " + next.name );
+    }
+    if ( next.method != ZipEntry.STORED && next.method != ZipEntry.DEFLATED ) {
+      throw new ZipException( "Unsupported compression method " + next.method + ": " + next.name );
+    }
+    if ( next.hasDataDescriptor() ) {
+      if ( next.method == ZipEntry.STORED ) {
+        throw new ZipException( "Stored entries with a data descriptor are not supported: " + next.name );
+      }
+      next.crc = -1;
+      next.compressedSize = -1;
+      next.size = -1;
+      rawStream = new DescriptorEntryStream( next );
+    } else {
+      if ( next.zip64 ) {
+        throw new ZipException( "Zip64 entries without a data descriptor are not supported: " + next.name );
+      }
+      rawStream = new SizedEntryStream( next.compressedSize );
+    }
+    entry = next;
+    return entry;
+  }
+
+  /**
+   * @return the current entry's data, as stored. Once it's read to its end, the entry's CRC and sizes are known.
+   */
+  public InputStream getRawStream() {
+    return rawStream;
+  }
+
+  /**
+   * @return the current entry's content
+   */
+  public InputStream getInflatedStream() {
+    return inflate( entry, rawStream );
+  }
+
+  /**
+   * Wraps an entry's stored data to read its content.
+   */
+  public static InputStream inflate( Entry entry, InputStream rawStream ) {
+    if ( entry.method == ZipEntry.STORED ) {
+      return rawStream;
+    }
+    // The inflater may need a dummy byte past the end of a nowrap stream
+    return new InflaterInputStream(
+      new SequenceInputStream( rawStream, new ByteArrayInputStream( new byte[ 1 ] ) ), new Inflater( true ) ) {
+      @Override public void close() throws IOException {
+        inf.end();
+        super.close();
+      }
+    };
+  }
+
+  /**
+   * Makes sure at least count bytes are buffered, moving what's left to the start of the buffer if needed.
+   *
+   * @return false if the stream ended first
+   */
+  private boolean fill( int count ) throws IOException {
+    if ( limit - position >= count ) {
+      return true;
+    }
+    if ( position > 0 ) {
+      System.arraycopy( buffer, position, buffer, 0, limit - position );
+      limit -= position;
+      position = 0;
+    }
+    while ( limit < count ) {
+      int read = inputStream.read( buffer, limit, buffer.length - limit );
+      if ( read < 0 ) {
+        return false;
+      }
+      limit += read;
+    }
+    return true;
+  }
+
+  private byte[] readFully( int length ) throws IOException {
+    byte[] result = new byte[ length ];
+    int offset = 0;
+    while ( offset < length ) {
+      if ( !fill( 1 ) ) {
+        throw new EOFException( "Truncated entry" );
+      }
+      int count = Math.min( length - offset, limit - position );
+      System.arraycopy( buffer, position, result, offset, count );
+      position += count;
+      offset += count;
+    }
+    return result;
+  }
+
+  private static boolean hasExtraField( byte[] extra, int id ) {
+    int index = 0;
+    while ( index + 4 <= extra.length ) {
+      int fieldId = ( extra[ index ] & 0xFF ) | ( extra[ index + 1 ] & 0xFF ) << 8;
+      if ( fieldId == id ) {
+        return true;
+      }
+      index += 4 + ( ( extra[ index + 2 ] & 0xFF ) | ( extra[ index + 3 ] & 0xFF ) << 8 );
+    }
+    return false;
+  }
+
+  private int getShort( int index ) {
+    return ( buffer[ index ] & 0xFF ) | ( buffer[ index + 1 ] & 0xFF ) << 8;
+  }
+
+  private int getInt( int index ) {
+    return getShort( index ) | getShort( index + 2 ) << 16;
+  }
+
+  private long getLong( int index ) {
+    return ( getInt( index ) & 0xFFFFFFFFL ) | ( (long) getInt( index + 4 ) ) << 32;
+  }
+
+  private class SizedEntryStream extends InputStream {
+    private long remaining;
+
+    private SizedEntryStream( long remaining ) {
+      this.remaining = remaining;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] single = new byte[ 1 ];
+      return read( single, 0, 1 ) == -1 ? -1 : single[ 0 ] & 0xFF;
+    }
+
+    @Override public int read( byte[] b, int off, int len ) throws IOException {
+      if ( remaining == 0 ) {
+        return -1;
+      }
+      if ( !fill( 1 ) ) {
+        throw new EOFException( "Truncated entry" );
+      }
+      int count = (int) Math.min( Math.min( len, remaining ), limit - position );
+      System.arraycopy( buffer, position, b, off, count );
+      position += count;
+      remaining -= count;
+      return count;
+    }
+  }
+
+  /**
+   * Gives the deflated data of an entry whose sizes come after it, inflating it only to find its end.
+   */
+  private class DescriptorEntryStream extends InputStream {
+    private final Entry entry;
+    private final Inflater inflater = new Inflater( true );
+    private final byte[] scratch = new byte[ 8192 ];
+    private long compressedSize = 0;
+    private boolean finished = false;
+
+    private DescriptorEntryStream( Entry entry ) {
+      this.entry = entry;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] single = new byte[ 1 ];
+      return read( single, 0, 1 ) == -1 ? -1 : single[ 0 ] & 0xFF;
+    }
+
+    @Override public int read( byte[] b, int off, int len ) throws IOException {
+      if ( finished ) {
+        return -1;
+      }
+      if ( !fill( 1 ) ) {
+        inflater.end();
+        throw new EOFException( "Truncated entry " + entry.name );
+      }
+      int count = Math.min( len, limit - position );
+      inflater.setInput( buffer, position, count );
+      try {
+        while ( !inflater.finished() && !inflater.needsInput() ) {
+          if ( inflater.inflate( scratch ) == 0 && inflater.needsDictionary() ) {
+            throw new ZipException( "Unsupported preset dictionary in " + entry.name );
+          }
+        }
+      } catch ( DataFormatException e ) {
+        inflater.end();
+        throw new ZipException( "Invalid deflated data in " + entry.name + ": " + e.getMessage() );
+      }
+      // Whatever the inflater did not consume belongs to the data descriptor
+      count -= inflater.getRemaining();
+      System.arraycopy( buffer, position, b, off, count );
+      position += count;
+      compressedSize += count;
+      if ( inflater.finished() ) {
+        finish();
+        if ( count == 0 ) {
+          return -1;
+        }
+      }
+      return count;
+    }
+
+    private void finish() throws IOException {
+      finished = true;
+      long size = inflater.getBytesWritten();
+      inflater.end();
+      // CRC then both sizes, on 8 bytes each for zip64 entries
+      int descriptorSize = entry.zip64 ? 20 : 12;
+      if ( !fill( descriptorSize ) ) {
+        throw new EOFException( "Truncated data descriptor for " + entry.name );
+      }
+      if ( getInt( position ) == DATA_DESCRIPTOR_SIGNATURE ) {
+        position += 4;
+        if ( !fill( descriptorSize ) ) {
+          throw new EOFException( "Truncated data descriptor for " + entry.name );
+        }
+      }
+      entry.crc = getInt( position ) & 0xFFFFFFFFL;
+      long storedSize = entry.zip64 ? getLong( position + 4 ) : getInt( position + 4 ) & 0xFFFFFFFFL;
+      entry.compressedSize = compressedSize;
+      entry.size = size;
+      position += descriptorSize;
+      if ( storedSize != compressedSize ) {
+        throw new ZipException( "Data descriptor does not match the data of " + entry.name );
+      }
+    }
+  }
+
+  /**
+   * A local header, completed by the data descriptor if there is one.
+   */
+  public static class Entry {
+    private String name;
+    private byte[] rawName;
+    private int flags;
+    private int method;
+    private int dosTime;
+    private long crc;
+    private long compressedSize;
+    private long size;
+    private boolean zip64;
+
+    public String getName() {
+      return name;
+    }
+
+    public byte[] getRawName() {
+      return rawName;
+    }
+
+    public int getFlags() {
+      return flags;
+    }
+
+    public int getMethod() {
+      return method;
+    }
+
+    /**
+     * @return the MS-DOS modification time, in the low 16 bits, and date, in the high ones
+     */
+    public int getDosTime() {
+      return dosTime;
+    }
+
+    /**
+     * @return the CRC, or -1 until the data of an entry with a data descriptor is read
+     */
+    public long getCrc() {
+      return crc;
+    }
+
+    /**
+     * @return the compressed size, or -1 until the data of an entry with a data descriptor is read
+     */
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    /**
+     * @return the size, or -1 until the data of an entry with a data descriptor is read
+     */
+    public long getSize() {
+      return size;
+    }
+
+    public boolean isDirectory() {
+      return name.endsWith( "/" );
+    }
+
+    public boolean hasDataDescriptor() {
+      return ( flags & DATA_DESCRIPTOR_FLAG ) != 0;
+    }
+  }
+}
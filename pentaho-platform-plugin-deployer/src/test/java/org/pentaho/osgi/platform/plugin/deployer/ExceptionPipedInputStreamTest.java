@@ -106,4 +106,15 @@ public class ExceptionPipedInputStreamTest {
     pipedOutputStream.write( 1 );
     exceptionPipedInputStream.close();
   }
+
+  @Test( expected = IOException.class )
+  public void testReadExceptionAtEnd() throws IOException {
+    ExceptionPipedInputStream exceptionPipedInputStream = new ExceptionPipedInputStream( 10 );
+    PipedOutputStream pipedOutputStream = new PipedOutputStream( exceptionPipedInputStream );
+    pipedOutputStream.write( 1 );
+    assertEquals( 1, exceptionPipedInputStream.read() );
+    exceptionPipedInputStream.setException( new IOException() );
+    pipedOutputStream.close();
+    exceptionPipedInputStream.read( new byte[ 1 ], 0, 1 );
+  }
 }
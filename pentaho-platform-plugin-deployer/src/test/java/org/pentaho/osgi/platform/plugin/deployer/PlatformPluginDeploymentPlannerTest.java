@@ -0,0 +1,227 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.osgi.platform.plugin.deployer;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.osgi.platform.plugin.deployer.api.PluginFileHandler;
+import org.pentaho.osgi.platform.plugin.deployer.impl.PluginZipFileProcessor;
+import org.pentaho.osgi.platform.plugin.deployer.impl.handlers.pluginxml.PluginXmlStaticPathsHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlatformPluginDeploymentPlannerTest {
+  private File deployDir;
+  private File stagingDir;
+  private List<PluginFileHandler> pluginFileHandlers;
+  private PlatformPluginDeploymentPlanner deploymentPlanner;
+
+  @Before
+  public void setup() throws IOException, URISyntaxException {
+    deployDir = Files.createTempDir();
+    stagingDir = new File( Files.createTempDir(), "staging" );
+    copyToDeployDir( "testWithManifestAndBlueprint.zip" );
+    copyToDeployDir( "testCanHandleWithPluginXmlOneDirDown.zip" );
+    copyToDeployDir( "testCantHandleNoPlugin.xml.zip" );
+    pluginFileHandlers = new ArrayList<PluginFileHandler>( Arrays.asList( new PluginXmlStaticPathsHandler() ) );
+    deploymentPlanner = createPlanner();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    deploymentPlanner.awaitStaged( 10, TimeUnit.SECONDS );
+    deploymentPlanner.destroy();
+    delete( deployDir );
+    delete( stagingDir.getParentFile() );
+  }
+
+  @Test
+  public void testStagesPluginZips() throws InterruptedException {
+    deploymentPlanner.init();
+    assertTrue( deploymentPlanner.awaitStaged( 10, TimeUnit.SECONDS ) );
+    assertEquals( 2, deploymentPlanner.getPlanned() );
+    // Its plugin.xml is empty
+    assertEquals( 1, deploymentPlanner.getFailures() );
+    assertEquals( 1, deploymentPlanner.getStaged() );
+    assertEquals( 1, stagedBundles().size() );
+  }
+
+  @Test
+  public void testOpenStagedMissesWhenStagingFailed() throws IOException, InterruptedException {
+    deploymentPlanner.init();
+    URL url = new File( deployDir, "testCanHandleWithPluginXmlOneDirDown.zip" ).toURI().toURL();
+    assertNull( deploymentPlanner.openStaged( url, "test", "1.0", pluginFileHandlers ) );
+    assertEquals( 1, deploymentPlanner.getMisses() );
+  }
+
+  @Test
+  public void testConnectionServesStagedBundle() throws IOException, InterruptedException {
+    deploymentPlanner.init();
+    URL url = new File( deployDir, "testWithManifestAndBlueprint.zip" ).toURI().toURL();
+    InputStream inputStream =
+      new PlatformPluginBundlingURLConnection( url, pluginFileHandlers, null, deploymentPlanner ).getInputStream();
+    List<String> names = entryNames( ByteStreams.toByteArray( inputStream ) );
+    assertTrue( names.contains( JarFile.MANIFEST_NAME ) );
+    assertTrue( names.contains( "test-plugin/plugin.xml" ) );
+    assertTrue( names.contains( PluginZipFileProcessor.BLUEPRINT ) );
+    assertEquals( 1, deploymentPlanner.getHits() );
+    assertEquals( 0, deploymentPlanner.getMisses() );
+  }
+
+  @Test
+  public void testOpenStagedMissesWhenHandlersChange() throws IOException, InterruptedException {
+    deploymentPlanner.init();
+    assertTrue( deploymentPlanner.awaitStaged( 10, TimeUnit.SECONDS ) );
+    URL url = new File( deployDir, "testWithManifestAndBlueprint.zip" ).toURI().toURL();
+    assertNull( deploymentPlanner.openStaged( url, "test", "1.0", new ArrayList<PluginFileHandler>() ) );
+    assertEquals( 1, deploymentPlanner.getMisses() );
+  }
+
+  @Test
+  public void testOpenStagedNotPlanned() throws IOException {
+    deploymentPlanner.init();
+    URL url = new File( deployDir, "testCantHandleNoPlugin.xml.zip" ).toURI().toURL();
+    assertNull( deploymentPlanner.openStaged( url, "test", "1.0", pluginFileHandlers ) );
+    assertEquals( 0, deploymentPlanner.getMisses() );
+  }
+
+  @Test
+  public void testRestageReplacesStaleBundle() throws InterruptedException {
+    deploymentPlanner.init();
+    assertTrue( deploymentPlanner.awaitStaged( 10, TimeUnit.SECONDS ) );
+    List<String> stagedBundles = stagedBundles();
+    deploymentPlanner.destroy();
+
+    File pluginZip = new File( deployDir, "testWithManifestAndBlueprint.zip" );
+    assertTrue( pluginZip.setLastModified( pluginZip.lastModified() - 60000 ) );
+    deploymentPlanner = createPlanner();
+    deploymentPlanner.init();
+    assertTrue( deploymentPlanner.awaitStaged( 10, TimeUnit.SECONDS ) );
+    List<String> restagedBundles = stagedBundles();
+    assertEquals( 1, restagedBundles.size() );
+    restagedBundles.removeAll( stagedBundles );
+    assertEquals( 1, restagedBundles.size() );
+  }
+
+  @Test
+  public void testInitRemovesUnplannedBundles() throws IOException, InterruptedException {
+    deploymentPlanner.init();
+    assertTrue( deploymentPlanner.awaitStaged( 10, TimeUnit.SECONDS ) );
+    assertEquals( 1, stagedBundles().size() );
+    deploymentPlanner.destroy();
+
+    assertTrue( new File( deployDir, "testWithManifestAndBlueprint.zip" ).delete() );
+    assertTrue( new File( deployDir, "testCanHandleWithPluginXmlOneDirDown.zip" ).delete() );
+    File leftover = File.createTempFile( "interrupted", ".tmp", stagingDir );
+    deploymentPlanner = createPlanner();
+    deploymentPlanner.init();
+    assertEquals( 0, deploymentPlanner.getPlanned() );
+    assertEquals( 0, deploymentPlanner.getPlanMillis() );
+    assertEquals( 0, stagedBundles().size() );
+    assertTrue( !leftover.exists() );
+  }
+
+  @Test
+  public void testDisabledWithoutStagingDir() throws IOException {
+    deploymentPlanner.setStagingDir( null );
+    deploymentPlanner.init();
+    assertEquals( 0, deploymentPlanner.getPlanned() );
+    URL url = new File( deployDir, "testWithManifestAndBlueprint.zip" ).toURI().toURL();
+    assertNull( deploymentPlanner.openStaged( url, "test", "1.0", pluginFileHandlers ) );
+    assertTrue( !stagingDir.exists() );
+  }
+
+  @Test
+  public void testSetDeployDirNames() {
+    deploymentPlanner.setDeployDirNames( " /a, ,/b " );
+    assertEquals( Arrays.asList( new File( "/a" ), new File( "/b" ) ), deploymentPlanner.getDeployDirs() );
+    deploymentPlanner.setDeployDirNames( " " );
+    assertEquals( 2, deploymentPlanner.getDeployDirs().size() );
+  }
+
+  private PlatformPluginDeploymentPlanner createPlanner() {
+    PlatformPluginDeploymentPlanner deploymentPlanner = new PlatformPluginDeploymentPlanner();
+    deploymentPlanner.setDeployDirs( Arrays.asList( deployDir ) );
+    deploymentPlanner.setStagingDir( stagingDir );
+    deploymentPlanner.setPluginFileHandlers( pluginFileHandlers );
+    deploymentPlanner.setParallelism( 2 );
+    return deploymentPlanner;
+  }
+
+  private void copyToDeployDir( String name ) throws IOException, URISyntaxException {
+    URL resource = getClass().getClassLoader().getResource( "org/pentaho/osgi/platform/plugin/deployer/" + name );
+    assertNotNull( resource );
+    Files.copy( new File( resource.toURI() ), new File( deployDir, name ) );
+  }
+
+  private List<String> stagedBundles() {
+    List<String> stagedBundles = new ArrayList<String>();
+    for ( String name : stagingDir.list() ) {
+      if ( name.endsWith( ".jar" ) ) {
+        stagedBundles.add( name );
+      }
+    }
+    return stagedBundles;
+  }
+
+  private static List<String> entryNames( byte[] bundle ) throws IOException {
+    ZipInputStream zipInputStream = new ZipInputStream( new ByteArrayInputStream( bundle ) );
+    List<String> names = new ArrayList<String>();
+    ZipEntry zipEntry;
+    while ( ( zipEntry = zipInputStream.getNextEntry() ) != null ) {
+      names.add( zipEntry.getName() );
+    }
+    return names;
+  }
+
+  private static void delete( File file ) {
+    File[] children = file.listFiles();
+    if ( children != null ) {
+      for ( File child : children ) {
+        delete( child );
+      }
+    }
+    file.delete();
+  }
+}
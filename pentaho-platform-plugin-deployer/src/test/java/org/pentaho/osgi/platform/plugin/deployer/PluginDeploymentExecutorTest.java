@@ -0,0 +1,156 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.plugin.deployer;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.osgi.platform.plugin.deployer.api.PluginFileHandler;
+import org.pentaho.osgi.platform.plugin.deployer.impl.PluginZipFileProcessor;
+import org.pentaho.osgi.platform.plugin.deployer.impl.handlers.pluginxml.PluginXmlStaticPathsHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PluginDeploymentExecutorTest {
+  private PluginDeploymentExecutor deploymentExecutor;
+
+  @Before
+  public void setup() {
+    deploymentExecutor = new PluginDeploymentExecutor();
+    deploymentExecutor.setConcurrency( 2 );
+    deploymentExecutor.setPipeBufferSize( 1024 );
+    deploymentExecutor.init();
+  }
+
+  @After
+  public void tearDown() {
+    deploymentExecutor.destroy();
+  }
+
+  @Test
+  public void testDeploy() throws IOException {
+    URL url = getClass().getClassLoader()
+      .getResource( "org/pentaho/osgi/platform/plugin/deployer/testWithManifestAndBlueprint.zip" );
+    InputStream inputStream = deploymentExecutor.deploy( url, processor(), 1024 );
+    ZipInputStream zipInputStream = new ZipInputStream( new ByteArrayInputStream( ByteStreams.toByteArray(
+      inputStream ) ) );
+    List<String> names = new ArrayList<String>();
+    ZipEntry zipEntry;
+    while ( ( zipEntry = zipInputStream.getNextEntry() ) != null ) {
+      names.add( zipEntry.getName() );
+    }
+    assertTrue( names.contains( JarFile.MANIFEST_NAME ) );
+    assertTrue( names.contains( "test-plugin/plugin.xml" ) );
+    assertTrue( names.contains( PluginZipFileProcessor.BLUEPRINT ) );
+    waitForIdle();
+    assertEquals( 1, deploymentExecutor.getCompleted() );
+    assertEquals( 0, deploymentExecutor.getFailures() );
+    assertEquals( 0, deploymentExecutor.getInFlightBytes() );
+    assertEquals( 0, deploymentExecutor.getQueueDepth() );
+  }
+
+  @Test
+  public void testDeployFailure() throws IOException {
+    URL url = new File( "THIS_FILE_SHOULD_NOT_EXIST_ON_YOUR_MACHINE.zip" ).toURI().toURL();
+    InputStream inputStream = deploymentExecutor.deploy( url, processor(), 1024 );
+    try {
+      ByteStreams.toByteArray( inputStream );
+      fail();
+    } catch ( IOException e ) {
+      // Expected
+    }
+    waitForIdle();
+    assertEquals( 0, deploymentExecutor.getCompleted() );
+    assertEquals( 1, deploymentExecutor.getFailures() );
+    assertEquals( 0, deploymentExecutor.getInFlightBytes() );
+  }
+
+  @Test( expected = IOException.class )
+  public void testDeployNotRunning() throws IOException {
+    deploymentExecutor.destroy();
+    deploymentExecutor.deploy( new URL( "file:/test.zip" ), processor(), 1024 );
+  }
+
+  @Test( timeout = 10000 )
+  public void testDestroyFailsQueuedDeployments() throws IOException {
+    deploymentExecutor.destroy();
+    deploymentExecutor = new PluginDeploymentExecutor();
+    deploymentExecutor.setConcurrency( 1 );
+    deploymentExecutor.init();
+    URL url = getClass().getClassLoader()
+      .getResource( "org/pentaho/osgi/platform/plugin/deployer/testWithManifestAndBlueprint.zip" );
+    // Nothing reads the first bundle, its deployment fills the pipe and keeps the only thread
+    deploymentExecutor.deploy( url, processor(), 16 );
+    InputStream queued = deploymentExecutor.deploy( url, processor(), 16 );
+    while ( deploymentExecutor.getActive() == 0 ) {
+      Thread.yield();
+    }
+    assertEquals( 1, deploymentExecutor.getQueueDepth() );
+    deploymentExecutor.destroy();
+    try {
+      ByteStreams.toByteArray( queued );
+      fail();
+    } catch ( IOException e ) {
+      assertTrue( e.getCause().getMessage().contains( "stopped before deploying" ) );
+    }
+    assertEquals( 0, deploymentExecutor.getCompleted() );
+    assertTrue( deploymentExecutor.getFailures() >= 1 );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testInitInvalid() {
+    PluginDeploymentExecutor invalid = new PluginDeploymentExecutor();
+    invalid.setConcurrency( 0 );
+    invalid.init();
+  }
+
+  private PluginZipFileProcessor processor() {
+    List<PluginFileHandler> pluginFileHandlers =
+      new ArrayList<PluginFileHandler>( Arrays.asList( new PluginXmlStaticPathsHandler() ) );
+    return new PluginZipFileProcessor( pluginFileHandlers, "test", "test-symbolic", "version" );
+  }
+
+  private void waitForIdle() {
+    // The pipe buffer is released last
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( ( deploymentExecutor.getCompleted() + deploymentExecutor.getFailures() == 0
+      || deploymentExecutor.getInFlightBytes() > 0 ) && System.currentTimeMillis() < deadline ) {
+      Thread.yield();
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.plugin.deployer.impl;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PluginFileTreeTest {
+  private PluginFileTree pluginFileTree;
+
+  @Before
+  public void setup() {
+    pluginFileTree = new PluginFileTree( 10 );
+  }
+
+  @After
+  public void tearDown() {
+    pluginFileTree.dispose();
+  }
+
+  @Test
+  public void testPutRegistersParentDirectories() throws IOException {
+    pluginFileTree.put( "a/b/c.txt", bytes( 3 ) );
+    List<String> paths = new ArrayList<String>();
+    for ( PluginFileTree.Entry entry : pluginFileTree.getEntries() ) {
+      paths.add( entry.getPath() );
+    }
+    assertEquals( Arrays.asList( "a", "a/b", "a/b/c.txt" ), paths );
+    assertTrue( pluginFileTree.get( "a/b" ).isDirectory() );
+    assertFalse( pluginFileTree.get( "a/b/c.txt" ).isDirectory() );
+    assertEquals( pluginFileTree.get( "a" ), pluginFileTree.putDirectory( "a/" ) );
+  }
+
+  @Test
+  public void testSpillsPastThreshold() throws IOException {
+    PluginFileTree.Entry first = pluginFileTree.put( "first", bytes( 6 ) );
+    assertTrue( first.isInMemory() );
+    assertNull( pluginFileTree.getSpillDirectory() );
+    // Unknown size, spilled once the buffered content goes over the threshold
+    PluginFileTree.Entry second = pluginFileTree.put( "second", new ByteArrayInputStream( bytes( 6 ) ), -1 );
+    assertFalse( second.isInMemory() );
+    assertEquals( 6, second.getLength() );
+    assertEquals( 6, pluginFileTree.getMemoryUsed() );
+    assertArrayEquals( bytes( 6 ), read( second ) );
+    // Known size, spilled straight away
+    PluginFileTree.Entry third = pluginFileTree.put( "third", new ByteArrayInputStream( bytes( 5 ) ), 5 );
+    assertFalse( third.isInMemory() );
+    assertArrayEquals( bytes( 5 ), read( third ) );
+    assertTrue( pluginFileTree.getSpillDirectory().isDirectory() );
+  }
+
+  @Test
+  public void testReplaceReleasesMemory() throws IOException {
+    pluginFileTree.put( "file", bytes( 8 ) );
+    PluginFileTree.Entry entry = pluginFileTree.put( "file", bytes( 4 ) );
+    assertTrue( entry.isInMemory() );
+    assertEquals( 4, pluginFileTree.getMemoryUsed() );
+    assertEquals( 1, pluginFileTree.getEntries().size() );
+  }
+
+  @Test( expected = IOException.class )
+  public void testPutOverDirectory() throws IOException {
+    pluginFileTree.putDirectory( "dir" );
+    pluginFileTree.put( "dir", bytes( 1 ) );
+  }
+
+  @Test
+  public void testNewFile() throws IOException {
+    FileWriter fileWriter = new FileWriter( pluginFileTree.newFile( "META-INF/js/test.json" ) );
+    fileWriter.write( "{}" );
+    fileWriter.close();
+    assertArrayEquals( "{}".getBytes( "UTF-8" ), read( pluginFileTree.get( "META-INF/js/test.json" ) ) );
+    assertTrue( pluginFileTree.get( "META-INF/js" ).isDirectory() );
+  }
+
+  @Test
+  public void testToFile() throws IOException {
+    pluginFileTree.put( "dir/in-memory", bytes( 2 ) );
+    pluginFileTree.put( "dir/sub/spilled", bytes( 9 ) );
+    File file = pluginFileTree.get( "dir/in-memory" ).toFile();
+    assertArrayEquals( bytes( 2 ), Files.toByteArray( file ) );
+    assertFalse( pluginFileTree.get( "dir/in-memory" ).isInMemory() );
+    assertEquals( 0, pluginFileTree.getMemoryUsed() );
+    File dir = pluginFileTree.get( "dir" ).toFile();
+    assertArrayEquals( bytes( 2 ), Files.toByteArray( new File( dir, "in-memory" ) ) );
+    assertArrayEquals( bytes( 9 ), Files.toByteArray( new File( dir, "sub/spilled" ) ) );
+    // Written once, at the entry's path
+    assertEquals( new File( dir, "in-memory" ), file );
+    assertEquals( file, pluginFileTree.get( "dir/in-memory" ).toFile() );
+    assertEquals( new File( dir, "sub/spilled" ), pluginFileTree.get( "dir/sub/spilled" ).toFile() );
+    assertEquals( dir, new File( pluginFileTree.getRoot().toFile(), "dir" ) );
+    assertArrayEquals( bytes( 9 ), read( pluginFileTree.get( "dir/sub/spilled" ) ) );
+  }
+
+  @Test
+  public void testWriteTo() throws IOException {
+    pluginFileTree.put( "META-INF/MANIFEST.MF", bytes( 1 ) );
+    pluginFileTree.put( "dir/small", bytes( 3 ) );
+    pluginFileTree.put( "dir/large", bytes( 20 ) );
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    ZipOutputStream zipOutputStream = new ZipOutputStream( zipBytes );
+    pluginFileTree.writeTo( zipOutputStream, new HashSet<String>( Arrays.asList( "META-INF/MANIFEST.MF" ) ) );
+    zipOutputStream.close();
+    ZipInputStream zipInputStream = new ZipInputStream( new ByteArrayInputStream( zipBytes.toByteArray() ) );
+    List<String> names = new ArrayList<String>();
+    ZipEntry zipEntry;
+    while ( ( zipEntry = zipInputStream.getNextEntry() ) != null ) {
+      names.add( zipEntry.getName() );
+      if ( "dir/large".equals( zipEntry.getName() ) ) {
+        assertArrayEquals( bytes( 20 ), ByteStreams.toByteArray( zipInputStream ) );
+      }
+    }
+    assertEquals( Arrays.asList( "META-INF/", "dir/", "dir/small", "dir/large" ), names );
+  }
+
+  @Test
+  public void testDisposeDeletesSpilledFiles() throws IOException {
+    pluginFileTree.put( "large", bytes( 20 ) );
+    File spillDirectory = pluginFileTree.getSpillDirectory();
+    assertTrue( spillDirectory.exists() );
+    pluginFileTree.dispose();
+    assertFalse( spillDirectory.exists() );
+    assertNull( pluginFileTree.getSpillDirectory() );
+  }
+
+  private static byte[] bytes( int length ) {
+    byte[] result = new byte[ length ];
+    for ( int i = 0; i < length; i++ ) {
+      result[ i ] = (byte) i;
+    }
+    return result;
+  }
+
+  private static byte[] read( PluginFileTree.Entry entry ) throws IOException {
+    InputStream inputStream = entry.openStream();
+    try {
+      return ByteStreams.toByteArray( inputStream );
+    } finally {
+      inputStream.close();
+    }
+  }
+}
@@ -22,18 +22,30 @@
 
 package org.pentaho.osgi.platform.plugin.deployer.impl;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.pentaho.osgi.platform.plugin.deployer.api.PluginFileHandler;
+import org.pentaho.osgi.platform.plugin.deployer.api.PluginHandlingException;
+import org.pentaho.osgi.platform.plugin.deployer.api.PluginMetadata;
+import org.pentaho.osgi.platform.plugin.deployer.impl.handlers.PluginXmlFileHandler;
 import org.pentaho.osgi.platform.plugin.deployer.impl.handlers.pluginxml.PluginXmlStaticPathsHandler;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -42,6 +54,9 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
@@ -147,6 +162,168 @@ public class PluginZipFileProcessorTest {
       .putNextEntry( argThat( new ZipEntryMatcher( new ZipEntry( "test-plugin/other-file" ) ) ) );
   }
 
+  @Test
+  public void testProcessEntriesOfUnknownSize() throws IOException {
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    ZipOutputStream zipWriter = new ZipOutputStream( zipBytes );
+    // Deflated by ZipOutputStream, so the sizes come in a data descriptor after the data
+    zipWriter.putNextEntry( new ZipEntry( "test-plugin/plugin.xml" ) );
+    zipWriter.write( "<plugin/>".getBytes( "UTF-8" ) );
+    zipWriter.closeEntry();
+    zipWriter.close();
+    PluginZipFileProcessor pluginZipFileProcessor =
+      new PluginZipFileProcessor( new ArrayList<PluginFileHandler>(), "test", "test-symbolic", "version" );
+    ZipOutputStream zipOutputStream = mock( ZipOutputStream.class );
+    pluginZipFileProcessor.process( new ZipInputStream( new ByteArrayInputStream( zipBytes.toByteArray() ) ),
+      zipOutputStream );
+    verify( zipOutputStream )
+      .putNextEntry( argThat( new ZipEntryMatcher( new ZipEntry( "test-plugin/plugin.xml" ) ) ) );
+  }
+
+  @Test
+  public void testProcessSpillingEverything() throws IOException {
+    final List<String> handled = new ArrayList<String>();
+    PluginFileHandler fileHandler = new PluginFileHandler() {
+      @Override public boolean handles( String fileName ) {
+        return fileName.endsWith( "plugin.xml" );
+      }
+
+      @Override public void handle( String relativePath, File file, PluginMetadata pluginMetadata ) {
+        handled.add( relativePath );
+        assertTrue( file.isFile() );
+        assertTrue( file.getPath().endsWith( "test-plugin" + File.separator + "plugin.xml" ) );
+      }
+    };
+    List<PluginFileHandler> pluginFileHandlers =
+      new ArrayList<PluginFileHandler>( Arrays.asList( fileHandler, new PluginXmlStaticPathsHandler() ) );
+    PluginZipFileProcessor pluginZipFileProcessor =
+      new PluginZipFileProcessor( pluginFileHandlers, "test", "test-symbolic", "version", 0 );
+    ZipOutputStream zipOutputStream = mock( ZipOutputStream.class );
+    pluginZipFileProcessor.process( new ZipInputStream( this.getClass().getClassLoader()
+        .getResourceAsStream( "org/pentaho/osgi/platform/plugin/deployer/testWithManifestAndBlueprint.zip" ) ),
+      zipOutputStream );
+    assertEquals( Arrays.asList( "test-plugin/plugin.xml" ), handled );
+    verify( zipOutputStream )
+      .putNextEntry( argThat( new ZipEntryMatcher( new ZipEntry( "test-plugin/other-file" ) ) ) );
+    verify( zipOutputStream, times( 1 ) ).putNextEntry(
+      argThat( new ZipEntryMatcher( new ZipEntry( PluginZipFileProcessor.BLUEPRINT ) ) ) );
+  }
+
+  @Test
+  public void testProcessRawFallsBackToZipInputStream() throws IOException {
+    File zip64 = File.createTempFile( "zip64", ".zip" );
+    try {
+      Files.write( RawZipReaderTest.zip64( "test-plugin/plugin.xml", "<plugin/>".getBytes( "UTF-8" ) ), zip64 );
+      PluginZipFileProcessor pluginZipFileProcessor =
+        new PluginZipFileProcessor( new ArrayList<PluginFileHandler>(), "test", "test-symbolic", "version" );
+      ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+      pluginZipFileProcessor.processRaw( zip64.toURI().toURL(), bundle );
+
+      ZipInputStream zipInputStream = new ZipInputStream( new ByteArrayInputStream( bundle.toByteArray() ) );
+      ZipEntry zipEntry;
+      String content = null;
+      while ( ( zipEntry = zipInputStream.getNextEntry() ) != null ) {
+        if ( "test-plugin/plugin.xml".equals( zipEntry.getName() ) ) {
+          content = new String( ByteStreams.toByteArray( zipInputStream ), "UTF-8" );
+        }
+      }
+      assertEquals( "<plugin/>", content );
+    } finally {
+      zip64.delete();
+    }
+  }
+
+  @Test
+  public void testProcessHandlesTheRoot() throws IOException {
+    final List<File> roots = new ArrayList<File>();
+    PluginFileHandler rootHandler = new PluginFileHandler() {
+      @Override public boolean handles( String fileName ) {
+        return fileName.length() == 0;
+      }
+
+      @Override public void handle( String relativePath, File file, PluginMetadata pluginMetadata ) {
+        roots.add( file );
+        assertTrue( new File( file, "test-plugin/plugin.xml" ).isFile() );
+      }
+    };
+    PluginZipFileProcessor pluginZipFileProcessor = new PluginZipFileProcessor(
+      new ArrayList<PluginFileHandler>( Arrays.asList( rootHandler ) ), "test", "test-symbolic", "version" );
+    pluginZipFileProcessor.process( new ZipInputStream( this.getClass().getClassLoader()
+        .getResourceAsStream( "org/pentaho/osgi/platform/plugin/deployer/testWithManifestAndBlueprint.zip" ) ),
+      mock( ZipOutputStream.class ) );
+    assertEquals( 1, roots.size() );
+  }
+
+  @Test
+  public void testProcessParsesXmlOnce() throws IOException {
+    final List<Document> documents = new ArrayList<Document>();
+    final List<List<Node>> selections = new ArrayList<List<Node>>();
+    List<PluginFileHandler> pluginFileHandlers = new ArrayList<PluginFileHandler>();
+    for ( String xpath : Arrays.asList( "//static-path", "//external-resources/file" ) ) {
+      pluginFileHandlers.add( new PluginXmlFileHandler( xpath ) {
+        @Override public void handle( String relativePath, Document document, PluginMetadata pluginMetadata )
+          throws PluginHandlingException {
+          documents.add( document );
+          super.handle( relativePath, document, pluginMetadata );
+        }
+
+        @Override protected void handle( String relativePath, List<Node> nodes, PluginMetadata pluginMetadata ) {
+          selections.add( nodes );
+        }
+      } );
+    }
+    PluginZipFileProcessor pluginZipFileProcessor =
+      new PluginZipFileProcessor( pluginFileHandlers, "test", "test-symbolic", "version" );
+    pluginZipFileProcessor.process( new ZipInputStream( this.getClass().getClassLoader()
+        .getResourceAsStream( "org/pentaho/osgi/platform/plugin/deployer/testWithManifestAndBlueprint.zip" ) ),
+      mock( ZipOutputStream.class ) );
+    assertEquals( 2, documents.size() );
+    assertSame( documents.get( 0 ), documents.get( 1 ) );
+    assertEquals( 2, selections.size() );
+  }
+
+  @Test
+  public void testProcessRawCopiesUntouchedEntries() throws IOException {
+    byte[] source = ByteStreams.toByteArray( this.getClass().getClassLoader()
+      .getResourceAsStream( "org/pentaho/osgi/platform/plugin/deployer/testWithManifestAndBlueprint.zip" ) );
+    Map<String, Long> compressedSizes = new HashMap<String, Long>();
+    RawZipReader rawZipReader = new RawZipReader( new ByteArrayInputStream( source ) );
+    RawZipReader.Entry rawEntry;
+    while ( ( rawEntry = rawZipReader.nextEntry() ) != null ) {
+      ByteStreams.toByteArray( rawZipReader.getRawStream() );
+      compressedSizes.put( rawEntry.getName(), rawEntry.getCompressedSize() );
+    }
+
+    List<PluginFileHandler> pluginFileHandlers =
+      new ArrayList<PluginFileHandler>( Arrays.asList( new PluginXmlStaticPathsHandler() ) );
+    PluginZipFileProcessor pluginZipFileProcessor =
+      new PluginZipFileProcessor( pluginFileHandlers, "test", "test-symbolic", "version" );
+    ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+    pluginZipFileProcessor.processRaw( new ByteArrayInputStream( source ), bundle );
+
+    // ZipInputStream checks the copied CRCs and sizes
+    ZipInputStream zipInputStream = new ZipInputStream( new ByteArrayInputStream( bundle.toByteArray() ) );
+    List<String> names = new ArrayList<String>();
+    ZipEntry zipEntry;
+    while ( ( zipEntry = zipInputStream.getNextEntry() ) != null ) {
+      names.add( zipEntry.getName() );
+      byte[] content = ByteStreams.toByteArray( zipInputStream );
+      if ( JarFile.MANIFEST_NAME.equals( zipEntry.getName() ) ) {
+        assertTrue( new String( content, "UTF-8" ).contains( "Bundle-SymbolicName: test-symbolic" ) );
+      }
+    }
+    assertEquals( Arrays.asList( "META-INF/", JarFile.MANIFEST_NAME, "OSGI-INF/", "OSGI-INF/blueprint/",
+      "test-plugin/", "test-plugin/plugin.xml", "test-plugin/other-file", PluginZipFileProcessor.BLUEPRINT ), names );
+
+    rawZipReader = new RawZipReader( new ByteArrayInputStream( bundle.toByteArray() ) );
+    while ( ( rawEntry = rawZipReader.nextEntry() ) != null ) {
+      ByteStreams.toByteArray( rawZipReader.getRawStream() );
+      if ( rawEntry.getName().startsWith( "test-plugin/" ) && !rawEntry.isDirectory() ) {
+        assertEquals( compressedSizes.get( rawEntry.getName() ), (Long) rawEntry.getCompressedSize() );
+      }
+    }
+  }
+
   private class ZipEntryMatcher extends ArgumentMatcher<ZipEntry> {
     private final String name;
 
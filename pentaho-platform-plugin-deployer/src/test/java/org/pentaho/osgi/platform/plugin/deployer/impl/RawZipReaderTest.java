@@ -0,0 +1,306 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.osgi.platform.plugin.deployer.impl;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RawZipReaderTest {
+  @Test
+  public void testReadsDataDescriptorEntries() throws IOException {
+    byte[] text = text( 100000 );
+    byte[] random = random( 5000 );
+    // ZipOutputStream writes the sizes of deflated entries in a data descriptor
+    byte[] zip = zip( false, text, random );
+    RawZipReader rawZipReader = new RawZipReader( new ByteArrayInputStream( zip ) );
+
+    RawZipReader.Entry directory = rawZipReader.nextEntry();
+    assertEquals( "dir/", directory.getName() );
+    assertTrue( directory.isDirectory() );
+
+    RawZipReader.Entry first = rawZipReader.nextEntry();
+    assertEquals( "dir/text.txt", first.getName() );
+    assertTrue( first.hasDataDescriptor() );
+    assertEquals( -1, first.getCrc() );
+    byte[] stored = ByteStreams.toByteArray( rawZipReader.getRawStream() );
+    assertEquals( stored.length, first.getCompressedSize() );
+    assertTrue( stored.length < text.length );
+    assertEquals( text.length, first.getSize() );
+    assertEquals( crc( text ), first.getCrc() );
+    assertArrayEquals( text, ByteStreams.toByteArray( RawZipReader.inflate( first, new ByteArrayInputStream(
+      stored ) ) ) );
+
+    // Not read, skipped by nextEntry
+    assertEquals( "dir/random.bin", rawZipReader.nextEntry().getName() );
+    assertNull( rawZipReader.nextEntry() );
+  }
+
+  @Test
+  public void testReadsSizedEntries() throws IOException {
+    byte[] text = text( 3000 );
+    byte[] random = random( 3000 );
+    byte[] zip = zip( true, text, random );
+    RawZipReader rawZipReader = new RawZipReader( new ByteArrayInputStream( zip ) );
+    rawZipReader.nextEntry();
+    RawZipReader.Entry first = rawZipReader.nextEntry();
+    assertFalse( first.hasDataDescriptor() );
+    assertEquals( ZipEntry.STORED, first.getMethod() );
+    assertEquals( text.length, first.getCompressedSize() );
+    assertArrayEquals( text, ByteStreams.toByteArray( rawZipReader.getInflatedStream() ) );
+    RawZipReader.Entry second = rawZipReader.nextEntry();
+    assertEquals( crc( random ), second.getCrc() );
+    assertArrayEquals( random, ByteStreams.toByteArray( rawZipReader.getRawStream() ) );
+    assertNull( rawZipReader.nextEntry() );
+  }
+
+  @Test
+  public void testCopyKeepsEntriesValid() throws IOException {
+    byte[] text = text( 100000 );
+    byte[] random = random( 5000 );
+    RawZipReader rawZipReader = new RawZipReader( new ByteArrayInputStream( zip( false, text, random ) ) );
+    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    RawZipWriter rawZipWriter = new RawZipWriter( copy );
+    RawZipReader.Entry entry;
+    while ( ( entry = rawZipReader.nextEntry() ) != null ) {
+      byte[] stored = ByteStreams.toByteArray( rawZipReader.getRawStream() );
+      rawZipWriter.copy( entry, new ByteArrayInputStream( stored ) );
+    }
+    rawZipWriter.write( "new.txt", text );
+    rawZipWriter.finish();
+
+    // ZipInputStream checks every CRC and size
+    ZipInputStream zipInputStream = new ZipInputStream( new ByteArrayInputStream( copy.toByteArray() ) );
+    assertEquals( "dir/", zipInputStream.getNextEntry().getName() );
+    assertEquals( "dir/text.txt", zipInputStream.getNextEntry().getName() );
+    assertArrayEquals( text, ByteStreams.toByteArray( zipInputStream ) );
+    assertEquals( "dir/random.bin", zipInputStream.getNextEntry().getName() );
+    assertArrayEquals( random, ByteStreams.toByteArray( zipInputStream ) );
+    assertEquals( "new.txt", zipInputStream.getNextEntry().getName() );
+    assertArrayEquals( text, ByteStreams.toByteArray( zipInputStream ) );
+    assertNull( zipInputStream.getNextEntry() );
+  }
+
+  @Test
+  public void testCopyRejectsZip64Sizes() throws IOException {
+    // Sizes a zip64 data descriptor can give, which the local and central headers can't hold
+    long[][] sizes = { { 0x100000000L, 4096 }, { 4096, 0xFFFFFFFFL } };
+    for ( long[] size : sizes ) {
+      RawZipReader.Entry entry = mock( RawZipReader.Entry.class );
+      when( entry.getName() ).thenReturn( "large.log" );
+      when( entry.getRawName() ).thenReturn( "large.log".getBytes( "UTF-8" ) );
+      when( entry.getMethod() ).thenReturn( ZipEntry.DEFLATED );
+      when( entry.getSize() ).thenReturn( size[ 0 ] );
+      when( entry.getCompressedSize() ).thenReturn( size[ 1 ] );
+      assertFalse( RawZipWriter.canCopy( entry ) );
+      ByteArrayOutputStream copy = new ByteArrayOutputStream();
+      try {
+        new RawZipWriter( copy ).copy( entry, new ByteArrayInputStream( new byte[ 4096 ] ) );
+        fail();
+      } catch ( ZipException e ) {
+        assertEquals( 0, copy.size() );
+      }
+    }
+  }
+
+  @Test( expected = EOFException.class )
+  public void testTruncatedDescriptorEntry() throws IOException {
+    byte[] zip = zip( false, text( 100000 ), random( 10 ) );
+    byte[] truncated = new byte[ 200 ];
+    System.arraycopy( zip, 0, truncated, 0, truncated.length );
+    RawZipReader rawZipReader = new RawZipReader( new ByteArrayInputStream( truncated ) );
+    rawZipReader.nextEntry();
+    rawZipReader.nextEntry();
+    ByteStreams.toByteArray( rawZipReader.getRawStream() );
+  }
+
+  @Test
+  public void testReadsZip64DataDescriptor() throws IOException {
+    byte[] text = text( 10000 );
+    byte[] random = random( 100 );
+    ByteBuffer zip = ByteBuffer.allocate( 20000 ).order( ByteOrder.LITTLE_ENDIAN );
+    byte[] deflated = deflate( text );
+    // Sizes left out of the header, as streaming zip64 writers do, and given on 8 bytes in the descriptor
+    localHeader( zip, "text.txt", RawZipReader.DATA_DESCRIPTOR_FLAG, ZipEntry.DEFLATED, 0, 0, 0, zip64Extra( 0 ) );
+    zip.put( deflated );
+    zip.putInt( RawZipReader.DATA_DESCRIPTOR_SIGNATURE ).putInt( (int) crc( text ) );
+    zip.putLong( deflated.length ).putLong( text.length );
+    localHeader( zip, "random.bin", 0, ZipEntry.STORED, crc( random ), random.length, random.length, new byte[ 0 ] );
+    zip.put( random );
+    zip.putInt( RawZipReader.CENTRAL_HEADER_SIGNATURE );
+
+    RawZipReader rawZipReader = new RawZipReader( new ByteArrayInputStream( zip.array(), 0, zip.position() ) );
+    RawZipReader.Entry first = rawZipReader.nextEntry();
+    assertArrayEquals( text, ByteStreams.toByteArray( rawZipReader.getInflatedStream() ) );
+    assertEquals( deflated.length, first.getCompressedSize() );
+    assertEquals( crc( text ), first.getCrc() );
+    assertEquals( "random.bin", rawZipReader.nextEntry().getName() );
+    assertArrayEquals( random, ByteStreams.toByteArray( rawZipReader.getRawStream() ) );
+    assertNull( rawZipReader.nextEntry() );
+  }
+
+  @Test
+  public void testUnexpectedSignature() throws IOException {
+    byte[] zip = zip( true, text( 10 ), random( 10 ) );
+    // Cut before the central directory and followed by garbage
+    int end = indexOf( zip, RawZipReader.CENTRAL_HEADER_SIGNATURE );
+    byte[] corrupt = new byte[ end + 8 ];
+    System.arraycopy( zip, 0, corrupt, 0, end );
+    RawZipReader rawZipReader = new RawZipReader( new ByteArrayInputStream( corrupt ) );
+    assertEquals( "dir/", rawZipReader.nextEntry().getName() );
+    assertEquals( "dir/text.txt", rawZipReader.nextEntry().getName() );
+    assertEquals( "dir/random.bin", rawZipReader.nextEntry().getName() );
+    try {
+      rawZipReader.nextEntry();
+      fail();
+    } catch ( ZipException e ) {
+      assertTrue( e.getMessage().contains( "dir/random.bin" ) );
+    }
+  }
+
+  /**
+   * @return a zip whose only entry is stored with its sizes in a zip64 extra field, which the raw reader rejects
+   */
+  static byte[] zip64( String name, byte[] content ) {
+    ByteBuffer zip = ByteBuffer.allocate( content.length + 200 ).order( ByteOrder.LITTLE_ENDIAN );
+    localHeader( zip, name, 0, ZipEntry.STORED, crc( content ), 0xFFFFFFFFL, 0xFFFFFFFFL,
+      zip64Extra( content.length ) );
+    zip.put( content );
+    zip.putInt( RawZipReader.CENTRAL_HEADER_SIGNATURE );
+    byte[] result = new byte[ zip.position() ];
+    System.arraycopy( zip.array(), 0, result, 0, result.length );
+    return result;
+  }
+
+  private static void localHeader( ByteBuffer zip, String name, int flags, int method, long crc, long compressedSize,
+                                   long size, byte[] extra ) {
+    zip.putInt( RawZipReader.LOCAL_HEADER_SIGNATURE );
+    zip.putShort( (short) 45 ).putShort( (short) flags ).putShort( (short) method );
+    zip.putInt( 0 ).putInt( (int) crc ).putInt( (int) compressedSize ).putInt( (int) size );
+    zip.putShort( (short) name.length() ).putShort( (short) extra.length );
+    zip.put( name.getBytes() );
+    zip.put( extra );
+  }
+
+  /**
+   * @return a zip64 extra field holding the size, then the same compressed size
+   */
+  private static byte[] zip64Extra( long size ) {
+    ByteBuffer extra = ByteBuffer.allocate( 20 ).order( ByteOrder.LITTLE_ENDIAN );
+    extra.putShort( (short) RawZipReader.ZIP64_EXTRA_ID ).putShort( (short) 16 ).putLong( size ).putLong( size );
+    return extra.array();
+  }
+
+  private static byte[] deflate( byte[] content ) {
+    Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+    deflater.setInput( content );
+    deflater.finish();
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+    byte[] buffer = new byte[ 8192 ];
+    while ( !deflater.finished() ) {
+      deflated.write( buffer, 0, deflater.deflate( buffer ) );
+    }
+    deflater.end();
+    return deflated.toByteArray();
+  }
+
+  private static int indexOf( byte[] bytes, int signature ) {
+    ByteBuffer buffer = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+    for ( int i = 0; i + 4 <= bytes.length; i++ ) {
+      if ( buffer.getInt( i ) == signature ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static byte[] zip( boolean sized, byte[] text, byte[] random ) throws IOException {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    ZipOutputStream zipOutputStream = new ZipOutputStream( zip );
+    zipOutputStream.putNextEntry( new ZipEntry( "dir/" ) );
+    zipOutputStream.closeEntry();
+    ZipEntry textEntry = new ZipEntry( "dir/text.txt" );
+    if ( sized ) {
+      textEntry.setMethod( ZipEntry.STORED );
+      textEntry.setSize( text.length );
+      textEntry.setCrc( crc( text ) );
+    }
+    zipOutputStream.putNextEntry( textEntry );
+    zipOutputStream.write( text );
+    zipOutputStream.closeEntry();
+    ZipEntry randomEntry = new ZipEntry( "dir/random.bin" );
+    if ( sized ) {
+      randomEntry.setMethod( ZipEntry.STORED );
+      randomEntry.setSize( random.length );
+      randomEntry.setCrc( crc( random ) );
+    }
+    zipOutputStream.putNextEntry( randomEntry );
+    zipOutputStream.write( random );
+    zipOutputStream.closeEntry();
+    zipOutputStream.close();
+    return zip.toByteArray();
+  }
+
+  private static byte[] text( int length ) {
+    StringBuilder sb = new StringBuilder();
+    int i = 0;
+    while ( sb.length() < length ) {
+      sb.append( "line " ).append( i++ ).append( '\n' );
+    }
+    return sb.substring( 0, length ).getBytes();
+  }
+
+  private static byte[] random( int length ) {
+    byte[] result = new byte[ length ];
+    new Random( 42 ).nextBytes( result );
+    return result;
+  }
+
+  private static long crc( byte[] bytes ) {
+    CRC32 crc = new CRC32();
+    crc.update( bytes );
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The concatenated, minified modules of a bundle.
+ */
+public class AmdBundle {
+  private final String name;
+  private final List<String> modules;
+  private final List<String> unresolved;
+  private final String content;
+
+  public AmdBundle( String name, List<String> modules, List<String> unresolved, String content ) {
+    this.name = name;
+    this.modules = Collections.unmodifiableList( modules );
+    this.unresolved = Collections.unmodifiableList( unresolved );
+    this.content = content;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the modules in the bundle, each one after its dependencies
+   */
+  public List<String> getModules() {
+    return modules;
+  }
+
+  /**
+   * @return dependencies left for RequireJS to load at runtime: plugin resources, external urls and scripts no
+   * installed bundle serves
+   */
+  public List<String> getUnresolved() {
+    return unresolved;
+  }
+
+  public String getContent() {
+    return content;
+  }
+}
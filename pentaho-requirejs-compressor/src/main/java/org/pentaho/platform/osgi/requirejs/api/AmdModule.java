@@ -23,4 +23,27 @@ package org.pentaho.platform.osgi.requirejs.api;
 public class AmdModule {
   String name;
   AmdModule[] dependencies;
+
+  public AmdModule() {
+  }
+
+  public AmdModule( String name ) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName( String name ) {
+    this.name = name;
+  }
+
+  public AmdModule[] getDependencies() {
+    return dependencies;
+  }
+
+  public void setDependencies( AmdModule[] dependencies ) {
+    this.dependencies = dependencies;
+  }
 }
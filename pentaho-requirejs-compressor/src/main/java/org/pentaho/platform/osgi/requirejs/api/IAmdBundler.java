@@ -0,0 +1,45 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.api;
+
+import org.pentaho.platform.osgi.requirejs.bindings.RequireJsConfig;
+import org.pentaho.platform.osgi.requirejs.compressor.bindings.CompressorModule;
+
+import java.io.IOException;
+
+/**
+ * Builds a single script out of an AMD module and everything it depends on.
+ * <p/>
+ * No endpoint serves bundles yet, callers pass the configuration to resolve modules with. The merged configuration
+ * of the RequireJS config manager can't be handed over as is: it is a script, which the config scripts of bundles
+ * extend with code, rather than json that binds to {@link RequireJsConfig}.
+ */
+public interface IAmdBundler {
+  /**
+   * @param config      the merged RequireJS configuration used to resolve module names to paths
+   * @param entryModule the module to bundle
+   */
+  AmdBundle bundle( RequireJsConfig config, String entryModule ) throws IOException;
+
+  /**
+   * @param config the merged RequireJS configuration used to resolve module names to paths
+   * @param module the module to bundle, along with its include, exclude and excludeShallow modules
+   */
+  AmdBundle bundle( RequireJsConfig config, CompressorModule module ) throws IOException;
+}
@@ -0,0 +1,39 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.api;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads scripts by the path they are served from, as used in the paths of the merged RequireJS configuration.
+ */
+public interface IAmdScriptLoader {
+  /**
+   * @param path the path of the script, relative to the context root
+   * @return the script source or null if no installed bundle serves that path
+   */
+  String load( String path ) throws IOException;
+
+  /**
+   * @param path a directory, relative to the context root
+   * @return the paths of the scripts under the directory and its subdirectories, empty if there are none
+   */
+  List<String> list( String path ) throws IOException;
+}
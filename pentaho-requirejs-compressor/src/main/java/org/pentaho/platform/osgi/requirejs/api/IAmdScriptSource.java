@@ -19,6 +19,7 @@ package org.pentaho.platform.osgi.requirejs.api;
 
 
 import org.osgi.framework.Version;
+import org.pentaho.platform.osgi.requirejs.bindings.RequireJsConfig;
 
 /**
  * Created by nbaker on 10/1/14.
@@ -0,0 +1,232 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.pentaho.platform.osgi.requirejs.api.AmdBundle;
+import org.pentaho.platform.osgi.requirejs.api.IAmdBundler;
+import org.pentaho.platform.osgi.requirejs.api.IAmdMinifier;
+import org.pentaho.platform.osgi.requirejs.api.IAmdScriptLoader;
+import org.pentaho.platform.osgi.requirejs.bindings.RequireJsConfig;
+import org.pentaho.platform.osgi.requirejs.bindings.Shim;
+import org.pentaho.platform.osgi.requirejs.compressor.bindings.CompressorModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bundles an AMD module with its dependencies into a single script, the way the RequireJS optimizer does for a
+ * <code>modules</code> entry of its build configuration.
+ * <p/>
+ * Module names are resolved to paths with the merged RequireJS configuration and the scripts are read through an
+ * {@link IAmdScriptLoader}. Each module is emitted after its dependencies, anonymous modules get their name inserted
+ * and shimmed scripts get a define call, so that RequireJS finds every module of the bundle already defined.
+ */
+public class AmdBundler implements IAmdBundler {
+  // Provided by RequireJS itself
+  static final Set<String> SPECIAL_MODULES = new HashSet<String>( Arrays.asList( "require", "exports",
+    "module" ) );
+  private Logger logger = LoggerFactory.getLogger( getClass() );
+  private IAmdScriptLoader scriptLoader;
+  private IAmdMinifier minifier = new JsMinifier();
+
+  public IAmdScriptLoader getScriptLoader() {
+    return scriptLoader;
+  }
+
+  public void setScriptLoader( IAmdScriptLoader scriptLoader ) {
+    this.scriptLoader = scriptLoader;
+  }
+
+  public IAmdMinifier getMinifier() {
+    return minifier;
+  }
+
+  public void setMinifier( IAmdMinifier minifier ) {
+    this.minifier = minifier;
+  }
+
+  @Override public AmdBundle bundle( RequireJsConfig config, String entryModule ) throws IOException {
+    CompressorModule module = new CompressorModule();
+    module.setName( entryModule );
+    return bundle( config, module );
+  }
+
+  @Override public AmdBundle bundle( RequireJsConfig config, CompressorModule module ) throws IOException {
+    Set<String> excluded = new HashSet<String>();
+    if ( module.getExclude() != null ) {
+      // Excluding a module excludes everything it depends on
+      BundleContext excludeContext = new BundleContext( config, Collections.<String>emptySet(), false );
+      for ( String exclude : module.getExclude() ) {
+        visit( excludeContext, exclude );
+      }
+      excluded.addAll( excludeContext.visited );
+    }
+    if ( module.getExcludeShallow() != null ) {
+      excluded.addAll( Arrays.asList( module.getExcludeShallow() ) );
+    }
+    BundleContext bundleContext = new BundleContext( config, excluded, true );
+    visit( bundleContext, module.getName() );
+    if ( module.getInclude() != null ) {
+      for ( String include : module.getInclude() ) {
+        visit( bundleContext, include );
+      }
+    }
+    return new AmdBundle( module.getName(), bundleContext.modules,
+      new ArrayList<String>( bundleContext.unresolved ), bundleContext.content.toString() );
+  }
+
+  private void visit( BundleContext context, String moduleName ) throws IOException {
+    if ( !context.visited.add( moduleName ) || SPECIAL_MODULES.contains( moduleName )
+      || context.excluded.contains( moduleName ) ) {
+      return;
+    }
+    String path = moduleName.indexOf( '!' ) >= 0 ? null : resolvePath( context.config, moduleName );
+    String source = path == null ? null : scriptLoader.load( path );
+    if ( source == null ) {
+      context.unresolved.add( moduleName );
+      return;
+    }
+    AmdDefineParser.AmdDefinition definition = AmdDefineParser.parse( source );
+    if ( definition != null ) {
+      for ( String dependency : definition.getDependencies() ) {
+        visit( context, resolveRelative( moduleName, dependency ) );
+      }
+      if ( definition.getName() == null ) {
+        int offset = definition.getArgumentsOffset();
+        source = source.substring( 0, offset ) + quote( moduleName ) + ", " + source.substring( offset );
+      }
+    } else {
+      Map<String, Shim> shims = context.config.getShim();
+      Shim shim = shims == null ? null : shims.get( moduleName );
+      String[] dependencies = shim == null || shim.getDeps() == null ? new String[ 0 ] : shim.getDeps();
+      for ( String dependency : dependencies ) {
+        visit( context, dependency );
+      }
+      source = source + "\n" + shimDefine( moduleName, dependencies, shim == null ? null : shim.getExports() );
+    }
+    if ( context.emit ) {
+      context.modules.add( moduleName );
+      context.content.append( minifier.minify( moduleName, source ).getContent() );
+      context.content.append( ";\n" );
+    }
+  }
+
+  /**
+   * @return the path of the module's script or null if RequireJS has to load it from elsewhere
+   */
+  static String resolvePath( RequireJsConfig config, String moduleName ) {
+    String path = moduleName;
+    Map<String, String> paths = config.getPaths();
+    if ( paths != null ) {
+      String prefix = moduleName;
+      while ( prefix != null ) {
+        String mapped = paths.get( prefix );
+        if ( mapped != null ) {
+          path = mapped + moduleName.substring( prefix.length() );
+          break;
+        }
+        int slash = prefix.lastIndexOf( '/' );
+        prefix = slash > 0 ? prefix.substring( 0, slash ) : null;
+      }
+    }
+    if ( path.startsWith( "empty:" ) || path.startsWith( "//" ) || path.indexOf( ':' ) >= 0 ) {
+      return null;
+    }
+    while ( path.startsWith( "/" ) ) {
+      path = path.substring( 1 );
+    }
+    return path.endsWith( ".js" ) ? path : path + ".js";
+  }
+
+  static String resolveRelative( String moduleName, String dependency ) {
+    if ( !dependency.startsWith( "./" ) && !dependency.startsWith( "../" ) ) {
+      return dependency;
+    }
+    List<String> segments = new ArrayList<String>( Arrays.asList( moduleName.split( "/" ) ) );
+    segments.remove( segments.size() - 1 );
+    for ( String segment : dependency.split( "/" ) ) {
+      if ( "..".equals( segment ) ) {
+        if ( !segments.isEmpty() ) {
+          segments.remove( segments.size() - 1 );
+        }
+      } else if ( !".".equals( segment ) ) {
+        segments.add( segment );
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for ( String segment : segments ) {
+      if ( sb.length() > 0 ) {
+        sb.append( '/' );
+      }
+      sb.append( segment );
+    }
+    return sb.toString();
+  }
+
+  private static String shimDefine( String moduleName, String[] dependencies, String exports ) {
+    StringBuilder sb = new StringBuilder( "define(" );
+    sb.append( quote( moduleName ) );
+    sb.append( ", [" );
+    for ( int i = 0; i < dependencies.length; i++ ) {
+      if ( i > 0 ) {
+        sb.append( ", " );
+      }
+      sb.append( quote( dependencies[ i ] ) );
+    }
+    sb.append( "], " );
+    if ( exports == null ) {
+      sb.append( "function () {}" );
+    } else {
+      sb.append( "(function (global) { return function () { return global." );
+      sb.append( exports );
+      sb.append( "; }; }(this))" );
+    }
+    sb.append( ");" );
+    return sb.toString();
+  }
+
+  private static String quote( String value ) {
+    return "\"" + value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\"";
+  }
+
+  private static class BundleContext {
+    private final RequireJsConfig config;
+    private final Set<String> excluded;
+    private final boolean emit;
+    private final Set<String> visited = new HashSet<String>();
+    private final Set<String> unresolved = new LinkedHashSet<String>();
+    private final List<String> modules = new ArrayList<String>();
+    private final StringBuilder content = new StringBuilder();
+
+    private BundleContext( RequireJsConfig config, Set<String> excluded, boolean emit ) {
+      this.config = config;
+      this.excluded = excluded;
+      this.emit = emit;
+    }
+  }
+}
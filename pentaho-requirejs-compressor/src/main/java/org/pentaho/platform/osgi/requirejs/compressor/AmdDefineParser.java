@@ -0,0 +1,141 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the first <code>define(...)</code> call of a script and reads its module name and dependency array.
+ * <p/>
+ * Only literal arguments are understood, which is what the RequireJS optimizer requires as well.
+ */
+public class AmdDefineParser {
+  private static final int EXPECT_DEFINE = 0;
+  private static final int EXPECT_OPEN_PAREN = 1;
+  private static final int EXPECT_NAME_OR_DEPENDENCIES = 2;
+  private static final int EXPECT_COMMA_AFTER_NAME = 3;
+  private static final int EXPECT_DEPENDENCIES = 4;
+  private static final int IN_DEPENDENCIES = 5;
+
+  /**
+   * @return the define call of the script or null if it doesn't call define
+   */
+  public static AmdDefinition parse( String source ) {
+    JsLexer lexer = new JsLexer( source );
+    int state = EXPECT_DEFINE;
+    String previous = null;
+    String name = null;
+    int argumentsOffset = -1;
+    List<String> dependencies = new ArrayList<String>();
+    int type;
+    while ( ( type = lexer.next() ) != JsLexer.EOF ) {
+      if ( type == JsLexer.WHITESPACE || type == JsLexer.LINE_COMMENT || type == JsLexer.BLOCK_COMMENT ) {
+        continue;
+      }
+      String text = lexer.text();
+      switch ( state ) {
+        case EXPECT_DEFINE:
+          // Ignore member calls such as foo.define(
+          if ( type == JsLexer.WORD && "define".equals( text ) && !".".equals( previous ) ) {
+            state = EXPECT_OPEN_PAREN;
+          }
+          break;
+        case EXPECT_OPEN_PAREN:
+          if ( "(".equals( text ) ) {
+            argumentsOffset = lexer.end();
+            state = EXPECT_NAME_OR_DEPENDENCIES;
+          } else {
+            state = EXPECT_DEFINE;
+          }
+          break;
+        case EXPECT_NAME_OR_DEPENDENCIES:
+          if ( type == JsLexer.STRING ) {
+            name = lexer.stringValue();
+            state = EXPECT_COMMA_AFTER_NAME;
+          } else if ( "[".equals( text ) ) {
+            state = IN_DEPENDENCIES;
+          } else {
+            return new AmdDefinition( null, dependencies, argumentsOffset );
+          }
+          break;
+        case EXPECT_COMMA_AFTER_NAME:
+          if ( ",".equals( text ) ) {
+            state = EXPECT_DEPENDENCIES;
+          } else {
+            return new AmdDefinition( name, dependencies, argumentsOffset );
+          }
+          break;
+        case EXPECT_DEPENDENCIES:
+          if ( "[".equals( text ) ) {
+            state = IN_DEPENDENCIES;
+          } else {
+            return new AmdDefinition( name, dependencies, argumentsOffset );
+          }
+          break;
+        case IN_DEPENDENCIES:
+          if ( type == JsLexer.STRING ) {
+            dependencies.add( lexer.stringValue() );
+          } else if ( "]".equals( text ) ) {
+            return new AmdDefinition( name, dependencies, argumentsOffset );
+          }
+          break;
+        default:
+          break;
+      }
+      previous = text;
+    }
+    return state == EXPECT_DEFINE || state == EXPECT_OPEN_PAREN ? null
+      : new AmdDefinition( name, dependencies, argumentsOffset );
+  }
+
+  /**
+   * The literal arguments of a define call.
+   */
+  public static class AmdDefinition {
+    private final String name;
+    private final List<String> dependencies;
+    private final int argumentsOffset;
+
+    public AmdDefinition( String name, List<String> dependencies, int argumentsOffset ) {
+      this.name = name;
+      this.dependencies = Collections.unmodifiableList( dependencies );
+      this.argumentsOffset = argumentsOffset;
+    }
+
+    /**
+     * @return the module name or null for an anonymous module
+     */
+    public String getName() {
+      return name;
+    }
+
+    public List<String> getDependencies() {
+      return dependencies;
+    }
+
+    /**
+     * @return the offset of the source right after <code>define(</code>, where a name can be inserted
+     */
+    public int getArgumentsOffset() {
+      return argumentsOffset;
+    }
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.pentaho.platform.osgi.requirejs.api.AmdModule;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable graph of AMD module dependencies.
+ * <p/>
+ * Modules are numbered and both edge directions are kept as compressed adjacency arrays: the neighbours of module i
+ * are <code>targets[offsets[i]]</code> to <code>targets[offsets[i + 1] - 1]</code>. Queries only walk int arrays and
+ * a {@link BitSet}, so they're cheap enough to be answered while serving a request.
+ */
+public class AmdDependencyGraph {
+  private final String[] names;
+  private final Map<String, Integer> indexes;
+  private final boolean[] defined;
+  private final int[] dependencyOffsets;
+  private final int[] dependencies;
+  private final int[] dependentOffsets;
+  private final int[] dependents;
+
+  private AmdDependencyGraph( String[] names, Map<String, Integer> indexes, boolean[] defined,
+                              List<int[]> adjacency ) {
+    this.names = names;
+    this.indexes = indexes;
+    this.defined = defined;
+    int size = names.length;
+    int edges = 0;
+    int[] inDegrees = new int[ size ];
+    for ( int[] moduleDependencies : adjacency ) {
+      edges += moduleDependencies.length;
+      for ( int dependency : moduleDependencies ) {
+        inDegrees[ dependency ]++;
+      }
+    }
+    dependencyOffsets = new int[ size + 1 ];
+    dependencies = new int[ edges ];
+    dependentOffsets = new int[ size + 1 ];
+    dependents = new int[ edges ];
+    for ( int i = 0; i < size; i++ ) {
+      int[] moduleDependencies = adjacency.get( i );
+      dependencyOffsets[ i + 1 ] = dependencyOffsets[ i ] + moduleDependencies.length;
+      System.arraycopy( moduleDependencies, 0, dependencies, dependencyOffsets[ i ], moduleDependencies.length );
+      dependentOffsets[ i + 1 ] = dependentOffsets[ i ] + inDegrees[ i ];
+    }
+    int[] fill = new int[ size ];
+    for ( int i = 0; i < size; i++ ) {
+      for ( int e = dependencyOffsets[ i ]; e < dependencyOffsets[ i + 1 ]; e++ ) {
+        int dependency = dependencies[ e ];
+        dependents[ dependentOffsets[ dependency ] + fill[ dependency ]++ ] = i;
+      }
+    }
+  }
+
+  /**
+   * @return the number of modules, including the ones only known as a dependency
+   */
+  public int size() {
+    return names.length;
+  }
+
+  public boolean contains( String moduleName ) {
+    return indexes.containsKey( moduleName );
+  }
+
+  /**
+   * @return whether a script defining the module was found, rather than the module only being depended upon
+   */
+  public boolean isDefined( String moduleName ) {
+    Integer index = indexes.get( moduleName );
+    return index != null && defined[ index ];
+  }
+
+  public List<String> getDependencies( String moduleName ) {
+    Integer index = indexes.get( moduleName );
+    return index == null ? Collections.<String>emptyList()
+      : toNames( dependencies, dependencyOffsets[ index ], dependencyOffsets[ index + 1 ] );
+  }
+
+  public List<String> getDependents( String moduleName ) {
+    Integer index = indexes.get( moduleName );
+    return index == null ? Collections.<String>emptyList()
+      : toNames( dependents, dependentOffsets[ index ], dependentOffsets[ index + 1 ] );
+  }
+
+  /**
+   * @return every module the given one depends on, directly or not, in breadth first order
+   */
+  public List<String> getTransitiveDependencies( String moduleName ) {
+    return reach( moduleName, dependencyOffsets, dependencies );
+  }
+
+  /**
+   * @return every module depending on the given one, directly or not, in breadth first order
+   */
+  public List<String> getTransitiveDependents( String moduleName ) {
+    return reach( moduleName, dependentOffsets, dependents );
+  }
+
+  /**
+   * @return the given modules and everything they depend on, each module after its dependencies; modules of a cycle
+   * are ordered as they are first reached
+   */
+  public List<String> getTopologicalOrder( Collection<String> moduleNames ) {
+    BitSet visited = new BitSet( names.length );
+    List<String> result = new ArrayList<String>();
+    // Explicit stacks, dependency chains can be deeper than the thread stack allows
+    int[] stack = new int[ names.length ];
+    int[] nextEdge = new int[ names.length ];
+    for ( String moduleName : moduleNames ) {
+      Integer root = indexes.get( moduleName );
+      if ( root == null || visited.get( root ) ) {
+        continue;
+      }
+      int depth = 0;
+      stack[ 0 ] = root;
+      nextEdge[ 0 ] = dependencyOffsets[ root ];
+      visited.set( root );
+      while ( depth >= 0 ) {
+        int current = stack[ depth ];
+        if ( nextEdge[ depth ] < dependencyOffsets[ current + 1 ] ) {
+          int dependency = dependencies[ nextEdge[ depth ]++ ];
+          if ( !visited.get( dependency ) ) {
+            visited.set( dependency );
+            depth++;
+            stack[ depth ] = dependency;
+            nextEdge[ depth ] = dependencyOffsets[ dependency ];
+          }
+        } else {
+          result.add( names[ current ] );
+          depth--;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return all modules, each one after its dependencies
+   */
+  public List<String> getTopologicalOrder() {
+    List<String> all = new ArrayList<String>( names.length );
+    Collections.addAll( all, names );
+    return getTopologicalOrder( all );
+  }
+
+  /**
+   * @return the module with its dependencies, as a graph of {@link AmdModule}, or null if it isn't known
+   */
+  public AmdModule getModule( String moduleName ) {
+    Integer root = indexes.get( moduleName );
+    if ( root == null ) {
+      return null;
+    }
+    Map<Integer, AmdModule> modules = new HashMap<Integer, AmdModule>();
+    List<Integer> pending = new ArrayList<Integer>();
+    modules.put( root, new AmdModule( names[ root ] ) );
+    pending.add( root );
+    while ( !pending.isEmpty() ) {
+      int current = pending.remove( pending.size() - 1 );
+      AmdModule[] moduleDependencies = new AmdModule[ dependencyOffsets[ current + 1 ] - dependencyOffsets[ current ] ];
+      for ( int e = dependencyOffsets[ current ]; e < dependencyOffsets[ current + 1 ]; e++ ) {
+        int dependency = dependencies[ e ];
+        AmdModule dependencyModule = modules.get( dependency );
+        if ( dependencyModule == null ) {
+          dependencyModule = new AmdModule( names[ dependency ] );
+          modules.put( dependency, dependencyModule );
+          pending.add( dependency );
+        }
+        moduleDependencies[ e - dependencyOffsets[ current ] ] = dependencyModule;
+      }
+      modules.get( current ).setDependencies( moduleDependencies );
+    }
+    return modules.get( root );
+  }
+
+  private List<String> reach( String moduleName, int[] offsets, int[] targets ) {
+    Integer root = indexes.get( moduleName );
+    if ( root == null ) {
+      return Collections.emptyList();
+    }
+    BitSet visited = new BitSet( names.length );
+    visited.set( root );
+    int[] queue = new int[ names.length ];
+    int head = 0;
+    int tail = 0;
+    queue[ tail++ ] = root;
+    List<String> result = new ArrayList<String>();
+    while ( head < tail ) {
+      int current = queue[ head++ ];
+      for ( int e = offsets[ current ]; e < offsets[ current + 1 ]; e++ ) {
+        int next = targets[ e ];
+        if ( !visited.get( next ) ) {
+          visited.set( next );
+          queue[ tail++ ] = next;
+          result.add( names[ next ] );
+        }
+      }
+    }
+    return result;
+  }
+
+  private List<String> toNames( int[] targets, int from, int to ) {
+    List<String> result = new ArrayList<String>( to - from );
+    for ( int e = from; e < to; e++ ) {
+      result.add( names[ targets[ e ] ] );
+    }
+    return result;
+  }
+
+  /**
+   * Collects modules and their dependencies; adding a module twice replaces its dependencies.
+   */
+  public static class Builder {
+    private final Map<String, Set<String>> modules = new LinkedHashMap<String, Set<String>>();
+
+    public Builder addModule( String moduleName, Collection<String> moduleDependencies ) {
+      modules.put( moduleName, new LinkedHashSet<String>( moduleDependencies ) );
+      return this;
+    }
+
+    public AmdDependencyGraph build() {
+      Map<String, Integer> indexes = new HashMap<String, Integer>();
+      List<String> names = new ArrayList<String>();
+      for ( String moduleName : modules.keySet() ) {
+        indexes.put( moduleName, names.size() );
+        names.add( moduleName );
+      }
+      int definedCount = names.size();
+      List<int[]> adjacency = new ArrayList<int[]>();
+      for ( Set<String> moduleDependencies : modules.values() ) {
+        int[] targets = new int[ moduleDependencies.size() ];
+        int i = 0;
+        for ( String dependency : moduleDependencies ) {
+          Integer index = indexes.get( dependency );
+          if ( index == null ) {
+            index = names.size();
+            indexes.put( dependency, index );
+            names.add( dependency );
+          }
+          targets[ i++ ] = index;
+        }
+        adjacency.add( targets );
+      }
+      while ( adjacency.size() < names.size() ) {
+        adjacency.add( new int[ 0 ] );
+      }
+      boolean[] defined = new boolean[ names.size() ];
+      for ( int i = 0; i < definedCount; i++ ) {
+        defined[ i ] = true;
+      }
+      return new AmdDependencyGraph( names.toArray( new String[ names.size() ] ), indexes, defined, adjacency );
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.util.tracker.BundleTracker;
+import org.osgi.util.tracker.BundleTrackerCustomizer;
+import org.pentaho.platform.osgi.requirejs.api.IAmdScriptLoader;
+import org.pentaho.platform.osgi.requirejs.api.IAmdScriptSource;
+import org.pentaho.platform.osgi.requirejs.bindings.RequireJsConfig;
+import org.pentaho.platform.osgi.requirejs.bindings.Shim;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps an {@link AmdDependencyGraph} of every module reachable through the paths of the active bundles' require.json.
+ * <p/>
+ * Bundle changes schedule a rebuild on a background thread, {@link #getGraph()} keeps returning the previous graph
+ * until it's done. Only the first call waits, for the graph of the bundles active at {@link #init()}.
+ */
+public class AmdDependencyIndex {
+  private Logger logger = LoggerFactory.getLogger( getClass() );
+  private BundleContext bundleContext;
+  private IAmdScriptLoader scriptLoader;
+  private volatile BundleTracker<IAmdScriptSource> bundleTracker;
+  private final Runnable rebuild = new Runnable() {
+    @Override public void run() {
+      rebuild();
+    }
+  };
+  // Guarded by this
+  private ExecutorService executor;
+  private boolean outdated;
+  private boolean rebuildScheduled;
+  // Null until the first build is done
+  private volatile AmdDependencyGraph graph;
+
+  public BundleContext getBundleContext() {
+    return bundleContext;
+  }
+
+  public void setBundleContext( BundleContext bundleContext ) {
+    this.bundleContext = bundleContext;
+  }
+
+  public IAmdScriptLoader getScriptLoader() {
+    return scriptLoader;
+  }
+
+  public void setScriptLoader( IAmdScriptLoader scriptLoader ) {
+    this.scriptLoader = scriptLoader;
+  }
+
+  public void init() {
+    bundleTracker = new BundleTracker<IAmdScriptSource>( bundleContext, Bundle.ACTIVE,
+      new BundleTrackerCustomizer<IAmdScriptSource>() {
+        @Override public IAmdScriptSource addingBundle( Bundle bundle, BundleEvent event ) {
+          try {
+            BundleAmdScriptSource source = BundleAmdScriptSource.fromBundle( bundle );
+            if ( source != null ) {
+              invalidate();
+            }
+            return source;
+          } catch ( IOException e ) {
+            logger.warn( "Unable to read the RequireJS configuration of " + bundle.getSymbolicName(), e );
+            return null;
+          }
+        }
+
+        @Override public void modifiedBundle( Bundle bundle, BundleEvent event, IAmdScriptSource source ) {
+        }
+
+        @Override public void removedBundle( Bundle bundle, BundleEvent event, IAmdScriptSource source ) {
+          invalidate();
+        }
+      } );
+    bundleTracker.open();
+    // Started once the tracker is open, so the first graph has every bundle active at this point
+    synchronized ( this ) {
+      executor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread thread = new Thread( r, "AMD dependency index" );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    invalidate();
+  }
+
+  public void destroy() {
+    if ( bundleTracker != null ) {
+      bundleTracker.close();
+      bundleTracker = null;
+    }
+    synchronized ( this ) {
+      if ( executor != null ) {
+        executor.shutdownNow();
+        executor = null;
+      }
+      rebuildScheduled = false;
+      notifyAll();
+    }
+  }
+
+  private synchronized void invalidate() {
+    outdated = true;
+    if ( !rebuildScheduled && executor != null ) {
+      rebuildScheduled = true;
+      executor.execute( rebuild );
+    }
+  }
+
+  private void rebuild() {
+    synchronized ( this ) {
+      // Cleared first so that a bundle change during the build triggers another one
+      outdated = false;
+    }
+    BundleTracker<IAmdScriptSource> bundleTracker = this.bundleTracker;
+    Map<Bundle, IAmdScriptSource> tracked = bundleTracker == null ? null : bundleTracker.getTracked();
+    Collection<IAmdScriptSource> sources =
+      tracked == null ? Collections.<IAmdScriptSource>emptyList() : tracked.values();
+    AmdDependencyGraph built = null;
+    try {
+      built = build( sources );
+    } catch ( Exception e ) {
+      logger.warn( "Unable to build the AMD dependency graph, keeping the previous one", e );
+    }
+    synchronized ( this ) {
+      if ( built != null ) {
+        graph = built;
+      } else if ( graph == null ) {
+        graph = new AmdDependencyGraph.Builder().build();
+      }
+      if ( outdated && executor != null ) {
+        executor.execute( rebuild );
+      } else {
+        rebuildScheduled = false;
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return the graph of the active bundles, as of the last rebuild
+   * @throws InterruptedIOException if interrupted while waiting for the first graph
+   */
+  public AmdDependencyGraph getGraph() throws IOException {
+    AmdDependencyGraph result = graph;
+    if ( result != null ) {
+      return result;
+    }
+    synchronized ( this ) {
+      while ( graph == null && rebuildScheduled ) {
+        try {
+          wait();
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException( "Interrupted while waiting for the AMD dependency graph" );
+        }
+      }
+      // Not initialized or destroyed
+      return graph == null ? new AmdDependencyGraph.Builder().build() : graph;
+    }
+  }
+
+  /**
+   * Reads the define call of every script under the paths of the sources.
+   */
+  public AmdDependencyGraph build( Collection<IAmdScriptSource> sources ) throws IOException {
+    AmdDependencyGraph.Builder builder = new AmdDependencyGraph.Builder();
+    for ( IAmdScriptSource source : sources ) {
+      RequireJsConfig config = source.getRequireJsConig();
+      if ( config == null || config.getPaths() == null ) {
+        continue;
+      }
+      for ( Map.Entry<String, String> path : config.getPaths().entrySet() ) {
+        String modulePrefix = path.getKey();
+        String scriptPath = AmdBundler.resolvePath( config, modulePrefix );
+        if ( scriptPath == null ) {
+          continue;
+        }
+        addModule( builder, config, modulePrefix, scriptPath );
+        String directory = scriptPath.substring( 0, scriptPath.length() - ".js".length() );
+        for ( String script : scriptLoader.list( directory ) ) {
+          if ( script.startsWith( directory + "/" ) ) {
+            String relative = script.substring( directory.length(), script.length() - ".js".length() );
+            addModule( builder, config, modulePrefix + relative, script );
+          }
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  private void addModule( AmdDependencyGraph.Builder builder, RequireJsConfig config, String moduleName,
+                          String scriptPath ) throws IOException {
+    String script = scriptLoader.load( scriptPath );
+    if ( script == null ) {
+      return;
+    }
+    List<String> dependencies = new ArrayList<String>();
+    AmdDefineParser.AmdDefinition definition = AmdDefineParser.parse( script );
+    if ( definition != null ) {
+      for ( String dependency : definition.getDependencies() ) {
+        if ( !AmdBundler.SPECIAL_MODULES.contains( dependency ) ) {
+          dependencies.add( AmdBundler.resolveRelative( moduleName, dependency ) );
+        }
+      }
+    } else if ( config.getShim() != null ) {
+      Shim shim = config.getShim().get( moduleName );
+      if ( shim != null && shim.getDeps() != null ) {
+        dependencies.addAll( Arrays.asList( shim.getDeps() ) );
+      }
+    }
+    builder.addModule( moduleName, dependencies );
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.pentaho.platform.osgi.requirejs.api.IAmdScriptSource;
+import org.pentaho.platform.osgi.requirejs.bindings.RequireJsConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * The RequireJS configuration a bundle contributes through its META-INF/js/require.json.
+ */
+public class BundleAmdScriptSource implements IAmdScriptSource {
+  public static final String REQUIRE_JSON_PATH = "META-INF/js/require.json";
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  static {
+    // require.json may hold any RequireJS option, only paths and shim matter here
+    MAPPER.disable( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES );
+    MAPPER.enable( DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT );
+    MAPPER.configure( JsonParser.Feature.ALLOW_COMMENTS, true );
+    MAPPER.configure( JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES, true );
+    MAPPER.configure( JsonParser.Feature.ALLOW_SINGLE_QUOTES, true );
+  }
+
+  private final Bundle bundle;
+  private final RequireJsConfig requireJsConfig;
+
+  public BundleAmdScriptSource( Bundle bundle, RequireJsConfig requireJsConfig ) {
+    this.bundle = bundle;
+    this.requireJsConfig = requireJsConfig;
+  }
+
+  /**
+   * @return the bundle's script source or null if the bundle has no require.json
+   */
+  public static BundleAmdScriptSource fromBundle( Bundle bundle ) throws IOException {
+    URL requireJson = bundle.getResource( REQUIRE_JSON_PATH );
+    if ( requireJson == null ) {
+      return null;
+    }
+    InputStream inputStream = requireJson.openStream();
+    try {
+      return new BundleAmdScriptSource( bundle, MAPPER.readValue( inputStream, RequireJsConfig.class ) );
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  public Bundle getBundle() {
+    return bundle;
+  }
+
+  @Override public String getName() {
+    return bundle.getSymbolicName();
+  }
+
+  @Override public Version getVersion() {
+    return bundle.getVersion();
+  }
+
+  @Override public RequireJsConfig getRequireJsConig() {
+    return requireJsConfig;
+  }
+}
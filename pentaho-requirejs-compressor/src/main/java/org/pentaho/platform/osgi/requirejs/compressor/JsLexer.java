@@ -0,0 +1,221 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Splits JavaScript source into the few kinds of tokens needed to safely skip comments, strings, template literals
+ * and regular expression literals.
+ * <p/>
+ * Like JSMin, a slash starts a regular expression unless it follows something that ends an expression.
+ */
+class JsLexer {
+  static final int EOF = 0;
+  static final int WHITESPACE = 1;
+  static final int LINE_COMMENT = 2;
+  static final int BLOCK_COMMENT = 3;
+  static final int STRING = 4;
+  static final int REGEX = 5;
+  static final int WORD = 6;
+  static final int PUNCTUATOR = 7;
+  static final int TEMPLATE = 8;
+
+  // Keywords after which a slash starts a regular expression rather than a division
+  private static final Set<String> REGEX_KEYWORDS = new HashSet<String>( Arrays.asList( "return", "typeof",
+    "instanceof", "in", "of", "new", "delete", "void", "throw", "case", "do", "else" ) );
+
+  private final String source;
+  private int start;
+  private int end;
+  private boolean regexAllowed = true;
+
+  JsLexer( String source ) {
+    this.source = source;
+  }
+
+  /**
+   * @return the type of the next token, {@link #EOF} at the end of the source
+   */
+  int next() {
+    start = end;
+    if ( start >= source.length() ) {
+      return EOF;
+    }
+    char c = source.charAt( start );
+    end = start + 1;
+    if ( isSpace( c ) ) {
+      while ( end < source.length() && isSpace( source.charAt( end ) ) ) {
+        end++;
+      }
+      return WHITESPACE;
+    }
+    if ( c == '/' && end < source.length() && source.charAt( end ) == '/' ) {
+      while ( end < source.length() && !isLineTerminator( source.charAt( end ) ) ) {
+        end++;
+      }
+      return LINE_COMMENT;
+    }
+    if ( c == '/' && end < source.length() && source.charAt( end ) == '*' ) {
+      int close = source.indexOf( "*/", end + 1 );
+      end = close < 0 ? source.length() : close + 2;
+      return BLOCK_COMMENT;
+    }
+    if ( c == '"' || c == '\'' ) {
+      while ( end < source.length() && source.charAt( end ) != c && !isLineTerminator( source.charAt( end ) ) ) {
+        end += source.charAt( end ) == '\\' ? 2 : 1;
+      }
+      end = Math.min( end + 1, source.length() );
+      regexAllowed = false;
+      return STRING;
+    }
+    if ( c == '`' ) {
+      end = skipTemplate( end );
+      regexAllowed = false;
+      return TEMPLATE;
+    }
+    if ( c == '/' && regexAllowed ) {
+      boolean inClass = false;
+      while ( end < source.length() && !isLineTerminator( source.charAt( end ) ) ) {
+        char r = source.charAt( end );
+        if ( r == '\\' ) {
+          end++;
+        } else if ( r == '[' ) {
+          inClass = true;
+        } else if ( r == ']' ) {
+          inClass = false;
+        } else if ( r == '/' && !inClass ) {
+          break;
+        }
+        end++;
+      }
+      end = Math.min( end + 1, source.length() );
+      while ( end < source.length() && isWordPart( source.charAt( end ) ) ) {
+        end++;
+      }
+      regexAllowed = false;
+      return REGEX;
+    }
+    if ( isWordPart( c ) ) {
+      while ( end < source.length() && isWordPart( source.charAt( end ) ) ) {
+        end++;
+      }
+      regexAllowed = REGEX_KEYWORDS.contains( text() );
+      return WORD;
+    }
+    regexAllowed = c != ')' && c != ']';
+    return PUNCTUATOR;
+  }
+
+  int start() {
+    return start;
+  }
+
+  int end() {
+    return end;
+  }
+
+  String text() {
+    return source.substring( start, end );
+  }
+
+  /**
+   * @return the value of the current {@link #STRING} token, only simple escapes are decoded
+   */
+  String stringValue() {
+    StringBuilder sb = new StringBuilder( end - start );
+    for ( int i = start + 1; i < end - 1; i++ ) {
+      char c = source.charAt( i );
+      if ( c == '\\' && i + 1 < end - 1 ) {
+        c = source.charAt( ++i );
+      }
+      sb.append( c );
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param pos the offset following the opening backquote
+   * @return the offset following the closing backquote, substitutions and the templates nested in them included
+   */
+  private int skipTemplate( int pos ) {
+    while ( pos < source.length() ) {
+      char c = source.charAt( pos );
+      if ( c == '\\' ) {
+        pos += 2;
+      } else if ( c == '`' ) {
+        return pos + 1;
+      } else if ( c == '$' && pos + 1 < source.length() && source.charAt( pos + 1 ) == '{' ) {
+        pos = skipSubstitution( pos + 2 );
+      } else {
+        pos++;
+      }
+    }
+    return source.length();
+  }
+
+  /**
+   * @param pos the offset following the opening <code>${</code>
+   * @return the offset following the matching closing brace
+   */
+  private int skipSubstitution( int pos ) {
+    int depth = 1;
+    while ( pos < source.length() ) {
+      char c = source.charAt( pos );
+      if ( c == '{' ) {
+        depth++;
+      } else if ( c == '}' && --depth == 0 ) {
+        return pos + 1;
+      } else if ( c == '`' ) {
+        pos = skipTemplate( pos + 1 );
+        continue;
+      } else if ( c == '"' || c == '\'' ) {
+        pos++;
+        while ( pos < source.length() && source.charAt( pos ) != c && !isLineTerminator( source.charAt( pos ) ) ) {
+          pos += source.charAt( pos ) == '\\' ? 2 : 1;
+        }
+      } else if ( c == '/' && pos + 1 < source.length() && source.charAt( pos + 1 ) == '/' ) {
+        while ( pos < source.length() && !isLineTerminator( source.charAt( pos ) ) ) {
+          pos++;
+        }
+        continue;
+      } else if ( c == '/' && pos + 1 < source.length() && source.charAt( pos + 1 ) == '*' ) {
+        int close = source.indexOf( "*/", pos + 2 );
+        pos = close < 0 ? source.length() : close + 2;
+        continue;
+      }
+      pos++;
+    }
+    return source.length();
+  }
+
+  static boolean isWordPart( char c ) {
+    return Character.isLetterOrDigit( c ) || c == '_' || c == '$' || c == '\\' || c > 127;
+  }
+
+  static boolean isSpace( char c ) {
+    return Character.isWhitespace( c ) || c == '\u00a0' || c == '\ufeff';
+  }
+
+  static boolean isLineTerminator( char c ) {
+    return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029';
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.pentaho.platform.osgi.requirejs.api.AmdMinifiedScript;
+import org.pentaho.platform.osgi.requirejs.api.IAmdMinifier;
+import org.pentaho.platform.osgi.requirejs.compressor.bindings.CompressorConfig;
+
+/**
+ * Conservative minifier that drops comments and redundant whitespace.
+ * <p/>
+ * Line breaks are kept, one per run of whitespace, so automatic semicolon insertion is never affected. Nothing is
+ * renamed or rewritten, which makes the result safe for any script at the cost of a lower compression than Uglify.
+ */
+public class JsMinifier implements IAmdMinifier {
+  // Increment whenever a change to this class changes its output
+  private static final int VERSION = 1;
+  private static final char[] BASE64 =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private final boolean preserveLicenseComments;
+  private final boolean generateSourceMaps;
+
+  public JsMinifier() {
+    this( true, false );
+  }
+
+  public JsMinifier( boolean preserveLicenseComments ) {
+    this( preserveLicenseComments, false );
+  }
+
+  /**
+   * @param preserveLicenseComments whether to keep block comments marked with /*!, @license or @preserve
+   * @param generateSourceMaps      whether to generate a line level source map of each script
+   */
+  public JsMinifier( boolean preserveLicenseComments, boolean generateSourceMaps ) {
+    this.preserveLicenseComments = preserveLicenseComments;
+    this.generateSourceMaps = generateSourceMaps;
+  }
+
+  /**
+   * Uses the options of the build configuration that apply to this minifier.
+   */
+  public JsMinifier( CompressorConfig compressorConfig ) {
+    this( compressorConfig.isPreserveLicenseComments(), compressorConfig.isGenerateSourceMaps() );
+  }
+
+  public boolean isPreserveLicenseComments() {
+    return preserveLicenseComments;
+  }
+
+  public boolean isGenerateSourceMaps() {
+    return generateSourceMaps;
+  }
+
+  @Override public String getOptionsFingerprint() {
+    return getClass().getName() + ":" + VERSION + ":preserveLicenseComments=" + preserveLicenseComments
+      + ":generateSourceMaps=" + generateSourceMaps;
+  }
+
+  @Override public AmdMinifiedScript minify( String moduleName, String source ) {
+    StringBuilder sb = new StringBuilder( source.length() );
+    SourceMapBuilder sourceMap = generateSourceMaps ? new SourceMapBuilder( source ) : null;
+    JsLexer lexer = new JsLexer( source );
+    boolean pendingSpace = false;
+    boolean pendingNewLine = false;
+    int type;
+    while ( ( type = lexer.next() ) != JsLexer.EOF ) {
+      switch ( type ) {
+        case JsLexer.WHITESPACE:
+          pendingSpace = true;
+          pendingNewLine |= containsLineTerminator( source, lexer.start(), lexer.end() );
+          break;
+        case JsLexer.LINE_COMMENT:
+          pendingSpace = true;
+          break;
+        case JsLexer.BLOCK_COMMENT:
+          String comment = lexer.text();
+          if ( preserveLicenseComments && isLicenseComment( comment ) ) {
+            append( sb, sourceMap, lexer.start(), pendingNewLine, pendingSpace, comment );
+            pendingSpace = false;
+            pendingNewLine = true;
+          } else {
+            // A comment spanning lines counts as a line break for semicolon insertion
+            pendingSpace = true;
+            pendingNewLine |= containsLineTerminator( source, lexer.start(), lexer.end() );
+          }
+          break;
+        default:
+          append( sb, sourceMap, lexer.start(), pendingNewLine, pendingSpace, lexer.text() );
+          pendingSpace = false;
+          pendingNewLine = false;
+          break;
+      }
+    }
+    if ( pendingNewLine && sb.length() > 0 ) {
+      sb.append( '\n' );
+    }
+    return new AmdMinifiedScript( sb.toString(), sourceMap == null ? null : sourceMap.toJson( moduleName ) );
+  }
+
+  private void append( StringBuilder sb, SourceMapBuilder sourceMap, int sourceOffset, boolean newLine,
+                       boolean space, String text ) {
+    boolean lineStart = sb.length() == 0;
+    if ( sb.length() > 0 ) {
+      if ( newLine ) {
+        sb.append( '\n' );
+        lineStart = true;
+      } else if ( space && needsSpace( sb.charAt( sb.length() - 1 ), text.charAt( 0 ) ) ) {
+        sb.append( ' ' );
+      }
+    }
+    if ( sourceMap != null && lineStart ) {
+      sourceMap.mapLineStart( sourceOffset, sb.length() > 0 );
+    }
+    sb.append( text );
+    if ( sourceMap != null ) {
+      // License comments may span lines
+      for ( int i = 0; i < text.length(); i++ ) {
+        if ( text.charAt( i ) == '\n' ) {
+          sourceMap.mapLineStart( -1, true );
+        }
+      }
+    }
+  }
+
+  private static boolean needsSpace( char previous, char next ) {
+    if ( JsLexer.isWordPart( previous ) ) {
+      // "1 .toString()" must not become "1.toString()"
+      return JsLexer.isWordPart( next ) || next == '.';
+    }
+    // "a + +b" must not become "a++b", nor "a / /re/" a comment
+    return ( previous == '+' || previous == '-' || previous == '/' ) && previous == next;
+  }
+
+  private static boolean isLicenseComment( String comment ) {
+    return comment.startsWith( "/*!" ) || comment.contains( "@license" ) || comment.contains( "@preserve" );
+  }
+
+  private static boolean containsLineTerminator( String source, int start, int end ) {
+    for ( int i = start; i < end; i++ ) {
+      if ( JsLexer.isLineTerminator( source.charAt( i ) ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Maps the first token of every output line back to its position in the source.
+   */
+  private static class SourceMapBuilder {
+    private final String source;
+    private final StringBuilder mappings = new StringBuilder();
+    private int scannedOffset;
+    private int sourceLine;
+    private int sourceColumn;
+    private int previousSourceLine;
+    private int previousSourceColumn;
+
+    private SourceMapBuilder( String source ) {
+      this.source = source;
+    }
+
+    /**
+     * @param sourceOffset offset of the token starting the output line, negative for no mapping
+     * @param newLine      whether a new output line was started
+     */
+    private void mapLineStart( int sourceOffset, boolean newLine ) {
+      if ( newLine ) {
+        mappings.append( ';' );
+      }
+      if ( sourceOffset < 0 ) {
+        return;
+      }
+      for ( ; scannedOffset < sourceOffset; scannedOffset++ ) {
+        if ( source.charAt( scannedOffset ) == '\n' ) {
+          sourceLine++;
+          sourceColumn = 0;
+        } else {
+          sourceColumn++;
+        }
+      }
+      // Generated column 0, source 0, then the line and column relative to the previous segment
+      appendVlq( 0 );
+      appendVlq( 0 );
+      appendVlq( sourceLine - previousSourceLine );
+      appendVlq( sourceColumn - previousSourceColumn );
+      previousSourceLine = sourceLine;
+      previousSourceColumn = sourceColumn;
+    }
+
+    private void appendVlq( int value ) {
+      int vlq = value < 0 ? ( ( -value ) << 1 ) | 1 : value << 1;
+      do {
+        int digit = vlq & 31;
+        vlq >>>= 5;
+        if ( vlq > 0 ) {
+          digit |= 32;
+        }
+        mappings.append( BASE64[ digit ] );
+      } while ( vlq > 0 );
+    }
+
+    private String toJson( String moduleName ) {
+      return "{\"version\":3,\"sources\":[\"" + moduleName.replace( "\\", "\\\\" ).replace( "\"", "\\\"" )
+        + ".js\"],\"names\":[],\"mappings\":\"" + mappings + "\"}";
+    }
+  }
+}
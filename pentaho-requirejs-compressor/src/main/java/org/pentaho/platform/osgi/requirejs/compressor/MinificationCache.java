@@ -0,0 +1,381 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.apache.commons.io.FileUtils;
+import org.osgi.framework.BundleContext;
+import org.pentaho.platform.osgi.requirejs.api.AmdMinifiedScript;
+import org.pentaho.platform.osgi.requirejs.api.IAmdMinifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link IAmdMinifier} that remembers the output of another one, keyed by the hash of the source and of the
+ * minifier's options fingerprint, so only scripts that actually changed are minified again.
+ * <p/>
+ * Recent outputs are kept in memory, up to {@link #getMaxMemoryBytes()}, and every output is also written to the
+ * cache directory, when there is one, so it survives restarts. The cache directory is bounded the same way, by
+ * {@link #getMaxDiskBytes()}, and outputs unused for {@link #getMaxDiskAge()} are dropped from it.
+ */
+public class MinificationCache implements IAmdMinifier {
+  public static final String DATA_DIR_NAME = "minification-cache";
+  public static final long DEFAULT_MAX_MEMORY_BYTES = 16 * 1024 * 1024;
+  public static final long DEFAULT_MAX_DISK_BYTES = 256 * 1024 * 1024;
+  public static final long DEFAULT_MAX_DISK_AGE = 30L * 24 * 60 * 60 * 1000;
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+  private static final String CONTENT_SUFFIX = ".js";
+  private static final String SOURCE_MAP_SUFFIX = ".js.map";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Logger logger = LoggerFactory.getLogger( getClass() );
+  private final IAmdMinifier minifier;
+  private final LinkedHashMap<String, AmdMinifiedScript> memory =
+    new LinkedHashMap<String, AmdMinifiedScript>( 64, 0.75f, true );
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private BundleContext bundleContext;
+  private File cacheDir;
+  private long maxMemoryBytes = DEFAULT_MAX_MEMORY_BYTES;
+  private long memoryBytes;
+  private final Object disk = new Object();
+  private long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+  private long maxDiskAge = DEFAULT_MAX_DISK_AGE;
+  // Guarded by disk, unknown until the cache directory was first scanned
+  private long diskBytes = -1;
+  private String optionsKey;
+
+  public MinificationCache( IAmdMinifier minifier ) {
+    this.minifier = minifier;
+  }
+
+  public IAmdMinifier getMinifier() {
+    return minifier;
+  }
+
+  public BundleContext getBundleContext() {
+    return bundleContext;
+  }
+
+  /**
+   * The cache directory defaults to {@value #DATA_DIR_NAME} in the data area of this bundle.
+   */
+  public void setBundleContext( BundleContext bundleContext ) {
+    this.bundleContext = bundleContext;
+  }
+
+  public File getCacheDir() {
+    return cacheDir;
+  }
+
+  /**
+   * @param cacheDir where to keep the outputs across restarts or null to only keep them in memory
+   */
+  public void setCacheDir( File cacheDir ) {
+    this.cacheDir = cacheDir;
+  }
+
+  public long getMaxMemoryBytes() {
+    return maxMemoryBytes;
+  }
+
+  public void setMaxMemoryBytes( long maxMemoryBytes ) {
+    this.maxMemoryBytes = maxMemoryBytes;
+  }
+
+  public long getMaxDiskBytes() {
+    return maxDiskBytes;
+  }
+
+  public void setMaxDiskBytes( long maxDiskBytes ) {
+    this.maxDiskBytes = maxDiskBytes;
+  }
+
+  public long getMaxDiskAge() {
+    return maxDiskAge;
+  }
+
+  /**
+   * @param maxDiskAge milliseconds after which an output that was neither written nor read is deleted from disk
+   */
+  public void setMaxDiskAge( long maxDiskAge ) {
+    this.maxDiskAge = maxDiskAge;
+  }
+
+  public void init() {
+    if ( cacheDir == null && bundleContext != null ) {
+      cacheDir = bundleContext.getDataFile( DATA_DIR_NAME );
+    }
+    if ( cacheDir != null ) {
+      evictDisk( maxDiskBytes );
+    }
+  }
+
+  /**
+   * @return number of outputs served from memory
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of outputs served from the cache directory
+   */
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  /**
+   * @return number of outputs the minifier had to produce
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override public String getOptionsFingerprint() {
+    return minifier.getOptionsFingerprint();
+  }
+
+  @Override public AmdMinifiedScript minify( String moduleName, String source ) {
+    // The module name is part of the source map, so it's part of the key as well
+    String key =
+      sha256( source ) + "." + getOptionsKey().substring( 0, 16 ) + "." + sha256( moduleName ).substring( 0, 8 );
+    AmdMinifiedScript result;
+    synchronized ( memory ) {
+      result = memory.get( key );
+    }
+    if ( result != null ) {
+      hits.incrementAndGet();
+      return result;
+    }
+    result = read( key );
+    if ( result != null ) {
+      diskHits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      result = minifier.minify( moduleName, source );
+      write( key, result );
+    }
+    remember( key, result );
+    return result;
+  }
+
+  /**
+   * Drops every output from memory, the cache directory is left alone.
+   */
+  public void clear() {
+    synchronized ( memory ) {
+      memory.clear();
+      memoryBytes = 0;
+    }
+  }
+
+  private synchronized String getOptionsKey() {
+    if ( optionsKey == null ) {
+      optionsKey = sha256( minifier.getOptionsFingerprint() );
+    }
+    return optionsKey;
+  }
+
+  private void remember( String key, AmdMinifiedScript script ) {
+    long size = sizeOf( script );
+    if ( size > maxMemoryBytes ) {
+      return;
+    }
+    synchronized ( memory ) {
+      AmdMinifiedScript previous = memory.put( key, script );
+      if ( previous != null ) {
+        memoryBytes -= sizeOf( previous );
+      }
+      memoryBytes += size;
+      Iterator<Map.Entry<String, AmdMinifiedScript>> iterator = memory.entrySet().iterator();
+      while ( memoryBytes > maxMemoryBytes && iterator.hasNext() ) {
+        memoryBytes -= sizeOf( iterator.next().getValue() );
+        iterator.remove();
+      }
+    }
+  }
+
+  private AmdMinifiedScript read( String key ) {
+    if ( cacheDir == null ) {
+      return null;
+    }
+    File contentFile = getFile( key, CONTENT_SUFFIX );
+    if ( !contentFile.isFile() ) {
+      return null;
+    }
+    try {
+      String content = FileUtils.readFileToString( contentFile, UTF_8 );
+      File sourceMapFile = getFile( key, SOURCE_MAP_SUFFIX );
+      String sourceMap = sourceMapFile.isFile() ? FileUtils.readFileToString( sourceMapFile, UTF_8 ) : null;
+      // The modification time tells eviction which outputs were used last
+      contentFile.setLastModified( System.currentTimeMillis() );
+      return new AmdMinifiedScript( content, sourceMap );
+    } catch ( IOException e ) {
+      logger.warn( "Unable to read cached minification " + contentFile, e );
+      return null;
+    }
+  }
+
+  private void write( String key, AmdMinifiedScript script ) {
+    if ( cacheDir == null ) {
+      return;
+    }
+    try {
+      // The source map goes first, the content file is what marks the entry as complete
+      if ( script.getSourceMap() != null ) {
+        writeFile( getFile( key, SOURCE_MAP_SUFFIX ), script.getSourceMap() );
+      }
+      File contentFile = getFile( key, CONTENT_SUFFIX );
+      writeFile( contentFile, script.getContent() );
+      long target = -1;
+      synchronized ( disk ) {
+        if ( diskBytes < 0 ) {
+          // Not scanned yet, init() was not called
+          target = maxDiskBytes;
+        } else {
+          diskBytes += sizeOnDisk( contentFile );
+          if ( diskBytes > maxDiskBytes ) {
+            // Down to three quarters, rather than scanning the directory again on every following write
+            target = maxDiskBytes / 4 * 3;
+          }
+        }
+      }
+      if ( target >= 0 ) {
+        evictDisk( target );
+      }
+    } catch ( IOException e ) {
+      logger.warn( "Unable to cache minification " + key, e );
+    }
+  }
+
+  /**
+   * Deletes the outputs unused for longer than the max disk age, then the least recently used ones until the cache
+   * directory holds at most target bytes.
+   */
+  private void evictDisk( long target ) {
+    synchronized ( disk ) {
+      List<File> contentFiles = new ArrayList<File>();
+      long total = 0;
+      File[] dirs = cacheDir.listFiles();
+      if ( dirs != null ) {
+        for ( File dir : dirs ) {
+          File[] files = dir.listFiles();
+          if ( files == null ) {
+            continue;
+          }
+          for ( File file : files ) {
+            if ( file.getName().endsWith( CONTENT_SUFFIX ) ) {
+              contentFiles.add( file );
+              total += sizeOnDisk( file );
+            }
+          }
+        }
+      }
+      final Map<File, Long> lastModified = new HashMap<File, Long>();
+      for ( File contentFile : contentFiles ) {
+        lastModified.put( contentFile, contentFile.lastModified() );
+      }
+      Collections.sort( contentFiles, new Comparator<File>() {
+        @Override public int compare( File o1, File o2 ) {
+          return lastModified.get( o1 ).compareTo( lastModified.get( o2 ) );
+        }
+      } );
+      long expired = System.currentTimeMillis() - maxDiskAge;
+      for ( File contentFile : contentFiles ) {
+        if ( total <= target && lastModified.get( contentFile ) >= expired ) {
+          break;
+        }
+        long size = sizeOnDisk( contentFile );
+        // The content file goes first, it is what marks the entry as complete
+        if ( contentFile.delete() ) {
+          FileUtils.deleteQuietly( getSourceMapFile( contentFile ) );
+          total -= size;
+        }
+      }
+      diskBytes = total;
+    }
+  }
+
+  private static long sizeOnDisk( File contentFile ) {
+    return contentFile.length() + getSourceMapFile( contentFile ).length();
+  }
+
+  private static File getSourceMapFile( File contentFile ) {
+    String name = contentFile.getName();
+    return new File( contentFile.getParentFile(),
+      name.substring( 0, name.length() - CONTENT_SUFFIX.length() ) + SOURCE_MAP_SUFFIX );
+  }
+
+  private File getFile( String key, String suffix ) {
+    return new File( new File( cacheDir, key.substring( 0, 2 ) ), key + suffix );
+  }
+
+  private static void writeFile( File file, String content ) throws IOException {
+    File tempFile = new File( file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + ".tmp" );
+    FileUtils.writeStringToFile( tempFile, content, UTF_8 );
+    if ( !tempFile.renameTo( file ) ) {
+      // Another thread may have written the same entry meanwhile
+      if ( !file.isFile() ) {
+        FileUtils.deleteQuietly( tempFile );
+        throw new IOException( "Unable to rename " + tempFile + " to " + file );
+      }
+      FileUtils.deleteQuietly( tempFile );
+    }
+  }
+
+  private static long sizeOf( AmdMinifiedScript script ) {
+    long size = script.getContent().length();
+    if ( script.getSourceMap() != null ) {
+      size += script.getSourceMap().length();
+    }
+    return size * 2;
+  }
+
+  private static String sha256( String value ) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance( "SHA-256" );
+    } catch ( NoSuchAlgorithmException e ) {
+      throw new IllegalStateException( e );
+    }
+    byte[] hash = digest.digest( value.getBytes( UTF_8 ) );
+    char[] hex = new char[ hash.length * 2 ];
+    for ( int i = 0; i < hash.length; i++ ) {
+      hex[ i * 2 ] = HEX[ ( hash[ i ] >> 4 ) & 0xF ];
+      hex[ i * 2 + 1 ] = HEX[ hash[ i ] & 0xF ];
+    }
+    return new String( hex );
+  }
+}
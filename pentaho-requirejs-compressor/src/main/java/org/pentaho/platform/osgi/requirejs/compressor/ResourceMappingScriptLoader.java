@@ -0,0 +1,245 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.apache.commons.io.IOUtils;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.pentaho.platform.osgi.requirejs.api.IAmdScriptLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads scripts from the bundles that serve them, following the pax-web resource mappings and the webjar resource
+ * stores the bundles register.
+ * <p/>
+ * A resource store is read from its service properties only: the {@value #ALIAS_PROPERTY} it is served as, a string
+ * or an array of them, and the {@value #PATH_PROPERTY} of the resources in its bundle.
+ */
+public class ResourceMappingScriptLoader implements IAmdScriptLoader {
+  public static final String RESOURCE_MAPPING = "org.ops4j.pax.web.extender.whiteboard.ResourceMapping";
+  public static final String RESOURCE_STORE = "org.pentaho.osgi.platform.webjars.WebjarsResourceStore";
+  public static final String ALIAS_PROPERTY = "alias";
+  public static final String PATH_PROPERTY = "path";
+  private static final String FILTER = "(|(" + Constants.OBJECTCLASS + "=" + RESOURCE_MAPPING + ")("
+    + Constants.OBJECTCLASS + "=" + RESOURCE_STORE + "))";
+  private Logger logger = LoggerFactory.getLogger( getClass() );
+  private final Map<Object, Mapping> mappings = new ConcurrentHashMap<Object, Mapping>();
+  private BundleContext bundleContext;
+  private ServiceTracker<Object, Object> serviceTracker;
+
+  public BundleContext getBundleContext() {
+    return bundleContext;
+  }
+
+  public void setBundleContext( BundleContext bundleContext ) {
+    this.bundleContext = bundleContext;
+  }
+
+  public void init() {
+    Filter filter;
+    try {
+      filter = bundleContext.createFilter( FILTER );
+    } catch ( InvalidSyntaxException e ) {
+      throw new IllegalStateException( e );
+    }
+    serviceTracker = new ServiceTracker<Object, Object>( bundleContext, filter,
+      new ServiceTrackerCustomizer<Object, Object>() {
+        @Override public Object addingService( ServiceReference<Object> reference ) {
+          if ( isResourceStore( reference ) ) {
+            return addStoreMappings( reference );
+          }
+          Object resourceMapping = bundleContext.getService( reference );
+          if ( resourceMapping == null ) {
+            return null;
+          }
+          try {
+            // pax-web isn't a dependency of this bundle, its two getters are read reflectively
+            Method getAlias = resourceMapping.getClass().getMethod( "getAlias" );
+            Method getPath = resourceMapping.getClass().getMethod( "getPath" );
+            addMapping( reference, reference.getBundle(), (String) getAlias.invoke( resourceMapping ),
+              (String) getPath.invoke( resourceMapping ) );
+          } catch ( Exception e ) {
+            logger.warn( "Unable to read resource mapping of bundle " + reference.getBundle().getSymbolicName(), e );
+          }
+          return resourceMapping;
+        }
+
+        @Override public void modifiedService( ServiceReference<Object> reference, Object service ) {
+        }
+
+        @Override public void removedService( ServiceReference<Object> reference, Object service ) {
+          if ( isResourceStore( reference ) ) {
+            for ( Object key : (List<?>) service ) {
+              removeMapping( key );
+            }
+            return;
+          }
+          removeMapping( reference );
+          bundleContext.ungetService( reference );
+        }
+      } );
+    serviceTracker.open( true );
+  }
+
+  public void destroy() {
+    if ( serviceTracker != null ) {
+      serviceTracker.close();
+      serviceTracker = null;
+    }
+    mappings.clear();
+  }
+
+  /**
+   * Makes the resources under <code>path</code> in the bundle available as <code>alias</code>.
+   *
+   * @param key identifies the mapping for {@link #removeMapping(Object)}
+   */
+  public void addMapping( Object key, Bundle bundle, String alias, String path ) {
+    if ( bundle != null && alias != null && path != null ) {
+      mappings.put( key, new Mapping( bundle, trimSlashes( alias ), trimSlashes( path ) ) );
+    }
+  }
+
+  public void removeMapping( Object key ) {
+    mappings.remove( key );
+  }
+
+  @Override public String load( String path ) throws IOException {
+    path = trimSlashes( path );
+    Mapping match = findMapping( path );
+    if ( match == null ) {
+      return null;
+    }
+    URL resource = match.bundle.getResource( match.getResourcePath( path ) );
+    if ( resource == null ) {
+      return null;
+    }
+    InputStream inputStream = resource.openStream();
+    try {
+      return IOUtils.toString( inputStream, "UTF-8" );
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  @Override public List<String> list( String path ) throws IOException {
+    path = trimSlashes( path );
+    Mapping match = findMapping( path );
+    if ( match == null ) {
+      return Collections.emptyList();
+    }
+    Enumeration<URL> entries = match.bundle.findEntries( match.getResourcePath( path ), "*.js", true );
+    if ( entries == null ) {
+      return Collections.emptyList();
+    }
+    List<String> result = new ArrayList<String>();
+    while ( entries.hasMoreElements() ) {
+      String entry = trimSlashes( entries.nextElement().getPath() );
+      if ( entry.startsWith( match.path ) ) {
+        String aliasPath = match.alias + "/" + trimSlashes( entry.substring( match.path.length() ) );
+        result.add( trimSlashes( aliasPath ) );
+      }
+    }
+    return result;
+  }
+
+  private static boolean isResourceStore( ServiceReference<?> reference ) {
+    Object objectClass = reference.getProperty( Constants.OBJECTCLASS );
+    return objectClass instanceof String[] && Arrays.asList( (String[]) objectClass ).contains( RESOURCE_STORE );
+  }
+
+  /**
+   * @return the keys of the mappings added, one for each alias
+   */
+  private List<Object> addStoreMappings( ServiceReference<?> reference ) {
+    Object aliases = reference.getProperty( ALIAS_PROPERTY );
+    Object path = reference.getProperty( PATH_PROPERTY );
+    List<Object> keys = new ArrayList<Object>();
+    if ( !( path instanceof String ) ) {
+      return keys;
+    }
+    for ( Object alias : aliases instanceof Object[] ? (Object[]) aliases : new Object[] { aliases } ) {
+      if ( alias instanceof String ) {
+        List<Object> key = Arrays.asList( reference, alias );
+        addMapping( key, reference.getBundle(), (String) alias, (String) path );
+        keys.add( key );
+      }
+    }
+    return keys;
+  }
+
+  private Mapping findMapping( String path ) {
+    Mapping match = null;
+    for ( Mapping mapping : mappings.values() ) {
+      if ( ( path.equals( mapping.alias ) || mapping.alias.isEmpty() || path.startsWith( mapping.alias + "/" ) )
+        && ( match == null || mapping.alias.length() > match.alias.length() ) ) {
+        match = mapping;
+      }
+    }
+    return match;
+  }
+
+  private static String trimSlashes( String value ) {
+    int start = 0;
+    int end = value.length();
+    while ( start < end && value.charAt( start ) == '/' ) {
+      start++;
+    }
+    while ( end > start && value.charAt( end - 1 ) == '/' ) {
+      end--;
+    }
+    return value.substring( start, end );
+  }
+
+  private static class Mapping {
+    private final Bundle bundle;
+    private final String alias;
+    private final String path;
+
+    private Mapping( Bundle bundle, String alias, String path ) {
+      this.bundle = bundle;
+      this.alias = alias;
+      this.path = path;
+    }
+
+    private String getResourcePath( String aliasPath ) {
+      String rest = aliasPath.substring( alias.length() );
+      return path.isEmpty() ? trimSlashes( rest ) : path + rest;
+    }
+  }
+}
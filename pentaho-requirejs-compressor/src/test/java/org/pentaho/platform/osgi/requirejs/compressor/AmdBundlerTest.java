@@ -0,0 +1,140 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.platform.osgi.requirejs.api.AmdBundle;
+import org.pentaho.platform.osgi.requirejs.api.AmdMinifiedScript;
+import org.pentaho.platform.osgi.requirejs.api.IAmdMinifier;
+import org.pentaho.platform.osgi.requirejs.api.IAmdScriptLoader;
+import org.pentaho.platform.osgi.requirejs.bindings.RequireJsConfig;
+import org.pentaho.platform.osgi.requirejs.bindings.Shim;
+import org.pentaho.platform.osgi.requirejs.compressor.bindings.CompressorModule;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AmdBundlerTest {
+  private Map<String, String> scripts;
+  private RequireJsConfig config;
+  private AmdBundler amdBundler;
+
+  @Before
+  public void setup() {
+    scripts = new HashMap<String, String>();
+    scripts.put( "app-bundle/main.js",
+      "define(['./util', 'lib/jquery', 'text!./main.html', 'require'], function() {});" );
+    scripts.put( "app-bundle/util.js", "define('app/util', ['lib/jquery'], function() {});" );
+    scripts.put( "jquery-bundle/jquery.js", "window.jQuery = {};" );
+    scripts.put( "jquery-bundle/jquery-ui.js", "jQuery.ui = {};" );
+    config = new RequireJsConfig();
+    HashMap<String, String> paths = new HashMap<String, String>();
+    paths.put( "app", "/app-bundle" );
+    paths.put( "lib/jquery", "jquery-bundle/jquery" );
+    paths.put( "lib/jquery-ui", "jquery-bundle/jquery-ui" );
+    paths.put( "cdn", "http://example.com/cdn" );
+    config.setPaths( paths );
+    HashMap<String, Shim> shims = new HashMap<String, Shim>();
+    Shim jquery = new Shim();
+    jquery.setExports( "jQuery" );
+    shims.put( "lib/jquery", jquery );
+    Shim jqueryUi = new Shim();
+    jqueryUi.setDeps( new String[] { "lib/jquery" } );
+    shims.put( "lib/jquery-ui", jqueryUi );
+    config.setShim( shims );
+    amdBundler = new AmdBundler();
+    amdBundler.setScriptLoader( new IAmdScriptLoader() {
+      @Override public String load( String path ) throws IOException {
+        return scripts.get( path );
+      }
+
+      @Override public List<String> list( String path ) throws IOException {
+        return Collections.emptyList();
+      }
+    } );
+    amdBundler.setMinifier( new IAmdMinifier() {
+      @Override public AmdMinifiedScript minify( String moduleName, String source ) {
+        return new AmdMinifiedScript( source, null );
+      }
+
+      @Override public String getOptionsFingerprint() {
+        return "identity";
+      }
+    } );
+  }
+
+  @Test
+  public void testDependenciesComeFirst() throws IOException {
+    AmdBundle bundle = amdBundler.bundle( config, "app/main" );
+    assertEquals( "app/main", bundle.getName() );
+    assertEquals( Arrays.asList( "lib/jquery", "app/util", "app/main" ), bundle.getModules() );
+    assertEquals( Collections.singletonList( "text!./main.html" ), bundle.getUnresolved() );
+    String content = bundle.getContent();
+    assertTrue( content.contains( "define(\"app/main\", ['./util'" ) );
+    assertTrue( content.contains( "define('app/util', ['lib/jquery']" ) );
+    assertTrue( content.contains( "window.jQuery = {};\ndefine(\"lib/jquery\", [], (function (global) { return "
+      + "function () { return global.jQuery; }; }(this)));" ) );
+    assertTrue( content.indexOf( "\"lib/jquery\"" ) < content.indexOf( "'app/util'" ) );
+  }
+
+  @Test
+  public void testShimDependencies() throws IOException {
+    AmdBundle bundle = amdBundler.bundle( config, "lib/jquery-ui" );
+    assertEquals( Arrays.asList( "lib/jquery", "lib/jquery-ui" ), bundle.getModules() );
+    assertTrue( bundle.getContent().endsWith( "define(\"lib/jquery-ui\", [\"lib/jquery\"], function () {});;\n" ) );
+  }
+
+  @Test
+  public void testExcludes() throws IOException {
+    CompressorModule module = new CompressorModule();
+    module.setName( "app/main" );
+    module.setExclude( new String[] { "app/util" } );
+    assertEquals( Collections.singletonList( "app/main" ), amdBundler.bundle( config, module ).getModules() );
+    module.setExclude( null );
+    module.setExcludeShallow( new String[] { "app/util" } );
+    module.setInclude( new String[] { "lib/jquery-ui" } );
+    assertEquals( Arrays.asList( "lib/jquery", "app/main", "lib/jquery-ui" ),
+      amdBundler.bundle( config, module ).getModules() );
+  }
+
+  @Test
+  public void testUnresolved() throws IOException {
+    scripts.put( "app-bundle/main.js", "define(['cdn/lib', 'missing/module'], function() {});" );
+    AmdBundle bundle = amdBundler.bundle( config, "app/main" );
+    assertEquals( Collections.singletonList( "app/main" ), bundle.getModules() );
+    assertEquals( Arrays.asList( "cdn/lib", "missing/module" ), bundle.getUnresolved() );
+  }
+
+  @Test
+  public void testResolve() {
+    assertEquals( "app-bundle/sub/x.js", AmdBundler.resolvePath( config, "app/sub/x" ) );
+    assertEquals( "other/x.js", AmdBundler.resolvePath( config, "other/x.js" ) );
+    assertEquals( "a/c", AmdBundler.resolveRelative( "a/b/m", "../c" ) );
+    assertEquals( "a/b/c", AmdBundler.resolveRelative( "a/b/m", "./c" ) );
+    assertEquals( "c", AmdBundler.resolveRelative( "a/b/m", "c" ) );
+  }
+}
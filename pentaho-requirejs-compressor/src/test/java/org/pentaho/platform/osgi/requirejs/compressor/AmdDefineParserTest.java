@@ -0,0 +1,66 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AmdDefineParserTest {
+  @Test
+  public void testAnonymousModule() {
+    String source = "/* define('comment', ['x']) */\ndefine( [ 'a', \"b/c\" ], function( a, b ) {} );";
+    AmdDefineParser.AmdDefinition definition = AmdDefineParser.parse( source );
+    assertNull( definition.getName() );
+    assertEquals( Arrays.asList( "a", "b/c" ), definition.getDependencies() );
+    assertEquals( source.lastIndexOf( "define(" ) + "define(".length(), definition.getArgumentsOffset() );
+  }
+
+  @Test
+  public void testNamedModule() {
+    AmdDefineParser.AmdDefinition definition =
+      AmdDefineParser.parse( "var s = 'define(\"no\")'; define('my/module', ['dep'], function() {});" );
+    assertEquals( "my/module", definition.getName() );
+    assertEquals( Collections.singletonList( "dep" ), definition.getDependencies() );
+  }
+
+  @Test
+  public void testTemplateLiteral() {
+    AmdDefineParser.AmdDefinition definition = AmdDefineParser
+      .parse( "var s = `define('no', ['x']) // ${ `require('y')` }`;\ndefine( ['a'], function( a ) {} );" );
+    assertNull( definition.getName() );
+    assertEquals( Collections.singletonList( "a" ), definition.getDependencies() );
+  }
+
+  @Test
+  public void testFactoryOnly() {
+    AmdDefineParser.AmdDefinition definition = AmdDefineParser.parse( "define(function(require) { return 1; });" );
+    assertNull( definition.getName() );
+    assertEquals( 0, definition.getDependencies().size() );
+  }
+
+  @Test
+  public void testNotAmd() {
+    assertNull( AmdDefineParser.parse( "window.foo = function() { return $.define( 'x' ); };" ) );
+  }
+}
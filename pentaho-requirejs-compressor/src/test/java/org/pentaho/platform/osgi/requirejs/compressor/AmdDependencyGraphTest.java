@@ -0,0 +1,94 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.platform.osgi.requirejs.api.AmdModule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AmdDependencyGraphTest {
+  private AmdDependencyGraph graph;
+
+  @Before
+  public void setup() {
+    graph = new AmdDependencyGraph.Builder()
+      .addModule( "app/main", Arrays.asList( "app/view", "app/model" ) )
+      .addModule( "app/view", Arrays.asList( "jquery", "app/model" ) )
+      .addModule( "app/model", Collections.singletonList( "app/base" ) )
+      .addModule( "app/base", Collections.<String>emptyList() )
+      .addModule( "cycle/a", Collections.singletonList( "cycle/b" ) )
+      .addModule( "cycle/b", Collections.singletonList( "cycle/a" ) )
+      .build();
+  }
+
+  @Test
+  public void testDirectQueries() {
+    assertEquals( 7, graph.size() );
+    assertTrue( graph.contains( "jquery" ) );
+    assertFalse( graph.isDefined( "jquery" ) );
+    assertTrue( graph.isDefined( "app/main" ) );
+    assertEquals( Arrays.asList( "app/view", "app/model" ), graph.getDependencies( "app/main" ) );
+    assertEquals( new HashSet<String>( Arrays.asList( "app/main", "app/view" ) ),
+      new HashSet<String>( graph.getDependents( "app/model" ) ) );
+    assertEquals( 0, graph.getDependencies( "unknown" ).size() );
+  }
+
+  @Test
+  public void testTransitiveQueries() {
+    assertEquals( new HashSet<String>( Arrays.asList( "app/view", "app/model", "jquery", "app/base" ) ),
+      new HashSet<String>( graph.getTransitiveDependencies( "app/main" ) ) );
+    assertEquals( new HashSet<String>( Arrays.asList( "app/model", "app/view", "app/main" ) ),
+      new HashSet<String>( graph.getTransitiveDependents( "app/base" ) ) );
+    assertEquals( Collections.singletonList( "cycle/b" ), graph.getTransitiveDependencies( "cycle/a" ) );
+  }
+
+  @Test
+  public void testTopologicalOrder() {
+    List<String> order = graph.getTopologicalOrder( Collections.singletonList( "app/main" ) );
+    assertEquals( 5, order.size() );
+    assertEquals( "app/main", order.get( 4 ) );
+    assertTrue( order.indexOf( "app/base" ) < order.indexOf( "app/model" ) );
+    assertTrue( order.indexOf( "app/model" ) < order.indexOf( "app/view" ) );
+    assertTrue( order.indexOf( "jquery" ) < order.indexOf( "app/view" ) );
+    assertEquals( 7, graph.getTopologicalOrder().size() );
+  }
+
+  @Test
+  public void testGetModule() {
+    AmdModule main = graph.getModule( "app/main" );
+    assertEquals( "app/main", main.getName() );
+    AmdModule view = main.getDependencies()[ 0 ];
+    assertEquals( "app/view", view.getName() );
+    assertSame( main.getDependencies()[ 1 ], view.getDependencies()[ 1 ] );
+    AmdModule cycle = graph.getModule( "cycle/a" );
+    assertSame( cycle, cycle.getDependencies()[ 0 ].getDependencies()[ 0 ] );
+    assertNull( graph.getModule( "unknown" ) );
+  }
+}
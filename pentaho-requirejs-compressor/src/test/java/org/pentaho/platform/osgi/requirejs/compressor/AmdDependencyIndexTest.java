@@ -0,0 +1,164 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.pentaho.platform.osgi.requirejs.api.IAmdScriptLoader;
+import org.pentaho.platform.osgi.requirejs.api.IAmdScriptSource;
+import org.pentaho.platform.osgi.requirejs.bindings.RequireJsConfig;
+import org.pentaho.platform.osgi.requirejs.bindings.Shim;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AmdDependencyIndexTest {
+  @Test
+  public void testBuild() throws IOException {
+    final Map<String, String> scripts = new HashMap<String, String>();
+    scripts.put( "app-bundle/main.js", "define(['./util', 'lib/jquery', 'require'], function() {});" );
+    scripts.put( "app-bundle/sub/util.js", "define(['../main'], function() {});" );
+    scripts.put( "app-bundle/util.js", "define([], function() {});" );
+    scripts.put( "jquery-bundle/jquery-ui.js", "jQuery.ui = {};" );
+    AmdDependencyIndex index = new AmdDependencyIndex();
+    index.setScriptLoader( new IAmdScriptLoader() {
+      @Override public String load( String path ) throws IOException {
+        return scripts.get( path );
+      }
+
+      @Override public List<String> list( String path ) throws IOException {
+        List<String> result = new ArrayList<String>();
+        for ( String script : scripts.keySet() ) {
+          if ( script.startsWith( path + "/" ) ) {
+            result.add( script );
+          }
+        }
+        return result;
+      }
+    } );
+    RequireJsConfig config = new RequireJsConfig();
+    HashMap<String, String> paths = new HashMap<String, String>();
+    paths.put( "app", "/app-bundle" );
+    paths.put( "lib/jquery-ui", "jquery-bundle/jquery-ui" );
+    config.setPaths( paths );
+    Shim shim = new Shim();
+    shim.setDeps( new String[] { "lib/jquery" } );
+    HashMap<String, Shim> shims = new HashMap<String, Shim>();
+    shims.put( "lib/jquery-ui", shim );
+    config.setShim( shims );
+
+    AmdDependencyGraph graph =
+      index.build( Collections.<IAmdScriptSource>singletonList( new BundleAmdScriptSource( null, config ) ) );
+    assertEquals( Arrays.asList( "app/util", "lib/jquery" ), graph.getDependencies( "app/main" ) );
+    assertEquals( Collections.singletonList( "app/main" ), graph.getDependencies( "app/sub/util" ) );
+    assertEquals( Collections.singletonList( "lib/jquery" ), graph.getDependencies( "lib/jquery-ui" ) );
+    assertTrue( graph.isDefined( "app/util" ) );
+  }
+
+  @Test
+  public void testGetGraphRebuildsInBackground() throws Exception {
+    final CountDownLatch loading = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final AtomicBoolean block = new AtomicBoolean();
+    AmdDependencyIndex index = new AmdDependencyIndex();
+    index.setScriptLoader( new IAmdScriptLoader() {
+      @Override public String load( String path ) throws IOException {
+        if ( block.get() ) {
+          loading.countDown();
+          try {
+            release.await();
+          } catch ( InterruptedException e ) {
+            throw new IOException( e );
+          }
+        }
+        return "define([], function() {});";
+      }
+
+      @Override public List<String> list( String path ) throws IOException {
+        return Collections.emptyList();
+      }
+    } );
+    BundleContext bundleContext = mock( BundleContext.class );
+    Bundle bundle = mockActiveBundle( 1L );
+    when( bundleContext.getBundles() ).thenReturn( new Bundle[] { bundle } );
+    index.setBundleContext( bundleContext );
+    index.init();
+    try {
+      AmdDependencyGraph graph = index.getGraph();
+      assertTrue( graph.isDefined( "jquery" ) );
+
+      ArgumentCaptor<BundleListener> listener = ArgumentCaptor.forClass( BundleListener.class );
+      verify( bundleContext ).addBundleListener( listener.capture() );
+      block.set( true );
+      listener.getValue().bundleChanged( new BundleEvent( BundleEvent.STARTED, mockActiveBundle( 2L ) ) );
+      loading.await();
+      // Served right away while the rebuild is stuck reading scripts
+      assertSame( graph, index.getGraph() );
+
+      release.countDown();
+      long timeout = System.currentTimeMillis() + 10000L;
+      while ( index.getGraph() == graph && System.currentTimeMillis() < timeout ) {
+        Thread.sleep( 10L );
+      }
+      assertNotSame( graph, index.getGraph() );
+      assertTrue( index.getGraph().isDefined( "jquery" ) );
+    } finally {
+      release.countDown();
+      index.destroy();
+    }
+  }
+
+  private Bundle mockActiveBundle( long bundleId ) {
+    Bundle bundle = mock( Bundle.class );
+    when( bundle.getBundleId() ).thenReturn( bundleId );
+    when( bundle.getState() ).thenReturn( Bundle.ACTIVE );
+    when( bundle.getResource( BundleAmdScriptSource.REQUIRE_JSON_PATH ) )
+      .thenReturn( getClass().getClassLoader().getResource( "testConfig.js" ) );
+    return bundle;
+  }
+
+  @Test
+  public void testFromBundle() throws IOException {
+    Bundle bundle = mock( Bundle.class );
+    when( bundle.getResource( BundleAmdScriptSource.REQUIRE_JSON_PATH ) )
+      .thenReturn( getClass().getClassLoader().getResource( "testConfig.js" ) );
+    BundleAmdScriptSource source = BundleAmdScriptSource.fromBundle( bundle );
+    assertEquals( "../../Scripts/jquery-1.10.2.min", source.getRequireJsConig().getPaths().get( "jquery" ) );
+    assertEquals( null, BundleAmdScriptSource.fromBundle( mock( Bundle.class ) ) );
+  }
+}
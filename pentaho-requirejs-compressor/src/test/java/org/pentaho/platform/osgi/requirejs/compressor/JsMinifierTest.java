@@ -0,0 +1,88 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.junit.Test;
+import org.pentaho.platform.osgi.requirejs.api.AmdMinifiedScript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class JsMinifierTest {
+  private final JsMinifier minifier = new JsMinifier();
+
+  @Test
+  public void testRemovesCommentsAndIndentation() {
+    assertEquals( "var a=1;\nvar b=a+2;\n", minifier
+      .minify( "m", "// leading\n  var a = 1; /* inline */\n\n\n    var b = a + 2; // trailing\n" ).getContent() );
+  }
+
+  @Test
+  public void testKeepsStringsAndRegexes() {
+    String source = "var s=\"a // not a comment\",t='/* nor this */',r=/\\/\\/[/]x/g;";
+    assertEquals( source, minifier.minify( "m", source ).getContent() );
+    assertEquals( "return/a b/.test(x)/2", minifier.minify( "m", "return /a b/.test( x ) / 2" ).getContent() );
+  }
+
+  @Test
+  public void testKeepsTemplateLiterals() {
+    String template = "`a // not a comment\n  ${ b + `c /* ${ '}' } */` }  'd`";
+    assertEquals( "var t=" + template + ";\nvar x=1;",
+      minifier.minify( "m", "var t = " + template + ";\n// comment\nvar x = 1;" ).getContent() );
+  }
+
+  @Test
+  public void testKeepsNeededSpaces() {
+    assertEquals( "var x=a+ +b-(-c);", minifier.minify( "m", "var x = a + +b - ( -c );" ).getContent() );
+    assertEquals( "typeof x", minifier.minify( "m", "typeof   x" ).getContent() );
+    assertEquals( "1 .toString()", minifier.minify( "m", "1 .toString()" ).getContent() );
+  }
+
+  @Test
+  public void testLineBreaksAreKeptForSemicolonInsertion() {
+    assertEquals( "return\nx", minifier.minify( "m", "return /* a\n b */ x" ).getContent() );
+    assertEquals( "a\n++b", minifier.minify( "m", "a\n  ++b" ).getContent() );
+  }
+
+  @Test
+  public void testSourceMap() {
+    AmdMinifiedScript script =
+      new JsMinifier( true, true ).minify( "app/main", "// comment\nvar a = 1;\n\n  var b = 2;\n" );
+    assertEquals( "var a=1;\nvar b=2;\n", script.getContent() );
+    // Output line 0 maps to source line 1, output line 1 to source line 3, column 2
+    assertEquals( "{\"version\":3,\"sources\":[\"app/main.js\"],\"names\":[],\"mappings\":\"AACA;AAEE\"}",
+      script.getSourceMap() );
+    assertNull( minifier.minify( "app/main", "var a;" ).getSourceMap() );
+  }
+
+  @Test
+  public void testOptionsFingerprint() {
+    assertEquals( new JsMinifier().getOptionsFingerprint(), new JsMinifier( true, false ).getOptionsFingerprint() );
+    assertNotEquals( new JsMinifier().getOptionsFingerprint(), new JsMinifier( false ).getOptionsFingerprint() );
+    assertNotEquals( new JsMinifier().getOptionsFingerprint(), new JsMinifier( true, true ).getOptionsFingerprint() );
+  }
+
+  @Test
+  public void testLicenseComments() {
+    String source = "/*! license */\nvar a;";
+    assertEquals( "/*! license */\nvar a;", new JsMinifier( true ).minify( "m", source ).getContent() );
+    assertEquals( "var a;", new JsMinifier( false ).minify( "m", source ).getContent() );
+  }
+}
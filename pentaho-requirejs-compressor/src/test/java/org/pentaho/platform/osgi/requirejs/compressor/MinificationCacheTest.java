@@ -0,0 +1,145 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.platform.osgi.requirejs.api.AmdMinifiedScript;
+import org.pentaho.platform.osgi.requirejs.api.IAmdMinifier;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class MinificationCacheTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  private File cacheDir;
+  private IAmdMinifier minifier;
+
+  @Before
+  public void setup() throws Exception {
+    cacheDir = temporaryFolder.newFolder( "cache" );
+    minifier = spy( new JsMinifier( true, true ) );
+  }
+
+  @Test
+  public void testMemoryHit() {
+    MinificationCache cache = new MinificationCache( minifier );
+    AmdMinifiedScript first = cache.minify( "m", "var a = 1;" );
+    assertSame( first, cache.minify( "m", "var a = 1;" ) );
+    assertEquals( 1, cache.getHits() );
+    assertEquals( 1, cache.getMisses() );
+    verify( minifier, times( 1 ) ).minify( "m", "var a = 1;" );
+
+    cache.minify( "m", "var a = 2;" );
+    assertEquals( 2, cache.getMisses() );
+  }
+
+  @Test
+  public void testDiskHitAfterRestart() {
+    MinificationCache cache = new MinificationCache( minifier );
+    cache.setCacheDir( cacheDir );
+    AmdMinifiedScript first = cache.minify( "m", "var a = 1;" );
+
+    MinificationCache restarted = new MinificationCache( minifier );
+    restarted.setCacheDir( cacheDir );
+    AmdMinifiedScript second = restarted.minify( "m", "var a = 1;" );
+    assertEquals( first.getContent(), second.getContent() );
+    assertEquals( first.getSourceMap(), second.getSourceMap() );
+    assertEquals( 1, restarted.getDiskHits() );
+    assertEquals( 0, restarted.getMisses() );
+    verify( minifier, times( 1 ) ).minify( "m", "var a = 1;" );
+  }
+
+  @Test
+  public void testOptionsArePartOfTheKey() {
+    MinificationCache cache = new MinificationCache( minifier );
+    cache.setCacheDir( cacheDir );
+    cache.minify( "m", "/*! license */ var a = 1;" );
+
+    MinificationCache other = new MinificationCache( new JsMinifier( false ) );
+    other.setCacheDir( cacheDir );
+    AmdMinifiedScript script = other.minify( "m", "/*! license */ var a = 1;" );
+    assertEquals( "var a=1;", script.getContent() );
+    assertNull( script.getSourceMap() );
+    assertEquals( 1, other.getMisses() );
+  }
+
+  @Test
+  public void testMemoryIsBounded() {
+    MinificationCache cache = new MinificationCache( minifier );
+    cache.setMaxMemoryBytes( 200 );
+    AmdMinifiedScript first = cache.minify( "m", "var a = 1;" );
+    cache.minify( "m", "var b = 2;" );
+    cache.minify( "m", "var c = 3;" );
+    // The least recently used output was evicted and is minified again
+    cache.minify( "m", "var a = 1;" );
+    assertEquals( 4, cache.getMisses() );
+    verify( minifier, times( 2 ) ).minify( "m", "var a = 1;" );
+    assertEquals( first.getContent(), cache.minify( "m", "var a = 1;" ).getContent() );
+  }
+
+  @Test
+  public void testDiskIsBounded() {
+    MinificationCache cache = new MinificationCache( new JsMinifier() );
+    cache.setCacheDir( cacheDir );
+    cache.setMaxDiskBytes( 20 );
+    cache.init();
+    cache.minify( "m", "var a = 1;" );
+    cache.minify( "m", "var b = 2;" );
+    cache.minify( "m", "var c = 3;" );
+    // 8 bytes each, the oldest ones were deleted to get back under the limit
+    assertEquals( 1, countContentFiles() );
+
+    MinificationCache restarted = new MinificationCache( new JsMinifier() );
+    restarted.setCacheDir( cacheDir );
+    restarted.minify( "m", "var c = 3;" );
+    assertEquals( 1, restarted.getDiskHits() );
+  }
+
+  @Test
+  public void testUnusedOutputsExpire() {
+    MinificationCache cache = new MinificationCache( minifier );
+    cache.setCacheDir( cacheDir );
+    cache.minify( "m", "var a = 1;" );
+    cache.minify( "m", "var b = 2;" );
+    assertEquals( 2, countContentFiles() );
+    for ( File file : FileUtils.listFiles( cacheDir, null, true ) ) {
+      file.setLastModified( System.currentTimeMillis() - 2 * MinificationCache.DEFAULT_MAX_DISK_AGE );
+    }
+
+    MinificationCache restarted = new MinificationCache( minifier );
+    restarted.setCacheDir( cacheDir );
+    restarted.init();
+    assertEquals( 0, FileUtils.listFiles( cacheDir, null, true ).size() );
+  }
+
+  private int countContentFiles() {
+    return FileUtils.listFiles( cacheDir, new String[] { "js" }, true ).size();
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+
+package org.pentaho.platform.osgi.requirejs.compressor;
+
+import org.apache.felix.framework.Felix;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ResourceMappingScriptLoaderTest {
+  private static final String WEBJAR_PATH = "META-INF/resources/webjars/angularjs/1.3.0";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testLoadUsesLongestAlias() throws IOException {
+    Bundle bundle = mock( Bundle.class );
+    Bundle other = mock( Bundle.class );
+    when( bundle.getResource( "META-INF/resources/webjars/jquery/1.9.1/jquery.js" ) ).thenReturn(
+      getClass().getClassLoader().getResource( "testConfig.js" ) );
+    ResourceMappingScriptLoader loader = new ResourceMappingScriptLoader();
+    loader.addMapping( "other", other, "/jquery", "/other" );
+    loader.addMapping( "webjar", bundle, "/jquery/1.9.1", "/META-INF/resources/webjars/jquery/1.9.1" );
+    assertEquals( "{", loader.load( "/jquery/1.9.1/jquery.js" ).trim().substring( 0, 1 ) );
+    assertNull( loader.load( "jquery/1.9.1/missing.js" ) );
+    assertNull( loader.load( "jquery2/1.9.1/jquery.js" ) );
+    loader.removeMapping( "webjar" );
+    assertNull( loader.load( "/jquery/1.9.1/jquery.js" ) );
+  }
+
+  @Test
+  public void testList() throws IOException {
+    Bundle bundle = mock( Bundle.class );
+    when( bundle.findEntries( "web/lib", "*.js", true ) ).thenReturn( Collections.enumeration( Arrays.asList(
+      new URL( "file:/web/lib/a.js" ), new URL( "file:/web/lib/sub/b.js" ) ) ) );
+    ResourceMappingScriptLoader loader = new ResourceMappingScriptLoader();
+    loader.addMapping( "app", bundle, "/app/", "/web" );
+    assertEquals( Arrays.asList( "app/lib/a.js", "app/lib/sub/b.js" ), loader.list( "/app/lib" ) );
+    assertEquals( 0, loader.list( "other" ).size() );
+  }
+
+  @Test
+  public void testLoadsFromWebjarResourceStores() throws Exception {
+    Map<String, Object> configuration = new HashMap<String, Object>();
+    configuration.put( Constants.FRAMEWORK_STORAGE, temporaryFolder.newFolder( "felix" ).getAbsolutePath() );
+    configuration.put( "felix.service.urlhandlers", "false" );
+    Felix felix = new Felix( configuration );
+    felix.start();
+    try {
+      Bundle webjar = felix.getBundleContext().installBundle( "test:webjar", webjar() );
+      webjar.start();
+      ResourceMappingScriptLoader loader = new ResourceMappingScriptLoader();
+      loader.setBundleContext( felix.getBundleContext() );
+      loader.init();
+
+      // Registered as by the blueprint of a transformed webjar
+      Hashtable<String, Object> properties = new Hashtable<String, Object>();
+      properties.put( ResourceMappingScriptLoader.ALIAS_PROPERTY, new String[] { "/angularjs", "/angularjs/1.3.0" } );
+      properties.put( ResourceMappingScriptLoader.PATH_PROPERTY, "/" + WEBJAR_PATH );
+      ServiceRegistration<?> store = webjar.getBundleContext().registerService(
+        ResourceMappingScriptLoader.RESOURCE_STORE, new ServiceFactory<Object>() {
+          @Override public Object getService( Bundle bundle, ServiceRegistration<Object> registration ) {
+            return new Object();
+          }
+
+          @Override public void ungetService( Bundle bundle, ServiceRegistration<Object> registration,
+                                              Object service ) {
+          }
+        }, properties );
+      assertTrue( loader.load( "angularjs/angular.js" ).startsWith( "define(" ) );
+      assertTrue( loader.load( "/angularjs/1.3.0/angular.js" ).startsWith( "define(" ) );
+      assertEquals( Arrays.asList( "angularjs/angular.js" ), loader.list( "angularjs" ) );
+
+      store.unregister();
+      assertNull( loader.load( "angularjs/angular.js" ) );
+      loader.destroy();
+    } finally {
+      felix.stop();
+      felix.waitForStop( 10000L );
+    }
+  }
+
+  private static ByteArrayInputStream webjar() throws IOException {
+    Manifest manifest = new Manifest();
+    Attributes attributes = manifest.getMainAttributes();
+    attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+    attributes.putValue( Constants.BUNDLE_MANIFESTVERSION, "2" );
+    attributes.putValue( Constants.BUNDLE_SYMBOLICNAME, "pentaho-webjars-angularjs" );
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JarOutputStream jarOutputStream = new JarOutputStream( bytes, manifest );
+    jarOutputStream.putNextEntry( new ZipEntry( WEBJAR_PATH + "/angular.js" ) );
+    jarOutputStream.write( "define( 'angular', [], function() {} );".getBytes( "UTF-8" ) );
+    jarOutputStream.close();
+    return new ByteArrayInputStream( bytes.toByteArray() );
+  }
+}
@@ -0,0 +1,46 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Receives timings of the bootstrap scan of bundle RequireJS resources done by {@link RequireJsConfigManager#init()}.
+ */
+public interface BundleScanMetrics {
+  /**
+   * Called from the scanning thread once a bundle's resources were read, whether successfully or not.
+   *
+   * @param bundle    the scanned bundle
+   * @param scanNanos the time spent reading and parsing the bundle's resources
+   */
+  void bundleScanned( Bundle bundle, long scanNanos );
+
+  /**
+   * Called once all bundles were scanned, before the results are merged.
+   *
+   * @param bundleCount the number of scanned bundles
+   * @param totalNanos  the wall clock time of the whole scan
+   */
+  void scanCompleted( int bundleCount, long totalNanos );
+}
@@ -0,0 +1,197 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs configuration rebuilds on a single worker thread, collapsing bursts of requests into one rebuild.
+ * <p/>
+ * A requested rebuild waits for a quiet period without further requests before it runs; every request arriving in
+ * the meantime replaces the pending rebuild and gets the same {@link Future}. The wait is capped by a max latency,
+ * measured from the first request of the burst, so that a steady stream of requests cannot postpone it forever.
+ */
+public class CoalescingRebuildScheduler<T> {
+  public static final long DEFAULT_QUIET_PERIOD = 50L;
+  public static final long DEFAULT_MAX_LATENCY = 1000L;
+
+  private final ScheduledThreadPoolExecutor executor;
+  private final AtomicLong rebuildsRequested = new AtomicLong();
+  private final AtomicLong rebuildsExecuted = new AtomicLong();
+  private final Runnable runPending = new Runnable() {
+    @Override public void run() {
+      runPending();
+    }
+  };
+  private volatile long quietPeriod = DEFAULT_QUIET_PERIOD;
+  private volatile long maxLatency = DEFAULT_MAX_LATENCY;
+  private volatile Listener<T> listener;
+  private PendingRebuild<T> pending;
+  private boolean shutdown;
+
+  public CoalescingRebuildScheduler() {
+    executor = new ScheduledThreadPoolExecutor( 1, new ThreadFactory() {
+      @Override public Thread newThread( Runnable r ) {
+        Thread thread = new Thread( r, "RequireJS config rebuild" );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+    executor.setRemoveOnCancelPolicy( true );
+  }
+
+  public long getQuietPeriod() {
+    return quietPeriod;
+  }
+
+  /**
+   * @param quietPeriod milliseconds without new requests before a pending rebuild runs
+   */
+  public void setQuietPeriod( long quietPeriod ) {
+    this.quietPeriod = Math.max( 0L, quietPeriod );
+  }
+
+  public long getMaxLatency() {
+    return maxLatency;
+  }
+
+  /**
+   * @param maxLatency maximum milliseconds between the first request of a burst and the start of its rebuild
+   */
+  public void setMaxLatency( long maxLatency ) {
+    this.maxLatency = Math.max( 0L, maxLatency );
+  }
+
+  /**
+   * @param listener notified on the worker thread of every rebuild that succeeds, once its future is done
+   */
+  public void setListener( Listener<T> listener ) {
+    this.listener = listener;
+  }
+
+  public long getRebuildsRequested() {
+    return rebuildsRequested.get();
+  }
+
+  public long getRebuildsExecuted() {
+    return rebuildsExecuted.get();
+  }
+
+  /**
+   * Requests a rebuild, replacing any rebuild that has not started yet.
+   *
+   * @param rebuild the rebuild to run
+   * @return the future of the rebuild that will actually run, already cancelled if the scheduler was shut down
+   */
+  public synchronized Future<T> schedule( Callable<T> rebuild ) {
+    if ( shutdown ) {
+      FutureTask<T> cancelled = new FutureTask<T>( rebuild );
+      cancelled.cancel( false );
+      return cancelled;
+    }
+    rebuildsRequested.incrementAndGet();
+    long now = System.nanoTime();
+    long dueTime = now + TimeUnit.MILLISECONDS.toNanos( quietPeriod );
+    if ( pending == null ) {
+      pending = new PendingRebuild<T>( now, rebuild );
+    } else {
+      pending.rebuild = rebuild;
+      dueTime = Math.min( dueTime, pending.firstRequested + TimeUnit.MILLISECONDS.toNanos( maxLatency ) );
+      if ( dueTime <= pending.dueTime ) {
+        return pending.futureTask;
+      }
+      pending.timer.cancel( false );
+    }
+    pending.dueTime = dueTime;
+    pending.timer = executor.schedule( runPending, dueTime - now, TimeUnit.NANOSECONDS );
+    return pending.futureTask;
+  }
+
+  private void runPending() {
+    PendingRebuild<T> toRun;
+    synchronized ( this ) {
+      toRun = pending;
+      // A stale timer whose cancellation came too late, the pending rebuild has been postponed
+      if ( toRun == null || System.nanoTime() < toRun.dueTime ) {
+        return;
+      }
+      pending = null;
+    }
+    rebuildsExecuted.incrementAndGet();
+    toRun.futureTask.run();
+    Listener<T> listener = this.listener;
+    if ( listener != null && !toRun.futureTask.isCancelled() ) {
+      T result;
+      try {
+        result = toRun.futureTask.get();
+      } catch ( InterruptedException e ) {
+        return;
+      } catch ( ExecutionException e ) {
+        // Reported to whoever waits on the future
+        return;
+      }
+      listener.rebuilt( result );
+    }
+  }
+
+  /**
+   * Stops the worker thread, cancelling the pending rebuild if any.
+   */
+  public synchronized void shutdown() {
+    shutdown = true;
+    if ( pending != null ) {
+      pending.futureTask.cancel( false );
+      pending = null;
+    }
+    executor.shutdownNow();
+  }
+
+  public interface Listener<T> {
+    void rebuilt( T result );
+  }
+
+  private static class PendingRebuild<T> implements Callable<T> {
+    private final long firstRequested;
+    private final FutureTask<T> futureTask = new FutureTask<T>( this );
+    private volatile Callable<T> rebuild;
+    private long dueTime;
+    private ScheduledFuture<?> timer;
+
+    private PendingRebuild( long firstRequested, Callable<T> rebuild ) {
+      this.firstRequested = firstRequested;
+      this.rebuild = rebuild;
+    }
+
+    @Override public T call() throws Exception {
+      return rebuild.call();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable piece of UTF-8 encoded JSON (or script), either a leaf holding bytes or a concatenation of other
+ * fragments.
+ * <p/>
+ * Concatenation never copies bytes, so a fragment built from mostly unchanged parts shares them with the fragments
+ * it was built from.
+ */
+public final class JsonFragment {
+  public static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+  private final byte[] bytes;
+  private final JsonFragment[] parts;
+  private final int length;
+
+  private JsonFragment( byte[] bytes ) {
+    this.bytes = bytes;
+    this.parts = null;
+    this.length = bytes.length;
+  }
+
+  private JsonFragment( JsonFragment[] parts, int length ) {
+    this.bytes = null;
+    this.parts = parts;
+    this.length = length;
+  }
+
+  public static JsonFragment of( String json ) {
+    return new JsonFragment( json.getBytes( UTF_8 ) );
+  }
+
+  public static JsonFragment concat( List<JsonFragment> fragments ) {
+    JsonFragment[] parts = fragments.toArray( new JsonFragment[ fragments.size() ] );
+    int length = 0;
+    for ( JsonFragment part : parts ) {
+      length += part.length;
+    }
+    return new JsonFragment( parts, length );
+  }
+
+  /**
+   * @return the number of bytes of this fragment
+   */
+  public int length() {
+    return length;
+  }
+
+  public void writeTo( OutputStream outputStream ) throws IOException {
+    if ( bytes != null ) {
+      outputStream.write( bytes, 0, bytes.length );
+    } else {
+      for ( JsonFragment part : parts ) {
+        part.writeTo( outputStream );
+      }
+    }
+  }
+
+  /**
+   * Copies the bytes of this fragment into target.
+   *
+   * @return the offset following the copied bytes
+   */
+  public int writeTo( byte[] target, int offset ) {
+    if ( bytes != null ) {
+      System.arraycopy( bytes, 0, target, offset, bytes.length );
+      return offset + bytes.length;
+    }
+    for ( JsonFragment part : parts ) {
+      offset = part.writeTo( target, offset );
+    }
+    return offset;
+  }
+
+  public byte[] toByteArray() {
+    byte[] result = new byte[ length ];
+    writeTo( result, 0 );
+    return result;
+  }
+
+  /**
+   * @return whether both fragments hold the same bytes, however they are split in parts
+   */
+  public boolean contentEquals( JsonFragment other ) {
+    if ( other == this ) {
+      return true;
+    }
+    return other != null && length == other.length && Arrays.equals( toByteArray(), other.toByteArray() );
+  }
+
+  @Override public String toString() {
+    return new String( bytes != null ? bytes : toByteArray(), UTF_8 );
+  }
+}
@@ -0,0 +1,78 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Follows the services registered with {@link RequireJsConfigManager#BATCH_PROPERTY}, each one keeps a batch open on
+ * the manager for as long as it is registered.
+ */
+public class RequireJsBatchListener implements ServiceListener {
+  private final RequireJsConfigManager requireJsConfigManager;
+  private final Set<ServiceReference<?>> batches = new HashSet<ServiceReference<?>>();
+
+  public RequireJsBatchListener( RequireJsConfigManager requireJsConfigManager ) {
+    this.requireJsConfigManager = requireJsConfigManager;
+  }
+
+  @Override
+  public void serviceChanged( ServiceEvent event ) {
+    switch( event.getType() ) {
+      case ServiceEvent.REGISTERED:
+        batchOpened( event.getServiceReference() );
+        break;
+      case ServiceEvent.UNREGISTERING:
+      case ServiceEvent.MODIFIED_ENDMATCH:
+        batchClosed( event.getServiceReference() );
+        break;
+    }
+  }
+
+  /**
+   * Opens a batch for the service unless it is already followed, a service can be seen both by the initial lookup and
+   * by its registration event.
+   */
+  public void batchOpened( ServiceReference<?> serviceReference ) {
+    synchronized ( batches ) {
+      if ( !batches.add( serviceReference ) ) {
+        return;
+      }
+    }
+    requireJsConfigManager.beginBatch();
+  }
+
+  public void batchClosed( ServiceReference<?> serviceReference ) {
+    synchronized ( batches ) {
+      if ( !batches.remove( serviceReference ) ) {
+        return;
+      }
+    }
+    requireJsConfigManager.endBatch();
+  }
+}
@@ -23,12 +23,15 @@
 package org.pentaho.js.require;
 
 import org.osgi.framework.BundleEvent;
-import org.osgi.framework.BundleListener;
+import org.osgi.framework.SynchronousBundleListener;
 
 /**
  * Created by bryan on 8/15/14.
+ * <p/>
+ * Synchronous, so a bundle's change is applied before its start or stop returns. A batch that closes right after
+ * starting its bundles then rebuilds with all of them.
  */
-public class RequireJsBundleListener implements BundleListener {
+public class RequireJsBundleListener implements SynchronousBundleListener {
   private final RequireJsConfigManager requireJsConfigManager;
 
   public RequireJsBundleListener( RequireJsConfigManager requireJsConfigManager ) {
@@ -42,6 +45,13 @@ public class RequireJsBundleListener implements BundleListener {
       case BundleEvent.STOPPED:
         requireJsConfigManager.bundleChanged( event.getBundle() );
         break;
+      case BundleEvent.INSTALLED:
+      case BundleEvent.UPDATED:
+        requireJsConfigManager.bundleInstalled( event.getBundle() );
+        break;
+      case BundleEvent.UNINSTALLED:
+        requireJsConfigManager.bundleUninstalled( event.getBundle() );
+        break;
     }
   }
 }
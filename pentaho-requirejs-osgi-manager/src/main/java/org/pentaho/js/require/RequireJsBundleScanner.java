@@ -0,0 +1,129 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.json.simple.parser.ParseException;
+import org.osgi.framework.Bundle;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads the RequireJS resources of many bundles at once on a bounded fork-join pool.
+ * <p/>
+ * Bundles are only read and parsed here, the results are returned in bundle order so that the manager can merge them
+ * in a single pass afterwards.
+ */
+public class RequireJsBundleScanner {
+  public static final int DEFAULT_PARALLELISM = 4;
+  // Splitting further than this costs more than reading a bundle that has no RequireJS resources
+  private static final int THRESHOLD = 4;
+
+  private final RequireJsConfigManager manager;
+  private final int parallelism;
+  private final BundleScanMetrics metrics;
+
+  public RequireJsBundleScanner( RequireJsConfigManager manager, int parallelism, BundleScanMetrics metrics ) {
+    this.manager = manager;
+    this.parallelism = Math.max( 1, Math.min( parallelism, Runtime.getRuntime().availableProcessors() ) );
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return for each bundle, in the same order, its resources or null if it has none
+   * @throws IOException    if reading one of the bundles failed
+   * @throws ParseException if one of the bundles has invalid json
+   */
+  public List<RequireJsConfigManager.BundleResources> scan( Bundle[] bundles ) throws IOException, ParseException {
+    RequireJsConfigManager.BundleResources[] results = new RequireJsConfigManager.BundleResources[ bundles.length ];
+    Exception[] exceptions = new Exception[ bundles.length ];
+    long start = System.nanoTime();
+    if ( parallelism == 1 || bundles.length <= THRESHOLD ) {
+      new ScanTask( bundles, results, exceptions, 0, bundles.length ).compute();
+    } else {
+      ForkJoinPool forkJoinPool = new ForkJoinPool( parallelism );
+      try {
+        forkJoinPool.invoke( new ScanTask( bundles, results, exceptions, 0, bundles.length ) );
+      } finally {
+        forkJoinPool.shutdown();
+      }
+    }
+    if ( metrics != null ) {
+      metrics.scanCompleted( bundles.length, System.nanoTime() - start );
+    }
+    // Report the first failure in bundle order, as the serial scan did
+    for ( Exception exception : exceptions ) {
+      if ( exception instanceof IOException ) {
+        throw (IOException) exception;
+      } else if ( exception instanceof ParseException ) {
+        throw (ParseException) exception;
+      } else if ( exception != null ) {
+        throw (RuntimeException) exception;
+      }
+    }
+    return Arrays.asList( results );
+  }
+
+  private class ScanTask extends RecursiveAction {
+    private final Bundle[] bundles;
+    private final RequireJsConfigManager.BundleResources[] results;
+    private final Exception[] exceptions;
+    private final int from;
+    private final int to;
+
+    private ScanTask( Bundle[] bundles, RequireJsConfigManager.BundleResources[] results, Exception[] exceptions,
+                      int from, int to ) {
+      this.bundles = bundles;
+      this.results = results;
+      this.exceptions = exceptions;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override protected void compute() {
+      if ( to - from > THRESHOLD ) {
+        int middle = ( from + to ) >>> 1;
+        invokeAll( new ScanTask( bundles, results, exceptions, from, middle ),
+          new ScanTask( bundles, results, exceptions, middle, to ) );
+        return;
+      }
+      for ( int i = from; i < to; i++ ) {
+        if ( manager.isDestroyed() ) {
+          return;
+        }
+        long start = System.nanoTime();
+        try {
+          results[ i ] = manager.loadBundleResources( bundles[ i ] );
+        } catch ( Exception e ) {
+          exceptions[ i ] = e;
+        }
+        if ( metrics != null ) {
+          metrics.bundleScanned( bundles[ i ], System.nanoTime() - start );
+        }
+      }
+    }
+  }
+}
@@ -27,8 +27,13 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -36,12 +41,17 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Created by bryan on 8/5/14.
@@ -50,14 +60,48 @@ public class RequireJsConfigManager {
   public static final String REQUIRE_JSON_PATH = "META-INF/js/require.json";
   public static final String EXTERNAL_RESOURCES_JSON_PATH = "META-INF/js/externalResources.json";
   public static final String STATIC_RESOURCES_JSON_PATH = "META-INF/js/staticResources.json";
+  /**
+   * Service property marking a batch of bundle changes in progress. While any service carrying it is registered,
+   * bundle changes are applied but the configuration is only rebuilt once the last of them is unregistered.
+   */
+  public static final String BATCH_PROPERTY = "org.pentaho.requirejs.batch";
+  public static final String BATCH_FILTER = "(" + BATCH_PROPERTY + "=*)";
+  private final Logger logger = LoggerFactory.getLogger( getClass() );
   private final Map<Long, JSONObject> configMap = new HashMap<Long, JSONObject>();
   private final Map<Long, RequireJsConfiguration> requireConfigMap = new HashMap<Long, RequireJsConfiguration>();
-  private final JSONParser parser = new JSONParser();
+  private final RequireJsMergeTree mergeTree = new RequireJsMergeTree();
+  // Guarded by configMap, the snapshot fingerprint entries of the bundles as they were when they were last read
+  private final SortedMap<Long, String> fingerprintEntries = new TreeMap<Long, String>();
+  // Guarded by configMap, the bundles whose events were handled while bootstrapping, the scan is older than those
+  private final Set<Long> changedWhileBootstrapping = new HashSet<Long>();
+  // JSONParser keeps state between calls, bundle events and the bootstrap scan each get their own
+  private final ThreadLocal<JSONParser> parser = new ThreadLocal<JSONParser>() {
+    @Override protected JSONParser initialValue() {
+      return new JSONParser();
+    }
+  };
   private BundleContext bundleContext;
-  private ExecutorService executorService = Executors.newCachedThreadPool();
-  private volatile Future<String> cache;
+  private RequireJsBundleListener bundleListener;
+  private RequireJsBatchListener batchListener;
+  // Guarded by configMap
+  private int openBatches;
+  private boolean batchInvalidated;
+  private final CoalescingRebuildScheduler<JsonFragment> rebuildScheduler =
+    new CoalescingRebuildScheduler<JsonFragment>();
+  private volatile Future<JsonFragment> cache;
+  // The last configuration computed, served once rebuilds are cancelled by destroy()
+  private volatile JsonFragment lastConfig;
   private volatile long lastModified;
   private String contextRoot = "/";
+  private int bootstrapParallelism = RequireJsBundleScanner.DEFAULT_PARALLELISM;
+  private BundleScanMetrics bundleScanMetrics;
+  private boolean snapshotEnabled = true;
+  private volatile RequireJsConfigSnapshot snapshot;
+  // Only used by the rebuild thread, the fingerprint of the bundles the last rebuild was made from
+  private String rebuiltFingerprint;
+  private volatile boolean bootstrapping;
+  private volatile Thread validationThread;
+  private volatile boolean destroyed;
 
   public BundleContext getBundleContext() {
     return bundleContext;
@@ -69,50 +113,70 @@ public class RequireJsConfigManager {
 
   public boolean updateBundleContext( Bundle bundle ) throws IOException, ParseException {
     boolean shouldInvalidate = updateBundleContextStopped( bundle );
+    BundleResources bundleResources = loadBundleResources( bundle );
+    if ( bundleResources == null ) {
+      return shouldInvalidate;
+    } else {
+      return applyBundleResources( bundle, bundleResources );
+    }
+  }
+
+  /**
+   * Reads and parses the RequireJS resources of a bundle without touching the manager's state, so it can be called
+   * concurrently for different bundles.
+   *
+   * @return the parsed resources or null if the bundle has neither a require.json nor an externalResources.json
+   */
+  BundleResources loadBundleResources( Bundle bundle ) throws IOException, ParseException {
     URL configFileUrl = bundle.getResource( REQUIRE_JSON_PATH );
     URL externalResourcesUrl = bundle.getResource( EXTERNAL_RESOURCES_JSON_PATH );
     if ( configFileUrl == null && externalResourcesUrl == null ) {
-      return shouldInvalidate;
-    } else {
-      JSONObject requireJsonObject = loadJsonObject( configFileUrl );
-      JSONObject externalResourceJsonObject = loadJsonObject( externalResourcesUrl );
-      JSONObject staticResourceJsonObject = loadJsonObject( bundle.getResource( STATIC_RESOURCES_JSON_PATH ) );
+      return null;
+    }
+    return new BundleResources( loadJsonObject( configFileUrl ), loadJsonObject( externalResourcesUrl ),
+      loadJsonObject( bundle.getResource( STATIC_RESOURCES_JSON_PATH ) ) );
+  }
 
-      boolean result = false;
-      synchronized ( configMap ) {
-        if ( requireJsonObject != null ) {
-          configMap.put( bundle.getBundleId(), requireJsonObject );
-          result = true;
-        }
-        if ( externalResourceJsonObject != null ) {
-          List<String> requireJsList = (List<String>) externalResourceJsonObject.get( "requirejs" );
-          if ( requireJsList != null ) {
-            if ( staticResourceJsonObject != null ) {
-              List<String> translatedList = new ArrayList<String>( requireJsList.size() );
-              for ( String element : requireJsList ) {
-                boolean found = false;
-                for ( Object key : staticResourceJsonObject.keySet() ) {
-                  String strKey = key.toString();
-                  if ( element.startsWith( strKey ) ) {
-                    String value = staticResourceJsonObject.get( key ).toString();
-                    translatedList.add( value + element.substring( strKey.length() ) );
-                    found = true;
-                    break;
-                  }
-                }
-                if ( !found ) {
-                  translatedList.add( element );
+  boolean applyBundleResources( Bundle bundle, BundleResources bundleResources ) {
+    JSONObject requireJsonObject = bundleResources.requireJson;
+    JSONObject externalResourceJsonObject = bundleResources.externalResourcesJson;
+    JSONObject staticResourceJsonObject = bundleResources.staticResourcesJson;
+
+    boolean result = false;
+    synchronized ( configMap ) {
+      if ( requireJsonObject != null ) {
+        mergeTree.apply( bundle.getBundleId(), requireJsonObject );
+        configMap.put( bundle.getBundleId(), requireJsonObject );
+        result = true;
+      }
+      if ( externalResourceJsonObject != null ) {
+        List<String> requireJsList = (List<String>) externalResourceJsonObject.get( "requirejs" );
+        if ( requireJsList != null ) {
+          if ( staticResourceJsonObject != null ) {
+            List<String> translatedList = new ArrayList<String>( requireJsList.size() );
+            for ( String element : requireJsList ) {
+              boolean found = false;
+              for ( Object key : staticResourceJsonObject.keySet() ) {
+                String strKey = key.toString();
+                if ( element.startsWith( strKey ) ) {
+                  String value = staticResourceJsonObject.get( key ).toString();
+                  translatedList.add( value + element.substring( strKey.length() ) );
+                  found = true;
+                  break;
                 }
               }
-              requireJsList = translatedList;
+              if ( !found ) {
+                translatedList.add( element );
+              }
             }
-            requireConfigMap.put( bundle.getBundleId(), new RequireJsConfiguration( bundle, requireJsList ) );
-            result = true;
+            requireJsList = translatedList;
           }
+          requireConfigMap.put( bundle.getBundleId(), new RequireJsConfiguration( bundle, requireJsList ) );
+          result = true;
         }
       }
-      return result;
     }
+    return result;
   }
 
   private JSONObject loadJsonObject( URL url ) throws IOException, ParseException {
@@ -127,7 +191,7 @@ public class RequireJsConfigManager {
     try {
       inputStreamReader = new InputStreamReader( urlConnection.getInputStream() );
       bufferedReader = new BufferedReader( inputStreamReader );
-      return (JSONObject) parser.parse( bufferedReader );
+      return (JSONObject) parser.get().parse( bufferedReader );
     } finally {
       if ( bufferedReader != null ) {
         bufferedReader.close();
@@ -147,43 +211,129 @@ public class RequireJsConfigManager {
     synchronized ( configMap ) {
       bundleConfig = configMap.remove( bundle.getBundleId() );
       requireJsConfiguration = requireConfigMap.remove( bundle.getBundleId() );
+      if ( bundleConfig != null ) {
+        mergeTree.retract( bundle.getBundleId(), bundleConfig );
+      }
     }
     return bundleConfig != null || requireJsConfiguration != null;
   }
 
   public void invalidateCache( boolean shouldInvalidate ) {
-    if ( shouldInvalidate ) {
+    // While bundles are read in the background the snapshot is served, the bootstrap rebuilds once it's done
+    if ( shouldInvalidate && !bootstrapping ) {
       synchronized ( configMap ) {
-        cache = executorService.submit( new RebuildCacheCallable( new HashMap<Long, JSONObject>( this.configMap ),
-          new ArrayList<RequireJsConfiguration>( requireConfigMap.values() ) ) );
+        if ( openBatches > 0 ) {
+          batchInvalidated = true;
+          return;
+        }
+        cache = rebuildScheduler.schedule( persistent( new RebuildCacheCallable( mergeTree,
+          new ArrayList<RequireJsConfiguration>( requireConfigMap.values() ) ),
+          new TreeMap<Long, String>( fingerprintEntries ) ) );
         lastModified = System.currentTimeMillis();
       }
     }
   }
 
+  /**
+   * Holds back rebuilds until the matching {@link #endBatch()}, batches may overlap.
+   */
+  public void beginBatch() {
+    synchronized ( configMap ) {
+      openBatches++;
+    }
+  }
+
+  /**
+   * Ends a batch started by {@link #beginBatch()}, rebuilding once if the last open batch changed the configuration.
+   */
+  public void endBatch() {
+    boolean shouldInvalidate = false;
+    synchronized ( configMap ) {
+      if ( openBatches > 0 && --openBatches == 0 ) {
+        shouldInvalidate = batchInvalidated;
+        batchInvalidated = false;
+      }
+    }
+    invalidateCache( shouldInvalidate );
+  }
+
+  public int getOpenBatches() {
+    synchronized ( configMap ) {
+      return openBatches;
+    }
+  }
+
+  /**
+   * Records which bundles a rebuild is made from, the snapshot is written from the result by {@link #rebuilt}
+   * once the rebuild's future is done.
+   */
+  private Callable<JsonFragment> persistent( final Callable<JsonFragment> rebuild,
+                                            final SortedMap<Long, String> builtFrom ) {
+    if ( snapshot == null ) {
+      return rebuild;
+    }
+    return new Callable<JsonFragment>() {
+      @Override public JsonFragment call() throws Exception {
+        JsonFragment config = rebuild.call();
+        rebuiltFingerprint = RequireJsConfigSnapshot.fingerprint( builtFrom );
+        return config;
+      }
+    };
+  }
+
+  private void rebuilt( JsonFragment config ) {
+    String fingerprint = rebuiltFingerprint;
+    rebuiltFingerprint = null;
+    if ( snapshot != null && fingerprint != null ) {
+      try {
+        snapshot.write( fingerprint, config );
+      } catch ( Exception e ) {
+        // The next restart will just rebuild from the bundles
+        logger.warn( "Unable to write the RequireJS configuration snapshot", e );
+      }
+    }
+  }
+
   public String getRequireJsConfig() {
-    Future<String> cache = null;
-    String result = null;
+    return getRequireJsConfigFragment().toString();
+  }
+
+  /**
+   * @return the merged configuration as UTF-8 encoded script, without decoding it
+   */
+  public JsonFragment getRequireJsConfigFragment() {
+    Future<JsonFragment> cache = null;
+    JsonFragment result = null;
     int tries = 3;
     Exception lastException = null;
+    boolean stopped = false;
     while ( tries-- > 0 && ( result == null || cache != this.cache ) ) {
       cache = this.cache;
       try {
         result = cache.get();
+        lastConfig = result;
       } catch ( InterruptedException e ) {
         // ignore
       } catch ( ExecutionException e ) {
         lastException = e;
         invalidateCache( true );
+      } catch ( CancellationException e ) {
+        // The manager was destroyed before the rebuild ran
+        stopped = true;
+        result = lastConfig;
+        break;
       }
     }
     if ( result == null ) {
-      result = "// Error computing RequireJS Config: ";
-      if ( lastException != null ) {
-        result += lastException.getCause().getMessage();
+      String error = "// Error computing RequireJS Config: ";
+      if ( stopped ) {
+        error += "the RequireJS config manager is stopped";
+      } else if ( lastException != null ) {
+        error += lastException.getCause().getMessage();
       } else {
-        result += "unknown error";
+        error += "unknown error";
       }
+      result = JsonFragment.of( error );
     }
     return result;
   }
@@ -198,24 +348,232 @@ public class RequireJsConfigManager {
 
   public void bundleChanged( Bundle bundle ) {
     boolean shouldRefresh = true;
+    String fingerprintEntry = RequireJsConfigSnapshot.entry( bundle );
+    synchronized ( configMap ) {
+      markChangedWhileBootstrapping( bundle );
+    }
     try {
       shouldRefresh = updateBundleContext( bundle );
+      synchronized ( configMap ) {
+        fingerprintEntries.put( bundle.getBundleId(), fingerprintEntry );
+      }
     } catch ( Exception e ) {
-      // Ignore TODO possibly log
+      logger.warn( "Unable to read the RequireJS configuration of bundle " + bundle.getSymbolicName(), e );
+      synchronized ( configMap ) {
+        // Not what the configuration is made from, so no snapshot matches the installed bundles
+        fingerprintEntries.remove( bundle.getBundleId() );
+      }
     } finally {
       invalidateCache( shouldRefresh );
     }
   }
 
+  /**
+   * Records a bundle installed or updated, which doesn't change the configuration until it starts but is part of
+   * the snapshot fingerprint.
+   */
+  public void bundleInstalled( Bundle bundle ) {
+    synchronized ( configMap ) {
+      markChangedWhileBootstrapping( bundle );
+      fingerprintEntries.put( bundle.getBundleId(), RequireJsConfigSnapshot.entry( bundle ) );
+    }
+  }
+
+  /**
+   * Forgets an uninstalled bundle, its configuration was already removed when it stopped.
+   */
+  public void bundleUninstalled( Bundle bundle ) {
+    synchronized ( configMap ) {
+      markChangedWhileBootstrapping( bundle );
+      fingerprintEntries.remove( bundle.getBundleId() );
+    }
+  }
+
+  // Guarded by configMap
+  private void markChangedWhileBootstrapping( Bundle bundle ) {
+    if ( bootstrapping ) {
+      changedWhileBootstrapping.add( bundle.getBundleId() );
+    }
+  }
+
   public void init() throws Exception {
-    bundleContext.addBundleListener( new RequireJsBundleListener( this ) );
-    for ( Bundle bundle : bundleContext.getBundles() ) {
-      updateBundleContext( bundle );
+    bootstrapping = true;
+    rebuildScheduler.setListener( new CoalescingRebuildScheduler.Listener<JsonFragment>() {
+      @Override public void rebuilt( JsonFragment config ) {
+        RequireJsConfigManager.this.rebuilt( config );
+      }
+    } );
+    bundleListener = new RequireJsBundleListener( this );
+    bundleContext.addBundleListener( bundleListener );
+    trackBatches();
+    final Bundle[] bundles = bundleContext.getBundles();
+    String snapshotConfig = null;
+    if ( snapshotEnabled ) {
+      File snapshotFile = bundleContext.getDataFile( RequireJsConfigSnapshot.FILE_NAME );
+      if ( snapshotFile != null ) {
+        snapshot = new RequireJsConfigSnapshot( snapshotFile );
+        snapshotConfig = snapshot.read( RequireJsConfigSnapshot.fingerprint( bundles ) );
+      }
+    }
+    if ( snapshotConfig == null ) {
+      loadBundles( bundles );
+      return;
+    }
+    // Same bundles as when the snapshot was written: serve it now and check it against the bundles in the background
+    final JsonFragment config = JsonFragment.of( snapshotConfig );
+    FutureTask<JsonFragment> snapshotFuture = new FutureTask<JsonFragment>( new Callable<JsonFragment>() {
+      @Override public JsonFragment call() throws Exception {
+        return config;
+      }
+    } );
+    snapshotFuture.run();
+    cache = snapshotFuture;
+    lastModified = System.currentTimeMillis();
+    validationThread = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          loadBundles( bundles );
+        } catch ( Exception e ) {
+          if ( !destroyed ) {
+            logger.warn( "Unable to validate the RequireJS configuration snapshot against the bundles", e );
+            invalidateCache( true );
+          }
+        } finally {
+          validationThread = null;
+        }
+      }
+    }, "RequireJS config validation" );
+    validationThread.setDaemon( true );
+    validationThread.start();
+  }
+
+  private void trackBatches() throws InvalidSyntaxException {
+    batchListener = new RequireJsBatchListener( this );
+    bundleContext.addServiceListener( batchListener, BATCH_FILTER );
+    // Batches opened before the manager started
+    ServiceReference<?>[] batches = bundleContext.getServiceReferences( (String) null, BATCH_FILTER );
+    if ( batches != null ) {
+      for ( ServiceReference<?> batch : batches ) {
+        batchListener.batchOpened( batch );
+      }
+    }
+  }
+
+  private void loadBundles( Bundle[] bundles ) throws Exception {
+    try {
+      synchronized ( configMap ) {
+        for ( Bundle bundle : bundles ) {
+          if ( !changedWhileBootstrapping.contains( bundle.getBundleId() ) ) {
+            fingerprintEntries.put( bundle.getBundleId(), RequireJsConfigSnapshot.entry( bundle ) );
+          }
+        }
+      }
+      List<BundleResources> scanned =
+        new RequireJsBundleScanner( this, bootstrapParallelism, bundleScanMetrics ).scan( bundles );
+      for ( int i = 0; i < bundles.length; i++ ) {
+        if ( destroyed ) {
+          return;
+        }
+        synchronized ( configMap ) {
+          // The listener already applied what the bundle is now, the scan may be from before it stopped
+          if ( changedWhileBootstrapping.contains( bundles[ i ].getBundleId() ) ) {
+            continue;
+          }
+          updateBundleContextStopped( bundles[ i ] );
+          if ( scanned.get( i ) != null ) {
+            applyBundleResources( bundles[ i ], scanned.get( i ) );
+          }
+        }
+      }
+      updateBundleContext( bundleContext.getBundle() );
+    } finally {
+      synchronized ( configMap ) {
+        bootstrapping = false;
+        changedWhileBootstrapping.clear();
+      }
     }
-    updateBundleContext( bundleContext.getBundle() );
     invalidateCache( true );
   }
 
+  /**
+   * @return whether {@link #destroy()} was called, a bundle scan in progress stops early
+   */
+  boolean isDestroyed() {
+    return destroyed;
+  }
+
+  public void destroy() {
+    destroyed = true;
+    Thread validationThread = this.validationThread;
+    if ( validationThread != null ) {
+      validationThread.interrupt();
+    }
+    if ( bundleListener != null ) {
+      bundleContext.removeBundleListener( bundleListener );
+      bundleListener = null;
+    }
+    if ( batchListener != null ) {
+      bundleContext.removeServiceListener( batchListener );
+      batchListener = null;
+    }
+    rebuildScheduler.shutdown();
+  }
+
+  public long getRebuildQuietPeriod() {
+    return rebuildScheduler.getQuietPeriod();
+  }
+
+  public void setRebuildQuietPeriod( long rebuildQuietPeriod ) {
+    rebuildScheduler.setQuietPeriod( rebuildQuietPeriod );
+  }
+
+  public long getRebuildMaxLatency() {
+    return rebuildScheduler.getMaxLatency();
+  }
+
+  public void setRebuildMaxLatency( long rebuildMaxLatency ) {
+    rebuildScheduler.setMaxLatency( rebuildMaxLatency );
+  }
+
+  public long getRebuildsRequested() {
+    return rebuildScheduler.getRebuildsRequested();
+  }
+
+  public long getRebuildsExecuted() {
+    return rebuildScheduler.getRebuildsExecuted();
+  }
+
+  public int getBootstrapParallelism() {
+    return bootstrapParallelism;
+  }
+
+  /**
+   * @param bootstrapParallelism the maximum number of threads reading bundle resources during {@link #init()}
+   */
+  public void setBootstrapParallelism( int bootstrapParallelism ) {
+    this.bootstrapParallelism = bootstrapParallelism;
+  }
+
+  public BundleScanMetrics getBundleScanMetrics() {
+    return bundleScanMetrics;
+  }
+
+  public void setBundleScanMetrics( BundleScanMetrics bundleScanMetrics ) {
+    this.bundleScanMetrics = bundleScanMetrics;
+  }
+
+  public boolean isSnapshotEnabled() {
+    return snapshotEnabled;
+  }
+
+  /**
+   * @param snapshotEnabled whether the merged configuration is kept in the bundle's data area and served from there
+   *                        on restart while the bundles are read again
+   */
+  public void setSnapshotEnabled( boolean snapshotEnabled ) {
+    this.snapshotEnabled = snapshotEnabled;
+  }
+
   public String getContextRoot() {
     return this.contextRoot;
   }
@@ -226,4 +584,19 @@ public class RequireJsConfigManager {
     contextRoot = ( contextRoot.endsWith( "/" ) == false ) ? contextRoot + "/" : contextRoot;
     this.contextRoot = contextRoot;
   }
+
+  /**
+   * The parsed RequireJS resources of a bundle, read before being applied to the manager's state.
+   */
+  static class BundleResources {
+    private final JSONObject requireJson;
+    private final JSONObject externalResourcesJson;
+    private final JSONObject staticResourcesJson;
+
+    BundleResources( JSONObject requireJson, JSONObject externalResourcesJson, JSONObject staticResourcesJson ) {
+      this.requireJson = requireJson;
+      this.externalResourcesJson = externalResourcesJson;
+      this.staticResourcesJson = staticResourcesJson;
+    }
+  }
 }
@@ -22,22 +22,40 @@
 
 package org.pentaho.js.require;
 
+import org.apache.commons.lang.StringUtils;
+
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by bryan on 8/5/14.
  */
 public class RequireJsConfigServlet extends HttpServlet {
-  private final String requireJs;
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+  public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+  public static final String DEFAULT_SCRIPT_NAME = "require-init";
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+  private final byte[] scriptPrefix;
+  private volatile Generation generation;
   private RequireJsConfigManager manager;
+  private boolean hashedUrls;
 
   public RequireJsConfigServlet() throws IOException {
     InputStream inputStream = null;
@@ -53,7 +71,11 @@ public class RequireJsConfigServlet extends HttpServlet {
         sb.append( line );
         sb.append( "\n" );
       }
-      requireJs = sb.toString();
+      sb.append( "\nif(typeof CONTEXT_PATH == 'undefined'){\n" );
+      sb.append( "\twindow.CONTEXT_PATH = '/';\n" );
+      sb.append( "}\n" );
+      sb.append( "\nrequireCfg = " );
+      scriptPrefix = sb.toString().getBytes( UTF_8 );
     } finally {
       if ( inputStreamReader != null ) {
         inputStreamReader.close();
@@ -75,6 +97,21 @@ public class RequireJsConfigServlet extends HttpServlet {
     this.manager = manager;
   }
 
+  public boolean isHashedUrls() {
+    return hashedUrls;
+  }
+
+  /**
+   * When enabled requests to the servlet are redirected to {@code <name>/<content hash>.js}, which is served with a
+   * far future immutable Cache-Control so browsers no longer revalidate the configuration on every page load. The
+   * hashed urls must be mapped to a servlet registered under the alias {@code <name>}.
+   *
+   * @param hashedUrls whether to redirect to content hashed urls
+   */
+  public void setHashedUrls( boolean hashedUrls ) {
+    this.hashedUrls = hashedUrls;
+  }
+
   @Override
   protected long getLastModified( HttpServletRequest req ) {
     return manager.getLastModified();
@@ -82,23 +119,253 @@ public class RequireJsConfigServlet extends HttpServlet {
 
   @Override
   protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException {
+    Generation generation = getGeneration();
+    String config = req.getParameter( "config" );
+    boolean includeConfigCall = config == null || Boolean.valueOf( config );
+    EncodedContent encodedContent = generation.getContent( includeConfigCall );
+    String pathInfo = req.getPathInfo();
+    if ( pathInfo != null && pathInfo.length() > 1 ) {
+      if ( !pathInfo.equals( "/" + encodedContent.hash + ".js" ) ) {
+        // Outdated (or unknown) hash, start over from the bootstrap url
+        resp.setHeader( "Cache-Control", "no-cache" );
+        resp.sendRedirect( "../" + getScriptName( req ) + ".js" + getQuery( config ) );
+        return;
+      }
+      resp.setHeader( "Cache-Control", IMMUTABLE_CACHE_CONTROL );
+    } else if ( hashedUrls ) {
+      resp.setHeader( "Cache-Control", "no-cache" );
+      resp.sendRedirect( getScriptName( req ) + "/" + encodedContent.hash + ".js" + getQuery( config ) );
+      return;
+    }
+    String encoding = selectEncoding( req.getHeader( "Accept-Encoding" ) );
+    String etag = encodedContent.getETag( encoding );
+    resp.setHeader( "ETag", etag );
+    resp.setHeader( "Vary", "Accept-Encoding" );
+    if ( matchesETag( req.getHeader( "If-None-Match" ), etag ) ) {
+      resp.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+      return;
+    }
+    byte[] content = encodedContent.get( encoding );
     resp.setContentType( "text/javascript" );
-    PrintWriter printWriter = new PrintWriter( resp.getOutputStream() );
+    resp.setCharacterEncoding( "UTF-8" );
+    if ( encoding != null ) {
+      resp.setHeader( "Content-Encoding", encoding );
+    }
+    resp.setContentLength( content.length );
+    ServletOutputStream outputStream = resp.getOutputStream();
     try {
-      printWriter.write( requireJs );
-      printWriter.write( "\nif(typeof CONTEXT_PATH == 'undefined'){\n" );
-      printWriter.write( "\twindow.CONTEXT_PATH = '/';\n" );
-      printWriter.write( "}\n" );
-      printWriter.write( "\nrequireCfg = " );
-      printWriter.write( manager.getRequireJsConfig() );
-      printWriter.write( "\n" );
-      String config = req.getParameter( "config" );
-      printWriter.write( "requireCfg.baseUrl = '" + manager.getContextRoot() + "';\n" );
-      if ( config == null || Boolean.valueOf( config ) ) {
-        printWriter.write( "require.config(requireCfg);" );
+      outputStream.write( content, 0, content.length );
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private Generation getGeneration() {
+    JsonFragment config = manager.getRequireJsConfigFragment();
+    String contextRoot = manager.getContextRoot();
+    Generation current = generation;
+    if ( current == null || !current.matches( config, contextRoot ) ) {
+      synchronized ( this ) {
+        current = generation;
+        if ( current == null || !current.matches( config, contextRoot ) ) {
+          current = new Generation( config, contextRoot );
+          generation = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  private String getScriptName( HttpServletRequest req ) {
+    String servletPath = req.getServletPath();
+    String name = servletPath == null ? "" : servletPath.substring( servletPath.lastIndexOf( '/' ) + 1 );
+    if ( name.endsWith( ".js" ) ) {
+      name = name.substring( 0, name.length() - 3 );
+    }
+    return name.length() > 0 ? name : DEFAULT_SCRIPT_NAME;
+  }
+
+  private String getQuery( String config ) throws IOException {
+    return config == null ? "" : "?config=" + URLEncoder.encode( config, "UTF-8" );
+  }
+
+  private byte[] buildScript( JsonFragment config, String contextRoot, boolean includeConfigCall ) {
+    StringBuilder sb = new StringBuilder( 64 );
+    sb.append( "\n" );
+    sb.append( "requireCfg.baseUrl = '" ).append( contextRoot ).append( "';\n" );
+    if ( includeConfigCall ) {
+      sb.append( "require.config(requireCfg);" );
+    }
+    byte[] suffix = sb.toString().getBytes( UTF_8 );
+    // The config is copied straight from its fragments, it is never decoded to a String
+    byte[] script = new byte[ scriptPrefix.length + config.length() + suffix.length ];
+    System.arraycopy( scriptPrefix, 0, script, 0, scriptPrefix.length );
+    int offset = config.writeTo( script, scriptPrefix.length );
+    System.arraycopy( suffix, 0, script, offset, suffix.length );
+    return script;
+  }
+
+  /**
+   * Picks the content coding to answer with, gzip being preferred over deflate when both are equally acceptable.
+   *
+   * @param acceptEncoding the Accept-Encoding request header
+   * @return {@link #GZIP}, {@link #DEFLATE} or null for the identity coding
+   */
+  protected static String selectEncoding( String acceptEncoding ) {
+    if ( acceptEncoding == null ) {
+      return null;
+    }
+    double gzipQ = -1;
+    double deflateQ = -1;
+    double anyQ = -1;
+    for ( String coding : acceptEncoding.split( "," ) ) {
+      String[] params = coding.split( ";" );
+      String name = params[ 0 ].trim().toLowerCase( Locale.ENGLISH );
+      double q = 1;
+      for ( int i = 1; i < params.length; i++ ) {
+        String param = params[ i ].trim();
+        if ( param.startsWith( "q=" ) ) {
+          try {
+            q = Double.parseDouble( param.substring( 2 ).trim() );
+          } catch ( NumberFormatException e ) {
+            q = 0;
+          }
+        }
+      }
+      if ( GZIP.equals( name ) || "x-gzip".equals( name ) ) {
+        gzipQ = q;
+      } else if ( DEFLATE.equals( name ) ) {
+        deflateQ = q;
+      } else if ( "*".equals( name ) ) {
+        anyQ = q;
+      }
+    }
+    if ( gzipQ < 0 ) {
+      gzipQ = anyQ;
+    }
+    if ( deflateQ < 0 ) {
+      deflateQ = anyQ;
+    }
+    if ( gzipQ > 0 && gzipQ >= deflateQ ) {
+      return GZIP;
+    } else if ( deflateQ > 0 ) {
+      return DEFLATE;
+    }
+    return null;
+  }
+
+  private static boolean matchesETag( String ifNoneMatch, String etag ) {
+    if ( ifNoneMatch == null ) {
+      return false;
+    }
+    for ( String candidate : ifNoneMatch.split( "," ) ) {
+      candidate = candidate.trim();
+      if ( candidate.startsWith( "W/" ) ) {
+        candidate = candidate.substring( 2 );
+      }
+      if ( "*".equals( candidate ) || etag.equals( candidate ) ) {
+        return true;
       }
+    }
+    return false;
+  }
+
+  private static byte[] compress( byte[] bytes, boolean gzip ) throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream( bytes.length / 3 );
+    OutputStream outputStream =
+      gzip ? new GZIPOutputStream( byteArrayOutputStream ) : new DeflaterOutputStream( byteArrayOutputStream );
+    try {
+      outputStream.write( bytes );
     } finally {
-      printWriter.close();
+      outputStream.close();
+    }
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  private static String hash( byte[] bytes ) throws IOException {
+    try {
+      byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( bytes );
+      StringBuilder sb = new StringBuilder( 32 );
+      for ( int i = 0; i < 16; i++ ) {
+        sb.append( Character.forDigit( ( digest[ i ] >> 4 ) & 0xF, 16 ) );
+        sb.append( Character.forDigit( digest[ i ] & 0xF, 16 ) );
+      }
+      return sb.toString();
+    } catch ( NoSuchAlgorithmException e ) {
+      throw new IOException( e );
+    }
+  }
+
+  /**
+   * A version of the merged configuration along with the encoded responses built from it
+   */
+  private class Generation {
+    private final String contextRoot;
+    private volatile JsonFragment config;
+    private volatile EncodedContent withConfigCall;
+    private volatile EncodedContent withoutConfigCall;
+
+    private Generation( JsonFragment config, String contextRoot ) {
+      this.config = config;
+      this.contextRoot = contextRoot;
+    }
+
+    private boolean matches( JsonFragment config, String contextRoot ) {
+      if ( !StringUtils.equals( contextRoot, this.contextRoot ) ) {
+        return false;
+      }
+      if ( config == this.config ) {
+        return true;
+      }
+      if ( config.contentEquals( this.config ) ) {
+        // Same content from a new rebuild, adopt the new instance so the next check is a reference comparison
+        this.config = config;
+        return true;
+      }
+      return false;
+    }
+
+    private EncodedContent getContent( boolean includeConfigCall ) throws IOException {
+      EncodedContent result = includeConfigCall ? withConfigCall : withoutConfigCall;
+      if ( result == null ) {
+        result = new EncodedContent( buildScript( config, contextRoot, includeConfigCall ) );
+        if ( includeConfigCall ) {
+          withConfigCall = result;
+        } else {
+          withoutConfigCall = result;
+        }
+      }
+      return result;
+    }
+  }
+
+  private static class EncodedContent {
+    private final String hash;
+    private final byte[] identity;
+    private final byte[] gzip;
+    private final byte[] deflate;
+
+    private EncodedContent( byte[] identity ) throws IOException {
+      this.hash = hash( identity );
+      this.identity = identity;
+      this.gzip = compress( identity, true );
+      this.deflate = compress( identity, false );
+    }
+
+    /**
+     * Derived from the content only, so it survives restarts and is the same on every node serving that content.
+     */
+    private String getETag( String encoding ) {
+      return "\"" + hash + ( encoding == null ? "" : "-" + encoding ) + "\"";
+    }
+
+    private byte[] get( String encoding ) {
+      if ( GZIP.equals( encoding ) ) {
+        return gzip;
+      } else if ( DEFLATE.equals( encoding ) ) {
+        return deflate;
+      }
+      return identity;
     }
   }
 }
@@ -0,0 +1,178 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.osgi.framework.Bundle;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The last merged RequireJS configuration, kept on disk so that it can be served right after a restart.
+ * <p/>
+ * The file starts with a fingerprint of the installed bundles on its own line, followed by the configuration. A
+ * snapshot is only returned for the same fingerprint it was written with.
+ */
+public class RequireJsConfigSnapshot {
+  public static final String FILE_NAME = "requirejs-config.snapshot";
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final File file;
+  private String lastFingerprint;
+  private JsonFragment lastConfig;
+
+  public RequireJsConfigSnapshot( File file ) {
+    this.file = file;
+  }
+
+  /**
+   * @return a digest of the id, symbolic name, version and last modification time of every bundle
+   */
+  public static String fingerprint( Bundle[] bundles ) {
+    SortedMap<Long, String> entries = new TreeMap<Long, String>();
+    for ( Bundle bundle : bundles ) {
+      entries.put( bundle.getBundleId(), entry( bundle ) );
+    }
+    return fingerprint( entries );
+  }
+
+  /**
+   * @return the part of a fingerprint that describes a bundle, as the bundle is now
+   */
+  public static String entry( Bundle bundle ) {
+    return bundle.getBundleId() + ":" + bundle.getSymbolicName() + ":" + bundle.getVersion() + ":"
+      + bundle.getLastModified();
+  }
+
+  /**
+   * @param entries the {@link #entry(Bundle)} of every bundle, by bundle id
+   * @return the same digest as {@link #fingerprint(Bundle[])} for the bundles the entries were taken from
+   */
+  public static String fingerprint( SortedMap<Long, String> entries ) {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance( "SHA-256" );
+    } catch ( NoSuchAlgorithmException e ) {
+      // Every JRE provides SHA-256
+      throw new IllegalStateException( e );
+    }
+    for ( String entry : entries.values() ) {
+      messageDigest.update( ( entry + "\n" ).getBytes( UTF_8 ) );
+    }
+    byte[] digest = messageDigest.digest();
+    char[] hex = new char[ digest.length * 2 ];
+    for ( int i = 0; i < digest.length; i++ ) {
+      hex[ 2 * i ] = HEX[ ( digest[ i ] >> 4 ) & 0xF ];
+      hex[ 2 * i + 1 ] = HEX[ digest[ i ] & 0xF ];
+    }
+    return new String( hex );
+  }
+
+  /**
+   * @return the stored configuration or null if there is none, it can't be read or it was written for another
+   * fingerprint
+   */
+  public String read( String fingerprint ) {
+    if ( !file.isFile() ) {
+      return null;
+    }
+    InputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream( file );
+      ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream( (int) file.length() );
+      byte[] buffer = new byte[ 8192 ];
+      int read;
+      while ( ( read = inputStream.read( buffer ) ) != -1 ) {
+        byteArrayOutputStream.write( buffer, 0, read );
+      }
+      String contents = new String( byteArrayOutputStream.toByteArray(), UTF_8 );
+      int newLine = contents.indexOf( '\n' );
+      if ( newLine < 0 || !fingerprint.equals( contents.substring( 0, newLine ) ) ) {
+        return null;
+      }
+      String config = contents.substring( newLine + 1 );
+      synchronized ( this ) {
+        lastFingerprint = fingerprint;
+        lastConfig = JsonFragment.of( config );
+      }
+      return config;
+    } catch ( IOException e ) {
+      return null;
+    } finally {
+      if ( inputStream != null ) {
+        try {
+          inputStream.close();
+        } catch ( IOException e ) {
+          // Noop
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the stored configuration, unless it already holds the same one.
+   */
+  public void write( String fingerprint, String config ) throws IOException {
+    write( fingerprint, JsonFragment.of( config ) );
+  }
+
+  /**
+   * Replaces the stored configuration, unless it already holds the same one.
+   */
+  public synchronized void write( String fingerprint, JsonFragment config ) throws IOException {
+    if ( fingerprint.equals( lastFingerprint ) && config.contentEquals( lastConfig ) ) {
+      return;
+    }
+    File parent = file.getAbsoluteFile().getParentFile();
+    if ( parent != null && !parent.isDirectory() && !parent.mkdirs() ) {
+      throw new IOException( "Unable to create " + parent );
+    }
+    // Write aside and rename so that a crash never leaves a truncated snapshot behind
+    File tempFile = new File( parent, file.getName() + ".tmp" );
+    OutputStream outputStream = new BufferedOutputStream( new FileOutputStream( tempFile ) );
+    try {
+      outputStream.write( ( fingerprint + "\n" ).getBytes( UTF_8 ) );
+      config.writeTo( outputStream );
+    } finally {
+      outputStream.close();
+    }
+    if ( !tempFile.renameTo( file ) && !( file.delete() && tempFile.renameTo( file ) ) ) {
+      tempFile.delete();
+      throw new IOException( "Unable to replace " + file );
+    }
+    lastFingerprint = fingerprint;
+    lastConfig = config;
+  }
+}
@@ -32,6 +32,7 @@ import java.util.List;
 public class RequireJsConfiguration {
   private final Bundle bundle;
   private final List<String> requireConfigurations;
+  private volatile JsonFragment configScript;
 
   public RequireJsConfiguration( Bundle bundle, List<String> requireConfigurations ) {
     this.bundle = bundle;
@@ -45,4 +46,15 @@ public class RequireJsConfiguration {
   public List<String> getRequireConfigurations() {
     return requireConfigurations;
   }
+
+  /**
+   * @return the contents of the bundle's requirejs scripts once they have been read, null before that
+   */
+  public JsonFragment getConfigScript() {
+    return configScript;
+  }
+
+  public void setConfigScript( JsonFragment configScript ) {
+    this.configScript = configScript;
+  }
 }
@@ -0,0 +1,270 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Incrementally maintained merge of the require.json configurations contributed by each bundle.
+ * <p/>
+ * Every property path of the merged configuration is a node that remembers which bundles contributed to it. Applying
+ * or retracting a bundle only visits the nodes of that bundle's configuration, and each node caches its serialized
+ * form as an immutable {@link JsonFragment}, so {@link #getJson()} only re-serializes the paths touched since the
+ * last call and shares every other fragment with the previous result.
+ * <p/>
+ * Merge rules are those of the full rebuild: objects are merged key by key, arrays are concatenated in bundle id
+ * order and for any other value the one from the highest bundle id wins.
+ */
+public class RequireJsMergeTree {
+  /**
+   * Contribution id of the skeleton every merged configuration starts from (lower than any bundle id)
+   */
+  public static final long DEFAULTS_ID = -1L;
+
+  private static final JsonFragment OPEN_BRACE = JsonFragment.of( "{" );
+  private static final JsonFragment CLOSE_BRACE = JsonFragment.of( "}" );
+  private static final JsonFragment COMMA = JsonFragment.of( "," );
+
+  private final Node root = new Node( null, 0 );
+
+  public RequireJsMergeTree() {
+    apply( DEFAULTS_ID, createDefaults() );
+  }
+
+  private static JSONObject createDefaults() {
+    JSONObject defaults = new JSONObject();
+    defaults.put( "paths", new JSONObject() );
+    defaults.put( "shim", new JSONObject() );
+    JSONObject map = new JSONObject();
+    map.put( "*", new JSONObject() );
+    defaults.put( "map", map );
+    defaults.put( "bundles", new JSONObject() );
+    JSONObject config = new JSONObject();
+    config.put( "service", new JSONObject() );
+    defaults.put( "config", config );
+    defaults.put( "packages", new JSONArray() );
+    return defaults;
+  }
+
+  /**
+   * Adds the configuration of the given bundle to the merge.
+   *
+   * @param bundleId the contributing bundle
+   * @param config   the bundle's require.json contents
+   * @throws IllegalArgumentException if the configuration contains a non String key, nothing is applied in that case
+   */
+  public synchronized void apply( long bundleId, Map<?, ?> config ) {
+    checkKeys( config );
+    apply( root, bundleId, config );
+  }
+
+  /**
+   * Removes the configuration previously applied for the given bundle.
+   *
+   * @param bundleId the contributing bundle
+   * @param config   the configuration that was applied for it
+   */
+  public synchronized void retract( long bundleId, Map<?, ?> config ) {
+    retract( root, bundleId, config );
+  }
+
+  /**
+   * @return the merged configuration as UTF-8 encoded JSON, unaffected by later changes to the tree
+   * @throws Exception if two bundles contributed values of incompatible types for the same key
+   */
+  public synchronized JsonFragment getJson() throws Exception {
+    return getJson( root );
+  }
+
+  /**
+   * @return the merged configuration as a JSON string
+   * @throws Exception if two bundles contributed values of incompatible types for the same key
+   */
+  public String toJSONString() throws Exception {
+    return getJson().toString();
+  }
+
+  private void checkKeys( Map<?, ?> config ) {
+    for ( Map.Entry<?, ?> entry : config.entrySet() ) {
+      if ( !( entry.getKey() instanceof String ) ) {
+        throw new IllegalArgumentException( "Key " + entry.getKey() + " was not a String" );
+      }
+      if ( entry.getValue() instanceof Map ) {
+        checkKeys( (Map<?, ?>) entry.getValue() );
+      }
+    }
+  }
+
+  private void apply( Node node, long bundleId, Map<?, ?> config ) {
+    node.json = null;
+    node.objectContributors.add( bundleId );
+    for ( Map.Entry<?, ?> entry : config.entrySet() ) {
+      String key = (String) entry.getKey();
+      Node child = node.children.get( key );
+      if ( child == null ) {
+        child = new Node( key, node.depth + 1 );
+        node.children.put( key, child );
+      }
+      Object value = entry.getValue();
+      if ( value instanceof Map ) {
+        apply( child, bundleId, (Map<?, ?>) value );
+      } else {
+        child.json = null;
+        child.values.put( bundleId, toRelativePaths( node, key, value ) );
+      }
+    }
+  }
+
+  private void retract( Node node, long bundleId, Map<?, ?> config ) {
+    node.json = null;
+    node.objectContributors.remove( bundleId );
+    for ( Map.Entry<?, ?> entry : config.entrySet() ) {
+      Object key = entry.getKey();
+      Node child = key instanceof String ? node.children.get( key ) : null;
+      if ( child == null ) {
+        continue;
+      }
+      Object value = entry.getValue();
+      if ( value instanceof Map ) {
+        retract( child, bundleId, (Map<?, ?>) value );
+      } else {
+        child.json = null;
+        child.values.remove( bundleId );
+      }
+      if ( child.isEmpty() ) {
+        node.children.remove( key );
+      }
+    }
+  }
+
+  /**
+   * Makes the module paths and package locations provided in absolute form relative to the base url. Other values,
+   * such as those of map or config, are kept as they are.
+   */
+  private Object toRelativePaths( Node node, String key, Object value ) {
+    if ( node.depth == 1 && "paths".equals( node.key ) ) {
+      return toRelativePath( value );
+    }
+    if ( node.depth == 0 && "packages".equals( key ) && value instanceof List ) {
+      JSONArray packages = new JSONArray();
+      for ( Object pkg : (List<?>) value ) {
+        if ( pkg instanceof Map && ( (Map<?, ?>) pkg ).get( "location" ) instanceof String ) {
+          JSONObject relativePkg = new JSONObject();
+          relativePkg.putAll( (Map<?, ?>) pkg );
+          relativePkg.put( "location", toRelativePath( relativePkg.get( "location" ) ) );
+          pkg = relativePkg;
+        }
+        packages.add( pkg );
+      }
+      return packages;
+    }
+    return value;
+  }
+
+  private Object toRelativePath( Object value ) {
+    if ( value instanceof String ) {
+      String strVal = (String) value;
+      if ( strVal.startsWith( "/" ) ) {
+        return strVal.substring( 1 );
+      }
+    }
+    return value;
+  }
+
+  private JsonFragment getJson( Node node ) throws Exception {
+    if ( node.json == null ) {
+      node.json = merge( node );
+    }
+    return node.json;
+  }
+
+  private JsonFragment merge( Node node ) throws Exception {
+    boolean hasArray = false;
+    boolean hasOther = false;
+    Object lastValue = null;
+    for ( Object value : node.values.values() ) {
+      if ( value instanceof List ) {
+        hasArray = true;
+      } else if ( value != null ) {
+        hasOther = true;
+        lastValue = value;
+      }
+    }
+    boolean hasObject = !node.objectContributors.isEmpty();
+    if ( ( hasObject && ( hasArray || hasOther ) ) || ( hasArray && hasOther ) ) {
+      throw new Exception( "Cannot merge key " + node.key + " due to different types." );
+    }
+    if ( hasObject ) {
+      List<JsonFragment> parts = new ArrayList<JsonFragment>( 2 + 3 * node.children.size() );
+      parts.add( OPEN_BRACE );
+      for ( Node child : node.children.values() ) {
+        if ( parts.size() > 1 ) {
+          parts.add( COMMA );
+        }
+        parts.add( child.keyJson );
+        parts.add( getJson( child ) );
+      }
+      parts.add( CLOSE_BRACE );
+      return JsonFragment.concat( parts );
+    } else if ( hasArray ) {
+      JSONArray result = new JSONArray();
+      for ( Object value : node.values.values() ) {
+        if ( value instanceof List ) {
+          result.addAll( (List<?>) value );
+        }
+      }
+      return JsonFragment.of( result.toJSONString() );
+    } else {
+      return JsonFragment.of( JSONValue.toJSONString( lastValue ) );
+    }
+  }
+
+  private static class Node {
+    private final String key;
+    private final JsonFragment keyJson;
+    private final int depth;
+    private final Set<Long> objectContributors = new HashSet<Long>();
+    private final TreeMap<Long, Object> values = new TreeMap<Long, Object>();
+    private final TreeMap<String, Node> children = new TreeMap<String, Node>();
+    private JsonFragment json;
+
+    private Node( String key, int depth ) {
+      this.key = key;
+      this.keyJson = key == null ? null : JsonFragment.of( JSONValue.toJSONString( key ) + ":" );
+      this.depth = depth;
+    }
+
+    private boolean isEmpty() {
+      return objectContributors.isEmpty() && values.isEmpty() && children.isEmpty();
+    }
+  }
+}
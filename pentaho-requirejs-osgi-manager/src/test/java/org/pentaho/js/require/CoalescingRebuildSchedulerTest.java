@@ -0,0 +1,124 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingRebuildSchedulerTest {
+  private CoalescingRebuildScheduler<String> scheduler;
+  private AtomicInteger calls;
+
+  @Before
+  public void setup() {
+    scheduler = new CoalescingRebuildScheduler<String>();
+    calls = new AtomicInteger();
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  private Callable<String> rebuild( final String result ) {
+    return new Callable<String>() {
+      @Override public String call() throws Exception {
+        calls.incrementAndGet();
+        return result;
+      }
+    };
+  }
+
+  @Test
+  public void testBurstIsCoalesced() throws Exception {
+    scheduler.setQuietPeriod( 200L );
+    scheduler.setMaxLatency( 10000L );
+    List<Future<String>> futures = new ArrayList<Future<String>>();
+    for ( int i = 0; i < 300; i++ ) {
+      futures.add( scheduler.schedule( rebuild( "rebuild" + i ) ) );
+    }
+    for ( Future<String> future : futures ) {
+      assertSame( futures.get( 0 ), future );
+      assertEquals( "rebuild299", future.get( 5, TimeUnit.SECONDS ) );
+    }
+    assertEquals( 1, calls.get() );
+    assertEquals( 300L, scheduler.getRebuildsRequested() );
+    assertEquals( 1L, scheduler.getRebuildsExecuted() );
+  }
+
+  @Test
+  public void testMaxLatencyBoundsContinuousRequests() throws Exception {
+    scheduler.setQuietPeriod( 100L );
+    scheduler.setMaxLatency( 150L );
+    Future<String> first = scheduler.schedule( rebuild( "first" ) );
+    long start = System.currentTimeMillis();
+    while ( !first.isDone() && System.currentTimeMillis() - start < 5000L ) {
+      scheduler.schedule( rebuild( "next" ) );
+      Thread.sleep( 10L );
+    }
+    assertTrue( first.isDone() );
+    assertEquals( "next", first.get() );
+  }
+
+  @Test
+  public void testRequestAfterRebuildStartsSchedulesAnother() throws Exception {
+    scheduler.setQuietPeriod( 0L );
+    Future<String> first = scheduler.schedule( rebuild( "first" ) );
+    assertEquals( "first", first.get( 5, TimeUnit.SECONDS ) );
+    Future<String> second = scheduler.schedule( rebuild( "second" ) );
+    assertNotSame( first, second );
+    assertEquals( "second", second.get( 5, TimeUnit.SECONDS ) );
+    assertEquals( 2L, scheduler.getRebuildsExecuted() );
+  }
+
+  @Test
+  public void testShutdownCancelsPendingAndLaterRequests() {
+    scheduler.setQuietPeriod( 10000L );
+    Future<String> pending = scheduler.schedule( rebuild( "pending" ) );
+    scheduler.shutdown();
+    assertTrue( pending.isCancelled() );
+    assertTrue( scheduler.schedule( rebuild( "later" ) ).isCancelled() );
+    assertEquals( 0, calls.get() );
+  }
+
+  @Test
+  public void testNegativeSettingsAreClamped() {
+    scheduler.setQuietPeriod( -1L );
+    scheduler.setMaxLatency( -1L );
+    assertEquals( 0L, scheduler.getQuietPeriod() );
+    assertEquals( 0L, scheduler.getMaxLatency() );
+  }
+}
@@ -114,7 +114,7 @@ public class RebuildCacheCallableTest {
     JSONObject configObj = new JSONObject();
     configObj.put( "service", new JSONObject() );
     expected.put( "config", configObj );
-    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call();
+    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call().toString();
     if ( config.endsWith( ";" ) ) {
       config = config.substring( 0, config.length() - 1 );
     }
@@ -135,7 +135,7 @@ public class RebuildCacheCallableTest {
     array2.add( "2" );
     array2.add( 3L );
     object2.put( objectKey, array2 );
-    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call();
+    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call().toString();
   }
 
   @Test( expected = Exception.class )
@@ -148,7 +148,7 @@ public class RebuildCacheCallableTest {
     JSONObject object2 = new JSONObject();
     configMap.put( 2L, object2 );
     object2.put( objectKey, new JSONObject() );
-    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call();
+    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call().toString();
   }
 
   @Test( expected = Exception.class )
@@ -161,7 +161,7 @@ public class RebuildCacheCallableTest {
     JSONObject object2 = new JSONObject();
     configMap.put( 2L, object2 );
     object2.put( objectKey, "B" );
-    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call();
+    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call().toString();
   }
 
   @Test( expected = Exception.class )
@@ -174,7 +174,7 @@ public class RebuildCacheCallableTest {
     JSONObject object2 = new JSONObject();
     configMap.put( 2L, object2 );
     object2.put( objectKey, new JSONArray() );
-    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call();
+    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call().toString();
   }
 
   @Test( expected = Exception.class )
@@ -187,6 +187,6 @@ public class RebuildCacheCallableTest {
     JSONObject object2 = new JSONObject();
     configMap.put( 2L, object2 );
     object2.put( new Object(), new JSONArray() );
-    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call();
+    String config = new RebuildCacheCallable( configMap, requireJsConfigurations ).call().toString();
   }
 }
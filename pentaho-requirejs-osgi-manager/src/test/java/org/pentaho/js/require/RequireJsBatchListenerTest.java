@@ -0,0 +1,78 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+import static org.mockito.Mockito.*;
+
+public class RequireJsBatchListenerTest {
+  private RequireJsConfigManager configManager;
+  private RequireJsBatchListener requireJsBatchListener;
+  private ServiceReference<?> serviceReference;
+
+  @Before
+  public void setup() {
+    configManager = mock( RequireJsConfigManager.class );
+    requireJsBatchListener = new RequireJsBatchListener( configManager );
+    serviceReference = mock( ServiceReference.class );
+  }
+
+  private ServiceEvent event( int type ) {
+    ServiceEvent serviceEvent = mock( ServiceEvent.class );
+    when( serviceEvent.getType() ).thenReturn( type );
+    doReturn( serviceReference ).when( serviceEvent ).getServiceReference();
+    return serviceEvent;
+  }
+
+  @Test
+  public void testRegisteredAndUnregistering() {
+    requireJsBatchListener.serviceChanged( event( ServiceEvent.REGISTERED ) );
+    verify( configManager ).beginBatch();
+    requireJsBatchListener.serviceChanged( event( ServiceEvent.UNREGISTERING ) );
+    verify( configManager ).endBatch();
+  }
+
+  @Test
+  public void testModifiedEndMatch() {
+    requireJsBatchListener.serviceChanged( event( ServiceEvent.REGISTERED ) );
+    requireJsBatchListener.serviceChanged( event( ServiceEvent.MODIFIED_ENDMATCH ) );
+    verify( configManager ).endBatch();
+  }
+
+  @Test
+  public void testOpenedOnce() {
+    requireJsBatchListener.batchOpened( serviceReference );
+    requireJsBatchListener.serviceChanged( event( ServiceEvent.REGISTERED ) );
+    verify( configManager, times( 1 ) ).beginBatch();
+  }
+
+  @Test
+  public void testUnknownClosed() {
+    requireJsBatchListener.serviceChanged( event( ServiceEvent.UNREGISTERING ) );
+    verify( configManager, never() ).endBatch();
+  }
+}
@@ -22,17 +22,41 @@
 
 package org.pentaho.js.require;
 
+import org.apache.felix.framework.Felix;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 /**
  * Created by bryan on 8/15/14.
  */
 public class RequireJsBundleListenerTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private RequireJsConfigManager configManager;
   private RequireJsBundleListener requireJsBundleListener;
 
@@ -62,6 +86,23 @@ public class RequireJsBundleListenerTest {
     verify( configManager ).bundleChanged( bundle );
   }
 
+  @Test
+  public void testInstalledAndUpdated() {
+    Bundle bundle = mock( Bundle.class );
+    requireJsBundleListener.bundleChanged( new BundleEvent( BundleEvent.INSTALLED, bundle ) );
+    requireJsBundleListener.bundleChanged( new BundleEvent( BundleEvent.UPDATED, bundle ) );
+    verify( configManager, times( 2 ) ).bundleInstalled( bundle );
+    verify( configManager, times( 0 ) ).bundleChanged( bundle );
+  }
+
+  @Test
+  public void testUninstalled() {
+    Bundle bundle = mock( Bundle.class );
+    requireJsBundleListener.bundleChanged( new BundleEvent( BundleEvent.UNINSTALLED, bundle ) );
+    verify( configManager ).bundleUninstalled( bundle );
+    verify( configManager, times( 0 ) ).bundleChanged( bundle );
+  }
+
   @Test
   public void testOther() {
     BundleEvent bundleEvent = mock( BundleEvent.class );
@@ -71,4 +112,59 @@ public class RequireJsBundleListenerTest {
     requireJsBundleListener.bundleChanged( bundleEvent );
     verify( configManager, times( 0 ) ).bundleChanged( bundle );
   }
+
+  @Test
+  public void testBatchRebuildsWithItsBundles() throws Exception {
+    Map<String, Object> configuration = new HashMap<String, Object>();
+    configuration.put( Constants.FRAMEWORK_STORAGE, temporaryFolder.newFolder( "felix" ).getAbsolutePath() );
+    configuration.put( "felix.service.urlhandlers", "false" );
+    Felix felix = new Felix( configuration );
+    felix.start();
+    try {
+      BundleContext bundleContext = felix.getBundleContext();
+      RequireJsConfigManager manager = new RequireJsConfigManager();
+      manager.setBundleContext( bundleContext );
+      manager.setSnapshotEnabled( false );
+      manager.setRebuildQuietPeriod( 0L );
+      manager.init();
+      manager.getRequireJsConfig();
+      long rebuildsRequested = manager.getRebuildsRequested();
+
+      Hashtable<String, Object> properties = new Hashtable<String, Object>();
+      properties.put( RequireJsConfigManager.BATCH_PROPERTY, "test" );
+      ServiceRegistration<?> batch = bundleContext.registerService( Object.class, new Object(), properties );
+      List<Bundle> bundles = new ArrayList<Bundle>();
+      for ( int i = 0; i < 10; i++ ) {
+        bundles.add( bundleContext.installBundle( "test:module" + i, bundle( i ) ) );
+      }
+      for ( Bundle bundle : bundles ) {
+        bundle.start();
+      }
+      batch.unregister();
+
+      String config = manager.getRequireJsConfig();
+      for ( int i = 0; i < 10; i++ ) {
+        assertTrue( config.contains( "\"module" + i + "\"" ) );
+      }
+      assertEquals( rebuildsRequested + 1, manager.getRebuildsRequested() );
+      manager.destroy();
+    } finally {
+      felix.stop();
+      felix.waitForStop( 10000L );
+    }
+  }
+
+  private static ByteArrayInputStream bundle( int i ) throws IOException {
+    Manifest manifest = new Manifest();
+    Attributes attributes = manifest.getMainAttributes();
+    attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+    attributes.putValue( Constants.BUNDLE_MANIFESTVERSION, "2" );
+    attributes.putValue( Constants.BUNDLE_SYMBOLICNAME, "module" + i );
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JarOutputStream jarOutputStream = new JarOutputStream( bytes, manifest );
+    jarOutputStream.putNextEntry( new ZipEntry( RequireJsConfigManager.REQUIRE_JSON_PATH ) );
+    jarOutputStream.write( ( "{\"paths\": {\"module" + i + "\": \"/module" + i + "\"}}" ).getBytes( "UTF-8" ) );
+    jarOutputStream.close();
+    return new ByteArrayInputStream( bytes.toByteArray() );
+  }
 }
@@ -0,0 +1,103 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RequireJsBundleScannerTest {
+  private static final URL REQUIRE_JSON = RequireJsBundleScannerTest.class.getClassLoader()
+    .getResource( "org/pentaho/js/require/RequireJsConfigManagerTest.testGetRequireJsConfig.json" );
+
+  private Bundle[] createBundles( int count ) {
+    Bundle[] bundles = new Bundle[ count ];
+    for ( int i = 0; i < count; i++ ) {
+      bundles[ i ] = mock( Bundle.class );
+      when( bundles[ i ].getBundleId() ).thenReturn( (long) i );
+      if ( i % 2 == 0 ) {
+        when( bundles[ i ].getResource( RequireJsConfigManager.REQUIRE_JSON_PATH ) ).thenReturn( REQUIRE_JSON );
+      }
+    }
+    return bundles;
+  }
+
+  @Test
+  public void testScanKeepsBundleOrder() throws Exception {
+    Bundle[] bundles = createBundles( 50 );
+    BundleScanMetrics metrics = mock( BundleScanMetrics.class );
+    List<RequireJsConfigManager.BundleResources> results =
+      new RequireJsBundleScanner( new RequireJsConfigManager(), 4, metrics ).scan( bundles );
+    assertEquals( bundles.length, results.size() );
+    for ( int i = 0; i < bundles.length; i++ ) {
+      if ( i % 2 == 0 ) {
+        assertNotNull( results.get( i ) );
+      } else {
+        assertNull( results.get( i ) );
+      }
+      verify( metrics ).bundleScanned( eq( bundles[ i ] ), anyLong() );
+    }
+    verify( metrics ).scanCompleted( eq( bundles.length ), anyLong() );
+  }
+
+  @Test
+  public void testScanWithoutMetrics() throws Exception {
+    Bundle[] bundles = createBundles( 3 );
+    List<RequireJsConfigManager.BundleResources> results =
+      new RequireJsBundleScanner( new RequireJsConfigManager(), 1, null ).scan( bundles );
+    assertNotNull( results.get( 0 ) );
+    assertNull( results.get( 1 ) );
+  }
+
+  @Test
+  public void testScanReportsFirstFailure() throws Exception {
+    Bundle[] bundles = createBundles( 20 );
+    URL notJson = this.getClass().getClassLoader()
+      .getResource( "org/pentaho/js/require/RequireJsConfigManagerTest.testExternalResources.internal" );
+    when( bundles[ 7 ].getResource( RequireJsConfigManager.REQUIRE_JSON_PATH ) ).thenReturn( notJson );
+    when( bundles[ 9 ].getResource( RequireJsConfigManager.REQUIRE_JSON_PATH ) )
+      .thenReturn( new URL( "file:/does/not/exist/require.json" ) );
+    try {
+      new RequireJsBundleScanner( new RequireJsConfigManager(), 4, null ).scan( bundles );
+      fail();
+    } catch ( ParseException e ) {
+      // bundle 7 comes before bundle 9
+    } catch ( IOException e ) {
+      fail();
+    }
+  }
+}
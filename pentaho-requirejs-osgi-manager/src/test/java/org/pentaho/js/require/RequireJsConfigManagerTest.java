@@ -25,19 +25,34 @@ package org.pentaho.js.require;
 import org.json.simple.JSONValue;
 import org.json.simple.parser.ParseException;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -48,6 +63,9 @@ public class RequireJsConfigManagerTest {
   private BundleContext bundleContext;
   private RequireJsConfigManager requireJsConfigManager;
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Before
   public void setup() {
     bundle = mock( Bundle.class );
@@ -157,6 +175,257 @@ public class RequireJsConfigManagerTest {
   }
 
 
+  @Test
+  public void testInvalidationsAreCoalesced() throws Exception {
+    requireJsConfigManager.setRebuildQuietPeriod( 100L );
+    requireJsConfigManager.setRebuildMaxLatency( 10000L );
+    for ( int i = 0; i < 10; i++ ) {
+      requireJsConfigManager.invalidateCache( true );
+    }
+    requireJsConfigManager.getRequireJsConfig();
+    assertEquals( 10L, requireJsConfigManager.getRebuildsRequested() );
+    assertEquals( 1L, requireJsConfigManager.getRebuildsExecuted() );
+  }
+
+  @Test
+  public void testBatchRebuildsOnce() throws Exception {
+    requireJsConfigManager.setRebuildQuietPeriod( 0L );
+    requireJsConfigManager.invalidateCache( true );
+    requireJsConfigManager.getRequireJsConfig();
+    requireJsConfigManager.beginBatch();
+    requireJsConfigManager.beginBatch();
+    for ( int i = 0; i < 10; i++ ) {
+      requireJsConfigManager.invalidateCache( true );
+    }
+    requireJsConfigManager.endBatch();
+    assertEquals( 1L, requireJsConfigManager.getRebuildsRequested() );
+    requireJsConfigManager.endBatch();
+    requireJsConfigManager.getRequireJsConfig();
+    assertEquals( 0, requireJsConfigManager.getOpenBatches() );
+    assertEquals( 2L, requireJsConfigManager.getRebuildsRequested() );
+    assertEquals( 2L, requireJsConfigManager.getRebuildsExecuted() );
+  }
+
+  @Test
+  public void testBatchWithoutChangesDoesNotRebuild() throws Exception {
+    requireJsConfigManager.beginBatch();
+    requireJsConfigManager.endBatch();
+    requireJsConfigManager.endBatch();
+    assertEquals( 0, requireJsConfigManager.getOpenBatches() );
+    assertEquals( 0L, requireJsConfigManager.getRebuildsRequested() );
+  }
+
+  @Test
+  public void testInitFollowsOpenBatches() throws Exception {
+    ServiceReference<?> batch = mock( ServiceReference.class );
+    doReturn( new ServiceReference[] { batch } ).when( bundleContext )
+        .getServiceReferences( (String) null, RequireJsConfigManager.BATCH_FILTER );
+    requireJsConfigManager.init();
+    verify( bundleContext )
+        .addServiceListener( any( ServiceListener.class ), eq( RequireJsConfigManager.BATCH_FILTER ) );
+    assertEquals( 1, requireJsConfigManager.getOpenBatches() );
+    requireJsConfigManager.destroy();
+    verify( bundleContext ).removeServiceListener( any( ServiceListener.class ) );
+  }
+
+  @Test
+  public void testInitScansAllBundles() throws Exception {
+    Bundle[] bundles = new Bundle[ 20 ];
+    for ( int i = 0; i < bundles.length; i++ ) {
+      bundles[ i ] = mock( Bundle.class );
+      when( bundles[ i ].getBundleId() ).thenReturn( (long) i );
+    }
+    when( bundles[ 3 ].getResource( RequireJsConfigManager.REQUIRE_JSON_PATH ) ).thenReturn( this.getClass()
+        .getClassLoader().getResource( "org/pentaho/js/require/RequireJsConfigManagerTest.testGetRequireJsConfig.json" ) );
+    when( bundleContext.getBundles() ).thenReturn( bundles );
+    BundleScanMetrics bundleScanMetrics = mock( BundleScanMetrics.class );
+    requireJsConfigManager.setBootstrapParallelism( 4 );
+    requireJsConfigManager.setBundleScanMetrics( bundleScanMetrics );
+    requireJsConfigManager.init();
+    verify( bundleScanMetrics ).scanCompleted( eq( bundles.length ), anyLong() );
+    String config = requireJsConfigManager.getRequireJsConfig();
+    RebuildCacheCallableTest.testEquals( JSONValue.parse( new InputStreamReader( this.getClass().getClassLoader()
+            .getResourceAsStream( "org/pentaho/js/require/RequireJsConfigManagerTest.testGetRequireJsConfig.json" ) ) ),
+        JSONValue.parse( config.substring( 0, config.length() - 1 ) ) );
+  }
+
+  @Test
+  public void testInitServesSnapshot() throws Exception {
+    File snapshotFile = temporaryFolder.newFile( RequireJsConfigSnapshot.FILE_NAME );
+    new RequireJsConfigSnapshot( snapshotFile )
+        .write( RequireJsConfigSnapshot.fingerprint( new Bundle[] { bundle } ), "{\"snapshot\":true};" );
+    when( bundleContext.getDataFile( RequireJsConfigSnapshot.FILE_NAME ) ).thenReturn( snapshotFile );
+    final CountDownLatch scanning = new CountDownLatch( 1 );
+    final CountDownLatch scanned = new CountDownLatch( 1 );
+    when( bundle.getResource( RequireJsConfigManager.REQUIRE_JSON_PATH ) ).thenAnswer( new Answer<Object>() {
+      @Override public Object answer( InvocationOnMock invocation ) throws Throwable {
+        scanning.await();
+        scanned.countDown();
+        return RequireJsConfigManagerTest.class.getClassLoader()
+            .getResource( "org/pentaho/js/require/RequireJsConfigManagerTest.testGetRequireJsConfig.json" );
+      }
+    } );
+    requireJsConfigManager.init();
+    assertEquals( "{\"snapshot\":true};", requireJsConfigManager.getRequireJsConfig() );
+    requireJsConfigManager.invalidateCache( true );
+    assertEquals( "{\"snapshot\":true};", requireJsConfigManager.getRequireJsConfig() );
+    scanning.countDown();
+    scanned.await();
+    long timeout = System.currentTimeMillis() + 10000L;
+    while ( requireJsConfigManager.getRequireJsConfig().contains( "snapshot" )
+        && System.currentTimeMillis() < timeout ) {
+      Thread.sleep( 10L );
+    }
+    String config = requireJsConfigManager.getRequireJsConfig();
+    assertFalse( config.contains( "snapshot" ) );
+    // The snapshot is written once the rebuild's future is done
+    String fingerprint = RequireJsConfigSnapshot.fingerprint( new Bundle[] { bundle } );
+    while ( !config.equals( new RequireJsConfigSnapshot( snapshotFile ).read( fingerprint ) )
+        && System.currentTimeMillis() < timeout ) {
+      Thread.sleep( 10L );
+    }
+    assertEquals( config, new RequireJsConfigSnapshot( snapshotFile ).read( fingerprint ) );
+  }
+
+  @Test
+  public void testInitIgnoresOutdatedSnapshot() throws Exception {
+    File snapshotFile = temporaryFolder.newFile( RequireJsConfigSnapshot.FILE_NAME );
+    new RequireJsConfigSnapshot( snapshotFile ).write( "outdated", "{\"snapshot\":true};" );
+    when( bundleContext.getDataFile( RequireJsConfigSnapshot.FILE_NAME ) ).thenReturn( snapshotFile );
+    requireJsConfigManager.init();
+    assertFalse( requireJsConfigManager.getRequireJsConfig().contains( "snapshot" ) );
+  }
+
+  @Test
+  public void testSnapshotFingerprintIsOfTheBundlesRead() throws Exception {
+    File snapshotFile = temporaryFolder.newFile( RequireJsConfigSnapshot.FILE_NAME );
+    when( bundleContext.getDataFile( RequireJsConfigSnapshot.FILE_NAME ) ).thenReturn( snapshotFile );
+    when( bundle.getResource( RequireJsConfigManager.REQUIRE_JSON_PATH ) ).thenReturn( this.getClass().getClassLoader()
+        .getResource( "org/pentaho/js/require/RequireJsConfigManagerTest.testGetRequireJsConfig.json" ) );
+    requireJsConfigManager.init();
+    // Installed after the bundles were read, its event has not been handled yet
+    Bundle newBundle = mock( Bundle.class );
+    when( newBundle.getBundleId() ).thenReturn( 2L );
+    when( bundleContext.getBundles() ).thenReturn( new Bundle[] { bundle, newBundle } );
+    String config = requireJsConfigManager.getRequireJsConfig();
+    String fingerprint = RequireJsConfigSnapshot.fingerprint( new Bundle[] { bundle } );
+    long timeout = System.currentTimeMillis() + 10000L;
+    while ( new RequireJsConfigSnapshot( snapshotFile ).read( fingerprint ) == null
+        && System.currentTimeMillis() < timeout ) {
+      Thread.sleep( 10L );
+    }
+    assertEquals( config, new RequireJsConfigSnapshot( snapshotFile ).read( fingerprint ) );
+  }
+
+  @Test
+  public void testBundleStoppedDuringValidationStaysRemoved() throws Exception {
+    final Bundle stopping = mock( Bundle.class );
+    when( stopping.getBundleId() ).thenReturn( 2L );
+    Bundle[] bundles = new Bundle[] { bundle, stopping };
+    when( bundleContext.getBundles() ).thenReturn( bundles );
+    File snapshotFile = temporaryFolder.newFile( RequireJsConfigSnapshot.FILE_NAME );
+    new RequireJsConfigSnapshot( snapshotFile )
+        .write( RequireJsConfigSnapshot.fingerprint( bundles ), "{\"snapshot\":true};" );
+    when( bundleContext.getDataFile( RequireJsConfigSnapshot.FILE_NAME ) ).thenReturn( snapshotFile );
+    final AtomicBoolean stopped = new AtomicBoolean();
+    when( stopping.getResource( RequireJsConfigManager.REQUIRE_JSON_PATH ) ).thenAnswer( new Answer<Object>() {
+      @Override public Object answer( InvocationOnMock invocation ) throws Throwable {
+        Object config = stopped.get() ? null : RequireJsConfigManagerTest.class.getClassLoader()
+            .getResource( "org/pentaho/js/require/RequireJsConfigManagerTest.testGetRequireJsConfig.json" );
+        if ( stopped.compareAndSet( false, true ) ) {
+          // Stops while it's being scanned, its event is handled before the scan is applied
+          requireJsConfigManager.bundleChanged( stopping );
+        }
+        return config;
+      }
+    } );
+    requireJsConfigManager.init();
+    long timeout = System.currentTimeMillis() + 10000L;
+    while ( requireJsConfigManager.getRequireJsConfig().contains( "snapshot" )
+        && System.currentTimeMillis() < timeout ) {
+      Thread.sleep( 10L );
+    }
+    String config = requireJsConfigManager.getRequireJsConfig();
+    assertFalse( config.contains( "snapshot" ) );
+    assertFalse( config.contains( "angular" ) );
+  }
+
+  @Test
+  public void testSnapshotFingerprintFollowsInstalledBundles() throws Exception {
+    File snapshotFile = temporaryFolder.newFile( RequireJsConfigSnapshot.FILE_NAME );
+    when( bundleContext.getDataFile( RequireJsConfigSnapshot.FILE_NAME ) ).thenReturn( snapshotFile );
+    when( bundle.getResource( RequireJsConfigManager.REQUIRE_JSON_PATH ) ).thenReturn( this.getClass().getClassLoader()
+        .getResource( "org/pentaho/js/require/RequireJsConfigManagerTest.testGetRequireJsConfig.json" ) );
+    requireJsConfigManager.init();
+    requireJsConfigManager.getRequireJsConfig();
+    long rebuildsRequested = requireJsConfigManager.getRebuildsRequested();
+    RequireJsBundleListener bundleListener = new RequireJsBundleListener( requireJsConfigManager );
+    Bundle installed = mock( Bundle.class );
+    when( installed.getBundleId() ).thenReturn( 2L );
+
+    bundleListener.bundleChanged( new BundleEvent( BundleEvent.INSTALLED, installed ) );
+    assertEquals( rebuildsRequested, requireJsConfigManager.getRebuildsRequested() );
+    requireJsConfigManager.bundleChanged( bundle );
+    assertSnapshot( snapshotFile, new Bundle[] { bundle, installed }, requireJsConfigManager.getRequireJsConfig() );
+
+    bundleListener.bundleChanged( new BundleEvent( BundleEvent.UNINSTALLED, installed ) );
+    assertEquals( rebuildsRequested + 1, requireJsConfigManager.getRebuildsRequested() );
+    requireJsConfigManager.bundleChanged( bundle );
+    assertSnapshot( snapshotFile, new Bundle[] { bundle }, requireJsConfigManager.getRequireJsConfig() );
+  }
+
+  @Test
+  public void testDestroyStopsValidation() throws Exception {
+    File snapshotFile = temporaryFolder.newFile( RequireJsConfigSnapshot.FILE_NAME );
+    new RequireJsConfigSnapshot( snapshotFile )
+        .write( RequireJsConfigSnapshot.fingerprint( new Bundle[] { bundle } ), "{\"snapshot\":true};" );
+    when( bundleContext.getDataFile( RequireJsConfigSnapshot.FILE_NAME ) ).thenReturn( snapshotFile );
+    final CountDownLatch scanning = new CountDownLatch( 1 );
+    final AtomicReference<Thread> validationThread = new AtomicReference<Thread>();
+    when( bundle.getResource( RequireJsConfigManager.REQUIRE_JSON_PATH ) ).thenAnswer( new Answer<Object>() {
+      @Override public Object answer( InvocationOnMock invocation ) throws Throwable {
+        validationThread.set( Thread.currentThread() );
+        scanning.countDown();
+        Thread.sleep( 10000L );
+        return RequireJsConfigManagerTest.class.getClassLoader()
+            .getResource( "org/pentaho/js/require/RequireJsConfigManagerTest.testGetRequireJsConfig.json" );
+      }
+    } );
+    requireJsConfigManager.init();
+    scanning.await();
+    requireJsConfigManager.destroy();
+    validationThread.get().join( 5000L );
+    assertFalse( validationThread.get().isAlive() );
+    assertEquals( "{\"snapshot\":true};", requireJsConfigManager.getRequireJsConfig() );
+  }
+
+  @Test
+  public void testDestroy() throws Exception {
+    requireJsConfigManager.init();
+    requireJsConfigManager.destroy();
+    verify( bundleContext ).removeBundleListener( any( BundleListener.class ) );
+  }
+
+  @Test
+  public void testGetRequireJsConfigAfterDestroyServesLastConfig() throws Exception {
+    requireJsConfigManager.setRebuildQuietPeriod( 0L );
+    requireJsConfigManager.init();
+    String config = requireJsConfigManager.getRequireJsConfig();
+    requireJsConfigManager.setRebuildQuietPeriod( 10000L );
+    requireJsConfigManager.invalidateCache( true );
+    requireJsConfigManager.destroy();
+    assertEquals( config, requireJsConfigManager.getRequireJsConfig() );
+  }
+
+  @Test
+  public void testGetRequireJsConfigAfterDestroyWithoutConfig() throws Exception {
+    requireJsConfigManager.setRebuildQuietPeriod( 10000L );
+    requireJsConfigManager.init();
+    requireJsConfigManager.destroy();
+    assertEquals( "// Error computing RequireJS Config: the RequireJS config manager is stopped",
+        requireJsConfigManager.getRequireJsConfig() );
+  }
+
   @Test
   public void testContextRoot() throws IOException, ParseException {
     String[] contextPermutations = new String[] { "fake/root", "/fake/root", "fake/root/" };
@@ -167,4 +436,16 @@ public class RequireJsConfigManagerTest {
   }
 
 
+
+  private static void assertSnapshot( File snapshotFile, Bundle[] bundles, String config )
+      throws InterruptedException {
+    // The snapshot is written once the rebuild's future is done
+    String fingerprint = RequireJsConfigSnapshot.fingerprint( bundles );
+    long timeout = System.currentTimeMillis() + 10000L;
+    while ( !config.equals( new RequireJsConfigSnapshot( snapshotFile ).read( fingerprint ) )
+        && System.currentTimeMillis() < timeout ) {
+      Thread.sleep( 10L );
+    }
+    assertEquals( config, new RequireJsConfigSnapshot( snapshotFile ).read( fingerprint ) );
+  }
 }
@@ -24,19 +24,30 @@ package org.pentaho.js.require;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -75,7 +86,7 @@ public class RequireJsConfigServletTest {
       }
     } );
     String testConfig = "TEST_CONFIG";
-    when( requireJsConfigManager.getRequireJsConfig() ).thenReturn( testConfig );
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( testConfig ) );
     requireJsConfigServlet.doGet( request, response );
     assertTrue( outputStream.toString( "UTF-8" ).contains( testConfig ) );
     assertTrue( outputStream.toString( "UTF-8" ).endsWith( "require.config(requireCfg);" ) );
@@ -93,7 +104,7 @@ public class RequireJsConfigServletTest {
       }
     } );
     String testConfig = "TEST_CONFIG";
-    when( requireJsConfigManager.getRequireJsConfig() ).thenReturn( testConfig );
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( testConfig ) );
     requireJsConfigServlet.doGet( request, response );
     assertTrue( outputStream.toString( "UTF-8" ).contains( testConfig ) );
     assertTrue( outputStream.toString( "UTF-8" ).endsWith( "require.config(requireCfg);" ) );
@@ -111,7 +122,7 @@ public class RequireJsConfigServletTest {
       }
     } );
     String testConfig = "TEST_CONFIG";
-    when( requireJsConfigManager.getRequireJsConfig() ).thenReturn( testConfig );
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( testConfig ) );
     requireJsConfigServlet.doGet( request, response );
     assertTrue( outputStream.toString( "UTF-8" ).contains( testConfig ) );
     assertFalse( outputStream.toString( "UTF-8" ).endsWith( "require.config(requireCfg);" ) );
@@ -133,7 +144,7 @@ public class RequireJsConfigServletTest {
       }
     } );
     String testConfig = "TEST_CONFIG";
-    when( requireJsConfigManager.getRequireJsConfig() ).thenReturn( testConfig );
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( testConfig ) );
     when( requireJsConfigManager.getContextRoot() ).thenReturn("/test/root/");
 
     requireJsConfigServlet.doGet( request, response );
@@ -141,4 +152,183 @@ public class RequireJsConfigServletTest {
     assertTrue( output.contains( "requireCfg.baseUrl = '/test/root/" ) );
 
   }
+
+  private String toString( InputStream inputStream ) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[] buffer = new byte[ 1024 ];
+    int read;
+    while ( ( read = inputStream.read( buffer ) ) != -1 ) {
+      outputStream.write( buffer, 0, read );
+    }
+    return outputStream.toString( "UTF-8" );
+  }
+
+  private ByteArrayOutputStream mockOutput( HttpServletResponse response ) throws IOException {
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    when( response.getOutputStream() ).thenReturn( new ServletOutputStream() {
+      @Override public void write( int b ) throws IOException {
+        outputStream.write( b );
+      }
+    } );
+    return outputStream;
+  }
+
+  @Test
+  public void testDoGetGzip() throws ServletException, IOException {
+    HttpServletRequest request = mock( HttpServletRequest.class );
+    when( request.getHeader( "Accept-Encoding" ) ).thenReturn( "deflate, gzip" );
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    ByteArrayOutputStream outputStream = mockOutput( response );
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( "TEST_CONFIG" ) );
+    requireJsConfigServlet.doGet( request, response );
+    verify( response ).setHeader( "Content-Encoding", "gzip" );
+    verify( response ).setContentLength( outputStream.size() );
+    String output =
+      toString( new GZIPInputStream( new ByteArrayInputStream( outputStream.toByteArray() ) ) );
+    assertTrue( output.contains( "TEST_CONFIG" ) );
+    assertTrue( output.endsWith( "require.config(requireCfg);" ) );
+  }
+
+  @Test
+  public void testDoGetDeflate() throws ServletException, IOException {
+    HttpServletRequest request = mock( HttpServletRequest.class );
+    when( request.getHeader( "Accept-Encoding" ) ).thenReturn( "gzip;q=0.5, deflate" );
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    ByteArrayOutputStream outputStream = mockOutput( response );
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( "TEST_CONFIG" ) );
+    requireJsConfigServlet.doGet( request, response );
+    verify( response ).setHeader( "Content-Encoding", "deflate" );
+    String output =
+      toString( new InflaterInputStream( new ByteArrayInputStream( outputStream.toByteArray() ) ) );
+    assertTrue( output.contains( "TEST_CONFIG" ) );
+  }
+
+  @Test
+  public void testSelectEncoding() {
+    assertNull( RequireJsConfigServlet.selectEncoding( null ) );
+    assertNull( RequireJsConfigServlet.selectEncoding( "identity" ) );
+    assertNull( RequireJsConfigServlet.selectEncoding( "gzip;q=0, deflate;q=0" ) );
+    assertEquals( "gzip", RequireJsConfigServlet.selectEncoding( "*" ) );
+    assertEquals( "deflate", RequireJsConfigServlet.selectEncoding( "gzip;q=0, *" ) );
+  }
+
+  @Test
+  public void testIfNoneMatch() throws ServletException, IOException {
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( "TEST_CONFIG" ) );
+    HttpServletRequest request = mock( HttpServletRequest.class );
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    mockOutput( response );
+    requireJsConfigServlet.doGet( request, response );
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass( String.class );
+    verify( response ).setHeader( eq( "ETag" ), etagCaptor.capture() );
+    String etag = etagCaptor.getValue();
+    assertTrue( etag.startsWith( "\"" ) && etag.endsWith( "\"" ) );
+
+    HttpServletRequest conditionalRequest = mock( HttpServletRequest.class );
+    when( conditionalRequest.getHeader( "If-None-Match" ) ).thenReturn( "\"other\", " + etag );
+    HttpServletResponse notModifiedResponse = mock( HttpServletResponse.class );
+    requireJsConfigServlet.doGet( conditionalRequest, notModifiedResponse );
+    verify( notModifiedResponse ).setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+    verify( notModifiedResponse, never() ).getOutputStream();
+
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( "NEW_CONFIG" ) );
+    HttpServletResponse modifiedResponse = mock( HttpServletResponse.class );
+    ByteArrayOutputStream outputStream = mockOutput( modifiedResponse );
+    requireJsConfigServlet.doGet( conditionalRequest, modifiedResponse );
+    verify( modifiedResponse, never() ).setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+    verify( modifiedResponse, never() ).setHeader( "ETag", etag );
+    assertTrue( outputStream.toString( "UTF-8" ).contains( "NEW_CONFIG" ) );
+  }
+
+  @Test
+  public void testEqualConfigKeepsETag() throws ServletException, IOException {
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( "TEST_CONFIG" ) );
+    HttpServletRequest request = mock( HttpServletRequest.class );
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    mockOutput( response );
+    requireJsConfigServlet.doGet( request, response );
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass( String.class );
+    verify( response ).setHeader( eq( "ETag" ), etagCaptor.capture() );
+
+    // Same bytes, split differently, from a new rebuild
+    when( requireJsConfigManager.getRequireJsConfigFragment() )
+      .thenReturn( JsonFragment.concat( Arrays.asList( JsonFragment.of( "TEST_" ), JsonFragment.of( "CONFIG" ) ) ) );
+    HttpServletResponse secondResponse = mock( HttpServletResponse.class );
+    mockOutput( secondResponse );
+    requireJsConfigServlet.doGet( request, secondResponse );
+    verify( secondResponse ).setHeader( "ETag", etagCaptor.getValue() );
+  }
+
+  @Test
+  public void testETagIsDerivedFromContent() throws ServletException, IOException {
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( "TEST_CONFIG" ) );
+    HttpServletRequest request = mock( HttpServletRequest.class );
+    when( request.getHeader( "Accept-Encoding" ) ).thenReturn( "gzip" );
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    mockOutput( response );
+    requireJsConfigServlet.doGet( request, response );
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass( String.class );
+    verify( response ).setHeader( eq( "ETag" ), etagCaptor.capture() );
+    assertTrue( etagCaptor.getValue().endsWith( "-gzip\"" ) );
+
+    // Another instance, as after a restart or on another node
+    RequireJsConfigServlet otherServlet = new RequireJsConfigServlet();
+    otherServlet.setManager( requireJsConfigManager );
+    HttpServletResponse otherResponse = mock( HttpServletResponse.class );
+    mockOutput( otherResponse );
+    otherServlet.doGet( request, otherResponse );
+    verify( otherResponse ).setHeader( "ETag", etagCaptor.getValue() );
+  }
+
+  @Test
+  public void testHashedUrlsRedirect() throws ServletException, IOException {
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( "TEST_CONFIG" ) );
+    requireJsConfigServlet.setHashedUrls( true );
+    assertTrue( requireJsConfigServlet.isHashedUrls() );
+    HttpServletRequest request = mock( HttpServletRequest.class );
+    when( request.getServletPath() ).thenReturn( "/requirejs-manager/js/require-init.js" );
+    when( request.getParameter( "config" ) ).thenReturn( "false" );
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    requireJsConfigServlet.doGet( request, response );
+    ArgumentCaptor<String> locationCaptor = ArgumentCaptor.forClass( String.class );
+    verify( response ).sendRedirect( locationCaptor.capture() );
+    verify( response ).setHeader( "Cache-Control", "no-cache" );
+    verify( response, never() ).getOutputStream();
+    String location = locationCaptor.getValue();
+    assertTrue( location, location.matches( "require-init/[0-9a-f]{32}\\.js\\?config=false" ) );
+
+    // The hashed url is served by the servlet registered under the require-init alias
+    RequireJsConfigServlet hashedServlet = new RequireJsConfigServlet();
+    hashedServlet.setManager( requireJsConfigManager );
+    HttpServletRequest hashedRequest = mock( HttpServletRequest.class );
+    when( hashedRequest.getServletPath() ).thenReturn( "/requirejs-manager/js/require-init" );
+    when( hashedRequest.getPathInfo() ).thenReturn( location.substring( "require-init".length(), location.indexOf( '?' ) ) );
+    when( hashedRequest.getParameter( "config" ) ).thenReturn( "false" );
+    HttpServletResponse hashedResponse = mock( HttpServletResponse.class );
+    ByteArrayOutputStream outputStream = mockOutput( hashedResponse );
+    hashedServlet.doGet( hashedRequest, hashedResponse );
+    verify( hashedResponse ).setHeader( "Cache-Control", RequireJsConfigServlet.IMMUTABLE_CACHE_CONTROL );
+    String output = outputStream.toString( "UTF-8" );
+    assertTrue( output.contains( "TEST_CONFIG" ) );
+    assertFalse( output.endsWith( "require.config(requireCfg);" ) );
+
+    // Once the configuration changes the old hash leads back to the bootstrap url
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( "NEW_CONFIG" ) );
+    HttpServletResponse staleResponse = mock( HttpServletResponse.class );
+    hashedServlet.doGet( hashedRequest, staleResponse );
+    verify( staleResponse ).sendRedirect( "../require-init.js?config=false" );
+    verify( staleResponse, never() ).getOutputStream();
+  }
+
+  @Test
+  public void testHashedUrlsDisabled() throws ServletException, IOException {
+    when( requireJsConfigManager.getRequireJsConfigFragment() ).thenReturn( JsonFragment.of( "TEST_CONFIG" ) );
+    HttpServletRequest request = mock( HttpServletRequest.class );
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    ByteArrayOutputStream outputStream = mockOutput( response );
+    requireJsConfigServlet.doGet( request, response );
+    verify( response, never() ).sendRedirect( anyString() );
+    verify( response, never() ).setHeader( "Cache-Control", RequireJsConfigServlet.IMMUTABLE_CACHE_CONTROL );
+    assertTrue( outputStream.toString( "UTF-8" ).contains( "TEST_CONFIG" ) );
+  }
 }
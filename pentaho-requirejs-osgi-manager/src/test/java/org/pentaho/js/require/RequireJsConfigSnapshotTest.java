@@ -0,0 +1,93 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RequireJsConfigSnapshotTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Bundle createBundle( long id, String symbolicName, String version, long lastModified ) {
+    Bundle bundle = mock( Bundle.class );
+    when( bundle.getBundleId() ).thenReturn( id );
+    when( bundle.getSymbolicName() ).thenReturn( symbolicName );
+    when( bundle.getVersion() ).thenReturn( new Version( version ) );
+    when( bundle.getLastModified() ).thenReturn( lastModified );
+    return bundle;
+  }
+
+  @Test
+  public void testFingerprintIgnoresOrder() {
+    Bundle bundle1 = createBundle( 1L, "a", "1.0.0", 10L );
+    Bundle bundle2 = createBundle( 2L, "b", "1.0.0", 20L );
+    assertEquals( RequireJsConfigSnapshot.fingerprint( new Bundle[] { bundle1, bundle2 } ),
+      RequireJsConfigSnapshot.fingerprint( new Bundle[] { bundle2, bundle1 } ) );
+  }
+
+  @Test
+  public void testFingerprintChangesWithBundles() {
+    String fingerprint = RequireJsConfigSnapshot.fingerprint( new Bundle[] { createBundle( 1L, "a", "1.0.0", 10L ) } );
+    assertFalse( fingerprint.equals(
+      RequireJsConfigSnapshot.fingerprint( new Bundle[] { createBundle( 1L, "a", "1.0.0", 11L ) } ) ) );
+    assertFalse( fingerprint.equals(
+      RequireJsConfigSnapshot.fingerprint( new Bundle[] { createBundle( 1L, "a", "1.0.1", 10L ) } ) ) );
+    assertFalse( fingerprint.equals( RequireJsConfigSnapshot.fingerprint( new Bundle[] {
+      createBundle( 1L, "a", "1.0.0", 10L ), createBundle( 2L, "b", "1.0.0", 20L ) } ) ) );
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    File file = new File( temporaryFolder.getRoot(), "data/" + RequireJsConfigSnapshot.FILE_NAME );
+    new RequireJsConfigSnapshot( file ).write( "abc", "{\"paths\":{\"é\":\"x\"}};" );
+    RequireJsConfigSnapshot snapshot = new RequireJsConfigSnapshot( file );
+    assertEquals( "{\"paths\":{\"é\":\"x\"}};", snapshot.read( "abc" ) );
+    assertNull( snapshot.read( "def" ) );
+    snapshot.write( "def", "{};" );
+    assertEquals( "{};", snapshot.read( "def" ) );
+    assertFalse( new File( file.getParentFile(), RequireJsConfigSnapshot.FILE_NAME + ".tmp" ).exists() );
+  }
+
+  @Test
+  public void testReadMissingOrInvalid() throws Exception {
+    File file = temporaryFolder.newFile( RequireJsConfigSnapshot.FILE_NAME );
+    FileOutputStream fileOutputStream = new FileOutputStream( file );
+    fileOutputStream.write( "no fingerprint".getBytes( "UTF-8" ) );
+    fileOutputStream.close();
+    assertNull( new RequireJsConfigSnapshot( file ).read( "no fingerprint" ) );
+    assertNull( new RequireJsConfigSnapshot( new File( file.getParentFile(), "missing" ) ).read( "abc" ) );
+  }
+}
@@ -0,0 +1,170 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.js.require;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class RequireJsMergeTreeTest {
+  private JSONObject createConfig( String path, String shimDep ) {
+    JSONObject paths = new JSONObject();
+    paths.put( path, "/" + path + "-bundle/" + path );
+    JSONArray deps = new JSONArray();
+    deps.add( shimDep );
+    JSONObject shimEntry = new JSONObject();
+    shimEntry.put( "deps", deps );
+    JSONObject shim = new JSONObject();
+    shim.put( path, shimEntry );
+    JSONArray packages = new JSONArray();
+    packages.add( path );
+    JSONObject config = new JSONObject();
+    config.put( "paths", paths );
+    config.put( "shim", shim );
+    config.put( "packages", packages );
+    config.put( "waitSeconds", path.length() );
+    return config;
+  }
+
+  @Test
+  public void testApplyMatchesFullRebuild() throws Exception {
+    Map<Long, JSONObject> configMap = new HashMap<Long, JSONObject>();
+    configMap.put( 3L, createConfig( "angular", "jquery" ) );
+    configMap.put( 1L, createConfig( "jquery", "dojo" ) );
+    configMap.put( 2L, createConfig( "dojo", "angular" ) );
+    RequireJsMergeTree mergeTree = new RequireJsMergeTree();
+    for ( Map.Entry<Long, JSONObject> entry : configMap.entrySet() ) {
+      mergeTree.apply( entry.getKey(), entry.getValue() );
+    }
+    // Output of the full rebuild for the same configurations, except that it only made the paths of the first
+    // bundle contributing paths relative
+    String expected = "{\"paths\":{\"angular\":\"angular-bundle\\/angular\","
+      + "\"jquery\":\"jquery-bundle\\/jquery\",\"dojo\":\"dojo-bundle\\/dojo\"},\"bundles\":{},\"waitSeconds\":7,"
+      + "\"shim\":{\"angular\":{\"deps\":[\"jquery\"]},\"jquery\":{\"deps\":[\"dojo\"]},"
+      + "\"dojo\":{\"deps\":[\"angular\"]}},\"packages\":[\"jquery\",\"dojo\",\"angular\"],"
+      + "\"map\":{\"*\":{}},\"config\":{\"service\":{}}}";
+    assertEquals( JSONValue.parse( expected ), JSONValue.parse( mergeTree.toJSONString() ) );
+  }
+
+  @Test
+  public void testOnlyPathsAndPackageLocationsAreMadeRelative() throws Exception {
+    JSONObject config = createConfig( "jquery", "dojo" );
+    JSONObject pkg = new JSONObject();
+    pkg.put( "name", "pkg" );
+    pkg.put( "location", "/pkg-bundle/pkg" );
+    ( (JSONArray) config.get( "packages" ) ).add( pkg );
+    JSONObject service = new JSONObject();
+    service.put( "url", "/service/url" );
+    JSONObject configs = new JSONObject();
+    configs.put( "service", service );
+    config.put( "config", configs );
+    JSONObject star = new JSONObject();
+    star.put( "jquery", "/jquery-mapped" );
+    JSONObject map = new JSONObject();
+    map.put( "*", star );
+    config.put( "map", map );
+    config.put( "baseUrl", "/base" );
+    RequireJsMergeTree mergeTree = new RequireJsMergeTree();
+    mergeTree.apply( 1L, config );
+
+    JSONObject merged = (JSONObject) JSONValue.parse( mergeTree.toJSONString() );
+    assertEquals( "jquery-bundle/jquery", ( (Map) merged.get( "paths" ) ).get( "jquery" ) );
+    JSONArray packages = (JSONArray) merged.get( "packages" );
+    assertEquals( "jquery", packages.get( 0 ) );
+    assertEquals( "pkg-bundle/pkg", ( (Map) packages.get( 1 ) ).get( "location" ) );
+    assertEquals( "/pkg-bundle/pkg", pkg.get( "location" ) );
+    assertEquals( "/service/url", ( (Map) ( (Map) merged.get( "config" ) ).get( "service" ) ).get( "url" ) );
+    assertEquals( "/jquery-mapped", ( (Map) ( (Map) merged.get( "map" ) ).get( "*" ) ).get( "jquery" ) );
+    assertEquals( "/base", merged.get( "baseUrl" ) );
+  }
+
+  @Test
+  public void testRetractRestoresPreviousState() throws Exception {
+    RequireJsMergeTree mergeTree = new RequireJsMergeTree();
+    String empty = mergeTree.toJSONString();
+    JSONObject jquery = createConfig( "jquery", "dojo" );
+    mergeTree.apply( 1L, jquery );
+    String withJquery = mergeTree.toJSONString();
+    JSONObject angular = createConfig( "angular", "jquery" );
+    mergeTree.apply( 2L, angular );
+    mergeTree.retract( 2L, angular );
+    assertEquals( withJquery, mergeTree.toJSONString() );
+    mergeTree.retract( 1L, jquery );
+    assertEquals( empty, mergeTree.toJSONString() );
+  }
+
+  @Test
+  public void testUnchangedSerializationIsCached() throws Exception {
+    RequireJsMergeTree mergeTree = new RequireJsMergeTree();
+    mergeTree.apply( 1L, createConfig( "jquery", "dojo" ) );
+    assertSame( mergeTree.getJson(), mergeTree.getJson() );
+  }
+
+  @Test
+  public void testJsonIsASnapshot() throws Exception {
+    RequireJsMergeTree mergeTree = new RequireJsMergeTree();
+    mergeTree.apply( 1L, createConfig( "jquery", "dojo" ) );
+    JsonFragment json = mergeTree.getJson();
+    String expected = json.toString();
+    mergeTree.apply( 2L, createConfig( "angular", "jquery" ) );
+    assertEquals( expected, json.toString() );
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    mergeTree.getJson().writeTo( byteArrayOutputStream );
+    assertEquals( mergeTree.getJson().length(), byteArrayOutputStream.size() );
+    assertEquals( mergeTree.toJSONString(), byteArrayOutputStream.toString( "UTF-8" ) );
+  }
+
+  @Test
+  public void testRetractResolvesConflict() throws Exception {
+    RequireJsMergeTree mergeTree = new RequireJsMergeTree();
+    mergeTree.apply( 1L, createConfig( "jquery", "dojo" ) );
+    JSONObject conflicting = new JSONObject();
+    conflicting.put( "paths", new JSONArray() );
+    mergeTree.apply( 2L, conflicting );
+    try {
+      mergeTree.toJSONString();
+      fail();
+    } catch ( Exception e ) {
+      assertEquals( "Cannot merge key paths due to different types.", e.getMessage() );
+    }
+    mergeTree.retract( 2L, conflicting );
+    JSONObject merged = (JSONObject) JSONValue.parse( mergeTree.toJSONString() );
+    assertEquals( "jquery-bundle/jquery", ( (Map) merged.get( "paths" ) ).get( "jquery" ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testNonStringKey() {
+    JSONObject config = new JSONObject();
+    config.put( new Object(), "value" );
+    new RequireJsMergeTree().apply( 1L, config );
+  }
+}
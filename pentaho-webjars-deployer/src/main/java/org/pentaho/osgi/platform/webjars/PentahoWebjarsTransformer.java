@@ -23,16 +23,23 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 /**
  * Created by nbaker on 9/5/14.
  */
 public class PentahoWebjarsTransformer implements ArtifactUrlTransformer {
+  private static final String REQUIREJS_SUFFIX = "-requirejs.js";
+  private static final int MAX_VERDICTS = 10000;
   private Logger logger = LoggerFactory.getLogger( PentahoWebjarsTransformer.class );
+  private final ConcurrentMap<String, Verdict> verdicts = new ConcurrentHashMap<String, Verdict>();
 
   @Override public URL transform( URL url ) throws Exception {
     return new URL( "pentaho-webjars", null, url.toExternalForm() );
@@ -43,14 +50,45 @@ public class PentahoWebjarsTransformer implements ArtifactUrlTransformer {
     if ( file == null || file.getName() == null || !file.getName().endsWith( ".jar" ) ) {
       return false;
     }
+    // The deploy folder is scanned over and over, only look into the jars that changed
+    String path = file.getAbsolutePath();
+    long length = file.length();
+    long lastModified = file.lastModified();
+    Verdict verdict = verdicts.get( path );
+    if ( verdict != null && verdict.length == length && verdict.lastModified == lastModified ) {
+      return verdict.canHandle;
+    }
+    boolean canHandle = isWebjar( file );
+    if ( verdicts.size() >= MAX_VERDICTS ) {
+      verdicts.clear();
+    }
+    verdicts.put( path, new Verdict( length, lastModified, canHandle ) );
+    return canHandle;
+  }
+
+  private boolean isWebjar( File file ) {
+    try {
+      RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+      try {
+        // META-INF/resources/webjars/angularjs/1.3.0-rc.0/webjars-requirejs.js
+        return ZipCentralDirectory.findEntry( randomAccessFile, REQUIREJS_SUFFIX ) != null;
+      } finally {
+        randomAccessFile.close();
+      }
+    } catch ( ZipException e ) {
+      logger.debug( "Unable to scan the central directory of " + file + ", reading it as a zip file", e );
+    } catch ( IOException e ) {
+      logger.error( e.getMessage(), e );
+      return false;
+    }
+
     ZipFile zipFile = null;
     try {
       zipFile = new ZipFile( file );
       Enumeration<? extends ZipEntry> entries = zipFile.entries();
       while ( entries.hasMoreElements() ) {
-        // META-INF/resources/webjars/angularjs/1.3.0-rc.0/webjars-requirejs.js
         String name = entries.nextElement().getName();
-        if ( name.endsWith( "-requirejs.js" ) ) {
+        if ( name.endsWith( REQUIREJS_SUFFIX ) ) {
           return true;
         }
       }
@@ -67,4 +105,16 @@ public class PentahoWebjarsTransformer implements ArtifactUrlTransformer {
     }
     return false;
   }
+
+  private static class Verdict {
+    private final long length;
+    private final long lastModified;
+    private final boolean canHandle;
+
+    private Verdict( long length, long lastModified, boolean canHandle ) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.canHandle = canHandle;
+    }
+  }
 }
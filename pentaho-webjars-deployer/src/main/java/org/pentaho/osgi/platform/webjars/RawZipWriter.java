@@ -0,0 +1,201 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip file made of entries copied as they are, still compressed, from another zip file and of new entries.
+ * <p/>
+ * Unlike {@link java.util.zip.ZipOutputStream}, copying an entry costs no inflating nor deflating. Zip64 is not
+ * supported, so an archive is limited to 65535 entries and 4 GB.
+ */
+public class RawZipWriter {
+  private static final int VERSION = 20;
+  private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+  private static final int UTF_8_FLAG = 0x0800;
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+  private final OutputStream outputStream;
+  private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+  private final byte[] buffer = new byte[ 64 * 1024 ];
+  private long offset;
+  private int entryCount;
+
+  public RawZipWriter( OutputStream outputStream ) {
+    this.outputStream = outputStream;
+  }
+
+  /**
+   * Copies an entry of another zip file, keeping its compressed data, CRC and sizes.
+   */
+  public void copy( RandomAccessFile source, ZipCentralDirectory.Entry entry ) throws IOException {
+    long dataOffset = ZipCentralDirectory.getDataOffset( source, entry );
+    // Sizes and CRC go in the local header, there's no data descriptor after the data
+    writeHeaders( entry.getRawName(), entry.getFlags() & ~DATA_DESCRIPTOR_FLAG, entry.getMethod(),
+      entry.getDosTime(), entry.getCrc(), entry.getCompressedSize(), entry.getSize(),
+      entry.getExternalAttributes() );
+    source.seek( dataOffset );
+    long remaining = entry.getCompressedSize();
+    while ( remaining > 0 ) {
+      int read = source.read( buffer, 0, (int) Math.min( buffer.length, remaining ) );
+      if ( read < 0 ) {
+        throw new ZipException( "Truncated entry " + entry.getName() );
+      }
+      outputStream.write( buffer, 0, read );
+      remaining -= read;
+    }
+    offset += entry.getCompressedSize();
+  }
+
+  /**
+   * Adds a new entry, deflated, or stored if it's a directory.
+   */
+  public void write( String name, byte[] content ) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update( content );
+    byte[] data = content;
+    int method = ZipEntry.STORED;
+    if ( !name.endsWith( "/" ) ) {
+      method = ZipEntry.DEFLATED;
+      data = deflate( content );
+    }
+    writeHeaders( name.getBytes( UTF_8 ), UTF_8_FLAG, method, toDosTime( System.currentTimeMillis() ),
+      crc.getValue(), data.length, content.length, 0 );
+    outputStream.write( data );
+    offset += data.length;
+  }
+
+  /**
+   * Adds a new entry stored as it is, for content that is already compressed.
+   */
+  public void store( String name, byte[] content ) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update( content );
+    writeHeaders( name.getBytes( UTF_8 ), UTF_8_FLAG, ZipEntry.STORED, toDosTime( System.currentTimeMillis() ),
+      crc.getValue(), content.length, content.length, 0 );
+    outputStream.write( content );
+    offset += content.length;
+  }
+
+  /**
+   * Writes the central directory. The underlying stream is left open.
+   */
+  public void finish() throws IOException {
+    if ( entryCount > 0xFFFF || offset > 0xFFFFFFFFL ) {
+      throw new ZipException( "Too many entries or too large for a zip file without zip64" );
+    }
+    centralDirectory.writeTo( outputStream );
+    byte[] end = new byte[ ZipCentralDirectory.END_SIZE ];
+    putInt( end, 0, ZipCentralDirectory.END_SIGNATURE );
+    putShort( end, 8, entryCount );
+    putShort( end, 10, entryCount );
+    putInt( end, 12, centralDirectory.size() );
+    putInt( end, 16, offset );
+    outputStream.write( end );
+    outputStream.flush();
+  }
+
+  private void writeHeaders( byte[] name, int flags, int method, int dosTime, long crc, long compressedSize,
+                             long size, int externalAttributes ) throws IOException {
+    if ( offset > 0xFFFFFFFFL ) {
+      throw new ZipException( "Too large for a zip file without zip64" );
+    }
+    byte[] local = new byte[ ZipCentralDirectory.LOCAL_HEADER_SIZE ];
+    putInt( local, 0, ZipCentralDirectory.LOCAL_HEADER_SIGNATURE );
+    putShort( local, 4, VERSION );
+    putShort( local, 6, flags );
+    putShort( local, 8, method );
+    putInt( local, 10, dosTime );
+    putInt( local, 14, crc );
+    putInt( local, 18, compressedSize );
+    putInt( local, 22, size );
+    putShort( local, 26, name.length );
+    outputStream.write( local );
+    outputStream.write( name );
+
+    byte[] central = new byte[ ZipCentralDirectory.CENTRAL_HEADER_SIZE ];
+    putInt( central, 0, ZipCentralDirectory.CENTRAL_HEADER_SIGNATURE );
+    putShort( central, 4, VERSION );
+    putShort( central, 6, VERSION );
+    putShort( central, 8, flags );
+    putShort( central, 10, method );
+    putInt( central, 12, dosTime );
+    putInt( central, 16, crc );
+    putInt( central, 20, compressedSize );
+    putInt( central, 24, size );
+    putShort( central, 28, name.length );
+    putInt( central, 38, externalAttributes );
+    putInt( central, 42, offset );
+    centralDirectory.write( central );
+    centralDirectory.write( name );
+
+    offset += local.length + name.length;
+    entryCount++;
+  }
+
+  private static byte[] deflate( byte[] content ) {
+    Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+    try {
+      deflater.setInput( content );
+      deflater.finish();
+      ByteArrayOutputStream deflated = new ByteArrayOutputStream( content.length / 2 + 64 );
+      byte[] chunk = new byte[ 8192 ];
+      while ( !deflater.finished() ) {
+        int count = deflater.deflate( chunk );
+        deflated.write( chunk, 0, count );
+      }
+      return deflated.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static int toDosTime( long time ) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis( time );
+    int year = calendar.get( Calendar.YEAR );
+    if ( year < 1980 ) {
+      return ( 1 << 21 ) | ( 1 << 16 );
+    }
+    return ( year - 1980 ) << 25 | ( calendar.get( Calendar.MONTH ) + 1 ) << 21
+      | calendar.get( Calendar.DAY_OF_MONTH ) << 16 | calendar.get( Calendar.HOUR_OF_DAY ) << 11
+      | calendar.get( Calendar.MINUTE ) << 5 | calendar.get( Calendar.SECOND ) >> 1;
+  }
+
+  private static void putShort( byte[] bytes, int index, int value ) {
+    bytes[ index ] = (byte) value;
+    bytes[ index + 1 ] = (byte) ( value >> 8 );
+  }
+
+  private static void putInt( byte[] bytes, int index, long value ) {
+    bytes[ index ] = (byte) value;
+    bytes[ index + 1 ] = (byte) ( value >> 8 );
+    bytes[ index + 2 ] = (byte) ( value >> 16 );
+    bytes[ index + 3 ] = (byte) ( value >> 24 );
+  }
+}
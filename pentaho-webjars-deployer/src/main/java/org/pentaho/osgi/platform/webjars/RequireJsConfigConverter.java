@@ -0,0 +1,200 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs webjars-requirejs.js scripts through require-js-aggregator.js to get their RequireJS configuration as JSON.
+ * <p/>
+ * Starting a JavaScript engine costs far more than a conversion, so engines are pooled and shared by every
+ * deployment, up to {@link #getMaxEngines()} of them. Each engine compiles the aggregator once and only evaluates
+ * it again, compiled, to reset its state before a conversion.
+ * <p/>
+ * The shared instance is a blueprint bean, {@link #destroy()} lets go of its engines when the bundle stops.
+ */
+public class RequireJsConfigConverter {
+  public static final String AGGREGATOR_SCRIPT = "/org/pentaho/osgi/platform/webjars/require-js-aggregator.js";
+  public static final int DEFAULT_MAX_ENGINES = 4;
+  private static final String EXTERNAL_CONFIG_PLACEHOLDER = "{{EXTERNAL_CONFIG}}";
+
+  private final int maxEngines;
+  private final BlockingQueue<Engine> idleEngines = new LinkedBlockingQueue<Engine>();
+  private final AtomicInteger createdEngines = new AtomicInteger();
+  private volatile String aggregatorScript;
+  private volatile boolean destroyed;
+
+  public RequireJsConfigConverter() {
+    this( DEFAULT_MAX_ENGINES );
+  }
+
+  public RequireJsConfigConverter( int maxEngines ) {
+    if ( maxEngines < 1 ) {
+      throw new IllegalArgumentException( "maxEngines must be at least 1" );
+    }
+    this.maxEngines = maxEngines;
+  }
+
+  public int getMaxEngines() {
+    return maxEngines;
+  }
+
+  /**
+   * @return number of engines started so far, never more than {@link #getMaxEngines()}
+   */
+  public int getCreatedEngines() {
+    return createdEngines.get();
+  }
+
+  /**
+   * Converts a webjars-requirejs.js script, borrowing an engine for the duration of the call.
+   *
+   * @param config the script, with the webjars! and webjars.path references already rewritten
+   * @return the JSON of the configuration it passes to requirejs.config
+   */
+  public String convert( String config ) throws ScriptException, InterruptedException {
+    Engine engine = borrow();
+    try {
+      return engine.convert( config );
+    } finally {
+      release( engine );
+    }
+  }
+
+  /**
+   * Takes an idle engine, starts a new one if below the limit, or else waits for one to be released.
+   * <p/>
+   * Every borrowed engine must be given back with {@link #release(Engine)}.
+   */
+  public Engine borrow() throws ScriptException, InterruptedException {
+    Engine engine = idleEngines.poll();
+    if ( engine != null ) {
+      return engine;
+    }
+    while ( true ) {
+      if ( destroyed ) {
+        throw new ScriptException( "The RequireJS config converter was destroyed" );
+      }
+      int created = createdEngines.get();
+      if ( created >= maxEngines ) {
+        // Polled, so that waiting stops once the converter is destroyed
+        engine = idleEngines.poll( 1, TimeUnit.SECONDS );
+        if ( engine != null ) {
+          return engine;
+        }
+        continue;
+      }
+      if ( createdEngines.compareAndSet( created, created + 1 ) ) {
+        try {
+          return new Engine( getAggregatorScript() );
+        } catch ( ScriptException e ) {
+          createdEngines.decrementAndGet();
+          throw e;
+        } catch ( RuntimeException e ) {
+          createdEngines.decrementAndGet();
+          throw e;
+        }
+      }
+    }
+  }
+
+  public void release( Engine engine ) {
+    idleEngines.add( engine );
+    if ( destroyed ) {
+      // Engines borrowed before destroy() are dropped as they come back
+      idleEngines.clear();
+    }
+  }
+
+  /**
+   * Drops the idle engines, and the borrowed ones once released.
+   */
+  public void destroy() {
+    destroyed = true;
+    idleEngines.clear();
+  }
+
+  private String getAggregatorScript() throws ScriptException {
+    if ( aggregatorScript == null ) {
+      InputStream inputStream = getClass().getResourceAsStream( AGGREGATOR_SCRIPT );
+      if ( inputStream == null ) {
+        throw new ScriptException( "Unable to find " + AGGREGATOR_SCRIPT );
+      }
+      try {
+        // Resetting config in place of the webjar's script turns the aggregator into a reusable prelude
+        aggregatorScript =
+          IOUtils.toString( inputStream, "UTF-8" ).replace( EXTERNAL_CONFIG_PLACEHOLDER, "config = undefined" );
+      } catch ( IOException e ) {
+        throw (ScriptException) new ScriptException( "Unable to read " + AGGREGATOR_SCRIPT ).initCause( e );
+      } finally {
+        IOUtils.closeQuietly( inputStream );
+      }
+    }
+    return aggregatorScript;
+  }
+
+  /**
+   * A JavaScript engine with the aggregator compiled, used by a single thread at a time.
+   */
+  public static class Engine {
+    private final ScriptEngine scriptEngine;
+    private final CompiledScript prelude;
+    private final String preludeSource;
+
+    private Engine( String aggregatorScript ) throws ScriptException {
+      scriptEngine = new ScriptEngineManager().getEngineByName( "JavaScript" );
+      if ( scriptEngine == null ) {
+        throw new ScriptException( "No JavaScript engine available" );
+      }
+      if ( scriptEngine instanceof Compilable ) {
+        prelude = ( (Compilable) scriptEngine ).compile( aggregatorScript );
+        preludeSource = null;
+      } else {
+        prelude = null;
+        preludeSource = aggregatorScript;
+      }
+    }
+
+    public String convert( String config ) throws ScriptException {
+      if ( prelude != null ) {
+        prelude.eval();
+      } else {
+        scriptEngine.eval( preludeSource );
+      }
+      scriptEngine.eval( config );
+      try {
+        return String.valueOf( ( (Invocable) scriptEngine ).invokeFunction( "processConfig", "" ) );
+      } catch ( NoSuchMethodException e ) {
+        throw (ScriptException) new ScriptException( "processConfig is not defined" ).initCause( e );
+      }
+    }
+  }
+}
@@ -0,0 +1,491 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns the common, declarative form of webjars-requirejs.js into require.json without a JavaScript engine.
+ * <p/>
+ * Understands a single pass over the script made only of comments, var declarations and requirejs.config calls,
+ * whose values are object and array literals, strings, integers, booleans, null, previously declared variables and
+ * webjars.path calls with literal arguments. The output is the same JSON.stringify would give in
+ * require-js-aggregator.js. Anything else, such as a function call or an assignment, makes {@link #extract} return
+ * null so the caller falls back to {@link RequireJsConfigConverter}.
+ */
+public class RequireJsConfigExtractor {
+  private static final Pattern WEBJARS_PLUGIN_PATTERN = Pattern.compile( "webjars!(.*).js" );
+  private static final Object UNDEFINED = new Object();
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * @return the JSON of the configuration given to the last requirejs.config call or null if the script uses
+   * anything besides the supported constructs
+   */
+  public String extract( String script, String moduleName, String moduleVersion ) {
+    try {
+      Object config = new Parser( script, moduleName + "/" + moduleVersion + "/" ).parseScript();
+      StringBuilder sb = new StringBuilder( script.length() );
+      writeJson( sb, config );
+      return sb.toString();
+    } catch ( UnsupportedSyntaxException e ) {
+      return null;
+    }
+  }
+
+  private static void writeJson( StringBuilder sb, Object value ) {
+    if ( value instanceof String ) {
+      writeString( sb, (String) value );
+    } else if ( value instanceof Map ) {
+      sb.append( '{' );
+      boolean first = true;
+      for ( Map.Entry<?, ?> entry : orderKeys( (Map<?, ?>) value ).entrySet() ) {
+        if ( entry.getValue() == UNDEFINED ) {
+          continue;
+        }
+        if ( !first ) {
+          sb.append( ',' );
+        }
+        first = false;
+        writeString( sb, (String) entry.getKey() );
+        sb.append( ':' );
+        writeJson( sb, entry.getValue() );
+      }
+      sb.append( '}' );
+    } else if ( value instanceof List ) {
+      sb.append( '[' );
+      boolean first = true;
+      for ( Object item : (List<?>) value ) {
+        if ( !first ) {
+          sb.append( ',' );
+        }
+        first = false;
+        writeJson( sb, item == UNDEFINED ? null : item );
+      }
+      sb.append( ']' );
+    } else {
+      // Numbers, booleans and null
+      sb.append( String.valueOf( value ) );
+    }
+  }
+
+  /**
+   * JavaScript enumerates integer keys first, in ascending order, and then the others in insertion order.
+   */
+  private static Map<?, ?> orderKeys( Map<?, ?> object ) {
+    TreeMap<Long, Object> integerKeys = null;
+    for ( Object key : object.keySet() ) {
+      if ( isArrayIndex( (String) key ) ) {
+        if ( integerKeys == null ) {
+          integerKeys = new TreeMap<Long, Object>();
+        }
+        integerKeys.put( Long.valueOf( (String) key ), key );
+      }
+    }
+    if ( integerKeys == null ) {
+      return object;
+    }
+    Map<Object, Object> ordered = new LinkedHashMap<Object, Object>();
+    for ( Object key : integerKeys.values() ) {
+      ordered.put( key, object.get( key ) );
+    }
+    for ( Map.Entry<?, ?> entry : object.entrySet() ) {
+      if ( !ordered.containsKey( entry.getKey() ) ) {
+        ordered.put( entry.getKey(), entry.getValue() );
+      }
+    }
+    return ordered;
+  }
+
+  private static boolean isArrayIndex( String key ) {
+    int length = key.length();
+    if ( length == 0 || length > 10 || ( length > 1 && key.charAt( 0 ) == '0' ) ) {
+      return false;
+    }
+    for ( int i = 0; i < length; i++ ) {
+      if ( key.charAt( i ) < '0' || key.charAt( i ) > '9' ) {
+        return false;
+      }
+    }
+    return Long.parseLong( key ) < 0xFFFFFFFFL;
+  }
+
+  private static void writeString( StringBuilder sb, String value ) {
+    sb.append( '"' );
+    for ( int i = 0; i < value.length(); i++ ) {
+      char c = value.charAt( i );
+      switch ( c ) {
+        case '"':
+          sb.append( "\\\"" );
+          break;
+        case '\\':
+          sb.append( "\\\\" );
+          break;
+        case '\b':
+          sb.append( "\\b" );
+          break;
+        case '\f':
+          sb.append( "\\f" );
+          break;
+        case '\n':
+          sb.append( "\\n" );
+          break;
+        case '\r':
+          sb.append( "\\r" );
+          break;
+        case '\t':
+          sb.append( "\\t" );
+          break;
+        default:
+          if ( c < 0x20 ) {
+            sb.append( "\\u00" ).append( HEX[ c >> 4 ] ).append( HEX[ c & 0xF ] );
+          } else {
+            sb.append( c );
+          }
+          break;
+      }
+    }
+    sb.append( '"' );
+  }
+
+  private static class UnsupportedSyntaxException extends Exception {
+    private UnsupportedSyntaxException() {
+      // Only used for control flow, no need for a stack trace
+      super( null, null, false, false );
+    }
+  }
+
+  private static class Parser {
+    private final String script;
+    private final String pathPrefix;
+    private final Map<String, Object> variables = new HashMap<String, Object>();
+    private int position;
+
+    private Parser( String script, String pathPrefix ) {
+      this.script = script;
+      this.pathPrefix = pathPrefix;
+    }
+
+    private Object parseScript() throws UnsupportedSyntaxException {
+      Object config = null;
+      skipSpace();
+      while ( position < script.length() ) {
+        if ( script.charAt( position ) == ';' ) {
+          position++;
+        } else {
+          String identifier = parseIdentifier();
+          if ( "var".equals( identifier ) ) {
+            parseDeclarations();
+          } else if ( "requirejs".equals( identifier ) ) {
+            expect( '.' );
+            if ( !"config".equals( parseIdentifier() ) ) {
+              throw new UnsupportedSyntaxException();
+            }
+            expect( '(' );
+            config = parseValue();
+            expect( ')' );
+          } else {
+            throw new UnsupportedSyntaxException();
+          }
+        }
+        skipSpace();
+      }
+      if ( !( config instanceof Map ) ) {
+        throw new UnsupportedSyntaxException();
+      }
+      return config;
+    }
+
+    private void parseDeclarations() throws UnsupportedSyntaxException {
+      do {
+        String name = parseIdentifier();
+        Object value = UNDEFINED;
+        if ( consume( '=' ) ) {
+          value = parseValue();
+        }
+        variables.put( name, value );
+      } while ( consume( ',' ) );
+    }
+
+    private Object parseValue() throws UnsupportedSyntaxException {
+      char c = peek();
+      if ( c == '{' ) {
+        return parseObject();
+      } else if ( c == '[' ) {
+        return parseArray();
+      } else if ( c == '"' || c == '\'' ) {
+        return resolvePlugin( parseString() );
+      } else if ( c == '-' || ( c >= '0' && c <= '9' ) ) {
+        return parseInteger();
+      }
+      String identifier = parseIdentifier();
+      if ( "true".equals( identifier ) ) {
+        return Boolean.TRUE;
+      } else if ( "false".equals( identifier ) ) {
+        return Boolean.FALSE;
+      } else if ( "null".equals( identifier ) ) {
+        return null;
+      } else if ( "undefined".equals( identifier ) ) {
+        return UNDEFINED;
+      } else if ( "webjars".equals( identifier ) ) {
+        return parseWebjarsPath();
+      } else if ( variables.containsKey( identifier ) ) {
+        return variables.get( identifier );
+      }
+      throw new UnsupportedSyntaxException();
+    }
+
+    private Map<String, Object> parseObject() throws UnsupportedSyntaxException {
+      expect( '{' );
+      Map<String, Object> object = new LinkedHashMap<String, Object>();
+      while ( peek() != '}' ) {
+        char c = peek();
+        String key;
+        if ( c == '"' || c == '\'' ) {
+          key = resolvePlugin( parseString() );
+        } else if ( c >= '0' && c <= '9' ) {
+          key = parseInteger().toString();
+        } else {
+          key = parseIdentifier();
+        }
+        expect( ':' );
+        object.put( key, parseValue() );
+        if ( !consume( ',' ) ) {
+          break;
+        }
+      }
+      expect( '}' );
+      return object;
+    }
+
+    private List<Object> parseArray() throws UnsupportedSyntaxException {
+      expect( '[' );
+      List<Object> array = new ArrayList<Object>();
+      while ( peek() != ']' ) {
+        array.add( parseValue() );
+        if ( !consume( ',' ) ) {
+          break;
+        }
+      }
+      expect( ']' );
+      return array;
+    }
+
+    private String parseWebjarsPath() throws UnsupportedSyntaxException {
+      expect( '.' );
+      if ( !"path".equals( parseIdentifier() ) ) {
+        throw new UnsupportedSyntaxException();
+      }
+      expect( '(' );
+      char c = peek();
+      if ( c != '"' && c != '\'' ) {
+        throw new UnsupportedSyntaxException();
+      }
+      parseString();
+      expect( ',' );
+      c = peek();
+      if ( c != '"' && c != '\'' ) {
+        throw new UnsupportedSyntaxException();
+      }
+      String file = parseString();
+      expect( ')' );
+      // Same as the rewrite WebjarsURLConnection does before falling back to the engine
+      return pathPrefix + file;
+    }
+
+    private Long parseInteger() throws UnsupportedSyntaxException {
+      int start = position;
+      if ( script.charAt( position ) == '-' ) {
+        position++;
+      }
+      int digitsStart = position;
+      while ( position < script.length() && script.charAt( position ) >= '0' && script.charAt( position ) <= '9' ) {
+        position++;
+      }
+      int digits = position - digitsStart;
+      // Fractions, exponents, hexadecimal and octal literals are left to the engine
+      if ( digits == 0 || digits > 15 || ( digits > 1 && script.charAt( digitsStart ) == '0' )
+        || ( position < script.length() && ( isIdentifierPart( script.charAt( position ) )
+        || script.charAt( position ) == '.' ) ) ) {
+        throw new UnsupportedSyntaxException();
+      }
+      Long value = Long.valueOf( script.substring( start, position ) );
+      skipSpace();
+      return value;
+    }
+
+    private String parseString() throws UnsupportedSyntaxException {
+      char quote = script.charAt( position++ );
+      StringBuilder sb = new StringBuilder();
+      while ( true ) {
+        if ( position >= script.length() ) {
+          throw new UnsupportedSyntaxException();
+        }
+        char c = script.charAt( position++ );
+        if ( c == quote ) {
+          break;
+        } else if ( c == '\n' || c == '\r' ) {
+          throw new UnsupportedSyntaxException();
+        } else if ( c == '\\' ) {
+          if ( position >= script.length() ) {
+            throw new UnsupportedSyntaxException();
+          }
+          c = script.charAt( position++ );
+          switch ( c ) {
+            case 'b':
+              sb.append( '\b' );
+              break;
+            case 'f':
+              sb.append( '\f' );
+              break;
+            case 'n':
+              sb.append( '\n' );
+              break;
+            case 'r':
+              sb.append( '\r' );
+              break;
+            case 't':
+              sb.append( '\t' );
+              break;
+            case 'v':
+              sb.append( '\u000B' );
+              break;
+            case 'u':
+              sb.append( parseHex( 4 ) );
+              break;
+            case 'x':
+              sb.append( parseHex( 2 ) );
+              break;
+            case '"':
+            case '\'':
+            case '\\':
+            case '/':
+              sb.append( c );
+              break;
+            default:
+              // Line continuations, octal escapes and the like
+              throw new UnsupportedSyntaxException();
+          }
+        } else {
+          sb.append( c );
+        }
+      }
+      skipSpace();
+      return sb.toString();
+    }
+
+    private char parseHex( int length ) throws UnsupportedSyntaxException {
+      if ( position + length > script.length() ) {
+        throw new UnsupportedSyntaxException();
+      }
+      int value = 0;
+      for ( int i = 0; i < length; i++ ) {
+        int digit = Character.digit( script.charAt( position++ ), 16 );
+        if ( digit < 0 ) {
+          throw new UnsupportedSyntaxException();
+        }
+        value = value * 16 + digit;
+      }
+      return (char) value;
+    }
+
+    private String parseIdentifier() throws UnsupportedSyntaxException {
+      int start = position;
+      while ( position < script.length() && isIdentifierPart( script.charAt( position ) ) ) {
+        position++;
+      }
+      if ( position == start || Character.isDigit( script.charAt( start ) ) ) {
+        throw new UnsupportedSyntaxException();
+      }
+      String identifier = script.substring( start, position );
+      skipSpace();
+      return identifier;
+    }
+
+    private String resolvePlugin( String value ) {
+      // Same as the rewrite WebjarsURLConnection does before falling back to the engine
+      if ( value.contains( "webjars!" ) ) {
+        Matcher matcher = WEBJARS_PLUGIN_PATTERN.matcher( value );
+        StringBuffer sb = new StringBuffer();
+        while ( matcher.find() ) {
+          matcher.appendReplacement( sb, Matcher.quoteReplacement( matcher.group( 1 ) ) );
+        }
+        matcher.appendTail( sb );
+        return sb.toString();
+      }
+      return value;
+    }
+
+    private char peek() throws UnsupportedSyntaxException {
+      if ( position >= script.length() ) {
+        throw new UnsupportedSyntaxException();
+      }
+      return script.charAt( position );
+    }
+
+    private boolean consume( char c ) throws UnsupportedSyntaxException {
+      if ( peek() == c ) {
+        position++;
+        skipSpace();
+        return true;
+      }
+      return false;
+    }
+
+    private void expect( char c ) throws UnsupportedSyntaxException {
+      if ( !consume( c ) ) {
+        throw new UnsupportedSyntaxException();
+      }
+    }
+
+    /**
+     * Skips whitespace and comments.
+     */
+    private void skipSpace() throws UnsupportedSyntaxException {
+      while ( position < script.length() ) {
+        char c = script.charAt( position );
+        if ( Character.isWhitespace( c ) || c == '\u00A0' || c == '\uFEFF' ) {
+          position++;
+        } else if ( script.startsWith( "//", position ) ) {
+          while ( position < script.length() && script.charAt( position ) != '\n' ) {
+            position++;
+          }
+        } else if ( script.startsWith( "/*", position ) ) {
+          int end = script.indexOf( "*/", position + 2 );
+          if ( end < 0 ) {
+            throw new UnsupportedSyntaxException();
+          }
+          position = end + 2;
+        } else {
+          return;
+        }
+      }
+    }
+
+    private static boolean isIdentifierPart( char c ) {
+      return Character.isLetterOrDigit( c ) || c == '_' || c == '$';
+    }
+  }
+}
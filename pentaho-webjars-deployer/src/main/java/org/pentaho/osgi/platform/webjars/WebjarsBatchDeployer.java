@@ -0,0 +1,175 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deploys a set of webjars together: they are transformed and installed in parallel, then started, while the RequireJS
+ * manager is told to hold back its configuration rebuild until the whole batch is in.
+ * <p/>
+ * The manager is told through a marker service carrying the {@link #BATCH_PROPERTY} property, registered for the
+ * duration of the batch, so neither bundle depends on the other's classes.
+ */
+public class WebjarsBatchDeployer {
+  public static final String LOCATION_PROTOCOL = "pentaho-webjars";
+  // Same as org.pentaho.js.require.RequireJsConfigManager.BATCH_PROPERTY
+  public static final String BATCH_PROPERTY = "org.pentaho.requirejs.batch";
+  public static final int DEFAULT_PARALLELISM = WebjarsTransformPipeline.DEFAULT_CONCURRENCY;
+  private static final AtomicInteger batchCount = new AtomicInteger();
+  private final Logger logger = LoggerFactory.getLogger( getClass() );
+  private BundleContext bundleContext;
+  private WebjarsUrlHandler urlHandler = new WebjarsUrlHandler();
+  private int parallelism = DEFAULT_PARALLELISM;
+
+  public BundleContext getBundleContext() {
+    return bundleContext;
+  }
+
+  public void setBundleContext( BundleContext bundleContext ) {
+    this.bundleContext = bundleContext;
+  }
+
+  public WebjarsUrlHandler getUrlHandler() {
+    return urlHandler;
+  }
+
+  public void setUrlHandler( WebjarsUrlHandler urlHandler ) {
+    this.urlHandler = urlHandler;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * @param parallelism the maximum number of webjars transformed and installed at once
+   */
+  public void setParallelism( int parallelism ) {
+    this.parallelism = Math.max( 1, parallelism );
+  }
+
+  /**
+   * Installs, or updates when a bundle already has its location, and starts the webjars.
+   *
+   * @param webjarUrls the urls of the webjars themselves, without the pentaho-webjars protocol
+   * @return the bundles in the same order as the urls
+   * @throws BundleException if any of the webjars couldn't be installed or started, the others are still deployed
+   */
+  public List<Bundle> deploy( List<URL> webjarUrls ) throws BundleException {
+    final String batchId = "webjars-" + batchCount.incrementAndGet();
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put( BATCH_PROPERTY, batchId );
+    ServiceRegistration<?> batch = bundleContext.registerService( Object.class.getName(), new Object(), properties );
+    long start = System.currentTimeMillis();
+    List<Bundle> bundles = new ArrayList<Bundle>( webjarUrls.size() );
+    BundleException failure = null;
+    try {
+      ExecutorService executorService = Executors.newFixedThreadPool(
+        Math.min( parallelism, Math.max( 1, webjarUrls.size() ) ), new ThreadFactory() {
+          private final AtomicInteger threadCount = new AtomicInteger();
+
+          @Override public Thread newThread( Runnable r ) {
+            Thread thread = new Thread( r, batchId + "-install-" + threadCount.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+          }
+        } );
+      List<Future<Bundle>> installs = new ArrayList<Future<Bundle>>( webjarUrls.size() );
+      try {
+        for ( final URL webjarUrl : webjarUrls ) {
+          installs.add( executorService.submit( new Callable<Bundle>() {
+            @Override public Bundle call() throws Exception {
+              return install( webjarUrl );
+            }
+          } ) );
+        }
+        for ( int i = 0; i < installs.size(); i++ ) {
+          try {
+            bundles.add( installs.get( i ).get() );
+          } catch ( ExecutionException e ) {
+            bundles.add( null );
+            failure = addFailure( failure, "Unable to install " + webjarUrls.get( i ), e.getCause() );
+          } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new BundleException( "Interrupted while installing " + webjarUrls.get( i ), e );
+          }
+        }
+      } finally {
+        executorService.shutdownNow();
+      }
+      // Started only once all of them are installed so that they can be resolved against each other
+      for ( Bundle bundle : bundles ) {
+        if ( bundle != null ) {
+          try {
+            bundle.start();
+          } catch ( BundleException e ) {
+            failure = addFailure( failure, "Unable to start " + bundle.getLocation(), e );
+          }
+        }
+      }
+    } finally {
+      // The RequireJS configuration is rebuilt once, here
+      batch.unregister();
+    }
+    logger.info( "Deployed " + webjarUrls.size() + " webjars in " + ( System.currentTimeMillis() - start ) + "ms" );
+    if ( failure != null ) {
+      throw failure;
+    }
+    return bundles;
+  }
+
+  private Bundle install( URL webjarUrl ) throws Exception {
+    String location = LOCATION_PROTOCOL + ":" + webjarUrl.toExternalForm();
+    // Reading the stream is what runs the transformation, the framework closes it
+    InputStream inputStream = urlHandler.openWebjarConnection( webjarUrl ).getInputStream();
+    Bundle bundle = bundleContext.getBundle( location );
+    if ( bundle == null ) {
+      return bundleContext.installBundle( location, inputStream );
+    }
+    bundle.update( inputStream );
+    return bundle;
+  }
+
+  private BundleException addFailure( BundleException failure, String message, Throwable cause ) {
+    logger.error( message, cause );
+    if ( failure == null ) {
+      return new BundleException( message, cause );
+    }
+    failure.addSuppressed( cause );
+    return failure;
+  }
+}
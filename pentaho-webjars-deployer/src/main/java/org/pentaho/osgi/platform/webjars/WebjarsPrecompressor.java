@@ -0,0 +1,94 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips the compressible resources of a webjar while it is transformed, so that they can be served precompressed.
+ * <p/>
+ * The .gz siblings are only added once all the entries are known: a webjar that already ships one for a resource
+ * keeps its own. Resources that don't shrink enough aren't worth a variant.
+ */
+public class WebjarsPrecompressor {
+  public static final String GZIP_SUFFIX = ".gz";
+  // Below this, the response headers cost more than what compression saves
+  public static final int MIN_LENGTH = 256;
+  // Compressed variants must be smaller than this fraction of the original
+  private static final double MAX_RATIO = 0.9;
+  private static final String RESOURCES_FOLDER = "META-INF/resources/";
+
+  private final Map<String, byte[]> variants = new LinkedHashMap<String, byte[]>();
+  private final Set<String> names = new HashSet<String>();
+
+  public static boolean isCompressible( String name, long length ) {
+    if ( length < MIN_LENGTH || !name.startsWith( RESOURCES_FOLDER ) || name.endsWith( "/" ) ) {
+      return false;
+    }
+    String contentType = WebjarsResourceIndex.getContentType( name );
+    return contentType.startsWith( "text/" ) || contentType.equals( "application/javascript" )
+      || contentType.equals( "application/json" ) || contentType.equals( "application/xml" )
+      || contentType.equals( "image/svg+xml" );
+  }
+
+  /**
+   * Records an entry of the transformed webjar, whether or not it is compressible.
+   */
+  public void entry( String name ) {
+    names.add( name );
+  }
+
+  /**
+   * Records a compressible entry and compresses it.
+   */
+  public void entry( String name, byte[] content ) throws IOException {
+    names.add( name );
+    byte[] compressed = gzip( content );
+    if ( compressed.length <= content.length * MAX_RATIO ) {
+      variants.put( name + GZIP_SUFFIX, compressed );
+    }
+  }
+
+  /**
+   * @return the variants to add, by entry name, leaving out those the webjar already has
+   */
+  public Map<String, byte[]> getVariants() {
+    Map<String, byte[]> result = new LinkedHashMap<String, byte[]>( variants );
+    result.keySet().removeAll( names );
+    return result;
+  }
+
+  static byte[] gzip( byte[] content ) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream( content.length / 3 + 64 );
+    GZIPOutputStream gzipOutputStream = new GZIPOutputStream( compressed ) {
+      {
+        def.setLevel( Deflater.BEST_COMPRESSION );
+      }
+    };
+    gzipOutputStream.write( content );
+    gzipOutputStream.close();
+    return compressed.toByteArray();
+  }
+}
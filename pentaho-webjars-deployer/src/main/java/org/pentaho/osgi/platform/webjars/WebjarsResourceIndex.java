@@ -0,0 +1,224 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The static resources of a webjar, written into the transformed bundle so that they can be served without looking
+ * them up in the bundle on every request.
+ * <p/>
+ * Each resource has its offset and length in the concatenation of all the resources, in index order, an ETag derived
+ * from its CRC-32 and length, and its content type. The format is one line per resource after a header:
+ * <pre>
+ * pentaho-webjars-resources 1 &lt;count&gt; &lt;total length&gt;
+ * &lt;offset&gt; &lt;length&gt; &lt;etag&gt; &lt;content type&gt; &lt;path&gt;
+ * </pre>
+ */
+public class WebjarsResourceIndex {
+  public static final String LOCATION = "META-INF/js/resources.index";
+  public static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+  private static final String HEADER = "pentaho-webjars-resources";
+  private static final int FORMAT_VERSION = 1;
+  private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+  static {
+    CONTENT_TYPES.put( "js", "application/javascript" );
+    CONTENT_TYPES.put( "map", "application/json" );
+    CONTENT_TYPES.put( "json", "application/json" );
+    CONTENT_TYPES.put( "css", "text/css" );
+    CONTENT_TYPES.put( "less", "text/css" );
+    CONTENT_TYPES.put( "html", "text/html" );
+    CONTENT_TYPES.put( "htm", "text/html" );
+    CONTENT_TYPES.put( "txt", "text/plain" );
+    CONTENT_TYPES.put( "md", "text/plain" );
+    CONTENT_TYPES.put( "xml", "application/xml" );
+    CONTENT_TYPES.put( "svg", "image/svg+xml" );
+    CONTENT_TYPES.put( "png", "image/png" );
+    CONTENT_TYPES.put( "gif", "image/gif" );
+    CONTENT_TYPES.put( "jpg", "image/jpeg" );
+    CONTENT_TYPES.put( "jpeg", "image/jpeg" );
+    CONTENT_TYPES.put( "ico", "image/x-icon" );
+    CONTENT_TYPES.put( "woff", "application/font-woff" );
+    CONTENT_TYPES.put( "woff2", "font/woff2" );
+    CONTENT_TYPES.put( "ttf", "application/x-font-ttf" );
+    CONTENT_TYPES.put( "otf", "application/x-font-opentype" );
+    CONTENT_TYPES.put( "eot", "application/vnd.ms-fontobject" );
+  }
+
+  private final List<Resource> resources;
+  private final Map<String, Resource> resourcesByPath;
+  private final long totalLength;
+
+  private WebjarsResourceIndex( List<Resource> resources ) {
+    this.resources = Collections.unmodifiableList( resources );
+    this.resourcesByPath = new HashMap<String, Resource>( resources.size() * 2 );
+    long totalLength = 0;
+    for ( Resource resource : resources ) {
+      resourcesByPath.put( resource.path, resource );
+      totalLength = Math.max( totalLength, resource.offset + resource.length );
+    }
+    this.totalLength = totalLength;
+  }
+
+  public static String getContentType( String path ) {
+    int dot = path.lastIndexOf( '.' );
+    if ( dot < 0 || dot < path.lastIndexOf( '/' ) ) {
+      return DEFAULT_CONTENT_TYPE;
+    }
+    String contentType = CONTENT_TYPES.get( path.substring( dot + 1 ).toLowerCase( Locale.ENGLISH ) );
+    return contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+  }
+
+  public static WebjarsResourceIndex read( InputStream inputStream ) throws IOException {
+    BufferedReader reader = new BufferedReader( new InputStreamReader( inputStream, "UTF-8" ) );
+    String header = reader.readLine();
+    String[] headerParts = header == null ? new String[ 0 ] : header.split( " " );
+    if ( headerParts.length != 4 || !HEADER.equals( headerParts[ 0 ] )
+      || Integer.parseInt( headerParts[ 1 ] ) != FORMAT_VERSION ) {
+      throw new IOException( "Unsupported resource index: " + header );
+    }
+    int count = Integer.parseInt( headerParts[ 2 ] );
+    List<Resource> resources = new ArrayList<Resource>( count );
+    for ( int i = 0; i < count; i++ ) {
+      String line = reader.readLine();
+      String[] parts = line == null ? new String[ 0 ] : line.split( " ", 5 );
+      if ( parts.length != 5 ) {
+        throw new IOException( "Truncated resource index at line " + ( i + 2 ) );
+      }
+      resources.add( new Resource( parts[ 4 ], Long.parseLong( parts[ 0 ] ), Long.parseLong( parts[ 1 ] ), parts[ 2 ],
+        parts[ 3 ] ) );
+    }
+    WebjarsResourceIndex index = new WebjarsResourceIndex( resources );
+    if ( index.totalLength != Long.parseLong( headerParts[ 3 ] ) ) {
+      throw new IOException( "Inconsistent resource index length" );
+    }
+    return index;
+  }
+
+  public void write( OutputStream outputStream ) throws IOException {
+    Writer writer = new OutputStreamWriter( outputStream, "UTF-8" );
+    writer.write( HEADER + " " + FORMAT_VERSION + " " + resources.size() + " " + totalLength + "\n" );
+    for ( Resource resource : resources ) {
+      writer.write( resource.offset + " " + resource.length + " " + resource.etag + " " + resource.contentType + " "
+        + resource.path + "\n" );
+    }
+    writer.flush();
+  }
+
+  /**
+   * @param path the path of the resource relative to the webjar's resource folder, without a leading slash
+   * @return the resource or null if the webjar doesn't have it
+   */
+  public Resource getResource( String path ) {
+    return resourcesByPath.get( path );
+  }
+
+  /**
+   * @return the resources in offset order
+   */
+  public List<Resource> getResources() {
+    return resources;
+  }
+
+  public long getTotalLength() {
+    return totalLength;
+  }
+
+  /**
+   * Collects the entries of a webjar while it is transformed, before it is known which folder holds its resources.
+   */
+  public static class Builder {
+    private final List<Resource> entries = new ArrayList<Resource>();
+
+    public void add( String name, long length, long crc ) {
+      if ( name.endsWith( "/" ) || name.indexOf( '\n' ) >= 0 ) {
+        return;
+      }
+      entries.add( new Resource( name, 0, length, "\"" + Long.toHexString( crc ) + "-" + Long.toHexString( length )
+        + "\"", getContentType( name ) ) );
+    }
+
+    /**
+     * @param folder the folder of the served resources, ending in a slash
+     */
+    public WebjarsResourceIndex build( String folder ) {
+      List<Resource> resources = new ArrayList<Resource>();
+      long offset = 0;
+      for ( Resource entry : entries ) {
+        if ( entry.path.startsWith( folder ) && entry.path.length() > folder.length() ) {
+          resources.add( new Resource( entry.path.substring( folder.length() ), offset, entry.length, entry.etag,
+            entry.contentType ) );
+          offset += entry.length;
+        }
+      }
+      return new WebjarsResourceIndex( resources );
+    }
+  }
+
+  public static class Resource {
+    private final String path;
+    private final long offset;
+    private final long length;
+    private final String etag;
+    private final String contentType;
+
+    private Resource( String path, long offset, long length, String etag, String contentType ) {
+      this.path = path;
+      this.offset = offset;
+      this.length = length;
+      this.etag = etag;
+      this.contentType = contentType;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * @return a strong, quoted ETag: the content's CRC-32 and length
+     */
+    public String getEtag() {
+      return etag;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+  }
+}
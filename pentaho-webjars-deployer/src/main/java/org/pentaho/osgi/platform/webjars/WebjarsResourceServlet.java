@@ -0,0 +1,131 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Serves the static resources of a webjar bundle from its {@link WebjarsResourceStore}, one map lookup per request.
+ * <p/>
+ * A resource that has a precompressed sibling in the webjar, such as the .gz ones added by the
+ * {@link WebjarsPrecompressor}, is served as that sibling to the clients that accept its encoding.
+ */
+public class WebjarsResourceServlet extends HttpServlet {
+  private static final int BUFFER_SIZE = 8192;
+  // Encoding and sibling suffix, by order of preference
+  private static final String[][] ENCODINGS = { { "br", ".br" }, { "gzip", WebjarsPrecompressor.GZIP_SUFFIX } };
+  private final WebjarsResourceStore resourceStore;
+
+  public WebjarsResourceServlet( WebjarsResourceStore resourceStore ) {
+    this.resourceStore = resourceStore;
+  }
+
+  @Override protected void doGet( HttpServletRequest req, HttpServletResponse resp )
+    throws ServletException, IOException {
+    String pathInfo = req.getPathInfo();
+    WebjarsResourceIndex.Resource resource = null;
+    if ( pathInfo != null && pathInfo.length() > 1 ) {
+      resource = resourceStore.getResource( pathInfo.substring( 1 ) );
+    }
+    if ( resource == null ) {
+      resp.sendError( HttpServletResponse.SC_NOT_FOUND );
+      return;
+    }
+    WebjarsResourceIndex.Resource served = resource;
+    String acceptEncoding = req.getHeader( "Accept-Encoding" );
+    for ( String[] encoding : ENCODINGS ) {
+      WebjarsResourceIndex.Resource variant = resourceStore.getResource( resource.getPath() + encoding[ 1 ] );
+      if ( variant != null ) {
+        resp.setHeader( "Vary", "Accept-Encoding" );
+        if ( accepts( acceptEncoding, encoding[ 0 ] ) ) {
+          served = variant;
+          resp.setHeader( "Content-Encoding", encoding[ 0 ] );
+          break;
+        }
+      }
+    }
+    // Each encoding has its own ETag, the one of the bytes sent
+    resp.setHeader( "ETag", served.getEtag() );
+    if ( matches( req.getHeader( "If-None-Match" ), served.getEtag() ) ) {
+      resp.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+      return;
+    }
+    resp.setContentType( resource.getContentType() );
+    resp.setContentLength( (int) served.getLength() );
+    write( resourceStore.getContent( served ), resp.getOutputStream() );
+  }
+
+  /**
+   * @return whether the Accept-Encoding header accepts the encoding, by name or through *, with a non zero quality
+   */
+  static boolean accepts( String acceptEncoding, String encoding ) {
+    if ( acceptEncoding == null ) {
+      return false;
+    }
+    Boolean wildcard = null;
+    for ( String coding : acceptEncoding.split( "," ) ) {
+      String[] parts = coding.split( ";" );
+      String name = parts[ 0 ].trim();
+      boolean accepted = true;
+      for ( int i = 1; i < parts.length; i++ ) {
+        String parameter = parts[ i ].trim();
+        if ( parameter.startsWith( "q=" ) ) {
+          try {
+            accepted = Double.parseDouble( parameter.substring( 2 ).trim() ) > 0;
+          } catch ( NumberFormatException e ) {
+            accepted = false;
+          }
+        }
+      }
+      if ( name.equalsIgnoreCase( encoding ) ) {
+        return accepted;
+      } else if ( name.equals( "*" ) ) {
+        wildcard = accepted;
+      }
+    }
+    return wildcard != null && wildcard;
+  }
+
+  static boolean matches( String ifNoneMatch, String etag ) {
+    if ( ifNoneMatch == null ) {
+      return false;
+    }
+    for ( String candidate : ifNoneMatch.split( "," ) ) {
+      candidate = candidate.trim();
+      if ( candidate.equals( "*" ) || candidate.equals( etag ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void write( ByteBuffer content, OutputStream outputStream ) throws IOException {
+    byte[] buffer = new byte[ Math.min( BUFFER_SIZE, content.remaining() ) ];
+    while ( content.hasRemaining() ) {
+      int length = Math.min( buffer.length, content.remaining() );
+      content.get( buffer, 0, length );
+      outputStream.write( buffer, 0, length );
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Serves the content of the resources listed in a webjar bundle's {@link WebjarsResourceIndex}.
+ * <p/>
+ * The first time content is asked for, the resources are concatenated in index order into a file in the bundle's data
+ * area, which is then memory mapped, so after that a resource is a slice of the mapping. The file is kept across
+ * restarts and named after the index length and checksum so a new version of the bundle doesn't reuse it.
+ */
+public class WebjarsResourceStore {
+  public static final String CONTENT_FILE_PREFIX = "webjars-resources-";
+  private final Logger logger = LoggerFactory.getLogger( getClass() );
+  private final BundleContext bundleContext;
+  private String path;
+  private WebjarsResourceIndex index;
+  private String indexKey;
+  private volatile ByteBuffer content;
+
+  public WebjarsResourceStore( BundleContext bundleContext ) {
+    this.bundleContext = bundleContext;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @param path the folder of the resources in the bundle, as in the resource mapping it replaces
+   */
+  public void setPath( String path ) {
+    this.path = path.endsWith( "/" ) ? path : path + "/";
+  }
+
+  public void init() throws IOException {
+    URL indexUrl = bundleContext.getBundle().getEntry( WebjarsResourceIndex.LOCATION );
+    if ( indexUrl == null ) {
+      throw new IOException( "The bundle has no " + WebjarsResourceIndex.LOCATION );
+    }
+    byte[] indexBytes = IOUtils.toByteArray( indexUrl );
+    if ( indexBytes == null ) {
+      throw new IOException( "Unable to read " + indexUrl );
+    }
+    index = WebjarsResourceIndex.read( new ByteArrayInputStream( indexBytes ) );
+    if ( index.getTotalLength() > Integer.MAX_VALUE ) {
+      throw new IOException( "The resources of " + path + " are too large to be mapped" );
+    }
+    CRC32 crc32 = new CRC32();
+    crc32.update( indexBytes );
+    indexKey = Long.toHexString( crc32.getValue() ) + "-" + Long.toHexString( index.getTotalLength() );
+  }
+
+  public void destroy() {
+    content = null;
+  }
+
+  public WebjarsResourceIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * @param resourcePath the path relative to the resource folder, without a leading slash
+   * @return the resource or null if there is none with that path
+   */
+  public WebjarsResourceIndex.Resource getResource( String resourcePath ) {
+    return index.getResource( resourcePath );
+  }
+
+  /**
+   * @return a read only buffer over the content of the resource, positioned at its start
+   */
+  public ByteBuffer getContent( WebjarsResourceIndex.Resource resource ) throws IOException {
+    ByteBuffer content = this.content;
+    if ( content == null ) {
+      content = loadContent();
+    }
+    ByteBuffer slice = content.duplicate();
+    slice.position( (int) resource.getOffset() );
+    slice.limit( (int) ( resource.getOffset() + resource.getLength() ) );
+    return slice.slice();
+  }
+
+  private synchronized ByteBuffer loadContent() throws IOException {
+    if ( content != null ) {
+      return content;
+    }
+    File contentFile = bundleContext.getDataFile( CONTENT_FILE_PREFIX + indexKey );
+    if ( contentFile == null ) {
+      // No file system support, keep the resources on the heap
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream( (int) index.getTotalLength() );
+      writeResources( outputStream );
+      content = ByteBuffer.wrap( outputStream.toByteArray() ).asReadOnlyBuffer();
+      return content;
+    }
+    if ( !contentFile.isFile() || contentFile.length() != index.getTotalLength() ) {
+      removeContentFiles( contentFile.getParentFile() );
+      File tempFile = File.createTempFile( CONTENT_FILE_PREFIX, ".tmp", contentFile.getParentFile() );
+      try {
+        OutputStream outputStream = new FileOutputStream( tempFile );
+        try {
+          writeResources( outputStream );
+        } finally {
+          outputStream.close();
+        }
+        if ( !tempFile.renameTo( contentFile ) ) {
+          FileUtils.copyFile( tempFile, contentFile );
+        }
+      } finally {
+        FileUtils.deleteQuietly( tempFile );
+      }
+    }
+    RandomAccessFile randomAccessFile = new RandomAccessFile( contentFile, "r" );
+    try {
+      // The mapping stays valid once the file is closed
+      content = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, index.getTotalLength() );
+    } finally {
+      randomAccessFile.close();
+    }
+    return content;
+  }
+
+  private void writeResources( OutputStream outputStream ) throws IOException {
+    for ( WebjarsResourceIndex.Resource resource : index.getResources() ) {
+      URL url = bundleContext.getBundle().getEntry( path + resource.getPath() );
+      if ( url == null ) {
+        throw new IOException( "The bundle has no " + path + resource.getPath() );
+      }
+      InputStream inputStream = url.openStream();
+      try {
+        long copied = IOUtils.copyLarge( inputStream, outputStream );
+        if ( copied != resource.getLength() ) {
+          throw new IOException( path + resource.getPath() + " doesn't match the resource index" );
+        }
+      } finally {
+        inputStream.close();
+      }
+    }
+  }
+
+  private void removeContentFiles( File dataDir ) {
+    File[] files = dataDir == null ? null : dataDir.listFiles();
+    if ( files != null ) {
+      for ( File file : files ) {
+        if ( file.getName().startsWith( CONTENT_FILE_PREFIX ) ) {
+          logger.debug( "Removing outdated resources " + file );
+          FileUtils.deleteQuietly( file );
+        }
+      }
+    }
+  }
+}
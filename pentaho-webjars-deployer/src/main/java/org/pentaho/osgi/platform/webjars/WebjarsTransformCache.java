@@ -0,0 +1,229 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the transformed bundle of every webjar on disk, so restarts and feature refreshes don't transform it again.
+ * <p/>
+ * An entry is keyed by the SHA-256 of the source artifact and the transformer version. Only the latest entry of each
+ * URL is kept.
+ */
+public class WebjarsTransformCache {
+  public static final String DATA_DIR_NAME = "pentaho-webjars-cache";
+  private static final String JAR_SUFFIX = ".jar";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final int MAX_SOURCE_HASHES = 10000;
+
+  private final Logger logger = LoggerFactory.getLogger( getClass() );
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final ConcurrentMap<String, SourceHash> sourceHashes = new ConcurrentHashMap<String, SourceHash>();
+  private File cacheDir;
+
+  /**
+   * Uses {@value #DATA_DIR_NAME} in the Karaf data directory, if running in Karaf.
+   */
+  public WebjarsTransformCache() {
+    String karafData = System.getProperty( "karaf.data" );
+    if ( karafData != null ) {
+      cacheDir = new File( karafData, DATA_DIR_NAME );
+    }
+  }
+
+  public WebjarsTransformCache( File cacheDir ) {
+    this.cacheDir = cacheDir;
+  }
+
+  public File getCacheDir() {
+    return cacheDir;
+  }
+
+  /**
+   * @param cacheDir where to keep the transformed bundles or null to disable the cache
+   */
+  public void setCacheDir( File cacheDir ) {
+    this.cacheDir = cacheDir;
+  }
+
+  public boolean isEnabled() {
+    return cacheDir != null;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Opens the transformed bundle of a webjar, running the transformation only if it isn't in the cache yet.
+   *
+   * @param transformerVersion changes whenever the transformation output changes for the same source
+   * @param pipeline           runs the transformation on a miss
+   */
+  public InputStream open( URL url, String transformerVersion, WebjarsTransformPipeline pipeline,
+                           WebjarsTransformation transformation ) throws IOException {
+    if ( !cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory() ) {
+      throw new IOException( "Unable to create " + cacheDir );
+    }
+    String urlKey = sha256( url.toExternalForm().getBytes( "UTF-8" ) ).substring( 0, 16 );
+    File sourceFile = FileUtils.toFile( url );
+
+    MessageDigest digest = newDigest();
+    digest.update( transformerVersion.getBytes( "UTF-8" ) );
+    digest.update( (byte) 0 );
+    digest.update( hashSource( url, sourceFile ) );
+    File entry = new File( cacheDir, urlKey + "-" + toHex( digest.digest() ) + JAR_SUFFIX );
+    if ( entry.isFile() ) {
+      hits.incrementAndGet();
+      return new FileInputStream( entry );
+    }
+    misses.incrementAndGet();
+    write( url, entry, pipeline, transformation );
+    removeOtherEntries( urlKey, entry );
+    return new FileInputStream( entry );
+  }
+
+  /**
+   * Hashes the source without keeping a copy of it, local files are only read again once their size or modification
+   * time changed.
+   */
+  private byte[] hashSource( URL url, File sourceFile ) throws IOException {
+    String path = null;
+    long length = 0;
+    long lastModified = 0;
+    if ( sourceFile != null ) {
+      path = sourceFile.getAbsolutePath();
+      length = sourceFile.length();
+      lastModified = sourceFile.lastModified();
+      SourceHash sourceHash = sourceHashes.get( path );
+      if ( sourceHash != null && sourceHash.length == length && sourceHash.lastModified == lastModified ) {
+        return sourceHash.hash;
+      }
+    }
+    MessageDigest digest = newDigest();
+    InputStream inputStream = new DigestInputStream( url.openStream(), digest );
+    try {
+      IOUtils.copyLarge( inputStream, new NullOutputStream() );
+    } finally {
+      IOUtils.closeQuietly( inputStream );
+    }
+    byte[] hash = digest.digest();
+    if ( path != null ) {
+      if ( sourceHashes.size() >= MAX_SOURCE_HASHES ) {
+        sourceHashes.clear();
+      }
+      sourceHashes.put( path, new SourceHash( length, lastModified, hash ) );
+    }
+    return hash;
+  }
+
+  private void write( URL url, File entry, WebjarsTransformPipeline pipeline, WebjarsTransformation transformation )
+    throws IOException {
+    File temp = File.createTempFile( entry.getName(), ".tmp", cacheDir );
+    InputStream inputStream = null;
+    OutputStream outputStream = null;
+    try {
+      outputStream = new FileOutputStream( temp );
+      inputStream = pipeline.open( url, transformation );
+      IOUtils.copyLarge( inputStream, outputStream );
+    } catch ( IOException e ) {
+      IOUtils.closeQuietly( outputStream );
+      FileUtils.deleteQuietly( temp );
+      throw e;
+    } finally {
+      IOUtils.closeQuietly( inputStream );
+      IOUtils.closeQuietly( outputStream );
+    }
+    if ( !temp.renameTo( entry ) && !entry.isFile() ) {
+      FileUtils.deleteQuietly( temp );
+      throw new IOException( "Unable to rename " + temp + " to " + entry );
+    }
+    FileUtils.deleteQuietly( temp );
+  }
+
+  private void removeOtherEntries( String urlKey, File entry ) {
+    File[] files = cacheDir.listFiles();
+    if ( files == null ) {
+      return;
+    }
+    for ( File file : files ) {
+      String name = file.getName();
+      if ( name.startsWith( urlKey + "-" ) && name.endsWith( JAR_SUFFIX ) && !file.equals( entry ) ) {
+        // An entry still being read can't be deleted on Windows, it's removed by the next miss of its URL
+        logger.debug( "Removing outdated transformed webjar " + file );
+        FileUtils.deleteQuietly( file );
+      }
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance( "SHA-256" );
+    } catch ( NoSuchAlgorithmException e ) {
+      throw new IllegalStateException( e );
+    }
+  }
+
+  private static String sha256( byte[] bytes ) {
+    return toHex( newDigest().digest( bytes ) );
+  }
+
+  private static String toHex( byte[] bytes ) {
+    char[] hex = new char[ bytes.length * 2 ];
+    for ( int i = 0; i < bytes.length; i++ ) {
+      hex[ i * 2 ] = HEX[ ( bytes[ i ] >> 4 ) & 0xF ];
+      hex[ i * 2 + 1 ] = HEX[ bytes[ i ] & 0xF ];
+    }
+    return new String( hex );
+  }
+
+  private static class SourceHash {
+    private final long length;
+    private final long lastModified;
+    private final byte[] hash;
+
+    private SourceHash( long length, long lastModified, byte[] hash ) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs webjar transformations in the background, each one writing into a pipe read by the caller.
+ * <p/>
+ * At most {@link #getConcurrency()} transformations run at a time and at most {@link #getQueueCapacity()} more wait
+ * for a thread, further callers block until there is room. A transformation that fails makes the reader's next read
+ * past the transformed data throw an IOException caused by the failure, instead of just ending the stream.
+ */
+public class WebjarsTransformPipeline {
+  public static final int DEFAULT_CONCURRENCY = 5;
+  public static final int DEFAULT_QUEUE_CAPACITY = 64;
+  public static final int DEFAULT_PIPE_BUFFER_SIZE = 64 * 1024;
+  private static WebjarsTransformPipeline defaultInstance;
+
+  private final Logger logger = LoggerFactory.getLogger( getClass() );
+  private int concurrency = DEFAULT_CONCURRENCY;
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private int pipeBufferSize = DEFAULT_PIPE_BUFFER_SIZE;
+  private ExecutorService executorService;
+  private Semaphore permits;
+
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+  private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+  private final AtomicLong totalTransformNanos = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+
+  /**
+   * @return the pipeline used by connections that weren't given one
+   */
+  public static synchronized WebjarsTransformPipeline getDefault() {
+    if ( defaultInstance == null ) {
+      defaultInstance = new WebjarsTransformPipeline();
+      defaultInstance.init();
+    }
+    return defaultInstance;
+  }
+
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  public void setConcurrency( int concurrency ) {
+    this.concurrency = concurrency;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public void setQueueCapacity( int queueCapacity ) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  public int getPipeBufferSize() {
+    return pipeBufferSize;
+  }
+
+  /**
+   * @param pipeBufferSize size of the pipe between a transformation and its reader, and of the transformation's
+   *                       output buffer
+   */
+  public void setPipeBufferSize( int pipeBufferSize ) {
+    this.pipeBufferSize = pipeBufferSize;
+  }
+
+  public synchronized void init() {
+    if ( concurrency < 1 || queueCapacity < 0 || pipeBufferSize < 1 ) {
+      throw new IllegalArgumentException( "concurrency and pipeBufferSize must be positive, queueCapacity must not be "
+        + "negative" );
+    }
+    final AtomicInteger threadCount = new AtomicInteger();
+    executorService = new ThreadPoolExecutor( concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread thread = new Thread( r, "pentaho-webjars-transform-" + threadCount.incrementAndGet() );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    permits = new Semaphore( concurrency + queueCapacity, true );
+  }
+
+  public synchronized void destroy() {
+    if ( executorService != null ) {
+      executorService.shutdownNow();
+      executorService = null;
+    }
+  }
+
+  /**
+   * Starts transforming a webjar, waiting for room in the queue if it's full.
+   *
+   * @return the transformed bundle, as it's being written
+   */
+  public InputStream open( final URL url, final WebjarsTransformation transformation ) throws IOException {
+    ExecutorService executorService;
+    Semaphore permits;
+    synchronized ( this ) {
+      executorService = this.executorService;
+      permits = this.permits;
+    }
+    if ( executorService == null ) {
+      throw new IOException( "The webjars transform pipeline isn't running" );
+    }
+    try {
+      permits.acquire();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while waiting to transform " + url );
+    }
+    final TransformInputStream inputStream = new TransformInputStream( pipeBufferSize );
+    final PipedOutputStream pipedOutputStream = new PipedOutputStream( inputStream );
+    final long queuedAt = System.nanoTime();
+    final Semaphore taskPermits = permits;
+    try {
+      executorService.execute( new Runnable() {
+        @Override public void run() {
+          try {
+            transform( url, transformation, inputStream, pipedOutputStream, queuedAt );
+          } finally {
+            taskPermits.release();
+          }
+        }
+      } );
+    } catch ( RejectedExecutionException e ) {
+      permits.release();
+      throw new IOException( "Unable to transform " + url, e );
+    }
+    return inputStream;
+  }
+
+  private void transform( URL url, WebjarsTransformation transformation, TransformInputStream inputStream,
+                          PipedOutputStream pipedOutputStream, long queuedAt ) {
+    long start = System.nanoTime();
+    long queueWait = start - queuedAt;
+    totalQueueWaitNanos.addAndGet( queueWait );
+    long max;
+    while ( queueWait > ( max = maxQueueWaitNanos.get() ) && !maxQueueWaitNanos.compareAndSet( max, queueWait ) ) {
+      // Retry until it's set or another thread set a larger value
+    }
+    CountingOutputStream countingOutputStream = new CountingOutputStream( pipedOutputStream );
+    OutputStream outputStream = new BufferedOutputStream( countingOutputStream, pipeBufferSize );
+    InputStream source = null;
+    boolean succeeded = false;
+    try {
+      source = url.openStream();
+      transformation.transform( url, source, FileUtils.toFile( url ), outputStream );
+      outputStream.flush();
+      succeeded = true;
+    } catch ( Throwable e ) {
+      logger.error( "Error Transforming zip " + url, e );
+      // Set before closing, so the reader sees it when the data ends
+      inputStream.failure = e;
+      IOUtils.closeQuietly( pipedOutputStream );
+    } finally {
+      IOUtils.closeQuietly( source );
+      IOUtils.closeQuietly( outputStream );
+      bytesWritten.addAndGet( countingOutputStream.getByteCount() );
+      totalTransformNanos.addAndGet( System.nanoTime() - start );
+      ( succeeded ? completed : failures ).incrementAndGet();
+    }
+  }
+
+  /**
+   * @return number of transformations that finished successfully
+   */
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  /**
+   * @return number of transformations that failed
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  public long getTotalQueueWaitNanos() {
+    return totalQueueWaitNanos.get();
+  }
+
+  public long getMaxQueueWaitNanos() {
+    return maxQueueWaitNanos.get();
+  }
+
+  /**
+   * @return mean time between being submitted and starting of the finished transformations
+   */
+  public long getAverageQueueWaitNanos() {
+    long count = completed.get() + failures.get();
+    return count == 0 ? 0 : totalQueueWaitNanos.get() / count;
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /**
+   * @return bytes written per second spent transforming, including the time spent waiting for readers
+   */
+  public double getBytesPerSecond() {
+    long nanos = totalTransformNanos.get();
+    return nanos == 0 ? 0 : bytesWritten.get() * 1e9 / nanos;
+  }
+
+  /**
+   * A pipe end that reports the transformation's failure instead of its end.
+   */
+  private static class TransformInputStream extends PipedInputStream {
+    private volatile Throwable failure;
+
+    private TransformInputStream( int pipeSize ) {
+      super( pipeSize );
+    }
+
+    @Override public synchronized int read() throws IOException {
+      int result = super.read();
+      if ( result < 0 ) {
+        checkFailure();
+      }
+      return result;
+    }
+
+    @Override public synchronized int read( byte[] b, int off, int len ) throws IOException {
+      int result = super.read( b, off, len );
+      if ( result < 0 ) {
+        checkFailure();
+      }
+      return result;
+    }
+
+    private void checkFailure() throws IOException {
+      Throwable failure = this.failure;
+      if ( failure != null ) {
+        throw new IOException( "Error transforming webjar", failure );
+      }
+    }
+  }
+}
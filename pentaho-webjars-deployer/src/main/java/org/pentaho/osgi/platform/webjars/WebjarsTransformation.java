@@ -0,0 +1,38 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * Turns a webjar into an OSGi bundle.
+ */
+public interface WebjarsTransformation {
+  /**
+   * @param url        the webjar's URL, used to name the bundle
+   * @param source     the webjar's content
+   * @param sourceFile the webjar's file, when it is a local one, which can be read at random instead of the
+   *                   content; may be null
+   * @param target     where to write the bundle, closed by the transformation
+   */
+  void transform( URL url, InputStream source, File sourceFile, OutputStream target ) throws IOException;
+}
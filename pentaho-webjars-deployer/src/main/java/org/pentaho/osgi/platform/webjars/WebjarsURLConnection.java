@@ -24,121 +24,166 @@ import org.osgi.framework.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.script.Invocable;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.concurrent.Callable;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.Attributes;
+import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
 /**
  * Created by nbaker on 9/6/14.
  */
 public class WebjarsURLConnection extends URLConnection {
 
+  /**
+   * @deprecated transformations run in a {@link WebjarsTransformPipeline}, nothing is submitted to this pool anymore
+   */
+  @Deprecated
   public static final ExecutorService EXECUTOR = Executors.newFixedThreadPool( 5 );
   public static final String MANIFEST_MF = "MANIFEST.MF";
   public static final String PENTAHO_RJS_LOCATION = "META-INF/js/require.json";
   public static final String WEBJARS_REQUIREJS_NAME = "webjars-requirejs.js";
+  public static final String BLUEPRINT_LOCATION = "OSGI-INF/blueprint/blueprint.xml";
   private Logger logger = LoggerFactory.getLogger( getClass() );
   public static final Pattern MODULE_PATTERN =
       Pattern.compile( "META-INF/resources/webjars/([^/]+)/([^/]+)/" + WEBJARS_REQUIREJS_NAME );
+  private static final Pattern WEBJARS_PLUGIN_PATTERN = Pattern.compile( "webjars!(.*).js" );
+  private static final Pattern WEBJARS_PATH_PATTERN =
+      Pattern.compile( "webjars\\.path\\(['\"]{1}(.*)['\"]{1}, ['\"]{1}(.*)['\"]{1}\\)" );
+  private static final RequireJsConfigExtractor CONFIG_EXTRACTOR = new RequireJsConfigExtractor();
+
+  // Increment whenever a change to the transformation changes its output, to invalidate cached bundles
+  public static final String TRANSFORMER_VERSION = "3";
+
+  private final RequireJsConfigConverter configConverter;
+  private final WebjarsTransformCache transformCache;
+  private final WebjarsTransformPipeline transformPipeline;
+  private boolean precompress;
+  private final WebjarsTransformation transformation = new WebjarsTransformation() {
+    @Override public void transform( URL url, InputStream source, File sourceFile, OutputStream target )
+      throws IOException {
+      WebjarsURLConnection.this.transform( url, source, sourceFile, target );
+    }
+  };
 
   public WebjarsURLConnection( URL url ) {
+    this( url, null, null, WebjarsTransformPipeline.getDefault() );
+  }
+
+  /**
+   * @deprecated use {@link #WebjarsURLConnection(URL, RequireJsConfigConverter, WebjarsTransformCache,
+   * WebjarsTransformPipeline)}, this one transforms through the default pipeline without a cache
+   */
+  @Deprecated
+  public WebjarsURLConnection( URL url, RequireJsConfigConverter configConverter ) {
+    this( url, configConverter, null, WebjarsTransformPipeline.getDefault() );
+  }
+
+  /**
+   * @param configConverter   the shared converter, or null for a single engine one of this connection's own
+   * @param transformCache    where to look for the transformed bundle first, may be null
+   * @param transformPipeline runs the transformation, also when the cache misses
+   */
+  public WebjarsURLConnection( URL url, RequireJsConfigConverter configConverter,
+                               WebjarsTransformCache transformCache, WebjarsTransformPipeline transformPipeline ) {
     super( url );
+    this.configConverter = configConverter != null ? configConverter : new RequireJsConfigConverter( 1 );
+    this.transformCache = transformCache;
+    this.transformPipeline = transformPipeline;
   }
 
-  @Override public void connect() throws IOException {
+  public boolean isPrecompress() {
+    return precompress;
+  }
 
+  /**
+   * @param precompress whether gzipped siblings of the compressible resources are added to the bundle
+   */
+  public void setPrecompress( boolean precompress ) {
+    this.precompress = precompress;
   }
 
-  @Override public InputStream getInputStream() throws IOException {
-    try {
+  @Override public void connect() throws IOException {
 
-      final PipedOutputStream pipedOutputStream = new PipedOutputStream();
-      PipedInputStream pipedInputStream = new PipedInputStream( pipedOutputStream );
+  }
 
-      EXECUTOR.submit( new Callable<Void>() {
-        @Override public Void call() throws Exception {
-          try {
-            transform( getURL(), pipedOutputStream );
-          } catch ( Exception e ) {
-            logger.error( "Error Transforming zip", e );
-            pipedOutputStream.close();
+  @Override public InputStream getInputStream() throws IOException {
+    if ( transformCache != null && transformCache.isEnabled() ) {
+      final AtomicBoolean transformed = new AtomicBoolean();
+      try {
+        String version = precompress ? TRANSFORMER_VERSION + "-precompressed" : TRANSFORMER_VERSION;
+        return transformCache.open( getURL(), version, transformPipeline, new WebjarsTransformation() {
+          @Override public void transform( URL url, InputStream source, File sourceFile, OutputStream target )
+            throws IOException {
+            transformed.set( true );
+            transformation.transform( url, source, sourceFile, target );
           }
-          return null;
+        } );
+      } catch ( IOException e ) {
+        if ( transformed.get() ) {
+          // Transforming again would most likely fail the same way
+          throw e;
         }
-      } );
-
-
-      return pipedInputStream;
-
-    } catch ( Exception e ) {
-      logger.error( "Error opening Spring xml url", e );
-      throw (IOException) new IOException( "Error opening Spring xml url" ).initCause( e );
+        logger.warn( "Unable to use the transformed webjar cache, transforming " + getURL(), e );
+      }
     }
-
+    return transformPipeline.open( getURL(), transformation );
   }
 
-  private void transform( URL url, PipedOutputStream pipedOutputStream ) throws IOException {
-
-    String artifactName = "unknown";
-    Version version = new Version( 0, 0, 0 );
-    if ( url.getProtocol().equals( "file" ) ) {
-      String filePath = url.getFile();
-      int start = filePath.lastIndexOf( '/' );
-      if(start >= 0) {
-        artifactName = filePath.substring( filePath.lastIndexOf( '/' ) + 1, filePath.length() );  
-      } else {
-        artifactName = filePath;
+  private void transform( URL url, InputStream inputStream, File sourceFile, OutputStream outputStream )
+    throws IOException {
+    if ( sourceFile != null ) {
+      RandomAccessFile randomAccessFile = new RandomAccessFile( sourceFile, "r" );
+      try {
+        ZipCentralDirectory centralDirectory = null;
+        try {
+          centralDirectory = ZipCentralDirectory.read( randomAccessFile );
+        } catch ( ZipException e ) {
+          logger.info( "Unable to copy the entries of " + url + " as they are: " + e.getMessage() );
+        }
+        if ( centralDirectory != null ) {
+          transformRaw( url, sourceFile, randomAccessFile, centralDirectory, outputStream );
+          return;
+        }
+      } finally {
+        randomAccessFile.close();
       }
-    } else if ( url.getProtocol().equals( "mvn" ) ) {
-      String[] parts = url.getPath().split( "/" );
-      artifactName = parts[ 1 ];
-      String versionPart = parts[ 2 ];
-
-      // version needs to be coerced into OSGI form Major.Minor.Patch.Classifier
-      version = VersionParser.parseVersion( versionPart );
-
     }
 
-    URLConnection urlConnection = url.openConnection();
-    urlConnection.connect();
-    InputStream inputStream = urlConnection.getInputStream();
     JarInputStream jarInputStream = new JarInputStream( inputStream );
 
-    Manifest manifest = jarInputStream.getManifest();
-    manifest.getMainAttributes()
-        .put( new Attributes.Name( Constants.BUNDLE_SYMBOLICNAME ), "pentaho-webjars-" + artifactName );
-    manifest.getMainAttributes()
-        .put( new Attributes.Name( Constants.IMPORT_PACKAGE ),
-            "org.osgi.service.http,org.apache.felix.http.api,org.ops4j.pax.web.extender.whiteboard.runtime," +
-                "org.ops4j.pax.web.extender.whiteboard" );
+    Manifest manifest = createManifest( url, jarInputStream.getManifest() );
 
-    manifest.getMainAttributes().put( new Attributes.Name( Constants.BUNDLE_VERSION ), version.toString() );
-
-    JarOutputStream jarOutputStream = new JarOutputStream( pipedOutputStream, manifest );
+    JarOutputStream jarOutputStream = new JarOutputStream( outputStream, manifest );
 
     ZipEntry entry;
     String moduleName = "unknown";
     String moduleVersion = "unknown";
     boolean foundRJs = false;
+    WebjarsResourceIndex.Builder resources = new WebjarsResourceIndex.Builder();
+    WebjarsPrecompressor precompressor = new WebjarsPrecompressor();
 
     while ( ( entry = jarInputStream.getNextJarEntry() ) != null ) {
       String name = entry.getName();
@@ -165,7 +210,7 @@ public class WebjarsURLConnection extends URLConnection {
         String convertedConfig = convertConfig( webjarsConfig, moduleName, moduleVersion );
 
 
-        ZipEntry newEntry = new ZipEntry( "META-INF/js/require.json" );
+        ZipEntry newEntry = new ZipEntry( PENTAHO_RJS_LOCATION );
         jarOutputStream.putNextEntry( newEntry );
         jarOutputStream.write( convertedConfig.getBytes( "UTF-8" ) );
         // Process webjars into our form
@@ -173,35 +218,207 @@ public class WebjarsURLConnection extends URLConnection {
       } else {
         logger.info( "copying misc entry: " + name );
         jarOutputStream.putNextEntry( entry );
-        IOUtils.copy( jarInputStream, jarOutputStream );
+        CheckedInputStream checkedInputStream = new CheckedInputStream( jarInputStream, new CRC32() );
+        long length;
+        // The size is only known up front for stored entries
+        long knownLength = entry.getSize() < 0 ? Long.MAX_VALUE : entry.getSize();
+        if ( precompress && WebjarsPrecompressor.isCompressible( name, knownLength ) ) {
+          byte[] content = IOUtils.toByteArray( checkedInputStream );
+          jarOutputStream.write( content );
+          length = content.length;
+          if ( WebjarsPrecompressor.isCompressible( name, length ) ) {
+            precompressor.entry( name, content );
+          }
+        } else {
+          length = IOUtils.copyLarge( checkedInputStream, jarOutputStream );
+        }
+        precompressor.entry( name );
         jarOutputStream.closeEntry();
+        resources.add( name, length, checkedInputStream.getChecksum().getValue() );
       }
 
     }
     // Add Blueprint file if we found a require-js configuration.
+    for ( Map.Entry<String, byte[]> variant : precompressor.getVariants().entrySet() ) {
+      byte[] content = variant.getValue();
+      CRC32 crc = new CRC32();
+      crc.update( content );
+      ZipEntry variantEntry = new ZipEntry( variant.getKey() );
+      // Already compressed
+      variantEntry.setMethod( ZipEntry.STORED );
+      variantEntry.setSize( content.length );
+      variantEntry.setCompressedSize( content.length );
+      variantEntry.setCrc( crc.getValue() );
+      jarOutputStream.putNextEntry( variantEntry );
+      jarOutputStream.write( content );
+      jarOutputStream.closeEntry();
+      resources.add( variant.getKey(), content.length, crc.getValue() );
+    }
     if( foundRJs ) {
-      ZipEntry newEntry = new ZipEntry( "OSGI-INF/blueprint/blueprint.xml" );
-      String blueprintTemplate = IOUtils.toString( getClass().getResourceAsStream(
-          "/org/pentaho/osgi/platform/webjars/blueprint-template.xml" ) );
-      blueprintTemplate = blueprintTemplate.replaceAll( "\\{path\\}",
-          "META-INF/resources/webjars/" + moduleName + "/" + moduleVersion );
-      blueprintTemplate = blueprintTemplate.replace( "{versioned_name}", moduleName + "/" + moduleVersion );
-      blueprintTemplate = blueprintTemplate.replace( "{name}", moduleName );
+      jarOutputStream.putNextEntry( new ZipEntry( WebjarsResourceIndex.LOCATION ) );
+      createResourceIndex( resources, moduleName, moduleVersion ).write( jarOutputStream );
+      jarOutputStream.closeEntry();
+
+      ZipEntry newEntry = new ZipEntry( BLUEPRINT_LOCATION );
       jarOutputStream.putNextEntry( newEntry );
-      jarOutputStream.write( blueprintTemplate.getBytes( "UTF-8" ) );
+      jarOutputStream.write( createBlueprint( moduleName, moduleVersion ).getBytes( "UTF-8" ) );
     }
     // Process webjars into our form
     jarOutputStream.closeEntry();
 
 
-    pipedOutputStream.flush();
+    outputStream.flush();
     jarOutputStream.close();
   }
 
-  private String convertConfig( String config, String moduleName, String moduleVersion ) {
+  /**
+   * Same as the streaming transformation but the unchanged entries are copied still compressed, with their original
+   * CRC and sizes, so only the manifest, require.json and blueprint cost any deflating.
+   */
+  private void transformRaw( URL url, File sourceFile, RandomAccessFile randomAccessFile,
+                             ZipCentralDirectory centralDirectory, OutputStream outputStream ) throws IOException {
+    ZipFile zipFile = new ZipFile( sourceFile );
+    try {
+      ZipEntry manifestEntry = zipFile.getEntry( JarFile.MANIFEST_NAME );
+      Manifest manifest;
+      if ( manifestEntry != null ) {
+        InputStream manifestStream = zipFile.getInputStream( manifestEntry );
+        try {
+          manifest = new Manifest( manifestStream );
+        } finally {
+          manifestStream.close();
+        }
+      } else {
+        manifest = new Manifest();
+        manifest.getMainAttributes().put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+      }
+      ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+      createManifest( url, manifest ).write( manifestBytes );
+
+      RawZipWriter zipWriter = new RawZipWriter( outputStream );
+      // First, as JarInputStream expects it
+      zipWriter.write( JarFile.MANIFEST_NAME, manifestBytes.toByteArray() );
+
+      String moduleName = "unknown";
+      String moduleVersion = "unknown";
+      boolean foundRJs = false;
+      WebjarsResourceIndex.Builder resources = new WebjarsResourceIndex.Builder();
+      WebjarsPrecompressor precompressor = new WebjarsPrecompressor();
+      for ( ZipCentralDirectory.Entry entry : centralDirectory.getEntries() ) {
+        String name = entry.getName();
+        if ( name.endsWith( MANIFEST_MF ) ) {
+          logger.info( "skipping manifest" );
+        } else if ( name.endsWith( WEBJARS_REQUIREJS_NAME ) ) {
+          Matcher matcher = MODULE_PATTERN.matcher( name );
+          if ( !matcher.matches() ) {
+            logger.error( "Webjars structure isn't right" );
+            continue;
+          }
+          foundRJs = true;
+          logger.info( "found WEBJARS config" );
+          moduleName = matcher.group( 1 );
+          moduleVersion = matcher.group( 2 );
+
+          InputStream configStream = zipFile.getInputStream( zipFile.getEntry( name ) );
+          String webjarsConfig;
+          try {
+            webjarsConfig = IOUtils.toString( configStream, "UTF-8" );
+          } finally {
+            configStream.close();
+          }
+          String convertedConfig = convertConfig( webjarsConfig, moduleName, moduleVersion );
+          zipWriter.write( PENTAHO_RJS_LOCATION, convertedConfig.getBytes( "UTF-8" ) );
+        } else {
+          logger.debug( "copying misc entry: " + name );
+          zipWriter.copy( randomAccessFile, entry );
+          resources.add( name, entry.getSize(), entry.getCrc() );
+          if ( precompress && WebjarsPrecompressor.isCompressible( name, entry.getSize() ) ) {
+            InputStream entryStream = zipFile.getInputStream( zipFile.getEntry( name ) );
+            try {
+              precompressor.entry( name, IOUtils.toByteArray( entryStream ) );
+            } finally {
+              entryStream.close();
+            }
+          } else {
+            precompressor.entry( name );
+          }
+        }
+      }
+      for ( Map.Entry<String, byte[]> variant : precompressor.getVariants().entrySet() ) {
+        zipWriter.store( variant.getKey(), variant.getValue() );
+        CRC32 crc = new CRC32();
+        crc.update( variant.getValue() );
+        resources.add( variant.getKey(), variant.getValue().length, crc.getValue() );
+      }
+      if ( foundRJs ) {
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        createResourceIndex( resources, moduleName, moduleVersion ).write( indexBytes );
+        zipWriter.write( WebjarsResourceIndex.LOCATION, indexBytes.toByteArray() );
+        zipWriter.write( BLUEPRINT_LOCATION, createBlueprint( moduleName, moduleVersion ).getBytes( "UTF-8" ) );
+      }
+      zipWriter.finish();
+    } finally {
+      zipFile.close();
+    }
+    outputStream.close();
+  }
+
+  private Manifest createManifest( URL url, Manifest manifest ) {
+    String artifactName = "unknown";
+    Version version = new Version( 0, 0, 0 );
+    if ( url.getProtocol().equals( "file" ) ) {
+      String filePath = url.getFile();
+      int start = filePath.lastIndexOf( '/' );
+      if(start >= 0) {
+        artifactName = filePath.substring( filePath.lastIndexOf( '/' ) + 1, filePath.length() );  
+      } else {
+        artifactName = filePath;
+      }
+    } else if ( url.getProtocol().equals( "mvn" ) ) {
+      String[] parts = url.getPath().split( "/" );
+      artifactName = parts[ 1 ];
+      String versionPart = parts[ 2 ];
 
-    Pattern pat = Pattern.compile( "webjars!(.*).js" );
-    Matcher m = pat.matcher( config );
+      // version needs to be coerced into OSGI form Major.Minor.Patch.Classifier
+      version = VersionParser.parseVersion( versionPart );
+
+    }
+
+    manifest.getMainAttributes()
+        .put( new Attributes.Name( Constants.BUNDLE_SYMBOLICNAME ), "pentaho-webjars-" + artifactName );
+    manifest.getMainAttributes()
+        .put( new Attributes.Name( Constants.IMPORT_PACKAGE ),
+            "org.osgi.service.http,org.apache.felix.http.api,org.ops4j.pax.web.extender.whiteboard.runtime," +
+                "org.ops4j.pax.web.extender.whiteboard,javax.servlet,javax.servlet.http," +
+                "org.pentaho.osgi.platform.webjars" );
+
+    manifest.getMainAttributes().put( new Attributes.Name( Constants.BUNDLE_VERSION ), version.toString() );
+    return manifest;
+  }
+
+  private WebjarsResourceIndex createResourceIndex( WebjarsResourceIndex.Builder resources, String moduleName,
+                                                   String moduleVersion ) {
+    return resources.build( "META-INF/resources/webjars/" + moduleName + "/" + moduleVersion + "/" );
+  }
+
+  private String createBlueprint( String moduleName, String moduleVersion ) throws IOException {
+    String blueprintTemplate = IOUtils.toString( getClass().getResourceAsStream(
+        "/org/pentaho/osgi/platform/webjars/blueprint-template.xml" ) );
+    blueprintTemplate = blueprintTemplate.replaceAll( "\\{path\\}",
+        "META-INF/resources/webjars/" + moduleName + "/" + moduleVersion );
+    blueprintTemplate = blueprintTemplate.replace( "{versioned_name}", moduleName + "/" + moduleVersion );
+    blueprintTemplate = blueprintTemplate.replace( "{name}", moduleName );
+    return blueprintTemplate;
+  }
+
+  private String convertConfig( String config, String moduleName, String moduleVersion ) throws IOException {
+    String json = CONFIG_EXTRACTOR.extract( config, moduleName, moduleVersion );
+    if ( json != null ) {
+      return json;
+    }
+    logger.debug( "Falling back to the script engine for " + moduleName );
+
+    Matcher m = WEBJARS_PLUGIN_PATTERN.matcher( config );
 
     StringBuffer sb = new StringBuffer();
     while ( m.find() ) {
@@ -211,8 +428,8 @@ public class WebjarsURLConnection extends URLConnection {
 
     config = sb.toString();
 
-    pat = Pattern.compile( "webjars\\.path\\(['\"]{1}(.*)['\"]{1}, ['\"]{1}(.*)['\"]{1}\\)" );
-    m = pat.matcher( config );
+    m = WEBJARS_PATH_PATTERN.matcher( config );
+    sb = new StringBuffer();
     while ( m.find() ) {
       m.appendReplacement( sb, "\"" + moduleName + "/" + moduleVersion + "/" + m.group( 2 ) + "\"" );
     }
@@ -220,31 +437,17 @@ public class WebjarsURLConnection extends URLConnection {
 
     config = sb.toString();
 
-
-    ScriptEngineManager factory = new ScriptEngineManager();
-    ScriptEngine engine = factory.getEngineByName( "JavaScript" );
     try {
-      String script = null;
-      try {
-        script = IOUtils.toString(
-            getClass().getResourceAsStream( "/org/pentaho/osgi/platform/webjars/require-js-aggregator.js" ) );
-      } catch ( IOException e ) {
-        e.printStackTrace();
-      }
-      script = script.replace( "{{EXTERNAL_CONFIG}}", config );
-
-      //      Context.enter().getWrapFactory().setJavaPrimitiveWrap( false );
-      engine.eval( script );
-
-      return ( (Invocable) engine ).invokeFunction( "processConfig", "" ).toString();
-
+      return configConverter.convert( config );
     } catch ( ScriptException e ) {
       return e.getMessage();
-    } catch ( NoSuchMethodException e ) {
-      e.printStackTrace();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interruptedIOException = new InterruptedIOException(
+        "Interrupted while waiting for a script engine to convert the RequireJS config of " + moduleName );
+      interruptedIOException.initCause( e );
+      throw interruptedIOException;
     }
-    return null;
-
   }
 
 }
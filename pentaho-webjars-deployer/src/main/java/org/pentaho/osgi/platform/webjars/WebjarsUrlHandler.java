@@ -27,8 +27,55 @@ import java.net.URLConnection;
  * Created by nbaker on 9/6/14.
  */
 public class WebjarsUrlHandler extends AbstractURLStreamHandlerService {
+  private RequireJsConfigConverter configConverter;
+  private WebjarsTransformCache transformCache;
+  private WebjarsTransformPipeline transformPipeline;
+  private boolean precompress;
+
+  public RequireJsConfigConverter getConfigConverter() {
+    return configConverter;
+  }
+
+  public void setConfigConverter( RequireJsConfigConverter configConverter ) {
+    this.configConverter = configConverter;
+  }
+
+  public WebjarsTransformCache getTransformCache() {
+    return transformCache;
+  }
+
+  public void setTransformCache( WebjarsTransformCache transformCache ) {
+    this.transformCache = transformCache;
+  }
+
+  public WebjarsTransformPipeline getTransformPipeline() {
+    return transformPipeline;
+  }
+
+  public void setTransformPipeline( WebjarsTransformPipeline transformPipeline ) {
+    this.transformPipeline = transformPipeline;
+  }
+
+  public boolean isPrecompress() {
+    return precompress;
+  }
+
+  public void setPrecompress( boolean precompress ) {
+    this.precompress = precompress;
+  }
 
   @Override public URLConnection openConnection( URL url ) throws IOException {
-    return new WebjarsURLConnection( new URL( url.getPath() ) );
+    return openWebjarConnection( new URL( url.getPath() ) );
+  }
+
+  /**
+   * @param webjarUrl the url of the webjar itself, without the pentaho-webjars protocol
+   */
+  public WebjarsURLConnection openWebjarConnection( URL webjarUrl ) {
+    WebjarsTransformPipeline pipeline = transformPipeline != null ? transformPipeline
+      : WebjarsTransformPipeline.getDefault();
+    WebjarsURLConnection connection = new WebjarsURLConnection( webjarUrl, configConverter, transformCache, pipeline );
+    connection.setPrecompress( precompress );
+    return connection;
   }
 }
@@ -0,0 +1,271 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip file, giving where each entry's compressed data starts so it can be copied
+ * without inflating it.
+ * <p/>
+ * Only plain archives are supported, zip64, spanned and encrypted ones are rejected with a ZipException.
+ */
+public class ZipCentralDirectory {
+  static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  static final int END_SIGNATURE = 0x06054b50;
+  static final int LOCAL_HEADER_SIZE = 30;
+  static final int CENTRAL_HEADER_SIZE = 46;
+  static final int END_SIZE = 22;
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+  private final List<Entry> entries;
+
+  private ZipCentralDirectory( List<Entry> entries ) {
+    this.entries = Collections.unmodifiableList( entries );
+  }
+
+  /**
+   * @return the entries, in central directory order
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  public static ZipCentralDirectory read( RandomAccessFile file ) throws IOException {
+    ByteBuffer buffer = readCentralDirectory( file );
+    int entryCount = buffer.getShort( buffer.limit() - END_SIZE + 10 ) & 0xFFFF;
+    buffer.limit( buffer.limit() - END_SIZE );
+    List<Entry> entries = new ArrayList<Entry>( entryCount );
+    for ( int i = 0; i < entryCount; i++ ) {
+      int position = buffer.position();
+      if ( buffer.remaining() < CENTRAL_HEADER_SIZE || buffer.getInt( position ) != CENTRAL_HEADER_SIGNATURE ) {
+        throw new ZipException( "Invalid central directory entry" );
+      }
+      Entry entry = new Entry();
+      entry.flags = buffer.getShort( position + 8 ) & 0xFFFF;
+      entry.method = buffer.getShort( position + 10 ) & 0xFFFF;
+      entry.dosTime = buffer.getInt( position + 12 );
+      entry.crc = buffer.getInt( position + 16 ) & 0xFFFFFFFFL;
+      entry.compressedSize = buffer.getInt( position + 20 ) & 0xFFFFFFFFL;
+      entry.size = buffer.getInt( position + 24 ) & 0xFFFFFFFFL;
+      int nameLength = buffer.getShort( position + 28 ) & 0xFFFF;
+      int extraLength = buffer.getShort( position + 30 ) & 0xFFFF;
+      int commentLength = buffer.getShort( position + 32 ) & 0xFFFF;
+      entry.externalAttributes = buffer.getInt( position + 38 );
+      entry.localHeaderOffset = buffer.getInt( position + 42 ) & 0xFFFFFFFFL;
+      if ( ( entry.flags & 1 ) != 0 ) {
+        throw new ZipException( "Encrypted entries are not supported" );
+      }
+      if ( entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL
+        || entry.localHeaderOffset == 0xFFFFFFFFL ) {
+        throw new ZipException( "Zip64 entries are not supported" );
+      }
+      entry.rawName = new byte[ nameLength ];
+      buffer.position( position + CENTRAL_HEADER_SIZE );
+      buffer.get( entry.rawName );
+      entry.name = new String( entry.rawName, UTF_8 );
+      buffer.position( buffer.position() + extraLength + commentLength );
+      entries.add( entry );
+    }
+    return new ZipCentralDirectory( entries );
+  }
+
+  /**
+   * Looks for an entry by reading only the names in the central directory, stopping at the first match.
+   *
+   * @param suffix ASCII end of the name to look for
+   * @return the name of the first entry ending with suffix or null if there is none
+   */
+  public static String findEntry( RandomAccessFile file, String suffix ) throws IOException {
+    ByteBuffer buffer = readCentralDirectory( file );
+    int entryCount = buffer.getShort( buffer.limit() - END_SIZE + 10 ) & 0xFFFF;
+    byte[] suffixBytes = suffix.getBytes( UTF_8 );
+    int position = 0;
+    for ( int i = 0; i < entryCount; i++ ) {
+      if ( position + CENTRAL_HEADER_SIZE > buffer.limit() - END_SIZE
+        || buffer.getInt( position ) != CENTRAL_HEADER_SIGNATURE ) {
+        throw new ZipException( "Invalid central directory entry" );
+      }
+      int nameLength = buffer.getShort( position + 28 ) & 0xFFFF;
+      int extraLength = buffer.getShort( position + 30 ) & 0xFFFF;
+      int commentLength = buffer.getShort( position + 32 ) & 0xFFFF;
+      int nameStart = position + CENTRAL_HEADER_SIZE;
+      if ( endsWith( buffer, nameStart, nameLength, suffixBytes ) ) {
+        byte[] name = new byte[ nameLength ];
+        buffer.position( nameStart );
+        buffer.get( name );
+        return new String( name, UTF_8 );
+      }
+      position = nameStart + nameLength + extraLength + commentLength;
+    }
+    return null;
+  }
+
+  private static boolean endsWith( ByteBuffer buffer, int start, int length, byte[] suffix ) {
+    if ( length < suffix.length || start + length > buffer.limit() ) {
+      return false;
+    }
+    int offset = start + length - suffix.length;
+    for ( int i = 0; i < suffix.length; i++ ) {
+      if ( buffer.get( offset + i ) != suffix[ i ] ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the central directory followed by the end of central directory record
+   */
+  private static ByteBuffer readCentralDirectory( RandomAccessFile file ) throws IOException {
+    long length = file.length();
+    int tailLength = (int) Math.min( length, END_SIZE + 0xFFFF );
+    ByteBuffer tail = read( file, length - tailLength, tailLength );
+    int end = -1;
+    for ( int i = tailLength - END_SIZE; i >= 0; i-- ) {
+      if ( tail.getInt( i ) == END_SIGNATURE ) {
+        end = i;
+        break;
+      }
+    }
+    if ( end < 0 ) {
+      throw new ZipException( "End of central directory not found" );
+    }
+    int diskNumber = tail.getShort( end + 4 ) & 0xFFFF;
+    int centralDirectoryDisk = tail.getShort( end + 6 ) & 0xFFFF;
+    int entryCount = tail.getShort( end + 10 ) & 0xFFFF;
+    long centralDirectorySize = tail.getInt( end + 12 ) & 0xFFFFFFFFL;
+    long centralDirectoryOffset = tail.getInt( end + 16 ) & 0xFFFFFFFFL;
+    if ( diskNumber != 0 || centralDirectoryDisk != 0 ) {
+      throw new ZipException( "Spanned archives are not supported" );
+    }
+    if ( entryCount == 0xFFFF || centralDirectoryOffset == 0xFFFFFFFFL || centralDirectorySize == 0xFFFFFFFFL ) {
+      throw new ZipException( "Zip64 archives are not supported" );
+    }
+    long endOffset = length - tailLength + end;
+    // It's read along with a copy of the end record into a single buffer
+    if ( centralDirectoryOffset + centralDirectorySize > endOffset
+      || centralDirectorySize > Integer.MAX_VALUE - END_SIZE ) {
+      throw new ZipException( "Invalid central directory" );
+    }
+    // Usually the central directory was already read along with the end record
+    long tailStart = length - tailLength;
+    if ( centralDirectoryOffset >= tailStart ) {
+      tail.position( (int) ( centralDirectoryOffset - tailStart ) );
+      tail.limit( end + END_SIZE );
+      return tail.slice().order( ByteOrder.LITTLE_ENDIAN );
+    }
+    ByteBuffer buffer = read( file, centralDirectoryOffset, (int) centralDirectorySize + END_SIZE );
+    // The end record may not follow the central directory right away, copy it where it's expected
+    for ( int i = 0; i < END_SIZE; i++ ) {
+      buffer.put( (int) centralDirectorySize + i, tail.get( end + i ) );
+    }
+    return buffer;
+  }
+
+  /**
+   * @return offset of the entry's compressed data, right after its local header
+   */
+  public static long getDataOffset( RandomAccessFile file, Entry entry ) throws IOException {
+    ByteBuffer header = read( file, entry.localHeaderOffset, LOCAL_HEADER_SIZE );
+    if ( header.getInt( 0 ) != LOCAL_HEADER_SIGNATURE ) {
+      throw new ZipException( "Invalid local header for " + entry.name );
+    }
+    int nameLength = header.getShort( 26 ) & 0xFFFF;
+    int extraLength = header.getShort( 28 ) & 0xFFFF;
+    return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+  }
+
+  private static ByteBuffer read( RandomAccessFile file, long offset, int length ) throws IOException {
+    if ( offset < 0 || offset + length > file.length() ) {
+      throw new ZipException( "Truncated zip file" );
+    }
+    byte[] bytes = new byte[ length ];
+    file.seek( offset );
+    file.readFully( bytes );
+    return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+  }
+
+  /**
+   * An entry as described by the central directory.
+   */
+  public static class Entry {
+    private String name;
+    private byte[] rawName;
+    private int flags;
+    private int method;
+    private int dosTime;
+    private long crc;
+    private long compressedSize;
+    private long size;
+    private int externalAttributes;
+    private long localHeaderOffset;
+
+    public String getName() {
+      return name;
+    }
+
+    public byte[] getRawName() {
+      return rawName;
+    }
+
+    public int getFlags() {
+      return flags;
+    }
+
+    public int getMethod() {
+      return method;
+    }
+
+    /**
+     * @return the MS-DOS modification time, in the low 16 bits, and date, in the high ones
+     */
+    public int getDosTime() {
+      return dosTime;
+    }
+
+    public long getCrc() {
+      return crc;
+    }
+
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public int getExternalAttributes() {
+      return externalAttributes;
+    }
+
+    public long getLocalHeaderOffset() {
+      return localHeaderOffset;
+    }
+  }
+}
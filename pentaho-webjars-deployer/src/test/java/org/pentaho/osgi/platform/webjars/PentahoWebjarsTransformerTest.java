@@ -17,16 +17,24 @@
 
 package org.pentaho.osgi.platform.webjars;
 
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.net.URL;
 import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.*;
 
 public class PentahoWebjarsTransformerTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
   @Test
   public void testTransform() throws Exception {
@@ -49,4 +57,25 @@ public class PentahoWebjarsTransformerTest {
     assertTrue( trans.canHandle( new File("src/test/resources/testInput.jar") ));
     assertFalse( trans.canHandle( new File("src/main/resources/blueprint-template.xml") ));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testCanHandleRemembersVerdictUntilTheJarChanges() throws Exception {
+    PentahoWebjarsTransformer trans = new PentahoWebjarsTransformer();
+    File jar = temporaryFolder.newFile( "test.jar" );
+    FileUtils.copyFile( new File( "src/test/resources/testInput.jar" ), jar );
+    assertTrue( trans.canHandle( jar ) );
+
+    // Same size and modification time, the cached verdict is used
+    long lastModified = jar.lastModified();
+    byte[] webjar = FileUtils.readFileToByteArray( jar );
+    FileUtils.writeByteArrayToFile( jar, new byte[ webjar.length ] );
+    jar.setLastModified( lastModified );
+    assertTrue( trans.canHandle( jar ) );
+
+    ZipOutputStream zipOutputStream = new ZipOutputStream( new FileOutputStream( jar ) );
+    zipOutputStream.putNextEntry( new ZipEntry( "META-INF/resources/other.js" ) );
+    zipOutputStream.close();
+    jar.setLastModified( lastModified - 10000 );
+    assertFalse( trans.canHandle( jar ) );
+  }
+}
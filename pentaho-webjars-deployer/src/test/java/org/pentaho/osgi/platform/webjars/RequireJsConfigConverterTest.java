@@ -0,0 +1,94 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.junit.Test;
+
+import javax.script.ScriptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RequireJsConfigConverterTest {
+  @Test
+  public void testConvert() throws Exception {
+    RequireJsConfigConverter converter = new RequireJsConfigConverter( 1 );
+    assertEquals( "{\"paths\":{\"a\":\"a/1.0/a\"}}",
+      converter.convert( "requirejs.config({paths: {a: webjars.path('a', '1.0/a')}});" ) );
+  }
+
+  @Test
+  public void testEngineStateIsResetBetweenConversions() throws Exception {
+    RequireJsConfigConverter converter = new RequireJsConfigConverter( 1 );
+    converter.convert( "requirejs.config({paths: {a: 'a'}}); requirejs = null;" );
+    assertEquals( "{\"paths\":{\"b\":\"b\"}}", converter.convert( "requirejs.config({paths: {b: 'b'}});" ) );
+    // Without a requirejs.config call there is no configuration
+    assertEquals( "null", converter.convert( "var nothing;" ) );
+    assertEquals( 1, converter.getCreatedEngines() );
+  }
+
+  @Test
+  public void testBorrowReusesReleasedEngines() throws Exception {
+    RequireJsConfigConverter converter = new RequireJsConfigConverter( 2 );
+    RequireJsConfigConverter.Engine first = converter.borrow();
+    RequireJsConfigConverter.Engine second = converter.borrow();
+    assertNotSame( first, second );
+    converter.release( first );
+    assertSame( first, converter.borrow() );
+    assertEquals( 2, converter.getCreatedEngines() );
+  }
+
+  @Test
+  public void testEnginesAreBounded() throws Exception {
+    final RequireJsConfigConverter converter = new RequireJsConfigConverter( 2 );
+    ExecutorService executorService = Executors.newFixedThreadPool( 8 );
+    try {
+      List<Future<String>> futures = new ArrayList<Future<String>>();
+      for ( int i = 0; i < 32; i++ ) {
+        final int index = i;
+        futures.add( executorService.submit( new Callable<String>() {
+          @Override public String call() throws Exception {
+            return converter.convert( "requirejs.config({paths: {m" + index + ": 'm'}});" );
+          }
+        } ) );
+      }
+      for ( int i = 0; i < futures.size(); i++ ) {
+        assertEquals( "{\"paths\":{\"m" + i + "\":\"m\"}}", futures.get( i ).get() );
+      }
+    } finally {
+      executorService.shutdown();
+    }
+    assertTrue( converter.getCreatedEngines() <= 2 );
+  }
+
+  @Test( expected = ScriptException.class )
+  public void testDestroy() throws Exception {
+    RequireJsConfigConverter converter = new RequireJsConfigConverter( 1 );
+    converter.convert( "requirejs.config({});" );
+    converter.destroy();
+    converter.convert( "requirejs.config({});" );
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RequireJsConfigExtractorTest {
+  private final RequireJsConfigExtractor extractor = new RequireJsConfigExtractor();
+
+  @Test
+  public void testExtract() throws Exception {
+    String script = "/* header */\n"
+      + "requirejs.config({\n"
+      + "  paths: { \"jquery\": webjars.path(\"jquery\", \"jquery\") }, // the module\n"
+      + "  shim: { 'jquery': { exports: '$', deps: [ 'webjars!other.js' ] }, },\n"
+      + "  waitSeconds: 15, enforceDefine: false, config: null, skipped: undefined\n"
+      + "});\n";
+    String expected = "{\"paths\":{\"jquery\":\"jquery/1.11.1/jquery\"},"
+      + "\"shim\":{\"jquery\":{\"exports\":\"$\",\"deps\":[\"other\"]}},"
+      + "\"waitSeconds\":15,\"enforceDefine\":false,\"config\":null}";
+    assertEquals( expected, extractor.extract( script, "jquery", "1.11.1" ) );
+  }
+
+  @Test
+  public void testVariablesAndLastConfigWins() {
+    String script = "var paths = { \"a\": webjars.path('a', 'a') }, exports = 'A';\n"
+      + "requirejs.config({ paths: { b: 'b' } });\n"
+      + "requirejs.config({ paths: paths, shim: { a: { exports: exports } } })";
+    assertEquals( "{\"paths\":{\"a\":\"a/1.0/a\"},\"shim\":{\"a\":{\"exports\":\"A\"}}}",
+      extractor.extract( script, "a", "1.0" ) );
+  }
+
+  @Test
+  public void testEscapes() {
+    assertEquals( "{\"a\":\"q\\\"\\\\\\n\\u0001\\u00e9/'\"}",
+      extractor.extract( "requirejs.config({ a: 'q\"\\\\\\n\\x01\\u00e9\\/\\'' })", "a", "1" )
+        .replace( "é", "\\u00e9" ) );
+  }
+
+  @Test
+  public void testUnsupportedConstructs() {
+    assertNull( extractor.extract( "var p = {}; p.a = 'a'; requirejs.config({ paths: p });", "a", "1" ) );
+    assertNull( extractor.extract( "requirejs.config({ shim: { a: { init: function() {} } } });", "a", "1" ) );
+    assertNull( extractor.extract( "requirejs.config({ paths: { a: webjars.path('a', 'i18n/' + x) } });", "a", "1" ) );
+    assertNull( extractor.extract( "requirejs.config({ waitSeconds: 1.5 });", "a", "1" ) );
+    assertNull( extractor.extract( "requirejs.config({ paths: { a: 'a' }", "a", "1" ) );
+    assertNull( extractor.extract( "var nothing = 1;", "a", "1" ) );
+  }
+
+  @Test
+  public void testSameOutputAsTheEngine() throws Exception {
+    String script =
+      "requirejs.config({ paths: { 'x': 'x', y: [ 1, -2, true ] }, 10: { '': {} }, '2': 'integer keys go first' });";
+    assertEquals( new RequireJsConfigConverter( 1 ).convert( script ), extractor.extract( script, "x", "1" ) );
+  }
+}
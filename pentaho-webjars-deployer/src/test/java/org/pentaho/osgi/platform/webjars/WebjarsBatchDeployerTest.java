@@ -0,0 +1,128 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.ServiceRegistration;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class WebjarsBatchDeployerTest {
+  private BundleContext bundleContext;
+  private WebjarsUrlHandler urlHandler;
+  private ServiceRegistration<?> registration;
+  private WebjarsBatchDeployer batchDeployer;
+
+  @Before
+  public void setup() throws IOException {
+    bundleContext = mock( BundleContext.class );
+    registration = mock( ServiceRegistration.class );
+    doReturn( registration ).when( bundleContext )
+      .registerService( eq( Object.class.getName() ), any(), any( Dictionary.class ) );
+    urlHandler = mock( WebjarsUrlHandler.class );
+    batchDeployer = new WebjarsBatchDeployer();
+    batchDeployer.setBundleContext( bundleContext );
+    batchDeployer.setUrlHandler( urlHandler );
+    batchDeployer.setParallelism( 3 );
+  }
+
+  private InputStream transformed( URL url ) throws IOException {
+    InputStream inputStream = new ByteArrayInputStream( url.toExternalForm().getBytes( "UTF-8" ) );
+    WebjarsURLConnection connection = mock( WebjarsURLConnection.class );
+    when( connection.getInputStream() ).thenReturn( inputStream );
+    when( urlHandler.openWebjarConnection( url ) ).thenReturn( connection );
+    return inputStream;
+  }
+
+  @Test
+  public void testDeployInstallsAndStartsWithinOneBatch() throws Exception {
+    URL[] urls = new URL[ 10 ];
+    Bundle[] bundles = new Bundle[ urls.length ];
+    for ( int i = 0; i < urls.length; i++ ) {
+      urls[ i ] = new URL( "file:/webjars/lib" + i + ".jar" );
+      bundles[ i ] = mock( Bundle.class );
+      when( bundleContext.installBundle( "pentaho-webjars:" + urls[ i ], transformed( urls[ i ] ) ) )
+        .thenReturn( bundles[ i ] );
+    }
+    List<Bundle> deployed = batchDeployer.deploy( Arrays.asList( urls ) );
+    assertEquals( Arrays.asList( bundles ), deployed );
+    verify( bundleContext, times( 1 ) )
+      .registerService( eq( Object.class.getName() ), any(), argThat( new ArgumentMatcher<Dictionary>() {
+        @Override public boolean matches( Object argument ) {
+          return ( (Dictionary) argument ).get( WebjarsBatchDeployer.BATCH_PROPERTY ) != null;
+        }
+      } ) );
+    for ( Bundle bundle : bundles ) {
+      InOrder inOrder = inOrder( bundle, registration );
+      inOrder.verify( bundle ).start();
+      inOrder.verify( registration ).unregister();
+    }
+  }
+
+  @Test
+  public void testDeployUpdatesInstalledBundles() throws Exception {
+    URL url = new URL( "file:/webjars/lib.jar" );
+    InputStream inputStream = transformed( url );
+    Bundle bundle = mock( Bundle.class );
+    when( bundleContext.getBundle( "pentaho-webjars:" + url ) ).thenReturn( bundle );
+    assertEquals( Arrays.asList( bundle ), batchDeployer.deploy( Arrays.asList( url ) ) );
+    verify( bundle ).update( inputStream );
+    verify( bundleContext, never() ).installBundle( anyString(), any( InputStream.class ) );
+    verify( bundle ).start();
+  }
+
+  @Test
+  public void testDeployReportsFailuresAfterTheBatch() throws Exception {
+    URL good = new URL( "file:/webjars/good.jar" );
+    URL bad = new URL( "file:/webjars/bad.jar" );
+    Bundle bundle = mock( Bundle.class );
+    when( bundleContext.installBundle( "pentaho-webjars:" + good, transformed( good ) ) ).thenReturn( bundle );
+    IOException cause = new IOException( "broken" );
+    WebjarsURLConnection connection = mock( WebjarsURLConnection.class );
+    when( connection.getInputStream() ).thenThrow( cause );
+    when( urlHandler.openWebjarConnection( bad ) ).thenReturn( connection );
+    try {
+      batchDeployer.deploy( Arrays.asList( bad, good ) );
+      fail();
+    } catch ( BundleException e ) {
+      assertEquals( cause, e.getCause() );
+    }
+    verify( bundle ).start();
+    verify( registration ).unregister();
+  }
+}
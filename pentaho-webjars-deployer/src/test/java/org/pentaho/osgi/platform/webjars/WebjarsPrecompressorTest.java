@@ -0,0 +1,86 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WebjarsPrecompressorTest {
+  private static final String FOLDER = "META-INF/resources/webjars/lib/1.0/";
+
+  private static byte[] text( int length ) {
+    byte[] content = new byte[ length ];
+    Arrays.fill( content, (byte) 'a' );
+    return content;
+  }
+
+  @Test
+  public void testIsCompressible() {
+    assertTrue( WebjarsPrecompressor.isCompressible( FOLDER + "lib.js", 1000 ) );
+    assertTrue( WebjarsPrecompressor.isCompressible( FOLDER + "lib.css", 1000 ) );
+    assertTrue( WebjarsPrecompressor.isCompressible( FOLDER + "icon.svg", 1000 ) );
+    assertFalse( WebjarsPrecompressor.isCompressible( FOLDER + "lib.js", 10 ) );
+    assertFalse( WebjarsPrecompressor.isCompressible( FOLDER + "icon.png", 1000 ) );
+    assertFalse( WebjarsPrecompressor.isCompressible( FOLDER + "lib.js.gz", 1000 ) );
+    assertFalse( WebjarsPrecompressor.isCompressible( "org/lib/Lib.class", 1000 ) );
+  }
+
+  @Test
+  public void testVariants() throws IOException {
+    WebjarsPrecompressor precompressor = new WebjarsPrecompressor();
+    byte[] content = text( 1000 );
+    precompressor.entry( FOLDER + "lib.js", content );
+    precompressor.entry( FOLDER + "icon.png" );
+    Map<String, byte[]> variants = precompressor.getVariants();
+    assertEquals( 1, variants.size() );
+    byte[] compressed = variants.get( FOLDER + "lib.js.gz" );
+    assertTrue( compressed.length < content.length );
+    assertArrayEquals( content, IOUtils.toByteArray( new GZIPInputStream( new ByteArrayInputStream( compressed ) ) ) );
+  }
+
+  @Test
+  public void testShippedVariantsAreKept() throws IOException {
+    WebjarsPrecompressor precompressor = new WebjarsPrecompressor();
+    precompressor.entry( FOLDER + "lib.js", text( 1000 ) );
+    precompressor.entry( FOLDER + "lib.js.gz" );
+    precompressor.entry( FOLDER + "other.js.gz" );
+    precompressor.entry( FOLDER + "other.js", text( 1000 ) );
+    assertTrue( precompressor.getVariants().isEmpty() );
+  }
+
+  @Test
+  public void testIncompressibleContentHasNoVariant() throws IOException {
+    byte[] content = new byte[ 1000 ];
+    new Random( 42 ).nextBytes( content );
+    WebjarsPrecompressor precompressor = new WebjarsPrecompressor();
+    precompressor.entry( FOLDER + "lib.js", content );
+    assertTrue( precompressor.getVariants().isEmpty() );
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WebjarsResourceIndexTest {
+  private static final String FOLDER = "META-INF/resources/webjars/lib/1.0/";
+
+  @Test
+  public void testBuildKeepsTheResourceFolder() {
+    WebjarsResourceIndex.Builder builder = new WebjarsResourceIndex.Builder();
+    builder.add( "META-INF/resources/webjars/other/1.0/other.js", 5, 1 );
+    builder.add( FOLDER + "lib.js", 10, 0xabc );
+    builder.add( FOLDER + "css/", 0, 0 );
+    builder.add( FOLDER + "css/lib.css", 7, 0xdef );
+    WebjarsResourceIndex index = builder.build( FOLDER );
+
+    assertEquals( 2, index.getResources().size() );
+    assertEquals( 17L, index.getTotalLength() );
+    assertNull( index.getResource( "other.js" ) );
+    assertNull( index.getResource( "css/" ) );
+    WebjarsResourceIndex.Resource js = index.getResource( "lib.js" );
+    assertEquals( 0L, js.getOffset() );
+    assertEquals( 10L, js.getLength() );
+    assertEquals( "\"abc-a\"", js.getEtag() );
+    assertEquals( "application/javascript", js.getContentType() );
+    WebjarsResourceIndex.Resource css = index.getResource( "css/lib.css" );
+    assertEquals( 10L, css.getOffset() );
+    assertEquals( "text/css", css.getContentType() );
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    WebjarsResourceIndex.Builder builder = new WebjarsResourceIndex.Builder();
+    builder.add( FOLDER + "lib.js", 10, 0xabc );
+    builder.add( FOLDER + "some dir/read me", 3, 0x1 );
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    builder.build( FOLDER ).write( outputStream );
+
+    WebjarsResourceIndex index =
+      WebjarsResourceIndex.read( new ByteArrayInputStream( outputStream.toByteArray() ) );
+    assertEquals( 13L, index.getTotalLength() );
+    WebjarsResourceIndex.Resource resource = index.getResource( "some dir/read me" );
+    assertEquals( 10L, resource.getOffset() );
+    assertEquals( 3L, resource.getLength() );
+    assertEquals( "\"1-3\"", resource.getEtag() );
+    assertEquals( WebjarsResourceIndex.DEFAULT_CONTENT_TYPE, resource.getContentType() );
+  }
+
+  @Test( expected = IOException.class )
+  public void testReadTruncated() throws IOException {
+    WebjarsResourceIndex.read( new ByteArrayInputStream( "pentaho-webjars-resources 1 2 10\n".getBytes( "UTF-8" ) ) );
+  }
+
+  @Test( expected = IOException.class )
+  public void testReadUnknownFormat() throws IOException {
+    WebjarsResourceIndex.read( new ByteArrayInputStream( "something else\n".getBytes( "UTF-8" ) ) );
+  }
+
+  @Test
+  public void testContentTypes() {
+    assertEquals( "application/javascript", WebjarsResourceIndex.getContentType( "a/b.min.JS" ) );
+    assertEquals( "image/svg+xml", WebjarsResourceIndex.getContentType( "img/icon.svg" ) );
+    assertEquals( WebjarsResourceIndex.DEFAULT_CONTENT_TYPE, WebjarsResourceIndex.getContentType( "v1.2/LICENSE" ) );
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class WebjarsResourceServletTest {
+  private static final String PATH = "/META-INF/resources/webjars/lib/1.0";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private BundleContext bundleContext;
+  private File dataDir;
+  private WebjarsResourceStore resourceStore;
+  private WebjarsResourceServlet servlet;
+
+  @Before
+  public void setup() throws IOException {
+    File bundleDir = temporaryFolder.newFolder( "bundle" );
+    dataDir = temporaryFolder.newFolder( "data" );
+    WebjarsResourceIndex.Builder builder = new WebjarsResourceIndex.Builder();
+    addResource( bundleDir, builder, "lib.js", "var lib = {};" );
+    addResource( bundleDir, builder, "css/lib.css", ".lib { color: red; }" );
+    addResource( bundleDir, builder, "lib.js.gz", WebjarsPrecompressor.gzip( "var lib = {};".getBytes( "UTF-8" ) ) );
+    File indexFile = new File( bundleDir, WebjarsResourceIndex.LOCATION );
+    indexFile.getParentFile().mkdirs();
+    FileOutputStream indexOutputStream = new FileOutputStream( indexFile );
+    builder.build( PATH.substring( 1 ) + "/" ).write( indexOutputStream );
+    indexOutputStream.close();
+
+    final File root = bundleDir;
+    Bundle bundle = mock( Bundle.class );
+    when( bundle.getEntry( anyString() ) ).thenAnswer( new Answer<Object>() {
+      @Override public Object answer( InvocationOnMock invocation ) throws Throwable {
+        File file = new File( root, (String) invocation.getArguments()[ 0 ] );
+        return file.isFile() ? file.toURI().toURL() : null;
+      }
+    } );
+    bundleContext = mock( BundleContext.class );
+    when( bundleContext.getBundle() ).thenReturn( bundle );
+    when( bundleContext.getDataFile( anyString() ) ).thenAnswer( new Answer<Object>() {
+      @Override public Object answer( InvocationOnMock invocation ) throws Throwable {
+        return new File( dataDir, (String) invocation.getArguments()[ 0 ] );
+      }
+    } );
+    resourceStore = new WebjarsResourceStore( bundleContext );
+    resourceStore.setPath( PATH );
+    resourceStore.init();
+    servlet = new WebjarsResourceServlet( resourceStore );
+  }
+
+  private void addResource( File bundleDir, WebjarsResourceIndex.Builder builder, String path, String content )
+    throws IOException {
+    addResource( bundleDir, builder, path, content.getBytes( "UTF-8" ) );
+  }
+
+  private void addResource( File bundleDir, WebjarsResourceIndex.Builder builder, String path, byte[] bytes )
+    throws IOException {
+    String name = PATH.substring( 1 ) + "/" + path;
+    File file = new File( bundleDir, name );
+    file.getParentFile().mkdirs();
+    FileOutputStream outputStream = new FileOutputStream( file );
+    outputStream.write( bytes );
+    outputStream.close();
+    CRC32 crc32 = new CRC32();
+    crc32.update( bytes );
+    builder.add( name, bytes.length, crc32.getValue() );
+  }
+
+  private String get( String pathInfo, String ifNoneMatch, HttpServletResponse response ) throws Exception {
+    return new String( get( pathInfo, ifNoneMatch, null, response ), "UTF-8" );
+  }
+
+  private byte[] get( String pathInfo, String ifNoneMatch, String acceptEncoding, HttpServletResponse response )
+    throws Exception {
+    HttpServletRequest request = mock( HttpServletRequest.class );
+    when( request.getPathInfo() ).thenReturn( pathInfo );
+    when( request.getHeader( "If-None-Match" ) ).thenReturn( ifNoneMatch );
+    when( request.getHeader( "Accept-Encoding" ) ).thenReturn( acceptEncoding );
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    when( response.getOutputStream() ).thenReturn( new ServletOutputStream() {
+      @Override public void write( int b ) throws IOException {
+        body.write( b );
+      }
+    } );
+    servlet.doGet( request, response );
+    return body.toByteArray();
+  }
+
+  @Test
+  public void testServesResources() throws Exception {
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    assertEquals( ".lib { color: red; }", get( "/css/lib.css", null, response ) );
+    verify( response ).setContentType( "text/css" );
+    verify( response ).setContentLength( 20 );
+    verify( response ).setHeader( "ETag", resourceStore.getResource( "css/lib.css" ).getEtag() );
+
+    response = mock( HttpServletResponse.class );
+    assertEquals( "var lib = {};", get( "/lib.js", null, response ) );
+    verify( response ).setContentType( "application/javascript" );
+  }
+
+  @Test
+  public void testContentIsMappedFromTheDataArea() throws Exception {
+    get( "/lib.js", null, mock( HttpServletResponse.class ) );
+    File[] files = dataDir.listFiles();
+    assertEquals( 1, files.length );
+    assertTrue( files[ 0 ].getName().startsWith( WebjarsResourceStore.CONTENT_FILE_PREFIX ) );
+    assertEquals( resourceStore.getIndex().getTotalLength(), files[ 0 ].length() );
+    assertFalse( resourceStore.getContent( resourceStore.getResource( "lib.js" ) ).hasArray() );
+  }
+
+  @Test
+  public void testServesPrecompressedVariant() throws Exception {
+    WebjarsResourceIndex.Resource variant = resourceStore.getResource( "lib.js.gz" );
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    byte[] body = get( "/lib.js", null, "deflate, gzip;q=0.8", response );
+    assertEquals( "var lib = {};", IOUtils.toString( new GZIPInputStream( new ByteArrayInputStream( body ) ) ) );
+    verify( response ).setHeader( "Content-Encoding", "gzip" );
+    verify( response ).setHeader( "Vary", "Accept-Encoding" );
+    verify( response ).setHeader( "ETag", variant.getEtag() );
+    verify( response ).setContentType( "application/javascript" );
+    verify( response ).setContentLength( (int) variant.getLength() );
+
+    response = mock( HttpServletResponse.class );
+    assertEquals( "var lib = {};", new String( get( "/lib.js", null, "gzip;q=0, *", response ), "UTF-8" ) );
+    verify( response ).setHeader( "Vary", "Accept-Encoding" );
+    verify( response, never() ).setHeader( eq( "Content-Encoding" ), anyString() );
+    verify( response ).setHeader( "ETag", resourceStore.getResource( "lib.js" ).getEtag() );
+
+    // No variant
+    response = mock( HttpServletResponse.class );
+    get( "/css/lib.css", null, "gzip", response );
+    verify( response, never() ).setHeader( eq( "Vary" ), anyString() );
+  }
+
+  @Test
+  public void testAccepts() {
+    assertTrue( WebjarsResourceServlet.accepts( "gzip, deflate", "gzip" ) );
+    assertTrue( WebjarsResourceServlet.accepts( "br;q=1.0, GZIP;q=0.5", "gzip" ) );
+    assertTrue( WebjarsResourceServlet.accepts( "*", "br" ) );
+    assertFalse( WebjarsResourceServlet.accepts( "gzip;q=0, *;q=1", "gzip" ) );
+    assertFalse( WebjarsResourceServlet.accepts( "identity", "gzip" ) );
+    assertFalse( WebjarsResourceServlet.accepts( null, "gzip" ) );
+  }
+
+  @Test
+  public void testNotModified() throws Exception {
+    String etag = resourceStore.getResource( "lib.js" ).getEtag();
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    assertEquals( "", get( "/lib.js", "\"other\", " + etag, response ) );
+    verify( response ).setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+    verify( response, never() ).getOutputStream();
+  }
+
+  @Test
+  public void testNotFound() throws Exception {
+    HttpServletResponse response = mock( HttpServletResponse.class );
+    get( "/missing.js", null, response );
+    verify( response ).sendError( HttpServletResponse.SC_NOT_FOUND );
+    response = mock( HttpServletResponse.class );
+    get( null, null, response );
+    verify( response ).sendError( HttpServletResponse.SC_NOT_FOUND );
+  }
+
+  @Test
+  public void testHeapContentWithoutDataArea() throws Exception {
+    when( bundleContext.getDataFile( anyString() ) ).thenReturn( null );
+    resourceStore = new WebjarsResourceStore( bundleContext );
+    resourceStore.setPath( PATH );
+    resourceStore.init();
+    servlet = new WebjarsResourceServlet( resourceStore );
+    assertEquals( "var lib = {};", get( "/lib.js", null, mock( HttpServletResponse.class ) ) );
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WebjarsTransformCacheTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final WebjarsTransformPipeline pipeline = new WebjarsTransformPipeline();
+  private final AtomicInteger transformations = new AtomicInteger();
+  private volatile String transformThread;
+  private final WebjarsTransformation upperCase = new WebjarsTransformation() {
+    @Override public void transform( URL url, InputStream source, File sourceFile, OutputStream target )
+      throws IOException {
+      transformations.incrementAndGet();
+      transformThread = Thread.currentThread().getName();
+      target.write( IOUtils.toString( source, "UTF-8" ).toUpperCase().getBytes( "UTF-8" ) );
+    }
+  };
+
+  @Before
+  public void setup() {
+    pipeline.init();
+  }
+
+  @After
+  public void tearDown() {
+    pipeline.destroy();
+  }
+
+  @Test
+  public void testHitAfterMiss() throws Exception {
+    File source = temporaryFolder.newFile( "source.txt" );
+    FileUtils.writeStringToFile( source, "webjar", "UTF-8" );
+    WebjarsTransformCache cache = new WebjarsTransformCache( temporaryFolder.newFolder( "cache" ) );
+
+    URL url = source.toURI().toURL();
+
+    assertEquals( "WEBJAR", IOUtils.toString( cache.open( url, "1", pipeline, upperCase ), "UTF-8" ) );
+    assertEquals( "WEBJAR", IOUtils.toString( cache.open( url, "1", pipeline, upperCase ), "UTF-8" ) );
+    assertEquals( 1, transformations.get() );
+    assertEquals( 1, cache.getHits() );
+    assertEquals( 1, cache.getMisses() );
+    // The miss was transformed by the pipeline
+    assertTrue( transformThread.startsWith( "pentaho-webjars-transform-" ) );
+    assertEquals( 1, cache.getCacheDir().list().length );
+  }
+
+  @Test
+  public void testSourceOrVersionChangeReplacesTheEntry() throws Exception {
+    File source = temporaryFolder.newFile( "source.txt" );
+    FileUtils.writeStringToFile( source, "webjar", "UTF-8" );
+    WebjarsTransformCache cache = new WebjarsTransformCache( temporaryFolder.newFolder( "cache" ) );
+    URL url = source.toURI().toURL();
+
+    IOUtils.toString( cache.open( url, "1", pipeline, upperCase ), "UTF-8" );
+    IOUtils.toString( cache.open( url, "2", pipeline, upperCase ), "UTF-8" );
+    FileUtils.writeStringToFile( source, "changed", "UTF-8" );
+    assertEquals( "CHANGED", IOUtils.toString( cache.open( url, "2", pipeline, upperCase ), "UTF-8" ) );
+    assertEquals( 3, cache.getMisses() );
+    assertEquals( 1, cache.getCacheDir().list().length );
+  }
+
+  @Test
+  public void testUnchangedFileIsNotReadAgain() throws Exception {
+    File source = temporaryFolder.newFile( "source.txt" );
+    FileUtils.writeStringToFile( source, "webjar", "UTF-8" );
+    WebjarsTransformCache cache = new WebjarsTransformCache( temporaryFolder.newFolder( "cache" ) );
+    URL url = source.toURI().toURL();
+
+    IOUtils.toString( cache.open( url, "1", pipeline, upperCase ), "UTF-8" );
+    // Same size and modification time, it's taken as the same file without hashing it
+    long lastModified = source.lastModified();
+    FileUtils.writeStringToFile( source, "WEBJAR", "UTF-8" );
+    assertTrue( source.setLastModified( lastModified ) );
+    IOUtils.toString( cache.open( url, "1", pipeline, upperCase ), "UTF-8" );
+    assertEquals( 1, cache.getHits() );
+
+    assertTrue( source.setLastModified( lastModified - 10000 ) );
+    IOUtils.toString( cache.open( url, "1", pipeline, upperCase ), "UTF-8" );
+    assertEquals( 2, cache.getMisses() );
+  }
+
+  @Test
+  public void testFailedTransformationLeavesNoEntry() throws Exception {
+    File source = temporaryFolder.newFile( "source.txt" );
+    WebjarsTransformCache cache = new WebjarsTransformCache( temporaryFolder.newFolder( "cache" ) );
+    try {
+      cache.open( source.toURI().toURL(), "1", pipeline, new WebjarsTransformation() {
+        @Override public void transform( URL url, InputStream source, File sourceFile, OutputStream target )
+          throws IOException {
+          target.write( 1 );
+          throw new IOException( "TEST_EXCEPTION" );
+        }
+      } );
+      fail();
+    } catch ( IOException e ) {
+      assertEquals( "TEST_EXCEPTION", e.getCause().getMessage() );
+    }
+    assertEquals( 0, cache.getCacheDir().list().length );
+  }
+
+  @Test
+  public void testWebjarsURLConnection() throws Exception {
+    File input = new File( "src/test/resources/testInput.jar" );
+    WebjarsTransformCache cache = new WebjarsTransformCache( temporaryFolder.newFolder( "cache" ) );
+    RequireJsConfigConverter converter = new RequireJsConfigConverter( 1 );
+    byte[] first = IOUtils.toByteArray(
+      new WebjarsURLConnection( input.toURI().toURL(), converter, cache, pipeline ).getInputStream() );
+    byte[] second = IOUtils.toByteArray(
+      new WebjarsURLConnection( input.toURI().toURL(), converter, cache, pipeline ).getInputStream() );
+    assertArrayEquals( first, second );
+    assertEquals( 1, cache.getHits() );
+
+    JarInputStream jarInputStream = new JarInputStream( new ByteArrayInputStream( second ) );
+    assertTrue( jarInputStream.getManifest().getMainAttributes().getValue( "Bundle-SymbolicName" )
+      .startsWith( "pentaho-webjars-" ) );
+    List<String> names = new ArrayList<String>();
+    ZipEntry entry;
+    while ( ( entry = jarInputStream.getNextEntry() ) != null ) {
+      names.add( entry.getName() );
+    }
+    assertTrue( names.contains( WebjarsURLConnection.PENTAHO_RJS_LOCATION ) );
+    assertTrue( names.contains( "OSGI-INF/blueprint/blueprint.xml" ) );
+    // Only the transformed bundle is left in the cache
+    assertEquals( 1, cache.getCacheDir().list().length );
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WebjarsTransformPipelineTest {
+  private WebjarsTransformPipeline pipeline;
+  private URL url;
+
+  @Before
+  public void setup() throws Exception {
+    pipeline = new WebjarsTransformPipeline();
+    pipeline.setConcurrency( 1 );
+    pipeline.setQueueCapacity( 0 );
+    pipeline.setPipeBufferSize( 16 );
+    pipeline.init();
+    url = new File( "src/test/resources/testInput.jar" ).toURI().toURL();
+  }
+
+  @After
+  public void tearDown() {
+    pipeline.destroy();
+  }
+
+  @Test
+  public void testTransform() throws Exception {
+    final byte[] data = new byte[ 100000 ];
+    InputStream inputStream = pipeline.open( url, new WebjarsTransformation() {
+      @Override public void transform( URL url, InputStream source, File sourceFile, OutputStream target )
+        throws IOException {
+        target.write( data );
+        target.close();
+      }
+    } );
+    assertEquals( data.length, IOUtils.toByteArray( inputStream ).length );
+    waitFor( 1, 0 );
+    assertEquals( data.length, pipeline.getBytesWritten() );
+    assertTrue( pipeline.getBytesPerSecond() > 0 );
+  }
+
+  @Test
+  public void testFailureReachesTheReader() throws Exception {
+    InputStream inputStream = pipeline.open( url, new WebjarsTransformation() {
+      @Override public void transform( URL url, InputStream source, File sourceFile, OutputStream target )
+        throws IOException {
+        target.write( new byte[] { 1, 2, 3 } );
+        throw new IOException( "TEST_EXCEPTION" );
+      }
+    } );
+    try {
+      IOUtils.toByteArray( inputStream );
+      fail();
+    } catch ( IOException e ) {
+      assertEquals( "TEST_EXCEPTION", e.getCause().getMessage() );
+    }
+    waitFor( 0, 1 );
+  }
+
+  @Test
+  public void testOpenBlocksWhenFull() throws Exception {
+    final CountDownLatch release = new CountDownLatch( 1 );
+    InputStream first = pipeline.open( url, new WebjarsTransformation() {
+      @Override public void transform( URL url, InputStream source, File sourceFile, OutputStream target )
+        throws IOException {
+        try {
+          release.await();
+        } catch ( InterruptedException e ) {
+          throw new IOException( e );
+        }
+        target.close();
+      }
+    } );
+    final CountDownLatch opened = new CountDownLatch( 1 );
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          IOUtils.toByteArray( pipeline.open( url, new WebjarsTransformation() {
+            @Override public void transform( URL url, InputStream source, File sourceFile, OutputStream target )
+              throws IOException {
+              target.close();
+            }
+          } ) );
+          opened.countDown();
+        } catch ( IOException e ) {
+          // The latch is never counted down
+        }
+      }
+    };
+    thread.start();
+    assertEquals( false, opened.await( 200, TimeUnit.MILLISECONDS ) );
+    release.countDown();
+    IOUtils.toByteArray( first );
+    assertTrue( opened.await( 5, TimeUnit.SECONDS ) );
+    waitFor( 2, 0 );
+    assertTrue( pipeline.getMaxQueueWaitNanos() > 0 );
+  }
+
+  private void waitFor( long completed, long failures ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( ( pipeline.getCompleted() != completed || pipeline.getFailures() != failures )
+      && System.currentTimeMillis() < deadline ) {
+      Thread.sleep( 10 );
+    }
+    assertEquals( completed, pipeline.getCompleted() );
+    assertEquals( failures, pipeline.getFailures() );
+  }
+}
@@ -26,9 +26,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -64,9 +72,195 @@ public class WebjarsURLConnectionTest {
     assertNotNull(entry);
     String bpFile = IOUtils.toString( zipInputStream.getInputStream( entry ), "UTF-8" );
     assertTrue( bpFile.contains( "<property name=\"path\" value=\"/META-INF/resources/webjars/angularjs/1.3.0-rc.0\" />" ));
+    // Where the AMD script loader finds the scripts
+    assertTrue( bpFile.contains( "interface=\"org.pentaho.osgi.platform.webjars.WebjarsResourceStore\"" ) );
+    assertTrue( bpFile.contains( "<value>/angularjs</value>" ) );
+    assertTrue( bpFile.contains( "<value>/angularjs/1.3.0-rc.0</value>" ) );
+    assertTrue(
+      bpFile.contains( "<entry key=\"path\" value=\"/META-INF/resources/webjars/angularjs/1.3.0-rc.0\" />" ) );
     entry = zipInputStream.getEntry( "META-INF/js/require.json" );
     assertNotNull(entry);
 
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testUnchangedEntriesAreCopiedAsTheyAre() throws IOException {
+    File input = new File( "src/test/resources/testInput.jar" );
+    File output = File.createTempFile( "webjars", ".zip" );
+    output.deleteOnExit();
+    InputStream inputStream = new WebjarsURLConnection( input.toURI().toURL() ).getInputStream();
+    FileOutputStream fileOutputStream = new FileOutputStream( output );
+    IOUtils.copy( inputStream, fileOutputStream );
+    fileOutputStream.close();
+
+    // The manifest comes first, so JarInputStream finds it
+    JarInputStream jarInputStream = new JarInputStream( new FileInputStream( output ) );
+    assertNotNull( jarInputStream.getManifest() );
+    jarInputStream.close();
+
+    ZipFile source = new ZipFile( input );
+    ZipFile result = new ZipFile( output );
+    try {
+      int copied = 0;
+      Enumeration<? extends ZipEntry> entries = source.entries();
+      while ( entries.hasMoreElements() ) {
+        ZipEntry sourceEntry = entries.nextElement();
+        if ( sourceEntry.getName().endsWith( WebjarsURLConnection.MANIFEST_MF ) ) {
+          continue;
+        }
+        if ( sourceEntry.getName().endsWith( WebjarsURLConnection.WEBJARS_REQUIREJS_NAME ) ) {
+          assertNull( result.getEntry( sourceEntry.getName() ) );
+          continue;
+        }
+        ZipEntry resultEntry = result.getEntry( sourceEntry.getName() );
+        assertNotNull( sourceEntry.getName(), resultEntry );
+        assertEquals( sourceEntry.getCrc(), resultEntry.getCrc() );
+        assertEquals( sourceEntry.getCompressedSize(), resultEntry.getCompressedSize() );
+        assertArrayEquals( IOUtils.toByteArray( source.getInputStream( sourceEntry ) ),
+          IOUtils.toByteArray( result.getInputStream( resultEntry ) ) );
+        copied++;
+      }
+      assertTrue( copied > 0 );
+      assertNotNull( result.getEntry( WebjarsURLConnection.PENTAHO_RJS_LOCATION ) );
+      assertNotNull( result.getEntry( WebjarsURLConnection.BLUEPRINT_LOCATION ) );
+    } finally {
+      source.close();
+      result.close();
+    }
+  }
+
+  @Test
+  public void testResourceIndex() throws IOException {
+    File input = new File( "src/test/resources/testInput.jar" );
+    assertResourceIndex( input.toURI().toURL() );
+    // Not a file url, so the entries are streamed
+    final URL fileUrl = input.toURI().toURL();
+    assertResourceIndex( new URL( null, "test:testInput.jar", new URLStreamHandler() {
+      @Override protected URLConnection openConnection( URL u ) throws IOException {
+        return fileUrl.openConnection();
+      }
+    } ) );
+  }
+
+  private void assertResourceIndex( URL url ) throws IOException {
+    File output = File.createTempFile( "webjars", ".zip" );
+    output.deleteOnExit();
+    InputStream inputStream = new WebjarsURLConnection( url ).getInputStream();
+    FileOutputStream fileOutputStream = new FileOutputStream( output );
+    IOUtils.copy( inputStream, fileOutputStream );
+    fileOutputStream.close();
+
+    ZipFile result = new ZipFile( output );
+    try {
+      ZipEntry indexEntry = result.getEntry( WebjarsResourceIndex.LOCATION );
+      assertNotNull( indexEntry );
+      WebjarsResourceIndex index = WebjarsResourceIndex.read( result.getInputStream( indexEntry ) );
+      assertNotNull( index.getResource( "angular.js" ) );
+      assertNull( index.getResource( "i18n/" ) );
+      long offset = 0;
+      for ( WebjarsResourceIndex.Resource resource : index.getResources() ) {
+        ZipEntry entry = result.getEntry( "META-INF/resources/webjars/angularjs/1.3.0-rc.0/" + resource.getPath() );
+        assertNotNull( resource.getPath(), entry );
+        assertEquals( offset, resource.getOffset() );
+        assertEquals( entry.getSize(), resource.getLength() );
+        assertEquals( "\"" + Long.toHexString( entry.getCrc() ) + "-" + Long.toHexString( entry.getSize() ) + "\"",
+          resource.getEtag() );
+        offset += resource.getLength();
+      }
+      assertEquals( offset, index.getTotalLength() );
+    } finally {
+      result.close();
+    }
+  }
+
+  @Test
+  public void testPrecompress() throws IOException {
+    File input = new File( "src/test/resources/testInput.jar" );
+    assertPrecompressed( input.toURI().toURL() );
+    final URL fileUrl = input.toURI().toURL();
+    assertPrecompressed( new URL( null, "test:testInput.jar", new URLStreamHandler() {
+      @Override protected URLConnection openConnection( URL u ) throws IOException {
+        return fileUrl.openConnection();
+      }
+    } ) );
+  }
+
+  private void assertPrecompressed( URL url ) throws IOException {
+    String folder = "META-INF/resources/webjars/angularjs/1.3.0-rc.0/";
+    File output = File.createTempFile( "webjars", ".zip" );
+    output.deleteOnExit();
+    WebjarsURLConnection connection = new WebjarsURLConnection( url );
+    connection.setPrecompress( true );
+    InputStream inputStream = connection.getInputStream();
+    FileOutputStream fileOutputStream = new FileOutputStream( output );
+    IOUtils.copy( inputStream, fileOutputStream );
+    fileOutputStream.close();
+
+    ZipFile source = new ZipFile( new File( "src/test/resources/testInput.jar" ) );
+    ZipFile result = new ZipFile( output );
+    try {
+      // Added
+      ZipEntry variant = result.getEntry( folder + "angular-animate.min.js.map.gz" );
+      assertNotNull( variant );
+      assertEquals( ZipEntry.STORED, variant.getMethod() );
+      assertArrayEquals( IOUtils.toByteArray( result.getInputStream( result.getEntry( folder
+          + "angular-animate.min.js.map" ) ) ),
+        IOUtils.toByteArray( new GZIPInputStream( result.getInputStream( variant ) ) ) );
+      // Shipped with the webjar
+      assertEquals( source.getEntry( folder + "angular-animate.js.gz" ).getCrc(),
+        result.getEntry( folder + "angular-animate.js.gz" ).getCrc() );
+
+      WebjarsResourceIndex index =
+        WebjarsResourceIndex.read( result.getInputStream( result.getEntry( WebjarsResourceIndex.LOCATION ) ) );
+      assertEquals( variant.getSize(), index.getResource( "angular-animate.min.js.map.gz" ).getLength() );
+    } finally {
+      source.close();
+      result.close();
+    }
+  }
+
+  @Test( timeout = 20000 )
+  public void testInterruptedWhileWaitingForAnEngine() throws Exception {
+    // A function call, so the config needs a script engine
+    File input = File.createTempFile( "webjars", ".jar" );
+    input.deleteOnExit();
+    JarOutputStream jarOutputStream = new JarOutputStream( new FileOutputStream( input ) );
+    jarOutputStream.putNextEntry(
+      new ZipEntry( "META-INF/resources/webjars/module/1.0/" + WebjarsURLConnection.WEBJARS_REQUIREJS_NAME ) );
+    jarOutputStream.write( "requirejs.config( createConfig() );".getBytes( "UTF-8" ) );
+    jarOutputStream.close();
+
+    RequireJsConfigConverter configConverter = new RequireJsConfigConverter( 1 );
+    WebjarsTransformPipeline pipeline = new WebjarsTransformPipeline();
+    pipeline.init();
+    // The only engine, so the transformation waits for it
+    RequireJsConfigConverter.Engine engine = configConverter.borrow();
+    try {
+      InputStream inputStream =
+        new WebjarsURLConnection( input.toURI().toURL(), configConverter, null, pipeline ).getInputStream();
+      Thread waiting = null;
+      while ( waiting == null ) {
+        for ( Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet() ) {
+          for ( StackTraceElement element : thread.getValue() ) {
+            if ( element.getClassName().equals( RequireJsConfigConverter.class.getName() )
+              && element.getMethodName().equals( "borrow" ) ) {
+              waiting = thread.getKey();
+            }
+          }
+        }
+        Thread.sleep( 10 );
+      }
+      waiting.interrupt();
+      try {
+        IOUtils.toByteArray( inputStream );
+        fail();
+      } catch ( IOException e ) {
+        assertTrue( e.getCause() instanceof InterruptedIOException );
+      }
+    } finally {
+      configConverter.release( engine );
+      configConverter.destroy();
+      pipeline.destroy();
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+ * Foundation.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ * or from the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * Copyright 2015 Pentaho Corporation. All rights reserved.
+ */
+
+package org.pentaho.osgi.platform.webjars;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ZipCentralDirectoryTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testReadAndFindEntry() throws Exception {
+    File zip = createZip( "a/", "a/first.txt", "a/webjars-requirejs.js", "b.txt" );
+    RandomAccessFile file = new RandomAccessFile( zip, "r" );
+    try {
+      ZipCentralDirectory centralDirectory = ZipCentralDirectory.read( file );
+      assertEquals( 4, centralDirectory.getEntries().size() );
+      ZipCentralDirectory.Entry entry = centralDirectory.getEntries().get( 1 );
+      assertEquals( "a/first.txt", entry.getName() );
+      assertEquals( ZipEntry.DEFLATED, entry.getMethod() );
+      assertEquals( "a/first.txt".length(), entry.getSize() );
+
+      assertEquals( "a/webjars-requirejs.js", ZipCentralDirectory.findEntry( file, "-requirejs.js" ) );
+      assertNull( ZipCentralDirectory.findEntry( file, "missing.js" ) );
+    } finally {
+      file.close();
+    }
+  }
+
+  @Test( expected = ZipException.class )
+  public void testNotAZip() throws Exception {
+    File notZip = temporaryFolder.newFile( "not.jar" );
+    FileUtils.writeStringToFile( notZip, "not a zip file", "UTF-8" );
+    RandomAccessFile file = new RandomAccessFile( notZip, "r" );
+    try {
+      ZipCentralDirectory.findEntry( file, ".js" );
+      fail();
+    } finally {
+      file.close();
+    }
+  }
+
+  @Test
+  public void testRawZipWriterCopiesEntries() throws Exception {
+    File zip = createZip( "a/", "a/first.txt", "b.txt" );
+    File copy = temporaryFolder.newFile( "copy.zip" );
+    RandomAccessFile file = new RandomAccessFile( zip, "r" );
+    FileOutputStream outputStream = new FileOutputStream( copy );
+    try {
+      RawZipWriter writer = new RawZipWriter( outputStream );
+      writer.write( "new.txt", "new".getBytes( "UTF-8" ) );
+      for ( ZipCentralDirectory.Entry entry : ZipCentralDirectory.read( file ).getEntries() ) {
+        writer.copy( file, entry );
+      }
+      writer.finish();
+    } finally {
+      file.close();
+      outputStream.close();
+    }
+
+    ZipFile zipFile = new ZipFile( copy );
+    try {
+      assertEquals( 4, zipFile.size() );
+      assertEquals( "new", IOUtils.toString( zipFile.getInputStream( zipFile.getEntry( "new.txt" ) ), "UTF-8" ) );
+      assertEquals( "a/first.txt",
+        IOUtils.toString( zipFile.getInputStream( zipFile.getEntry( "a/first.txt" ) ), "UTF-8" ) );
+      assertEquals( "b.txt", IOUtils.toString( zipFile.getInputStream( zipFile.getEntry( "b.txt" ) ), "UTF-8" ) );
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  /**
+   * Files contain their own name.
+   */
+  private File createZip( String... names ) throws Exception {
+    File zip = temporaryFolder.newFile();
+    ZipOutputStream zipOutputStream = new ZipOutputStream( new FileOutputStream( zip ) );
+    try {
+      for ( String name : names ) {
+        zipOutputStream.putNextEntry( new ZipEntry( name ) );
+        if ( !name.endsWith( "/" ) ) {
+          zipOutputStream.write( name.getBytes( "UTF-8" ) );
+        }
+        zipOutputStream.closeEntry();
+      }
+    } finally {
+      zipOutputStream.close();
+    }
+    return zip;
+  }
+}